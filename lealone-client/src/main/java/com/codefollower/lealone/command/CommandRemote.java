@@ -7,9 +7,13 @@
 package com.codefollower.lealone.command;
 
 import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 
+import com.codefollower.lealone.constant.Constants;
 import com.codefollower.lealone.constant.SysProperties;
+import com.codefollower.lealone.engine.AsyncResult;
 import com.codefollower.lealone.engine.SessionRemote;
 import com.codefollower.lealone.expression.ParameterInterface;
 import com.codefollower.lealone.expression.ParameterRemote;
@@ -200,6 +204,150 @@ public class CommandRemote implements CommandInterface {
         }
     }
 
+    /**
+     * Send the query without waiting for the result. With an older server or
+     * in cluster mode, the query is executed at once.
+     *
+     * @param maxRows the maximum number of rows to return
+     * @param scrollable if the result set must be scrollable
+     * @return the result of the request
+     */
+    public AsyncResult<ResultInterface> executeQueryAsync(final int maxRows, boolean scrollable) {
+        checkParameters();
+        synchronized (session) {
+            if (!session.isAsyncSupported()) {
+                try {
+                    return AsyncResult.completed(session, executeQuery(maxRows, scrollable), null);
+                } catch (DbException e) {
+                    return AsyncResult.<ResultInterface> completed(session, null, e);
+                }
+            }
+            prepareIfRequired();
+            final int objectId = session.getNextId();
+            final int fetch = scrollable ? Integer.MAX_VALUE : fetchSize;
+            // the command may be closed before the response is read
+            final SessionRemote s = session;
+            Transfer transfer = transferList.get(0);
+            AsyncResult<ResultInterface> result = new AsyncResult<ResultInterface>(s, transfer) {
+                protected ResultInterface read(Transfer t) throws IOException {
+                    int columnCount = t.readInt();
+                    int rowCount = t.readInt();
+                    if (rowCount < 0)
+                        return new ResultRemoteCursor(s, t, objectId, columnCount, fetch);
+                    return new ResultRemoteInMemory(s, t, objectId, columnCount, rowCount, fetch);
+                }
+            };
+            try {
+                session.traceOperation("COMMAND_EXECUTE_QUERY", id);
+                transfer.writeInt(SessionRemote.REQUEST_ID).writeInt(result.getRequestId());
+                transfer.writeInt(SessionRemote.COMMAND_EXECUTE_QUERY).writeInt(id).writeInt(objectId).writeInt(maxRows);
+                transfer.writeInt(fetch);
+                sendParameters(transfer);
+                session.send(transfer, result);
+            } catch (IOException e) {
+                throw DbException.convertIOException(e, sql);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Send the statement without waiting for the update count. With an older
+     * server or in cluster mode, the statement is executed at once.
+     *
+     * @return the result of the request
+     */
+    public AsyncResult<Integer> executeUpdateAsync() {
+        checkParameters();
+        synchronized (session) {
+            if (!session.isAsyncSupported()) {
+                try {
+                    return AsyncResult.completed(session, executeUpdate(), null);
+                } catch (DbException e) {
+                    return AsyncResult.<Integer> completed(session, null, e);
+                }
+            }
+            prepareIfRequired();
+            final SessionRemote s = session;
+            Transfer transfer = transferList.get(0);
+            AsyncResult<Integer> result = new AsyncResult<Integer>(s, transfer) {
+                protected Integer read(Transfer t) throws IOException {
+                    int updateCount = t.readInt();
+                    // the session state is read by the next synchronous request
+                    s.setAutoCommitFromServer(t.readBoolean());
+                    return updateCount;
+                }
+            };
+            try {
+                session.traceOperation("COMMAND_EXECUTE_UPDATE", id);
+                transfer.writeInt(SessionRemote.REQUEST_ID).writeInt(result.getRequestId());
+                transfer.writeInt(SessionRemote.COMMAND_EXECUTE_UPDATE).writeInt(id);
+                sendParameters(transfer);
+                session.send(transfer, result);
+            } catch (IOException e) {
+                throw DbException.convertIOException(e, sql);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Check if the server can execute a batch in one round trip.
+     *
+     * @return true if it can
+     */
+    public boolean isBatchUpdateSupported() {
+        return session.getClientVersion() >= Constants.TCP_PROTOCOL_VERSION_13;
+    }
+
+    /**
+     * Execute the statement once for each parameter set of a batch. All the
+     * parameter sets are sent in one request, and the server executes them in
+     * one transaction.
+     *
+     * @param batchParameters the parameter sets
+     * @param errors receives the exceptions of the failed parameter sets, in
+     *            the order of the parameter sets
+     * @return the update count of each parameter set, or
+     *         Statement.EXECUTE_FAILED if it failed
+     */
+    public int[] executeBatchUpdate(ArrayList<Value[]> batchParameters, ArrayList<SQLException> errors) {
+        synchronized (session) {
+            int size = batchParameters.size();
+            int[] result = new int[size];
+            boolean autoCommit = false;
+            for (int i = 0, count = 0; i < transferList.size(); i++) {
+                prepareIfRequired();
+                Transfer transfer = transferList.get(i);
+                try {
+                    session.traceOperation("COMMAND_EXECUTE_BATCH_UPDATE", id);
+                    transfer.writeInt(SessionRemote.COMMAND_EXECUTE_BATCH_UPDATE).writeInt(id).writeInt(size);
+                    for (Value[] set : batchParameters) {
+                        transfer.writeInt(set.length);
+                        for (Value v : set) {
+                            transfer.writeValue(v);
+                        }
+                    }
+                    session.done(transfer);
+                    errors.clear();
+                    for (int j = 0; j < size; j++) {
+                        result[j] = transfer.readInt();
+                        if (result[j] == Statement.EXECUTE_FAILED) {
+                            errors.add(session.readException(transfer));
+                        }
+                    }
+                    autoCommit = transfer.readBoolean();
+                } catch (IOException e) {
+                    session.removeServer(e, i--, ++count);
+                }
+            }
+            session.setAutoCommitFromServer(autoCommit);
+            session.autoCommitIfCluster();
+            session.readSessionState();
+            return result;
+        }
+    }
+
     private void checkParameters() {
         for (ParameterInterface p : parameters) {
             p.checkSet();
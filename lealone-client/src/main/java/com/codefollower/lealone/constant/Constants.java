@@ -85,6 +85,21 @@ public class Constants {
      */
     public static final int TCP_PROTOCOL_VERSION_12 = 12;
 
+    /**
+     * The TCP protocol version number 13.
+     */
+    public static final int TCP_PROTOCOL_VERSION_13 = 13;
+
+    /**
+     * The TCP protocol version number 14.
+     */
+    public static final int TCP_PROTOCOL_VERSION_14 = 14;
+
+    /**
+     * The TCP protocol version number 15.
+     */
+    public static final int TCP_PROTOCOL_VERSION_15 = 15;
+
     /**
      * The major version of this database.
      */
@@ -136,6 +136,15 @@ public class SysProperties {
      */
     public static final String CLIENT_TRACE_DIRECTORY = getProperty("client.trace.directory", "trace.db/");
 
+    /**
+     * System property <code>client.statement.cache.size</code>
+     * (default: 16).<br />
+     * The number of closed prepared statements a client / server connection
+     * keeps prepared on the server, to reuse them when the same SQL statement
+     * is prepared again. 0 disables the cache.
+     */
+    public static final int CLIENT_STATEMENT_CACHE_SIZE = getProperty("client.statement.cache.size", 16);
+
     /**
      * System property <code>collator.cache.size</code> (default: 32000).<br />
      * The cache size for collation keys (in elements). Used when a collator has
@@ -301,6 +310,60 @@ public class SysProperties {
      */
     public static final int SERVER_RESULT_SET_FETCH_SIZE = getProperty("server.resultset.fetch.size", 100);
 
+    /**
+     * System property <code>server.resultset.fetch.max.size</code>
+     * (default: 10000).<br />
+     * The maximum number of rows the fetch size of a result set grows to
+     * while the result is read.
+     */
+    public static final int SERVER_RESULT_SET_MAX_FETCH_SIZE = getProperty("server.resultset.fetch.max.size", 10000);
+
+    /**
+     * System property <code>server.resultset.fetch.max.bytes</code>
+     * (default: 4194304).<br />
+     * The fetch size of a result set does not grow beyond the number of rows
+     * that are estimated to use this many bytes.
+     */
+    public static final int SERVER_RESULT_SET_MAX_FETCH_BYTES = getProperty("server.resultset.fetch.max.bytes",
+            4 * 1024 * 1024);
+
+    /**
+     * System property <code>server.resultset.compress</code>
+     * (default: false).<br />
+     * TCP Server: compress the result rows sent to clients that use the
+     * protocol version 15 or newer with LZF.
+     */
+    public static final boolean SERVER_RESULT_SET_COMPRESS = getProperty("server.resultset.compress", false);
+
+    /**
+     * System property <code>server.nio.selectors</code>
+     * (default: half the number of processors).<br />
+     * TCP Server started with -tcpNio: number of threads selecting the
+     * connections that have data to read.
+     */
+    public static final int SERVER_NIO_SELECTORS = getProperty("server.nio.selectors",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    /**
+     * System property <code>server.nio.workers</code>
+     * (default: 8 times the number of processors).<br />
+     * TCP Server started with -tcpNio: maximum number of threads processing
+     * the requests, or 0 for no limit. Idle workers end after a minute. A
+     * request that waits for another request of the same server holds a
+     * worker, so with a limit the server can deadlock when all the workers
+     * wait.
+     */
+    public static final int SERVER_NIO_WORKERS = getProperty("server.nio.workers",
+            8 * Runtime.getRuntime().availableProcessors());
+
+    /**
+     * System property <code>server.nio.worker.queue</code> (default: 1024).<br />
+     * TCP Server started with -tcpNio: maximum number of requests waiting for
+     * a worker when the number of workers is limited, at least 1. A request
+     * that finds the queue full is answered with an error.
+     */
+    public static final int SERVER_NIO_WORKER_QUEUE = getProperty("server.nio.worker.queue", 1024);
+
     /**
      * System property <code>socket.connect.retry</code> (default: 16).<br />
      * The number of times to retry opening a socket. Windows sometimes fails
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2004-2011 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.codefollower.lealone.engine;
+
+import java.io.IOException;
+
+import com.codefollower.lealone.constant.ErrorCode;
+import com.codefollower.lealone.message.DbException;
+import com.codefollower.lealone.value.Transfer;
+
+/**
+ * The result of a request that was sent to the server without waiting for the
+ * response. Several requests can be in flight on the same session; the server
+ * processes them in the order they were sent, and the responses are read when
+ * a result is needed, or before the response of the next synchronous request
+ * is read.
+ *
+ * @param <T> the type of the result
+ */
+public abstract class AsyncResult<T> {
+
+    /**
+     * Called when the response of a request was read.
+     *
+     * @param <T> the type of the result
+     */
+    public interface Handler<T> {
+
+        /**
+         * The request completed.
+         *
+         * @param result the result, or null if the request failed
+         * @param e the exception, or null if the request succeeded
+         */
+        void handle(T result, DbException e);
+    }
+
+    private final SessionRemote session;
+    private final Transfer transfer;
+    private final int requestId;
+    private boolean done;
+    private T result;
+    private DbException error;
+    private Handler<T> handler;
+
+    /**
+     * Create the result of a new request.
+     *
+     * @param session the session
+     * @param transfer the transfer object the request is sent with, or null
+     *            if the result is completed at once
+     */
+    protected AsyncResult(SessionRemote session, Transfer transfer) {
+        this.session = session;
+        this.transfer = transfer;
+        this.requestId = transfer == null ? -1 : session.getNextRequestId();
+    }
+
+    /**
+     * Create a result that is already completed.
+     *
+     * @param session the session
+     * @param result the result
+     * @param e the exception
+     * @return the completed result
+     */
+    public static <T> AsyncResult<T> completed(SessionRemote session, T result, DbException e) {
+        AsyncResult<T> r = new AsyncResult<T>(session, null) {
+            protected T read(Transfer t) {
+                throw DbException.throwInternalError();
+            }
+        };
+        r.complete(result, e);
+        return r;
+    }
+
+    /**
+     * Read the rest of the response, after the status.
+     *
+     * @param t the transfer object
+     * @return the result
+     */
+    protected abstract T read(Transfer t) throws IOException;
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * Check if the response was read.
+     *
+     * @return true if it was
+     */
+    public boolean isDone() {
+        synchronized (session) {
+            return done;
+        }
+    }
+
+    /**
+     * Wait for the response and get the result.
+     *
+     * @return the result
+     * @throws DbException if the request failed
+     */
+    public T get() {
+        synchronized (session) {
+            if (!done) {
+                session.readResponses(this);
+            }
+            if (error != null) {
+                throw error;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Set the handler that is called when the response is read. The handler
+     * is called by the thread that reads the response, while it holds the
+     * lock of the session, so it should not block. If the response was already
+     * read, the handler is called at once.
+     *
+     * @param handler the handler
+     */
+    public void setHandler(Handler<T> handler) {
+        synchronized (session) {
+            if (done) {
+                callHandler(handler);
+            } else {
+                this.handler = handler;
+            }
+        }
+    }
+
+    /**
+     * Read the response of this request. The responses of the requests sent
+     * before must have been read already.
+     */
+    void readResponse() {
+        try {
+            int id = transfer.readInt();
+            if (id != requestId) {
+                throw DbException.get(ErrorCode.CONNECTION_BROKEN_1, "unexpected request id " + id);
+            }
+            session.readStatus(transfer);
+            complete(read(transfer), null);
+        } catch (IOException e) {
+            complete(null, DbException.convertIOException(e, null));
+        } catch (DbException e) {
+            complete(null, e);
+        }
+    }
+
+    /**
+     * Complete the request.
+     *
+     * @param r the result
+     * @param e the exception
+     */
+    void complete(T r, DbException e) {
+        done = true;
+        result = r;
+        error = e;
+        if (handler != null) {
+            callHandler(handler);
+            handler = null;
+        }
+    }
+
+    private void callHandler(Handler<T> h) {
+        try {
+            h.handle(result, error);
+        } catch (RuntimeException e) {
+            session.getTrace().error(e, "handler");
+        }
+    }
+
+}
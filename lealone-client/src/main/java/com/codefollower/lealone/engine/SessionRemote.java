@@ -10,6 +10,9 @@ import java.io.IOException;
 import java.net.Socket;
 import java.sql.Connection;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
 
 import com.codefollower.lealone.api.DatabaseEventListener;
 import com.codefollower.lealone.command.CommandInterface;
@@ -60,6 +63,8 @@ public class SessionRemote extends SessionWithState implements DataHandler {
     public static final int SESSION_SET_AUTOCOMMIT = 15;
     public static final int SESSION_UNDO_LOG_POS = 16;
     public static final int LOB_READ = 17;
+    public static final int COMMAND_EXECUTE_BATCH_UPDATE = 18;
+    public static final int REQUEST_ID = 19;
 
     public static final int STATUS_ERROR = 0;
     public static final int STATUS_OK = 1;
@@ -87,6 +92,9 @@ public class SessionRemote extends SessionWithState implements DataHandler {
     private DatabaseEventListener eventListener;
     private LobStorage lobStorage;
     private boolean cluster;
+    private final LinkedList<AsyncResult<?>> pendingRequests = new LinkedList<AsyncResult<?>>();
+    private int nextRequestId;
+    private StatementCache statementCache;
 
     public SessionRemote(ConnectionInfo ci) {
         this.connectionInfo = ci;
@@ -99,7 +107,7 @@ public class SessionRemote extends SessionWithState implements DataHandler {
         trans.setSSL(ci.isSSL());
         trans.init();
         trans.writeInt(Constants.TCP_PROTOCOL_VERSION_6);
-        trans.writeInt(Constants.TCP_PROTOCOL_VERSION_12);
+        trans.writeInt(Constants.TCP_PROTOCOL_VERSION_15);
         trans.writeString(db);
         trans.writeString(ci.getOriginalURL());
         trans.writeString(ci.getUserName());
@@ -512,9 +520,54 @@ public class SessionRemote extends SessionWithState implements DataHandler {
         }
     }
 
+    /**
+     * Takes the command of a closed prepared statement out of the statement
+     * cache.
+     *
+     * @param sql the SQL statement
+     * @return the command, or null if none is cached
+     */
+    public synchronized CommandInterface getCachedCommand(String sql) {
+        if (statementCache == null) {
+            return null;
+        }
+        return statementCache.remove(sql);
+    }
+
+    /**
+     * Keeps the command of a closed prepared statement, so that it doesn't
+     * need to be prepared again if the same SQL statement is prepared later,
+     * also by another connection handle of this session. The command is
+     * closed if the session is closed or the cache is disabled.
+     *
+     * @param sql the SQL statement
+     * @param command the command
+     */
+    public synchronized void cacheCommand(String sql, CommandInterface command) {
+        if (!isClosed() && SysProperties.CLIENT_STATEMENT_CACHE_SIZE > 0) {
+            if (statementCache == null) {
+                statementCache = new StatementCache();
+            }
+            command = statementCache.put(sql, command);
+        }
+        if (command != null) {
+            command.close();
+        }
+    }
+
+    private synchronized void closeCachedCommands() {
+        if (statementCache != null) {
+            for (CommandInterface command : statementCache.values()) {
+                command.close();
+            }
+            statementCache = null;
+        }
+    }
+
     public void close() {
         RuntimeException closeError = null;
         if (transferList != null) {
+            closeCachedCommands();
             synchronized (this) {
                 for (Transfer transfer : transferList) {
                     try {
@@ -554,10 +607,59 @@ public class SessionRemote extends SessionWithState implements DataHandler {
         return nextId;
     }
 
+    int getNextRequestId() {
+        return nextRequestId++;
+    }
+
+    /**
+     * Check if requests can be sent without waiting for the response of the
+     * previous request.
+     *
+     * @return true if they can
+     */
+    public boolean isAsyncSupported() {
+        return clientVersion >= Constants.TCP_PROTOCOL_VERSION_14 && !cluster;
+    }
+
+    /**
+     * Send an asynchronous request. The request, prefixed with REQUEST_ID and
+     * the request id, must have been written to the transfer object already.
+     *
+     * @param transfer the transfer object
+     * @param result the result of the request
+     * @throws IOException if there is a communication problem between client
+     *             and server
+     */
+    public void send(Transfer transfer, AsyncResult<?> result) throws IOException {
+        transfer.flush();
+        pendingRequests.add(result);
+    }
+
+    /**
+     * Read the responses of the pending asynchronous requests, in the order
+     * the requests were sent.
+     *
+     * @param last the last request to read the response of, or null to read
+     *            all responses
+     */
+    void readResponses(AsyncResult<?> last) {
+        while (!pendingRequests.isEmpty()) {
+            AsyncResult<?> r = pendingRequests.removeFirst();
+            r.readResponse();
+            if (r == last) {
+                return;
+            }
+        }
+        if (last != null && !last.isDone()) {
+            last.complete(null, DbException.get(ErrorCode.CONNECTION_BROKEN_1, "session closed"));
+        }
+    }
+
     /**
      * Called to flush the output after data has been sent to the server and
      * just before receiving data. This method also reads the status code from
-     * the server and throws any exception the server sent.
+     * the server and throws any exception the server sent. The responses of
+     * the asynchronous requests sent before are read first.
      *
      * @param transfer the transfer object
      * @throws DbException if the server sent an exception
@@ -566,15 +668,21 @@ public class SessionRemote extends SessionWithState implements DataHandler {
      */
     public void done(Transfer transfer) throws IOException {
         transfer.flush();
+        readResponses(null);
+        readStatus(transfer);
+    }
+
+    /**
+     * Read the status code from the server and throw any exception the server
+     * sent.
+     *
+     * @param transfer the transfer object
+     */
+    void readStatus(Transfer transfer) throws IOException {
         int status = transfer.readInt();
         if (status == STATUS_ERROR) {
-            String sqlstate = transfer.readString();
-            String message = transfer.readString();
-            String sql = transfer.readString();
-            int errorCode = transfer.readInt();
-            String stackTrace = transfer.readString();
-            JdbcSQLException s = new JdbcSQLException(message, sql, sqlstate, errorCode, null, stackTrace);
-            if (errorCode == ErrorCode.CONNECTION_BROKEN_1) {
+            JdbcSQLException s = readException(transfer);
+            if (s.getErrorCode() == ErrorCode.CONNECTION_BROKEN_1) {
                 // allow re-connect
                 IOException e = new IOException(s.toString());
                 e.initCause(s);
@@ -592,6 +700,30 @@ public class SessionRemote extends SessionWithState implements DataHandler {
         }
     }
 
+    /**
+     * Read an exception sent by the server.
+     *
+     * @param transfer the transfer object
+     * @return the exception
+     */
+    public JdbcSQLException readException(Transfer transfer) throws IOException {
+        String sqlstate = transfer.readString();
+        String message = transfer.readString();
+        String sql = transfer.readString();
+        int errorCode = transfer.readInt();
+        String stackTrace = transfer.readString();
+        return new JdbcSQLException(message, sql, sqlstate, errorCode, null, stackTrace);
+    }
+
+    /**
+     * Get the protocol version used with the server.
+     *
+     * @return the version
+     */
+    public int getClientVersion() {
+        return clientVersion;
+    }
+
     /**
      * Returns true if the connection was opened in cluster mode.
      *
@@ -726,4 +858,25 @@ public class SessionRemote extends SessionWithState implements DataHandler {
         return 1;
     }
 
+
+    /**
+     * The commands of closed prepared statements, by SQL statement. The least
+     * recently used command is closed when the cache is full.
+     */
+    private static class StatementCache extends LinkedHashMap<String, CommandInterface> {
+
+        private static final long serialVersionUID = 1L;
+
+        StatementCache() {
+            super(16, 0.75f, true);
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<String, CommandInterface> eldest) {
+            if (size() > SysProperties.CLIENT_STATEMENT_CACHE_SIZE) {
+                eldest.getValue().close();
+                return true;
+            }
+            return false;
+        }
+    }
 }
@@ -31,6 +31,7 @@ import com.codefollower.lealone.constant.SysProperties;
 import com.codefollower.lealone.engine.ConnectionInfo;
 import com.codefollower.lealone.engine.SessionInterface;
 import com.codefollower.lealone.engine.SessionRemote;
+import com.codefollower.lealone.expression.ParameterInterface;
 import com.codefollower.lealone.message.DbException;
 import com.codefollower.lealone.message.TraceObject;
 import com.codefollower.lealone.result.ResultInterface;
@@ -1114,9 +1115,36 @@ public class JdbcConnection extends TraceObject implements Connection {
      * @return the command
      */
     CommandInterface prepareCommand(String sql, int fetchSize) {
+        if (session instanceof SessionRemote) {
+            CommandInterface command = ((SessionRemote) session).getCachedCommand(sql);
+            if (command != null) {
+                command.setFetchSize(fetchSize);
+                return command;
+            }
+        }
         return session.prepareCommand(sql, fetchSize);
     }
 
+    /**
+     * Close the command of a prepared statement. With a remote session, the
+     * command is kept in the statement cache of the session instead, so that
+     * it doesn't need to be prepared again if the same SQL statement is
+     * prepared later, also by another handle of a pooled connection.
+     *
+     * @param sql the SQL statement
+     * @param command the command
+     */
+    void closeCommand(String sql, CommandInterface command) {
+        if (session instanceof SessionRemote) {
+            for (ParameterInterface p : command.getParameters()) {
+                p.setValue(null, true);
+            }
+            ((SessionRemote) session).cacheCommand(sql, command);
+        } else {
+            command.close();
+        }
+    }
+
     private CommandInterface prepareCommand(String sql, CommandInterface old) {
         return old == null ? session.prepareCommand(sql, Integer.MAX_VALUE) : old;
     }
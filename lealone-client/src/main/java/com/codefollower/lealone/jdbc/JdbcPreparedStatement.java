@@ -25,6 +25,7 @@ import java.util.Calendar;
 import java.util.HashMap;
 
 import com.codefollower.lealone.command.CommandInterface;
+import com.codefollower.lealone.command.CommandRemote;
 import com.codefollower.lealone.constant.ErrorCode;
 import com.codefollower.lealone.expression.ParameterInterface;
 import com.codefollower.lealone.message.DbException;
@@ -1064,10 +1065,15 @@ public class JdbcPreparedStatement extends JdbcStatement implements PreparedStat
      */
     public void close() throws SQLException {
         try {
+            JdbcConnection c = conn;
             super.close();
             batchParameters = null;
             if (command != null) {
-                command.close();
+                if (c != null) {
+                    c.closeCommand(sqlStatement, command);
+                } else {
+                    command.close();
+                }
                 command = null;
             }
         } catch (Exception e) {
@@ -1094,17 +1100,18 @@ public class JdbcPreparedStatement extends JdbcStatement implements PreparedStat
             SQLException next = null;
             checkClosedForWrite();
             try {
-                for (int i = 0; i < size; i++) {
-                    Value[] set = batchParameters.get(i);
-                    ArrayList<? extends ParameterInterface> parameters = command.getParameters();
-                    for (int j = 0; j < set.length; j++) {
-                        Value value = set[j];
-                        ParameterInterface param = parameters.get(j);
-                        param.setValue(value, false);
+                if (size > 0 && isRemoteBatch()) {
+                    ArrayList<SQLException> errors = New.arrayList();
+                    closeOldResultSet();
+                    synchronized (session) {
+                        try {
+                            setExecutingStatement(command);
+                            result = ((CommandRemote) command).executeBatchUpdate(batchParameters, errors);
+                        } finally {
+                            setExecutingStatement(null);
+                        }
                     }
-                    try {
-                        result[i] = executeUpdateInternal();
-                    } catch (Exception re) {
+                    for (SQLException re : errors) {
                         SQLException e = logAndConvert(re);
                         if (next == null) {
                             next = e;
@@ -1112,9 +1119,31 @@ public class JdbcPreparedStatement extends JdbcStatement implements PreparedStat
                             e.setNextException(next);
                             next = e;
                         }
-                        result[i] = Statement.EXECUTE_FAILED;
                         error = true;
                     }
+                } else {
+                    for (int i = 0; i < size; i++) {
+                        Value[] set = batchParameters.get(i);
+                        ArrayList<? extends ParameterInterface> parameters = command.getParameters();
+                        for (int j = 0; j < set.length; j++) {
+                            Value value = set[j];
+                            ParameterInterface param = parameters.get(j);
+                            param.setValue(value, false);
+                        }
+                        try {
+                            result[i] = executeUpdateInternal();
+                        } catch (Exception re) {
+                            SQLException e = logAndConvert(re);
+                            if (next == null) {
+                                next = e;
+                            } else {
+                                e.setNextException(next);
+                                next = e;
+                            }
+                            result[i] = Statement.EXECUTE_FAILED;
+                            error = true;
+                        }
+                    }
                 }
                 batchParameters = null;
                 if (error) {
@@ -1130,6 +1159,25 @@ public class JdbcPreparedStatement extends JdbcStatement implements PreparedStat
         }
     }
 
+    /**
+     * Check if the batch can be sent to the server in one request. This is
+     * not possible if a parameter of a parameter set is not set, then each
+     * parameter set is executed on its own, so that only this one fails.
+     */
+    private boolean isRemoteBatch() {
+        if (!(command instanceof CommandRemote) || !((CommandRemote) command).isBatchUpdateSupported()) {
+            return false;
+        }
+        for (Value[] set : batchParameters) {
+            for (Value v : set) {
+                if (v == null) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
     /**
      * Adds the current settings to the batch.
      */
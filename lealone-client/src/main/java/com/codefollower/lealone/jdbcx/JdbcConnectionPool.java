@@ -23,7 +23,12 @@ package com.codefollower.lealone.jdbcx;
 import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.sql.ConnectionEvent;
 import javax.sql.ConnectionEventListener;
 import javax.sql.ConnectionPoolDataSource;
@@ -32,7 +37,6 @@ import javax.sql.PooledConnection;
 
 //## Java 1.6 ##
 import com.codefollower.lealone.message.DbException;
-import com.codefollower.lealone.util.New;
 
 /*## Java 1.7 ##
 import java.util.logging.Logger;
@@ -60,6 +64,13 @@ import java.util.logging.Logger;
  *     }
  * }
  * </pre>
+ * <p>
+ * Getting and returning a connection doesn't lock the pool: the free
+ * connections are kept in a lock-free stack, and the number of connections in
+ * use is limited by a fair semaphore, so that waiting threads get a connection
+ * in the order they asked for it. A thread gets the connection it returned
+ * last if it is still free. A connection that was not used for a while is
+ * validated before it is returned.
  *
  * @author Christian d'Heureuse
  *      (<a href="http://www.source-code.biz">www.source-code.biz</a>)
@@ -70,13 +81,22 @@ public class JdbcConnectionPool implements DataSource, ConnectionEventListener {
     private static final int DEFAULT_TIMEOUT = 30;
     private static final int DEFAULT_MAX_CONNECTIONS = 10;
 
+    /**
+     * A free connection that was not used for this many milliseconds is
+     * validated before it is returned.
+     */
+    private static final long VALIDATION_INTERVAL = 5000;
+
     private final ConnectionPoolDataSource dataSource;
-    private final ArrayList<PooledConnection> recycledConnections = New.arrayList();
+    private final FreeStack freeConnections = new FreeStack();
+    private final ConcurrentHashMap<PooledConnection, Entry> entries = new ConcurrentHashMap<PooledConnection, Entry>();
+    private final ThreadLocal<Entry> lastUsed = new ThreadLocal<Entry>();
+    private final Permits permits = new Permits(DEFAULT_MAX_CONNECTIONS);
+    private final AtomicInteger activeConnections = new AtomicInteger();
     private PrintWriter logWriter;
-    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
-    private int timeout = DEFAULT_TIMEOUT;
-    private int activeConnections;
-    private boolean isDisposed;
+    private volatile int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private volatile int timeout = DEFAULT_TIMEOUT;
+    private volatile boolean isDisposed;
 
     protected JdbcConnectionPool(ConnectionPoolDataSource dataSource) {
         this.dataSource = dataSource;
@@ -125,9 +145,14 @@ public class JdbcConnectionPool implements DataSource, ConnectionEventListener {
         if (max < 1) {
             throw new IllegalArgumentException("Invalid maxConnections value: " + max);
         }
+        int diff = max - maxConnections;
         this.maxConnections = max;
-        // notify waiting threads if the value was increased
-        notifyAll();
+        if (diff > 0) {
+            // this lets waiting threads continue if the value was increased
+            permits.release(diff);
+        } else {
+            permits.reducePermits(-diff);
+        }
     }
 
     /**
@@ -135,7 +160,7 @@ public class JdbcConnectionPool implements DataSource, ConnectionEventListener {
      *
      * @return the max the maximum number of connections
      */
-    public synchronized int getMaxConnections() {
+    public int getMaxConnections() {
         return maxConnections;
     }
 
@@ -144,7 +169,7 @@ public class JdbcConnectionPool implements DataSource, ConnectionEventListener {
      *
      * @return the timeout in seconds
      */
-    public synchronized int getLoginTimeout() {
+    public int getLoginTimeout() {
         return timeout;
     }
 
@@ -155,7 +180,7 @@ public class JdbcConnectionPool implements DataSource, ConnectionEventListener {
      *
      * @param seconds the timeout, 0 meaning the default
      */
-    public synchronized void setLoginTimeout(int seconds) {
+    public void setLoginTimeout(int seconds) {
         if (seconds == 0) {
             seconds = DEFAULT_TIMEOUT;
         }
@@ -171,9 +196,14 @@ public class JdbcConnectionPool implements DataSource, ConnectionEventListener {
             return;
         }
         isDisposed = true;
-        ArrayList<PooledConnection> list = recycledConnections;
-        for (int i = 0, size = list.size(); i < size; i++) {
-            closeConnection(list.get(i));
+        closeFreeConnections();
+    }
+
+    private void closeFreeConnections() {
+        for (Entry e = freeConnections.pop(); e != null; e = freeConnections.pop()) {
+            if (e.claim()) {
+                closeConnection(e);
+            }
         }
     }
 
@@ -191,20 +221,24 @@ public class JdbcConnectionPool implements DataSource, ConnectionEventListener {
      *      or a timeout occurred
      */
     public Connection getConnection() throws SQLException {
-        long max = System.currentTimeMillis() + timeout * 1000;
-        do {
-            synchronized (this) {
-                if (activeConnections < maxConnections) {
-                    return getConnectionNow();
-                }
-                try {
-                    wait(1000);
-                } catch (InterruptedException e) {
-                    // ignore
-                }
+        try {
+            if (!permits.tryAcquire(timeout, TimeUnit.SECONDS)) {
+                throw new SQLException("Login timeout", "08001", 8001);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Login timeout", "08001", 8001);
+        }
+        boolean success = false;
+        try {
+            Connection conn = getConnectionNow();
+            success = true;
+            return conn;
+        } finally {
+            if (!success) {
+                permits.release();
             }
-        } while (System.currentTimeMillis() <= max);
-        throw new SQLException("Login timeout", "08001", 8001);
+        }
     }
 
     /**
@@ -218,14 +252,31 @@ public class JdbcConnectionPool implements DataSource, ConnectionEventListener {
         if (isDisposed) {
             throw new IllegalStateException("Connection pool has been disposed.");
         }
-        PooledConnection pc;
-        if (!recycledConnections.isEmpty()) {
-            pc = recycledConnections.remove(recycledConnections.size() - 1);
-        } else {
-            pc = dataSource.getPooledConnection();
+        while (true) {
+            Entry e = lastUsed.get();
+            if (e == null || !e.claim()) {
+                e = freeConnections.pop();
+                while (e != null && !e.claim()) {
+                    // in use again, it was taken by the thread that used it last
+                    e = freeConnections.pop();
+                }
+            }
+            if (e == null) {
+                break;
+            }
+            Connection conn = e.pc.getConnection();
+            if (System.currentTimeMillis() - e.lastUsed < VALIDATION_INTERVAL || conn.isValid(timeout)) {
+                activeConnections.incrementAndGet();
+                e.pc.addConnectionEventListener(this);
+                return conn;
+            }
+            closeConnection(e);
         }
+        PooledConnection pc = dataSource.getPooledConnection();
         Connection conn = pc.getConnection();
-        activeConnections++;
+        Entry e = new Entry(pc);
+        entries.put(pc, e);
+        activeConnections.incrementAndGet();
         pc.addConnectionEventListener(this);
         return conn;
     }
@@ -237,27 +288,35 @@ public class JdbcConnectionPool implements DataSource, ConnectionEventListener {
      *
      * @param pc the pooled connection
      */
-    synchronized void recycleConnection(PooledConnection pc) {
-        if (activeConnections <= 0) {
+    void recycleConnection(PooledConnection pc) {
+        Entry e = entries.get(pc);
+        int active = activeConnections.decrementAndGet();
+        if (e == null || active < 0) {
             throw new AssertionError();
         }
-        activeConnections--;
-        if (!isDisposed && activeConnections < maxConnections) {
-            recycledConnections.add(pc);
+        if (!isDisposed && active < maxConnections) {
+            e.lastUsed = System.currentTimeMillis();
+            e.free();
+            lastUsed.set(e);
+            freeConnections.push(e);
+            if (isDisposed) {
+                // disposed concurrently
+                closeFreeConnections();
+            }
         } else {
-            closeConnection(pc);
-        }
-        if (activeConnections >= maxConnections - 1) {
-            notifyAll();
+            closeConnection(e);
         }
+        permits.release();
     }
 
-    private void closeConnection(PooledConnection pc) {
+    private void closeConnection(Entry e) {
+        entries.remove(e.pc);
+        e.close();
         try {
-            pc.close();
-        } catch (SQLException e) {
+            e.pc.close();
+        } catch (SQLException ex) {
             if (logWriter != null) {
-                e.printStackTrace(logWriter);
+                ex.printStackTrace(logWriter);
             }
         }
     }
@@ -286,8 +345,8 @@ public class JdbcConnectionPool implements DataSource, ConnectionEventListener {
      *
      * @return the number of active connections.
      */
-    public synchronized int getActiveConnections() {
-        return activeConnections;
+    public int getActiveConnections() {
+        return activeConnections.get();
     }
 
     /**
@@ -335,5 +394,121 @@ public class JdbcConnectionPool implements DataSource, ConnectionEventListener {
     }
 //*/
 
+    /**
+     * A pooled connection and its state.
+     */
+    private static class Entry {
+
+        private static final int FREE = 0, IN_USE = 1, CLOSED = 2;
+
+        final PooledConnection pc;
+        final AtomicInteger state = new AtomicInteger(IN_USE);
+
+        /**
+         * The node that was pushed last for this entry. The entry is in the
+         * stack of free connections if this node was not taken yet.
+         */
+        final AtomicReference<FreeStack.Node> node = new AtomicReference<FreeStack.Node>();
+        volatile long lastUsed = System.currentTimeMillis();
+
+        Entry(PooledConnection pc) {
+            this.pc = pc;
+        }
+
+        /**
+         * Take the connection if it is free.
+         *
+         * @return true if it was free
+         */
+        boolean claim() {
+            return state.compareAndSet(FREE, IN_USE);
+        }
+
+        void free() {
+            state.set(FREE);
+        }
+
+        void close() {
+            state.set(CLOSED);
+        }
+    }
+
+    /**
+     * A lock-free stack of free connections (Treiber stack). An entry is in
+     * the stack at most once. It may be taken by the thread that used it last
+     * while it is in the stack, so an entry popped from the stack must be
+     * claimed before it is used.
+     * <p>
+     * A node is taken with a single compare-and-set on the node, before it is
+     * unlinked. So a push that finds the last node of the entry not taken can
+     * rely on a later pop to return the entry; there is no window in which
+     * the node is already gone but still counts as stacked.
+     */
+    private static class FreeStack {
+
+        private final AtomicReference<Node> head = new AtomicReference<Node>();
+
+        void push(Entry e) {
+            Node n = new Node(e);
+            while (true) {
+                Node last = e.node.get();
+                if (last != null && !last.taken.get()) {
+                    // still in the stack
+                    return;
+                }
+                if (e.node.compareAndSet(last, n)) {
+                    break;
+                }
+            }
+            do {
+                n.next = head.get();
+            } while (!head.compareAndSet(n.next, n));
+        }
+
+        Entry pop() {
+            while (true) {
+                Node n = head.get();
+                if (n == null) {
+                    return null;
+                }
+                boolean taken = n.taken.compareAndSet(false, true);
+                // if a node was pushed on top of it in the meantime, the
+                // taken node is skipped when it gets to the top again
+                head.compareAndSet(n, n.next);
+                if (taken) {
+                    return n.entry;
+                }
+            }
+        }
+
+        /**
+         * A node of the stack.
+         */
+        static class Node {
+            final Entry entry;
+            final AtomicBoolean taken = new AtomicBoolean();
+            Node next;
+
+            Node(Entry entry) {
+                this.entry = entry;
+            }
+        }
+    }
+
+    /**
+     * A fair semaphore that allows to reduce the number of permits.
+     */
+    private static class Permits extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        Permits(int permits) {
+            super(permits, true);
+        }
+
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
 
 }
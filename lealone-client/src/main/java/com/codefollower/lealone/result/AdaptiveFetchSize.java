@@ -0,0 +1,70 @@
+/*
+ * Copyright 2004-2011 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.codefollower.lealone.result;
+
+import com.codefollower.lealone.constant.SysProperties;
+
+/**
+ * The fetch size of a result that is read in batches. It starts with the
+ * requested fetch size, and doubles while the reader spends a noticeable part
+ * of its time waiting for the next batch, up to the number of rows that are
+ * estimated to fit in SysProperties.SERVER_RESULT_SET_MAX_FETCH_BYTES. It
+ * never gets smaller than the requested fetch size.
+ */
+public class AdaptiveFetchSize {
+
+    private int minFetchSize;
+    private int fetchSize;
+    private long rowBytes;
+    private long lastReceived;
+
+    public AdaptiveFetchSize(int fetchSize) {
+        set(fetchSize);
+    }
+
+    /**
+     * Set the requested fetch size.
+     *
+     * @param fetchSize the fetch size
+     */
+    public void set(int fetchSize) {
+        this.minFetchSize = fetchSize;
+        this.fetchSize = fetchSize;
+    }
+
+    public int get() {
+        return fetchSize;
+    }
+
+    /**
+     * Adjust the fetch size after a batch was received.
+     *
+     * @param rows the number of rows in the batch
+     * @param bytes the estimated size of the rows
+     * @param waitNanos how long the reader waited for the batch
+     */
+    public void received(int rows, long bytes, long waitNanos) {
+        long now = System.nanoTime();
+        // the time the reader spent on the previous batch
+        long processNanos = lastReceived == 0 ? 0 : now - waitNanos - lastReceived;
+        lastReceived = now;
+        if (rows == 0) {
+            return;
+        }
+        long b = Math.max(1, bytes / rows);
+        rowBytes = rowBytes == 0 ? b : (rowBytes * 3 + b) / 4;
+        long limit = Math.min(SysProperties.SERVER_RESULT_SET_MAX_FETCH_SIZE,
+                SysProperties.SERVER_RESULT_SET_MAX_FETCH_BYTES / rowBytes);
+        limit = Math.max(limit, minFetchSize);
+        if (fetchSize > limit) {
+            fetchSize = (int) limit;
+        } else if (fetchSize < limit && waitNanos * 4 > processNanos) {
+            fetchSize = (int) Math.min(limit, fetchSize * 2L);
+        }
+    }
+
+}
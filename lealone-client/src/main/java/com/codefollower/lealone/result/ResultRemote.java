@@ -9,7 +9,9 @@ package com.codefollower.lealone.result;
 import java.io.IOException;
 import java.util.ArrayList;
 
+import com.codefollower.lealone.constant.Constants;
 import com.codefollower.lealone.constant.SysProperties;
+import com.codefollower.lealone.engine.AsyncResult;
 import com.codefollower.lealone.engine.SessionRemote;
 import com.codefollower.lealone.message.DbException;
 import com.codefollower.lealone.message.Trace;
@@ -17,9 +19,15 @@ import com.codefollower.lealone.util.New;
 import com.codefollower.lealone.value.Transfer;
 import com.codefollower.lealone.value.Value;
 
+/**
+ * The client side part of a result that is read from the server in batches.
+ * When the protocol allows it, the next batch is requested as soon as a batch
+ * was received, so that it is transferred while the current batch is
+ * processed.
+ */
 public abstract class ResultRemote implements ResultInterface {
 
-    protected int fetchSize;
+    protected final AdaptiveFetchSize fetchSize;
     protected SessionRemote session;
     protected Transfer transfer;
     protected int id;
@@ -29,6 +37,8 @@ public abstract class ResultRemote implements ResultInterface {
     protected int rowId, rowOffset;
     protected ArrayList<Value[]> result;
     protected final Trace trace;
+    private AsyncResult<ArrayList<Value[]>> prefetch;
+    private int prefetchCount;
 
     public ResultRemote(SessionRemote session, Transfer transfer, int id, int columnCount, int rowCount, int fetchSize)
             throws IOException {
@@ -43,7 +53,7 @@ public abstract class ResultRemote implements ResultInterface {
         }
         rowId = -1;
         result = New.arrayList();
-        this.fetchSize = fetchSize;
+        this.fetchSize = new AdaptiveFetchSize(fetchSize);
         fetchRows(false);
     }
 
@@ -51,6 +61,101 @@ public abstract class ResultRemote implements ResultInterface {
 
     protected abstract void fetchRows(boolean sendFetch);
 
+    /**
+     * Get the number of rows to fetch for the batch that starts at the given
+     * row.
+     *
+     * @param offset the index of the first row of the batch
+     * @return the number of rows, or 0 if there are no more rows
+     */
+    protected abstract int getFetchCount(int offset);
+
+    /**
+     * Replace the current rows with the next batch, and request the batch
+     * after it.
+     *
+     * @param sendFetch whether the rows need to be requested, false for the
+     *            first batch that is sent with the query response
+     * @return true if this is the last batch
+     */
+    protected boolean fetchBatch(boolean sendFetch) throws IOException {
+        rowOffset += result.size();
+        result.clear();
+        long start = System.nanoTime();
+        int count;
+        if (prefetch != null) {
+            count = prefetchCount;
+            result = prefetch.get();
+            prefetch = null;
+        } else {
+            count = getFetchCount(rowOffset);
+            if (sendFetch) {
+                sendFetch(count);
+            }
+            readRows(transfer, result, count);
+        }
+        long bytes = 0;
+        for (Value[] row : result) {
+            for (Value v : row) {
+                bytes += v.getMemory();
+            }
+        }
+        fetchSize.received(result.size(), bytes, System.nanoTime() - start);
+        if (result.size() < count) {
+            return true;
+        }
+        int next = getFetchCount(rowOffset + result.size());
+        if (next <= 0) {
+            return true;
+        }
+        if (session.isAsyncSupported()) {
+            sendPrefetch(next);
+        }
+        return false;
+    }
+
+    /**
+     * Read rows until the given number of rows or the end of the result. Since
+     * the protocol version 15, the rows come in one batch.
+     *
+     * @param t the transfer object
+     * @param rows the list to add the rows to
+     * @param count the number of rows
+     */
+    protected void readRows(Transfer t, ArrayList<Value[]> rows, int count) throws IOException {
+        int len = columns.length;
+        if (t.getVersion() >= Constants.TCP_PROTOCOL_VERSION_15) {
+            t.readRows(rows, len);
+            return;
+        }
+        for (int r = 0; r < count; r++) {
+            boolean row = t.readBoolean();
+            if (!row) {
+                break;
+            }
+            Value[] values = new Value[len];
+            for (int i = 0; i < len; i++) {
+                values[i] = t.readValue();
+            }
+            rows.add(values);
+        }
+    }
+
+    private void sendPrefetch(final int count) throws IOException {
+        prefetch = new AsyncResult<ArrayList<Value[]>>(session, transfer) {
+            protected ArrayList<Value[]> read(Transfer t) throws IOException {
+                ArrayList<Value[]> rows = New.arrayList();
+                readRows(t, rows, count);
+                return rows;
+            }
+        };
+        prefetchCount = count;
+        session.traceOperation("RESULT_FETCH_ROWS", id);
+        transfer.writeInt(SessionRemote.REQUEST_ID).writeInt(prefetch.getRequestId());
+        transfer.writeInt(SessionRemote.RESULT_FETCH_ROWS).writeInt(id).writeInt(count);
+        session.send(transfer, prefetch);
+    }
+
     public String getAlias(int i) {
         return columns[i].alias;
     }
@@ -94,9 +199,14 @@ public abstract class ResultRemote implements ResultInterface {
     public void reset() {
         rowId = -1;
         currentRow = null;
+        // the response of a pending prefetch is read and dropped later
+        prefetch = null;
         if (session == null) {
             return;
         }
+        // the server starts over, so the rows are read again from the first one
+        rowOffset = 0;
+        result.clear();
         synchronized (session) {
             session.checkClosed();
             try {
@@ -142,9 +252,9 @@ public abstract class ResultRemote implements ResultInterface {
         }
     }
 
-    protected void sendFetch() throws IOException {
+    protected void sendFetch(int count) throws IOException {
         session.traceOperation("RESULT_FETCH_ROWS", id);
-        transfer.writeInt(SessionRemote.RESULT_FETCH_ROWS).writeInt(id).writeInt(fetchSize);
+        transfer.writeInt(SessionRemote.RESULT_FETCH_ROWS).writeInt(id).writeInt(count);
         session.done(transfer);
     }
 
@@ -178,11 +288,11 @@ public abstract class ResultRemote implements ResultInterface {
     }
 
     public int getFetchSize() {
-        return fetchSize;
+        return fetchSize.get();
     }
 
     public void setFetchSize(int fetchSize) {
-        this.fetchSize = fetchSize;
+        this.fetchSize.set(fetchSize);
     }
 
     public boolean needToClose() {
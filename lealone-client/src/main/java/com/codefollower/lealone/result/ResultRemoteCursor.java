@@ -11,7 +11,6 @@ import java.io.IOException;
 import com.codefollower.lealone.engine.SessionRemote;
 import com.codefollower.lealone.message.DbException;
 import com.codefollower.lealone.value.Transfer;
-import com.codefollower.lealone.value.Value;
 
 public class ResultRemoteCursor extends ResultRemote {
     //不能在这初始化为false，在super的构造函数中会调用fetchRows有可能把isEnd设为true了，
@@ -51,31 +50,17 @@ public class ResultRemoteCursor extends ResultRemote {
         return Integer.MAX_VALUE; //不能返回-1，JdbcResultSet那边会抛异常
     }
 
+    @Override
+    protected int getFetchCount(int offset) {
+        return fetchSize.get();
+    }
+
     @Override
     protected void fetchRows(boolean sendFetch) {
         synchronized (session) {
             session.checkClosed();
             try {
-                rowOffset += result.size();
-                result.clear();
-                if (sendFetch) {
-                    sendFetch();
-                }
-                for (int r = 0; r < fetchSize; r++) {
-                    boolean row = transfer.readBoolean();
-                    if (!row) {
-                        isEnd = true;
-                        break;
-                    }
-                    int len = columns.length;
-                    Value[] values = new Value[len];
-                    for (int i = 0; i < len; i++) {
-                        Value v = transfer.readValue();
-                        values[i] = v;
-                    }
-                    result.add(values);
-                }
-
+                isEnd = fetchBatch(sendFetch);
                 if (isEnd)
                     sendClose();
             } catch (IOException e) {
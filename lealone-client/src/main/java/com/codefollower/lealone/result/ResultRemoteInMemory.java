@@ -11,7 +11,6 @@ import java.io.IOException;
 import com.codefollower.lealone.engine.SessionRemote;
 import com.codefollower.lealone.message.DbException;
 import com.codefollower.lealone.value.Transfer;
-import com.codefollower.lealone.value.Value;
 
 /**
  * The client side part of a result set that is kept on the server.
@@ -41,30 +40,17 @@ public class ResultRemoteInMemory extends ResultRemote {
         return false;
     }
 
+    @Override
+    protected int getFetchCount(int offset) {
+        return Math.min(fetchSize.get(), rowCount - offset);
+    }
+
     @Override
     protected void fetchRows(boolean sendFetch) {
         synchronized (session) {
             session.checkClosed();
             try {
-                rowOffset += result.size();
-                result.clear();
-                int fetch = Math.min(fetchSize, rowCount - rowOffset);
-                if (sendFetch) {
-                    sendFetch();
-                }
-                for (int r = 0; r < fetch; r++) {
-                    boolean row = transfer.readBoolean();
-                    if (!row) {
-                        break;
-                    }
-                    int len = columns.length;
-                    Value[] values = new Value[len];
-                    for (int i = 0; i < len; i++) {
-                        Value v = transfer.readValue();
-                        values[i] = v;
-                    }
-                    result.add(values);
-                }
+                fetchBatch(sendFetch);
                 if (rowOffset + result.size() >= rowCount) {
                     sendClose();
                 }
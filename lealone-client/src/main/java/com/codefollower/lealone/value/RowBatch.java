@@ -0,0 +1,419 @@
+/*
+ * Copyright 2004-2011 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.codefollower.lealone.value;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.codefollower.lealone.compress.CompressLZF;
+import com.codefollower.lealone.constant.ErrorCode;
+import com.codefollower.lealone.message.DbException;
+import com.codefollower.lealone.store.Data;
+import com.codefollower.lealone.util.New;
+
+/**
+ * The encoding of a batch of result rows, used by the TCP protocol version 15.
+ * <p>
+ * The rows are stored column by column in a Data buffer. Each column starts
+ * with an optional bitmap of the null values, followed by the other values in
+ * the compact format of Data (variable size integers, strings similar to
+ * UTF-8). A string column with many repeated values is stored as a dictionary
+ * and runs of dictionary indexes instead. The buffer may be compressed with
+ * LZF. DATE, TIME and TIMESTAMP columns are stored as the date value and the
+ * nanoseconds, like Transfer does, because the format of Data depends on
+ * the time zone and drops the nanoseconds of TIME values unless the local
+ * time is stored. Batches that contain LOBs or result sets, even inside of
+ * arrays, and batches where the format of Data would lose information are
+ * sent value by value, as before.
+ */
+class RowBatch {
+
+    private static final int FORMAT_VALUES = 0;
+    private static final int FORMAT_COLUMNS = 1;
+    private static final int FORMAT_COLUMNS_LZF = 2;
+
+    private static final int COLUMN_VALUES = 0;
+    private static final int COLUMN_DICTIONARY = 1;
+    private static final int COLUMN_DATE_TIME = 2;
+
+    /**
+     * Smaller buffers are not compressed.
+     */
+    private static final int MIN_COMPRESS_LENGTH = 256;
+
+    private RowBatch() {
+        // utility class
+    }
+
+    /**
+     * Write a batch of rows.
+     *
+     * @param transfer the transfer object
+     * @param rows the rows
+     * @param columnCount the number of columns
+     * @param compress whether to compress the rows
+     */
+    static void write(Transfer transfer, ArrayList<Value[]> rows, int columnCount, boolean compress)
+            throws IOException {
+        int size = rows.size();
+        transfer.writeInt(size);
+        if (size == 0) {
+            return;
+        }
+        if (!canEncode(rows, columnCount)) {
+            transfer.writeInt(FORMAT_VALUES);
+            for (Value[] row : rows) {
+                for (int i = 0; i < columnCount; i++) {
+                    transfer.writeValue(row[i]);
+                }
+            }
+            return;
+        }
+        Data data = Data.create(null, 1024);
+        for (int i = 0; i < columnCount; i++) {
+            writeColumn(data, rows, i);
+        }
+        int len = data.length();
+        if (compress && len >= MIN_COMPRESS_LENGTH) {
+            byte[] buff = new byte[len * 2];
+            int compressed = new CompressLZF().compress(data.getBytes(), len, buff, 0);
+            if (compressed < len) {
+                transfer.writeInt(FORMAT_COLUMNS_LZF).writeInt(len).writeInt(compressed);
+                transfer.writeBytes(buff, 0, compressed);
+                return;
+            }
+        }
+        transfer.writeInt(FORMAT_COLUMNS).writeInt(len);
+        transfer.writeBytes(data.getBytes(), 0, len);
+    }
+
+    /**
+     * Read a batch of rows.
+     *
+     * @param transfer the transfer object
+     * @param rows the list to add the rows to
+     * @param columnCount the number of columns
+     * @return the number of rows read
+     */
+    static int read(Transfer transfer, ArrayList<Value[]> rows, int columnCount) throws IOException {
+        int size = transfer.readInt();
+        if (size == 0) {
+            return 0;
+        }
+        int format = transfer.readInt();
+        if (format == FORMAT_VALUES) {
+            for (int r = 0; r < size; r++) {
+                Value[] row = new Value[columnCount];
+                for (int i = 0; i < columnCount; i++) {
+                    row[i] = transfer.readValue();
+                }
+                rows.add(row);
+            }
+            return size;
+        }
+        int len = transfer.readInt();
+        byte[] buff = new byte[len];
+        if (format == FORMAT_COLUMNS_LZF) {
+            int compressed = transfer.readInt();
+            byte[] in = new byte[compressed];
+            transfer.readBytes(in, 0, compressed);
+            new CompressLZF().expand(in, 0, compressed, buff, 0, len);
+        } else if (format == FORMAT_COLUMNS) {
+            transfer.readBytes(buff, 0, len);
+        } else {
+            throw DbException.get(ErrorCode.CONNECTION_BROKEN_1, "unknown row format " + format);
+        }
+        Data data = Data.create(null, buff);
+        Value[][] values = new Value[size][columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            readColumn(data, values, i);
+        }
+        for (Value[] row : values) {
+            rows.add(row);
+        }
+        return size;
+    }
+
+    private static boolean canEncode(ArrayList<Value[]> rows, int columnCount) {
+        for (int i = 0; i < columnCount; i++) {
+            int dateTimeType = Value.UNKNOWN;
+            boolean other = false;
+            for (Value[] row : rows) {
+                Value v = row[i];
+                int type = v.getType();
+                if (isDateTime(type)) {
+                    if (dateTimeType == Value.UNKNOWN) {
+                        dateTimeType = type;
+                    } else if (type != dateTimeType) {
+                        return false;
+                    }
+                } else if (type != Value.NULL) {
+                    if (!canWriteData(v)) {
+                        return false;
+                    }
+                    other = true;
+                }
+                if (other && dateTimeType != Value.UNKNOWN) {
+                    // a DATE, TIME or TIMESTAMP column must not contain other values
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if the value can be written with Data.writeValue without losing
+     * information.
+     *
+     * @param v the value
+     * @return true if it can
+     */
+    private static boolean canWriteData(Value v) {
+        switch (v.getType()) {
+        case Value.BLOB:
+        case Value.CLOB:
+        case Value.RESULT_SET:
+        case Value.DATE:
+        case Value.TIME:
+        case Value.TIMESTAMP:
+            return false;
+        case Value.ARRAY:
+            for (Value x : ((ValueArray) v).getList()) {
+                if (!canWriteData(x)) {
+                    return false;
+                }
+            }
+            return true;
+        default:
+            return true;
+        }
+    }
+
+    private static boolean isDateTime(int type) {
+        return type == Value.DATE || type == Value.TIME || type == Value.TIMESTAMP;
+    }
+
+    private static int getDateTimeType(ArrayList<Value[]> rows, int column) {
+        for (Value[] row : rows) {
+            int type = row[column].getType();
+            if (isDateTime(type)) {
+                return type;
+            }
+        }
+        return Value.UNKNOWN;
+    }
+
+    private static void writeColumn(Data data, ArrayList<Value[]> rows, int column) {
+        int size = rows.size();
+        int nulls = 0;
+        for (Value[] row : rows) {
+            if (row[column] == ValueNull.INSTANCE) {
+                nulls++;
+            }
+        }
+        data.checkCapacity(2 + (size + 7) / 8);
+        if (nulls == 0) {
+            data.writeByte((byte) 0);
+        } else {
+            data.writeByte((byte) 1);
+            for (int r = 0; r < size; r += 8) {
+                int bits = 0;
+                for (int j = 0; j < 8 && r + j < size; j++) {
+                    if (rows.get(r + j)[column] == ValueNull.INSTANCE) {
+                        bits |= 1 << j;
+                    }
+                }
+                data.writeByte((byte) bits);
+            }
+        }
+        int dateTimeType = getDateTimeType(rows, column);
+        if (dateTimeType != Value.UNKNOWN) {
+            writeDateTime(data, rows, column, dateTimeType);
+            return;
+        }
+        if (writeDictionary(data, rows, column, size - nulls)) {
+            return;
+        }
+        data.writeByte((byte) COLUMN_VALUES);
+        for (Value[] row : rows) {
+            Value v = row[column];
+            if (v != ValueNull.INSTANCE) {
+                data.checkCapacity(data.getValueLen(v));
+                data.writeValue(v);
+            }
+        }
+    }
+
+    /**
+     * Write a string column as a dictionary and runs of indexes, if all values
+     * have the same string type and at most half of them are distinct.
+     *
+     * @return true if the column was written
+     */
+    private static boolean writeDictionary(Data data, ArrayList<Value[]> rows, int column, int count) {
+        int type = Value.UNKNOWN;
+        HashMap<String, Integer> indexes = New.hashMap();
+        ArrayList<String> dictionary = New.arrayList();
+        for (Value[] row : rows) {
+            Value v = row[column];
+            if (v == ValueNull.INSTANCE) {
+                continue;
+            }
+            int t = v.getType();
+            if (type == Value.UNKNOWN) {
+                if (t != Value.STRING && t != Value.STRING_IGNORECASE && t != Value.STRING_FIXED) {
+                    return false;
+                }
+                type = t;
+            } else if (t != type) {
+                return false;
+            }
+            String s = v.getString();
+            if (!indexes.containsKey(s)) {
+                if (dictionary.size() * 2 >= count) {
+                    return false;
+                }
+                indexes.put(s, dictionary.size());
+                dictionary.add(s);
+            }
+        }
+        if (type == Value.UNKNOWN) {
+            return false;
+        }
+        data.checkCapacity(7);
+        data.writeByte((byte) COLUMN_DICTIONARY);
+        data.writeByte((byte) type);
+        data.writeVarInt(dictionary.size());
+        for (String s : dictionary) {
+            data.checkCapacity(Data.getStringLen(s));
+            data.writeString(s);
+        }
+        int last = -1, run = 0;
+        for (Value[] row : rows) {
+            Value v = row[column];
+            if (v == ValueNull.INSTANCE) {
+                continue;
+            }
+            int index = indexes.get(v.getString());
+            if (index == last) {
+                run++;
+            } else {
+                writeRun(data, last, run);
+                last = index;
+                run = 1;
+            }
+        }
+        writeRun(data, last, run);
+        return true;
+    }
+
+    /**
+     * Write a column of DATE, TIME or TIMESTAMP values as the date value and
+     * the nanoseconds since midnight.
+     */
+    private static void writeDateTime(Data data, ArrayList<Value[]> rows, int column, int type) {
+        data.checkCapacity(2);
+        data.writeByte((byte) COLUMN_DATE_TIME);
+        data.writeByte((byte) type);
+        for (Value[] row : rows) {
+            Value v = row[column];
+            if (v == ValueNull.INSTANCE) {
+                continue;
+            }
+            data.checkCapacity(20);
+            switch (type) {
+            case Value.DATE:
+                data.writeVarLong(((ValueDate) v).getDateValue());
+                break;
+            case Value.TIME:
+                data.writeVarLong(((ValueTime) v).getNanos());
+                break;
+            default:
+                ValueTimestamp ts = (ValueTimestamp) v;
+                data.writeVarLong(ts.getDateValue());
+                data.writeVarLong(ts.getNanos());
+            }
+        }
+    }
+
+    private static void writeRun(Data data, int index, int run) {
+        if (run > 0) {
+            data.checkCapacity(10);
+            data.writeVarInt(index);
+            data.writeVarInt(run);
+        }
+    }
+
+    private static void readColumn(Data data, Value[][] rows, int column) {
+        int size = rows.length;
+        boolean[] isNull = null;
+        if (data.readByte() != 0) {
+            isNull = new boolean[size];
+            for (int r = 0; r < size; r += 8) {
+                int bits = data.readByte();
+                for (int j = 0; j < 8 && r + j < size; j++) {
+                    isNull[r + j] = (bits & (1 << j)) != 0;
+                }
+            }
+        }
+        int kind = data.readByte();
+        if (kind == COLUMN_DICTIONARY) {
+            int type = data.readByte();
+            Value[] dictionary = new Value[data.readVarInt()];
+            for (int i = 0; i < dictionary.length; i++) {
+                dictionary[i] = ValueString.get(data.readString()).convertTo(type);
+            }
+            Value v = null;
+            int run = 0;
+            for (int r = 0; r < size; r++) {
+                if (isNull != null && isNull[r]) {
+                    rows[r][column] = ValueNull.INSTANCE;
+                    continue;
+                }
+                if (run == 0) {
+                    v = dictionary[data.readVarInt()];
+                    run = data.readVarInt();
+                }
+                rows[r][column] = v;
+                run--;
+            }
+        } else if (kind == COLUMN_DATE_TIME) {
+            int type = data.readByte();
+            for (int r = 0; r < size; r++) {
+                if (isNull != null && isNull[r]) {
+                    rows[r][column] = ValueNull.INSTANCE;
+                } else {
+                    rows[r][column] = readDateTime(data, type);
+                }
+            }
+        } else {
+            for (int r = 0; r < size; r++) {
+                if (isNull != null && isNull[r]) {
+                    rows[r][column] = ValueNull.INSTANCE;
+                } else {
+                    rows[r][column] = data.readValue();
+                }
+            }
+        }
+    }
+
+    private static Value readDateTime(Data data, int type) {
+        switch (type) {
+        case Value.DATE:
+            return ValueDate.fromDateValue(data.readVarLong());
+        case Value.TIME:
+            return ValueTime.fromNanos(data.readVarLong());
+        case Value.TIMESTAMP:
+            return ValueTimestamp.fromDateValueAndNanos(data.readVarLong(), data.readVarLong());
+        default:
+            throw DbException.get(ErrorCode.CONNECTION_BROKEN_1, "unknown date time type " + type);
+        }
+    }
+
+}
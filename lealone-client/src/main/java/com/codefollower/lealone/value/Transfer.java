@@ -11,6 +11,8 @@ import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.math.BigDecimal;
 import java.net.InetAddress;
@@ -21,6 +23,7 @@ import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Time;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 
 import com.codefollower.lealone.constant.Constants;
 import com.codefollower.lealone.constant.ErrorCode;
@@ -86,6 +89,19 @@ public class Transfer {
         }
     }
 
+    /**
+     * Initialize the transfer object with the given streams instead of the
+     * streams of the socket. This is used by servers that do the socket I/O
+     * themselves.
+     *
+     * @param in the input stream
+     * @param out the output stream
+     */
+    public synchronized void init(InputStream in, OutputStream out) {
+        this.in = new DataInputStream(in);
+        this.out = new DataOutputStream(out);
+    }
+
     /**
      * Write pending changes.
      */
@@ -723,6 +739,35 @@ public class Transfer {
         this.version = version;
     }
 
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Write a batch of result rows in the compact format of the protocol
+     * version 15.
+     *
+     * @param rows the rows
+     * @param columnCount the number of columns
+     * @param compress whether to compress the rows with LZF
+     * @return itself
+     */
+    public Transfer writeRows(ArrayList<Value[]> rows, int columnCount, boolean compress) throws IOException {
+        RowBatch.write(this, rows, columnCount, compress);
+        return this;
+    }
+
+    /**
+     * Read a batch of result rows written with writeRows.
+     *
+     * @param rows the list to add the rows to
+     * @param columnCount the number of columns
+     * @return the number of rows read
+     */
+    public int readRows(ArrayList<Value[]> rows, int columnCount) throws IOException {
+        return RowBatch.read(this, rows, columnCount);
+    }
+
     public synchronized boolean isClosed() {
         return socket == null || socket.isClosed();
     }
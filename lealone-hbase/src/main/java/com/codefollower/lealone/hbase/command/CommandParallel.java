@@ -27,6 +27,7 @@ import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import org.apache.hadoop.hbase.util.Pair;
 import org.apache.hadoop.hbase.util.Threads;
 
 import com.codefollower.lealone.command.Command;
@@ -37,13 +38,27 @@ import com.codefollower.lealone.constant.SysProperties;
 import com.codefollower.lealone.expression.ParameterInterface;
 import com.codefollower.lealone.hbase.command.merge.HBaseMergedResult;
 import com.codefollower.lealone.hbase.engine.HBaseSession;
+import com.codefollower.lealone.hbase.result.HBaseParallelResult;
+import com.codefollower.lealone.hbase.result.HBaseRegionQueries;
 import com.codefollower.lealone.hbase.result.HBaseSerializedResult;
+import com.codefollower.lealone.hbase.result.HBaseSortedResult;
 import com.codefollower.lealone.hbase.util.HBaseRegionInfo;
 import com.codefollower.lealone.hbase.util.HBaseUtils;
 import com.codefollower.lealone.result.ResultInterface;
 import com.codefollower.lealone.util.New;
 
 public class CommandParallel implements CommandInterface {
+    //非GroupQuery的多Region查询最多提前打开几个Region的查询
+    private static final int PREFETCH_COUNT = HBaseUtils.getConfiguration().getInt(
+            "lealone.parallel.scan.prefetch.count", 4);
+    //没有ORDER BY时是否允许按各Region返回结果的先后顺序交错输出记录
+    private static final boolean UNORDERED_SCAN = HBaseUtils.getConfiguration().getBoolean(
+            "lealone.parallel.scan.unordered", false);
+    //线程池的最大线程数
+    private static final int MAX_THREADS = HBaseUtils.getConfiguration().getInt("lealone.parallel.max.threads", 20);
+    //GroupQuery和带ORDER BY的查询最多同时提交几个Region的查询，Region个数比线程数多时后面的查询等前面的结果被取走后再提交
+    private static final int MAX_IN_FLIGHT = HBaseUtils.getConfiguration().getInt("lealone.parallel.max.inflight",
+            MAX_THREADS);
     private static ThreadPoolExecutor pool;
     private final HBaseSession originalSession;
     private final Prepared originalPrepared;
@@ -52,38 +67,50 @@ public class CommandParallel implements CommandInterface {
 
     public CommandParallel(HBaseSession originalSession, CommandProxy commandProxy, //
             byte[] tableName, List<byte[]> startKeys, String sql, Prepared originalPrepared) {
-        if (startKeys == null)
-            throw new RuntimeException("startKeys is null");
-        else if (startKeys.size() < 2)
-            throw new RuntimeException("startKeys.size() < 2");
+        this(originalSession, commandProxy, getRegionSQLs(tableName, startKeys, planSQL(originalPrepared, sql)), sql,
+                originalPrepared);
+    }
+
+    /**
+     * 每个Region执行各自的SQL，比如多行Insert时每个Region只插入属于自己的那些记录
+     *
+     * @param regionSQLs 每个Region及其要执行的SQL，至少要有两个Region
+     */
+    public CommandParallel(HBaseSession originalSession, CommandProxy commandProxy, //
+            List<Pair<HBaseRegionInfo, String>> regionSQLs, String sql, Prepared originalPrepared) {
+        if (regionSQLs.size() < 2)
+            throw new RuntimeException("regionSQLs.size() < 2");
 
         this.originalSession = originalSession;
         this.originalPrepared = originalPrepared;
         this.sql = sql;
-        this.commands = new ArrayList<CommandInterface>(startKeys.size());
+        this.commands = new ArrayList<CommandInterface>(regionSQLs.size());
 
         try {
             if (pool == null) {
                 synchronized (CommandParallel.class) {
                     if (pool == null) {
-                        //TODO 可配置的线程池参数
-                        pool = new ThreadPoolExecutor(1, 20, 5, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                        pool = new ThreadPoolExecutor(1, MAX_THREADS, 5, TimeUnit.SECONDS,
+                                new SynchronousQueue<Runnable>(),
                                 Threads.newDaemonThreadFactory(CommandParallel.class.getSimpleName()));
                         pool.allowCoreThreadTimeOut(true);
+                        //线程都忙时在当前线程中执行，Region个数比线程数多时不会抛出RejectedExecutionException
+                        pool.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
                     }
                 }
             }
-            for (byte[] startKey : startKeys) {
-                HBaseRegionInfo hri = HBaseUtils.getHBaseRegionInfo(tableName, startKey);
+            for (Pair<HBaseRegionInfo, String> regionSQL : regionSQLs) {
+                HBaseRegionInfo hri = regionSQL.getFirst();
+                String planSQL = regionSQL.getSecond();
                 if (CommandProxy.isLocal(originalSession, hri)) {
                     HBaseSession newSession = createHBaseSession();
-                    Command c = newSession.prepareLocal(planSQL());
+                    Command c = newSession.prepareLocal(planSQL);
                     HBasePrepared hp = (HBasePrepared) c.getPrepared();
                     hp.setRegionName(hri.getRegionName());
                     commands.add(new CommandWrapper(c, newSession)); //newSession在Command关闭的时候自动关闭
                 } else {
                     commands.add(commandProxy.getCommandInterface(hri.getRegionServerURL(),
-                            CommandProxy.createSQL(hri.getRegionName(), planSQL())));
+                            CommandProxy.createSQL(hri.getRegionName(), planSQL)));
                 }
             }
 
@@ -101,11 +128,41 @@ public class CommandParallel implements CommandInterface {
         return newSession;
     }
 
-    private String planSQL() {
-        if (originalPrepared.isQuery() && ((Select) originalPrepared).isGroupQuery())
-            return ((Select) originalPrepared).getPlanSQL(true);
-        else
-            return sql;
+    private static List<Pair<HBaseRegionInfo, String>> getRegionSQLs(byte[] tableName, List<byte[]> startKeys,
+            String planSQL) {
+        if (startKeys == null)
+            throw new RuntimeException("startKeys is null");
+        else if (startKeys.size() < 2)
+            throw new RuntimeException("startKeys.size() < 2");
+
+        List<Pair<HBaseRegionInfo, String>> regionSQLs = New.arrayList(startKeys.size());
+        try {
+            for (byte[] startKey : startKeys)
+                regionSQLs.add(new Pair<HBaseRegionInfo, String>(HBaseUtils.getHBaseRegionInfo(tableName, startKey),
+                        planSQL));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return regionSQLs;
+    }
+
+    private static String planSQL(Prepared originalPrepared, String sql) {
+        if (originalPrepared.isQuery()) {
+            Select select = (Select) originalPrepared;
+            if (select.isGroupQuery())
+                return select.getPlanSQL(true);
+            //每个Region只需返回排序后的前limit + offset条记录，OFFSET在归并之后再处理
+            if (isSortedQuery(select)) {
+                int limitRows = select.getLimitRows(0);
+                return select.getTopNPlanSQL(limitRows < 0 ? -1 : limitRows + select.getOffsetRows());
+            }
+        }
+        return sql;
+    }
+
+    private static boolean isSortedQuery(Select select) {
+        //DISTINCT需要在所有Region的结果上去重，不能简单归并
+        return select.getSortOrder() != null && !select.isDistinct();
     }
 
     @Override
@@ -134,32 +191,36 @@ public class CommandParallel implements CommandInterface {
         //originalSelect.isGroupQuery()如果是false，那么按org.apache.hadoop.hbase.client.ClientScanner的功能来实现。
         //只要Select语句中出现聚合函数、groupBy、Having三者之一都被认为是GroupQuery，
         //对于GroupQuery需要把Select语句同时发给相关的RegionServer，得到结果后再合并。
-        if (!originalSelect.isGroupQuery())
-            return new HBaseSerializedResult(commands, maxRows, scrollable);
+        if (!originalSelect.isGroupQuery() && isSortedQuery(originalSelect))
+            return executeSortedQuery(originalSelect, maxRows, scrollable);
 
-        int size = commands.size();
-        List<Future<ResultInterface>> futures = New.arrayList(size);
-        List<ResultInterface> results = New.arrayList(size);
-        for (int i = 0; i < size; i++) {
-            final CommandInterface c = commands.get(i);
-            futures.add(pool.submit(new Callable<ResultInterface>() {
-                public ResultInterface call() throws Exception {
-                    return c.executeQuery(maxRows, scrollable);
-                }
-            }));
-        }
-        try {
-            for (int i = 0; i < size; i++) {
-                results.add(futures.get(i).get());
-            }
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        if (!originalSelect.isGroupQuery()) {
+            //有ORDER BY时必须按Region的顺序返回记录
+            boolean ordered = !UNORDERED_SCAN || originalSelect.getSortOrder() != null;
+            return new HBaseParallelResult(commands, pool, maxRows, scrollable, ordered, PREFETCH_COUNT);
         }
 
         String newSQL = originalSelect.getPlanSQL(true);
         Select newSelect = (Select) createHBaseSession().prepare(newSQL, true);
 
-        return new HBaseMergedResult(results, newSelect, originalSelect);
+        //不等所有Region都返回结果，哪个Region先返回就先合并哪个，这样合并的开销可以跟最慢的Region重叠
+        HBaseRegionQueries queries = new HBaseRegionQueries(commands, pool, maxRows, scrollable, false, MAX_IN_FLIGHT);
+        return new HBaseMergedResult(new HBaseSerializedResult(queries), newSelect, originalSelect);
+    }
+
+    private ResultInterface executeSortedQuery(Select originalSelect, int maxRows, boolean scrollable) {
+        int offsetRows = originalSelect.getOffsetRows();
+        int limitRows = originalSelect.getLimitRows(maxRows);
+        //每个Region都要多返回offset条记录
+        int regionMaxRows = maxRows > 0 ? maxRows + offsetRows : 0;
+
+        //所有Region的结果都要同时打开才能归并，但同时提交的查询不超过MAX_IN_FLIGHT个
+        HBaseRegionQueries queries = new HBaseRegionQueries(commands, pool, regionMaxRows, scrollable, true,
+                MAX_IN_FLIGHT);
+        List<ResultInterface> results = queries.nextAll();
+
+        return new HBaseSortedResult(results, originalSelect.getSortOrder(), originalSelect.getColumnCount(),
+                offsetRows, limitRows);
     }
 
     @Override
@@ -197,6 +258,15 @@ public class CommandParallel implements CommandInterface {
             c.cancel();
     }
 
+    /**
+     * Region已经分裂或迁移了，不再在Session中缓存为各个Region准备的命令
+     */
+    void removeFromSessions() {
+        for (CommandInterface c : commands)
+            if (c instanceof PooledCommandRemote)
+                ((PooledCommandRemote) c).removeFromSession();
+    }
+
     @Override
     public ResultInterface getMetaData() {
         return originalPrepared.getCommand().getMetaData();
@@ -19,7 +19,6 @@
  */
 package com.codefollower.lealone.hbase.command;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
@@ -27,6 +26,7 @@ import java.util.Properties;
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.ServerName;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
 
 import com.codefollower.lealone.command.Command;
 import com.codefollower.lealone.command.CommandInterface;
@@ -42,9 +42,13 @@ import com.codefollower.lealone.engine.Session;
 import com.codefollower.lealone.engine.SessionInterface;
 import com.codefollower.lealone.engine.SessionRemote;
 import com.codefollower.lealone.expression.ParameterInterface;
+import com.codefollower.lealone.hbase.command.dml.HBaseInsert;
 import com.codefollower.lealone.hbase.engine.HBaseSession;
+import com.codefollower.lealone.hbase.engine.SessionRemotePool;
+import com.codefollower.lealone.hbase.engine.SessionRemotePool.PooledSession;
 import com.codefollower.lealone.hbase.util.HBaseRegionInfo;
 import com.codefollower.lealone.hbase.util.HBaseUtils;
+import com.codefollower.lealone.hbase.util.RegionLocationCache;
 import com.codefollower.lealone.hbase.zookeeper.ZooKeeperAdmin;
 import com.codefollower.lealone.result.ResultInterface;
 import com.codefollower.lealone.util.StringUtils;
@@ -52,6 +56,7 @@ import com.codefollower.lealone.value.Value;
 
 public class CommandProxy extends Command {
     private final HBaseSession originalSession;
+    private final Command originalCommand;
     private final Prepared originalPrepared;
     private final ArrayList<? extends ParameterInterface> originalParams;
 
@@ -68,6 +73,7 @@ public class CommandProxy extends Command {
     public CommandProxy(Session originalSession, String sql, Command originalCommand) {
         super(originalSession, sql);
         this.originalSession = (HBaseSession) originalSession;
+        this.originalCommand = originalCommand;
         originalPrepared = originalCommand.getPrepared();
         originalParams = originalCommand.getParameters();
 
@@ -85,7 +91,7 @@ public class CommandProxy extends Command {
     }
 
     private void parseRowKey() {
-        Command originalCommand = originalPrepared.getCommand();
+        closeProxyCommand();
         try {
             //1. DDL类型的SQL全转向Master处理
             if (originalPrepared instanceof DefineCommand) {
@@ -110,7 +116,7 @@ public class CommandProxy extends Command {
 
                 //3. 如果SQL是HBasePrepared类型，需要进一步判断
             } else if (originalPrepared instanceof HBasePrepared) {
-                parseHBasePrepared(originalCommand);
+                parseHBasePrepared();
             } else {
                 proxyCommand = originalCommand;
             }
@@ -119,10 +125,17 @@ public class CommandProxy extends Command {
         }
     }
 
-    private void parseHBasePrepared(Command originalCommand) throws Exception {
+    private void parseHBasePrepared() throws Exception {
         HBasePrepared hp = (HBasePrepared) originalPrepared;
 
         if (originalPrepared instanceof Insert) {
+            //多行记录分布在多个Region时，每个Region只插入属于自己的记录，并且各Region并行执行
+            List<Pair<HBaseRegionInfo, String>> regionSQLs = ((HBaseInsert) originalPrepared).getRegionSQLs();
+            if (regionSQLs != null) {
+                proxyCommand = new CommandParallel(originalSession, this, regionSQLs, sql, originalPrepared);
+                return;
+            }
+
             String tableName = hp.getTableName();
             String rowKey = hp.getRowKey();
             if (rowKey == null)
@@ -133,7 +146,7 @@ public class CommandProxy extends Command {
                 hp.setRegionName(hri.getRegionName());
                 proxyCommand = originalCommand;
             } else {
-                proxyCommand = getCommandInterface(hri.getRegionServerURL(), createSQL(hri.getRegionName(), sql));
+                setRegionProxyCommand(hri.getRegionServerURL(), createSQL(hri.getRegionName(), sql));
             }
         } else if (originalPrepared instanceof Delete || originalPrepared instanceof Update //
                 || originalPrepared instanceof Select) {
@@ -174,7 +187,7 @@ public class CommandProxy extends Command {
                     hp.setRegionName(hri.getRegionName());
                     proxyCommand = originalCommand;
                 } else {
-                    proxyCommand = getCommandInterface(hri.getRegionServerURL(), createSQL(hri.getRegionName(), sql));
+                    setRegionProxyCommand(hri.getRegionServerURL(), createSQL(hri.getRegionName(), sql));
                 }
             } else {
                 proxyCommand = new CommandParallel(originalSession, this, tableName, startKeys, sql, originalPrepared);
@@ -184,6 +197,21 @@ public class CommandProxy extends Command {
         }
     }
 
+    /**
+     * 到单个Region的远程命令每次执行时才借用Session，在Session上准备好的命令由Session缓存，
+     * 下次执行同样的SQL时只需要重新设置参数值
+     */
+    private void setRegionProxyCommand(String url, String sql) {
+        proxyCommand = new RegionCommandRemote(this, url, sql);
+    }
+
+    private void closeProxyCommand() {
+        //本地命令不能在这里关闭
+        if (proxyCommand != null && proxyCommand != originalCommand)
+            proxyCommand.close();
+        proxyCommand = originalCommand;
+    }
+
     private void setProxyCommandParameters() {
         //当Command是在本地执行时，proxyCommand.getParameters()就是originalParams，此时不需要重复设置
         if (originalParams != null && proxyCommand.getParameters() != null && proxyCommand.getParameters() != originalParams) {
@@ -199,13 +227,17 @@ public class CommandProxy extends Command {
         //TcpServerThread在处理COMMAND_EXECUTE_QUERY和COMMAND_EXECUTE_UPDATE时，
         //如果存在参数，则在setParameters方法中调用Command.getParameters()为每个Parameter赋值，
         //所以如果是参数化的SQL，则需要解析rowKey。
-        if (isParameterized) {
+        if (isParameterized)
             parseRowKey();
-            //此时是一条新的proxyCommand，所以要设置fetchSize
-            proxyCommand.setFetchSize(super.getFetchSize());
-        }
+        //proxyCommand有可能是新的或从缓存中取出来的，所以要设置fetchSize
+        proxyCommand.setFetchSize(super.getFetchSize());
         setProxyCommandParameters();
-        return proxyCommand.executeQuery(maxrows, scrollable);
+        try {
+            return proxyCommand.executeQuery(maxrows, scrollable);
+        } catch (RuntimeException e) {
+            invalidateRegionLocations(e);
+            throw e;
+        }
     }
 
     @Override
@@ -214,19 +246,37 @@ public class CommandProxy extends Command {
             parseRowKey();
         }
         setProxyCommandParameters();
-        int updateCount = proxyCommand.executeUpdate();
-        if (!originalSession.getDatabase().isMaster() && originalPrepared instanceof DefineCommand) {
-            originalSession.getDatabase().refreshMetaTable();
-
-            try {
-                HBaseUtils.reset(); //执行完DDL后，元数据已变动，清除HConnection中的相关缓存
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+        int updateCount;
+        try {
+            updateCount = proxyCommand.executeUpdate();
+        } catch (RuntimeException e) {
+            invalidateRegionLocations(e);
+            throw e;
+        }
+        if (originalPrepared instanceof DefineCommand) {
+            if (!originalSession.getDatabase().isMaster())
+                originalSession.getDatabase().refreshMetaTable();
+            //执行完DDL后，元数据已变动，清除缓存的Region位置
+            RegionLocationCache.clear();
         }
         return updateCount;
     }
 
+    /**
+     * Region分裂或迁移后，下次执行时要重新确定SQL在哪里执行
+     */
+    private void invalidateRegionLocations(RuntimeException e) {
+        if (originalPrepared instanceof HBasePrepared && originalPrepared.isDistributedSQL()) {
+            if (RegionLocationCache.invalidate(e, ((HBasePrepared) originalPrepared).getTableName())) {
+                //Session中为原来的Region准备的命令也不能再用了
+                if (proxyCommand instanceof RegionCommandRemote)
+                    ((RegionCommandRemote) proxyCommand).removeFromSessions();
+                else if (proxyCommand instanceof CommandParallel)
+                    ((CommandParallel) proxyCommand).removeFromSessions();
+            }
+        }
+    }
+
     @Override
     public int getCommandType() {
         return originalPrepared.getType();
@@ -263,13 +313,28 @@ public class CommandProxy extends Command {
     }
 
     @Override
-    public boolean isCacheable() { //TODO 解决重用问题
-        return false; //originalPrepared.isCacheable();
+    public boolean isCacheable() {
+        return originalPrepared.isCacheable();
+    }
+
+    @Override
+    public boolean canReuse() {
+        //元数据变动后originalPrepared已经过时，要重新解析SQL
+        return super.canReuse() && !originalPrepared.needRecompile();
+    }
+
+    @Override
+    public void reuse() {
+        super.reuse();
+        //Region可能已经分裂或迁移了，所以每次重用时都要重新确定SQL在哪里执行
+        if (!isParameterized)
+            parseRowKey();
     }
 
     @Override
     public void close() {
-        proxyCommand.close();
+        closeProxyCommand();
+        originalCommand.close();
         super.close();
     }
 
@@ -291,14 +356,21 @@ public class CommandProxy extends Command {
     }
 
     CommandInterface getCommandInterface(String url, String sql) throws Exception {
-        //TODO 如何重用SessionInterface
-        SessionInterface si = getSessionInterface(originalSession.getOriginalProperties(), url);
-        CommandInterface commandInterface = si.prepareCommand(sql, -1); //此时fetchSize还未知
+        //从池中借用到目标RegionServer的Session，命令关闭时再归还
+        PooledSession ps = SessionRemotePool.getSession(originalSession.getOriginalProperties(), url);
+        CommandInterface commandInterface;
+        try {
+            commandInterface = new PooledCommandRemote(ps, sql);
+        } catch (RuntimeException e) {
+            SessionRemotePool.release(ps);
+            throw e;
+        }
 
         //传递最初的参数值到新的CommandInterface
         if (originalParams != null) {
+            //SQL被改写后(比如LIMIT参数换成了常量)，新的参数个数可能比原来的少
             ArrayList<? extends ParameterInterface> newParams = commandInterface.getParameters();
-            for (int i = 0, size = originalParams.size(); i < size; i++) {
+            for (int i = 0, size = Math.min(originalParams.size(), newParams.size()); i < size; i++) {
                 newParams.get(i).setValue(originalParams.get(i).getParamValue(), true);
             }
         }
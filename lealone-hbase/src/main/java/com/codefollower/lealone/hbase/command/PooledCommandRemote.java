@@ -0,0 +1,156 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.command;
+
+import java.util.ArrayList;
+
+import com.codefollower.lealone.command.CommandInterface;
+import com.codefollower.lealone.expression.ParameterInterface;
+import com.codefollower.lealone.hbase.engine.SessionRemotePool;
+import com.codefollower.lealone.hbase.engine.SessionRemotePool.PooledSession;
+import com.codefollower.lealone.result.DelegatedResult;
+import com.codefollower.lealone.result.ResultInterface;
+
+/**
+ * 使用从SessionRemotePool借来的Session执行的远程命令。
+ *
+ * 命令关闭后它返回的结果集可能还在从远程读取记录，所以要等命令和所有结果集都关闭后才把Session归还到池中。
+ * 真正的远程命令缓存在Session中供下次重用，关闭时不关闭它，
+ * 除非调用了{@link #removeFromSession()}，此时在归还Session前把它从Session中删除并关闭。
+ */
+class PooledCommandRemote implements CommandInterface {
+    private final CommandInterface c;
+    private final String sql;
+    private PooledSession session;
+    private boolean closed;
+    private boolean removeFromSession;
+    private int openResults;
+
+    PooledCommandRemote(PooledSession session, String sql) {
+        this.c = session.prepareCommand(sql);
+        this.sql = sql;
+        this.session = session;
+    }
+
+    @Override
+    public int getCommandType() {
+        return c.getCommandType();
+    }
+
+    @Override
+    public boolean isQuery() {
+        return c.isQuery();
+    }
+
+    @Override
+    public ArrayList<? extends ParameterInterface> getParameters() {
+        return c.getParameters();
+    }
+
+    @Override
+    public ResultInterface executeQuery(int maxRows, boolean scrollable) {
+        ResultInterface result = c.executeQuery(maxRows, scrollable);
+        synchronized (this) {
+            openResults++;
+        }
+        return new PooledResult(result);
+    }
+
+    @Override
+    public int executeUpdate() {
+        return c.executeUpdate();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        releaseIfUnused();
+    }
+
+    /**
+     * SQL中的Region已经分裂或迁移了，不再在Session中缓存这个命令
+     */
+    void removeFromSession() {
+        synchronized (this) {
+            if (session != null) {
+                removeFromSession = true; //可能还有其他线程在用这个命令，等归还Session时再删除
+                return;
+            }
+        }
+        SessionRemotePool.removeCommand(sql);
+    }
+
+    private void releaseIfUnused() {
+        PooledSession ps;
+        boolean remove;
+        synchronized (this) {
+            if (!closed || openResults > 0 || session == null)
+                return;
+            ps = session;
+            session = null;
+            remove = removeFromSession;
+        }
+        if (remove)
+            ps.removeCommand(sql);
+        SessionRemotePool.release(ps);
+    }
+
+    @Override
+    public void cancel() {
+        c.cancel();
+    }
+
+    @Override
+    public ResultInterface getMetaData() {
+        return c.getMetaData();
+    }
+
+    @Override
+    public int getFetchSize() {
+        return c.getFetchSize();
+    }
+
+    @Override
+    public void setFetchSize(int fetchSize) {
+        c.setFetchSize(fetchSize);
+    }
+
+    private class PooledResult extends DelegatedResult {
+        private boolean resultClosed;
+
+        PooledResult(ResultInterface result) {
+            this.result = result;
+        }
+
+        @Override
+        public void close() {
+            result.close();
+            synchronized (PooledCommandRemote.this) {
+                if (resultClosed)
+                    return;
+                resultClosed = true;
+                openResults--;
+            }
+            releaseIfUnused();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.command;
+
+import java.util.ArrayList;
+
+import com.codefollower.lealone.command.CommandInterface;
+import com.codefollower.lealone.constant.SysProperties;
+import com.codefollower.lealone.expression.ParameterInterface;
+import com.codefollower.lealone.hbase.engine.SessionRemotePool;
+import com.codefollower.lealone.result.ResultInterface;
+
+/**
+ * 到单个Region的远程命令。
+ *
+ * 每次执行时才从SessionRemotePool借Session，执行完(如果是查询，等结果集关闭后)马上归还，
+ * 所以被缓存起来的CommandProxy不会一直占着Session。
+ * 在Session上准备好的命令由Session缓存，再次借到同一个Session时不用重新准备。
+ */
+class RegionCommandRemote implements CommandInterface {
+    private final CommandProxy commandProxy;
+    private final String url;
+    private final String sql;
+    private int fetchSize = SysProperties.SERVER_RESULT_SET_FETCH_SIZE;
+    private volatile CommandInterface current; //正在执行的命令
+
+    RegionCommandRemote(CommandProxy commandProxy, String url, String sql) {
+        this.commandProxy = commandProxy;
+        this.url = url;
+        this.sql = sql;
+    }
+
+    private CommandInterface getCommand() {
+        CommandInterface c;
+        try {
+            //原始的参数值在这里传递给借来的命令
+            c = commandProxy.getCommandInterface(url, sql);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        c.setFetchSize(fetchSize);
+        return c;
+    }
+
+    /**
+     * SQL中的Region已经分裂或迁移了，删除所有空闲Session中为它准备的命令
+     */
+    void removeFromSessions() {
+        SessionRemotePool.removeCommand(sql);
+    }
+
+    @Override
+    public int getCommandType() {
+        return commandProxy.getCommandType();
+    }
+
+    @Override
+    public boolean isQuery() {
+        return commandProxy.isQuery();
+    }
+
+    @Override
+    public ArrayList<? extends ParameterInterface> getParameters() {
+        return null; //参数值在getCommand()中传递
+    }
+
+    @Override
+    public ResultInterface executeQuery(int maxRows, boolean scrollable) {
+        CommandInterface c = getCommand();
+        current = c;
+        try {
+            return c.executeQuery(maxRows, scrollable);
+        } finally {
+            current = null;
+            c.close(); //结果集关闭后才归还Session
+        }
+    }
+
+    @Override
+    public int executeUpdate() {
+        CommandInterface c = getCommand();
+        current = c;
+        try {
+            return c.executeUpdate();
+        } finally {
+            current = null;
+            c.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        //没有占用任何Session
+    }
+
+    @Override
+    public void cancel() {
+        CommandInterface c = current;
+        if (c != null)
+            c.cancel();
+    }
+
+    @Override
+    public ResultInterface getMetaData() {
+        CommandInterface c = getCommand();
+        try {
+            return c.getMetaData();
+        } finally {
+            c.close();
+        }
+    }
+
+    @Override
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    @Override
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+}
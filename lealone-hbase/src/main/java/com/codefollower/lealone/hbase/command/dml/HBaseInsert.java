@@ -19,10 +19,15 @@
  */
 package com.codefollower.lealone.hbase.command.dml;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
 
 import com.codefollower.lealone.command.CommandInterface;
 import com.codefollower.lealone.command.dml.Insert;
@@ -35,6 +40,7 @@ import com.codefollower.lealone.hbase.command.HBasePrepared;
 import com.codefollower.lealone.hbase.dbobject.table.HBaseTable;
 import com.codefollower.lealone.hbase.engine.HBaseSession;
 import com.codefollower.lealone.hbase.result.HBaseRow;
+import com.codefollower.lealone.hbase.util.HBaseRegionInfo;
 import com.codefollower.lealone.hbase.util.HBaseUtils;
 import com.codefollower.lealone.message.DbException;
 import com.codefollower.lealone.result.Row;
@@ -69,7 +75,19 @@ public class HBaseInsert extends Insert implements HBasePrepared {
 
             alterColumns = New.arrayList();
         }
-        int updateCount = super.update();
+        int updateCount;
+        //多行记录时先把Put按Region缓存起来，最后每个Region只写一次，二级索引的索引记录也一样
+        boolean batch = list.size() > 1;
+        if (batch)
+            session.startBatch();
+        boolean success = false;
+        try {
+            updateCount = super.update();
+            success = true;
+        } finally {
+            if (batch)
+                session.endBatch(success);
+        }
         try {
             if (table.isColumnsModified()) {
                 table.setColumnsModified(false);
@@ -90,10 +108,11 @@ public class HBaseInsert extends Insert implements HBasePrepared {
     @Override
     protected Row createRow(int columnLen, Expression[] expr, int rowId) {
         HBaseRow row = (HBaseRow) table.getTemplateRow();
-        row.setRowKey(ValueString.get(getRowKey()));
+        String rowKey = getRowKey(expr);
+        row.setRowKey(ValueString.get(rowKey));
         row.setRegionName(regionNameAsBytes);
 
-        Put put = new Put(Bytes.toBytes(getRowKey()));
+        Put put = new Put(Bytes.toBytes(rowKey));
         row.setPut(put);
         Column c;
         Value v;
@@ -139,18 +158,76 @@ public class HBaseInsert extends Insert implements HBasePrepared {
 
     @Override
     public String getRowKey() {
-        int index = 0;
-        for (Column c : columns) {
-            if (c.isRowKeyColumn()) {
-                return list.get(0)[index].getValue(session).getString();
-            }
-            index++;
-        }
+        return getRowKey(list.get(0));
+    }
+
+    private String getRowKey(Expression[] expr) {
+        int index = getRowKeyColumnIndex();
+        if (index >= 0)
+            return expr[index].getValue(session).getString();
         if (table.isStatic())
             return ValueUuid.getNewRandom().getString();
         return null;
     }
 
+    private int getRowKeyColumnIndex() {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].isRowKeyColumn())
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * 按rowKey所在的Region对VALUES中的多行记录分组，每个Region生成一条只包含该Region的记录的INSERT语句，
+     * 语句中的参数和表达式都已替换成常量。
+     *
+     * @return 每个Region及其要执行的INSERT语句，如果记录都在同一个Region或者无法确定每行记录的rowKey则返回null
+     */
+    public List<Pair<HBaseRegionInfo, String>> getRegionSQLs() throws IOException {
+        int rowKeyIndex = getRowKeyColumnIndex();
+        if (list.size() < 2 || rowKeyIndex < 0)
+            return null;
+
+        Map<String, HBaseRegionInfo> regions = new LinkedHashMap<String, HBaseRegionInfo>();
+        Map<String, StatementBuilder> sqls = new LinkedHashMap<String, StatementBuilder>();
+        for (Expression[] expr : list) {
+            String rowKey = expr[rowKeyIndex].getValue(session).getString();
+            HBaseRegionInfo hri = HBaseUtils.getHBaseRegionInfo(table.getName(), rowKey);
+            StatementBuilder buff = sqls.get(hri.getRegionName());
+            if (buff == null) {
+                regions.put(hri.getRegionName(), hri);
+                buff = new StatementBuilder("INSERT INTO ");
+                buff.append(table.getSQL()).append('(');
+                for (Column c : columns) {
+                    buff.appendExceptFirst(", ");
+                    buff.append(c.getSQL());
+                }
+                buff.append(") VALUES ");
+                sqls.put(hri.getRegionName(), buff);
+            } else {
+                buff.append(", ");
+            }
+            buff.append('(');
+            buff.resetCount();
+            for (Expression e : expr) {
+                buff.appendExceptFirst(", ");
+                if (e == null)
+                    buff.append("DEFAULT");
+                else
+                    buff.append(e.optimize(session).getValue(session).getSQL());
+            }
+            buff.append(')');
+        }
+        if (regions.size() < 2)
+            return null;
+
+        List<Pair<HBaseRegionInfo, String>> regionSQLs = New.arrayList(regions.size());
+        for (Map.Entry<String, HBaseRegionInfo> e : regions.entrySet())
+            regionSQLs.add(new Pair<HBaseRegionInfo, String>(e.getValue(), sqls.get(e.getKey()).toString()));
+        return regionSQLs;
+    }
+
     @Override
     public Value getStartRowKeyValue() {
         return ValueString.get(getRowKey());
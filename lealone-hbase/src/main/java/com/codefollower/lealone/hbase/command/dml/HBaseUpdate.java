@@ -22,6 +22,7 @@ package com.codefollower.lealone.hbase.command.dml;
 import com.codefollower.lealone.command.dml.Update;
 import com.codefollower.lealone.engine.Session;
 import com.codefollower.lealone.hbase.command.HBasePrepared;
+import com.codefollower.lealone.hbase.engine.HBaseSession;
 import com.codefollower.lealone.result.SearchRow;
 import com.codefollower.lealone.value.Value;
 
@@ -40,6 +41,21 @@ public class HBaseUpdate extends Update implements HBasePrepared {
         tableFilter.setPrepared(this);
     }
 
+    @Override
+    public int update() {
+        //二级索引的索引记录先缓存起来，最后每个索引表只写一次
+        HBaseSession session = (HBaseSession) this.session;
+        session.startBatch();
+        boolean success = false;
+        try {
+            int updateCount = super.update();
+            success = true;
+            return updateCount;
+        } finally {
+            session.endBatch(success);
+        }
+    }
+
     @Override
     public boolean isDistributedSQL() {
         return true;
@@ -19,8 +19,6 @@
  */
 package com.codefollower.lealone.hbase.command.merge;
 
-import java.util.List;
-
 import com.codefollower.lealone.command.dml.Select;
 import com.codefollower.lealone.dbobject.index.IndexType;
 import com.codefollower.lealone.dbobject.table.IndexColumn;
@@ -30,39 +28,41 @@ import com.codefollower.lealone.result.DelegatedResult;
 import com.codefollower.lealone.result.ResultInterface;
 
 public class HBaseMergedResult extends DelegatedResult {
-    public HBaseMergedResult(List<ResultInterface> results, Select newSelect, Select oldSelect) {
-        //1. 结果集串行化，为合并做准备
-        HBaseSerializedResult serializedResult = new HBaseSerializedResult(results);
-        Table table = newSelect.getTopTableFilter().getTable();
-        newSelect.getTopTableFilter().setIndex(
-                new HBaseMergedIndex(serializedResult, table, -1, IndexColumn.wrap(table.getColumns()), IndexType
-                        .createScan(false)));
+    public HBaseMergedResult(HBaseSerializedResult serializedResult, Select newSelect, Select oldSelect) {
+        try {
+            //1. 串行化后的结果集，按各Region返回的先后顺序增量合并到newSelect的分组中
+            Table table = newSelect.getTopTableFilter().getTable();
+            newSelect.getTopTableFilter().setIndex(
+                    new HBaseMergedIndex(serializedResult, table, -1, IndexColumn.wrap(table.getColumns()), IndexType
+                            .createScan(false)));
 
-        //2. 把多个结果集合并
-        ResultInterface mergedResult = newSelect.queryGroupMerge();
+            //2. 把多个结果集合并
+            ResultInterface mergedResult = newSelect.queryGroupMerge();
 
-        //3. 计算合并后的结果集,
-        //例如oldSelect="select avg"时，在分布式环境要转成newSelect="select count, sum"，
-        //此时就由count, sum来算出avg
-        ResultInterface calculatedResult = oldSelect.calculate(mergedResult, newSelect);
+            //3. 计算合并后的结果集,
+            //例如oldSelect="select avg"时，在分布式环境要转成newSelect="select count, sum"，
+            //此时就由count, sum来算出avg
+            ResultInterface calculatedResult = oldSelect.calculate(mergedResult, newSelect);
 
-        //4. 如果不存在avg、stddev这类需要拆分为count、sum的计算，此时mergedResult和calculatedResult是同一个实例
-        //否则就是不同实例，需要再一次按oldSelect合并结果集
-        if (mergedResult != calculatedResult) {
-            table = oldSelect.getTopTableFilter().getTable();
-            oldSelect.getTopTableFilter().setIndex(
-                    new HBaseMergedIndex(calculatedResult, table, -1, IndexColumn.wrap(table.getColumns()), IndexType
-                            .createScan(false)));
-            //5. 最终结果集
-            result = oldSelect.queryGroupMerge();
+            //4. 如果不存在avg、stddev这类需要拆分为count、sum的计算，此时mergedResult和calculatedResult是同一个实例
+            //否则就是不同实例，需要再一次按oldSelect合并结果集
+            if (mergedResult != calculatedResult) {
+                table = oldSelect.getTopTableFilter().getTable();
+                oldSelect.getTopTableFilter().setIndex(
+                        new HBaseMergedIndex(calculatedResult, table, -1, IndexColumn.wrap(table.getColumns()),
+                                IndexType.createScan(false)));
+                //5. 最终结果集
+                result = oldSelect.queryGroupMerge();
 
-            //6. 立刻关闭中间结果集
+                //6. 立刻关闭中间结果集
+                mergedResult.close();
+                calculatedResult.close();
+            } else {
+                result = mergedResult;
+            }
+        } finally {
+            //各Region的结果集已合并完，出错时也要关闭还没合并的结果集及其Session
             serializedResult.close();
-            mergedResult.close();
-            calculatedResult.close();
-        } else {
-            result = mergedResult;
         }
-
     }
 }
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.dbobject.index;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.hbase.filter.BinaryComparator;
+import org.apache.hadoop.hbase.filter.BinaryPrefixComparator;
+import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.PrefixFilter;
+import org.apache.hadoop.hbase.filter.RowFilter;
+import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
+import org.apache.hadoop.hbase.filter.WritableByteArrayComparable;
+
+import com.codefollower.lealone.dbobject.table.Column;
+import com.codefollower.lealone.dbobject.table.TableFilter;
+import com.codefollower.lealone.engine.Session;
+import com.codefollower.lealone.expression.CompareLike;
+import com.codefollower.lealone.expression.Comparison;
+import com.codefollower.lealone.expression.ConditionAndOr;
+import com.codefollower.lealone.expression.ConditionIn;
+import com.codefollower.lealone.expression.Expression;
+import com.codefollower.lealone.expression.ExpressionColumn;
+import com.codefollower.lealone.expression.ExpressionVisitor;
+import com.codefollower.lealone.hbase.util.HBaseUtils;
+import com.codefollower.lealone.message.DbException;
+import com.codefollower.lealone.value.CompareMode;
+import com.codefollower.lealone.value.Value;
+import com.codefollower.lealone.value.ValueNull;
+
+/**
+ * 把WHERE条件转换成HBase的Filter，让RegionServer在扫描时就过滤掉不满足条件的记录。
+ *
+ * 生成的Filter只会比原来的条件更宽松(不能转换的部分直接忽略)，所以原来的条件仍然要在SQL层再检查一次。
+ */
+public class HBaseFilterBuilder {
+    private final Session session;
+    private final TableFilter filter;
+    private final List<Column> columns;
+    private final byte[] defaultColumnFamilyName;
+
+    public HBaseFilterBuilder(TableFilter filter, List<Column> columns, byte[] defaultColumnFamilyName) {
+        this.session = filter.getSession();
+        this.filter = filter;
+        this.columns = columns;
+        this.defaultColumnFamilyName = defaultColumnFamilyName;
+    }
+
+    /**
+     * 转换给定的条件
+     *
+     * @param condition 当前TableFilter的过滤条件
+     * @return 对应的HBase Filter，如果条件中没有能转换的部分则返回null
+     */
+    public Filter build(Expression condition) {
+        if (condition == null)
+            return null;
+        //HBase按字节比较，只有在数据库使用二进制比较规则时结果才跟SQL层一致
+        if (!CompareMode.OFF.equals(session.getDatabase().getCompareMode().getName()))
+            return null;
+        return toFilter(condition);
+    }
+
+    private Filter toFilter(Expression e) {
+        if (e instanceof ConditionAndOr)
+            return toFilter((ConditionAndOr) e);
+        else if (e instanceof Comparison)
+            return toFilter((Comparison) e);
+        else if (e instanceof ConditionIn)
+            return toFilter((ConditionIn) e);
+        else if (e instanceof CompareLike)
+            return toFilter((CompareLike) e);
+        return null;
+    }
+
+    private Filter toFilter(ConditionAndOr c) {
+        Filter left = toFilter(c.getExpression(true));
+        Filter right = toFilter(c.getExpression(false));
+        if (c.getAndOrType() == ConditionAndOr.AND) {
+            //AND的一边不能转换时只用另一边过滤也不会漏掉记录
+            if (left == null)
+                return right;
+            if (right == null)
+                return left;
+            return new FilterList(FilterList.Operator.MUST_PASS_ALL, Arrays.asList(left, right));
+        } else {
+            if (left == null || right == null)
+                return null;
+            return new FilterList(FilterList.Operator.MUST_PASS_ONE, Arrays.asList(left, right));
+        }
+    }
+
+    private Filter toFilter(Comparison c) {
+        CompareOp op = getCompareOp(c.getCompareType());
+        if (op == null)
+            return null;
+        Expression left = c.getExpression(true);
+        Expression right = c.getExpression(false);
+        if (!(left instanceof ExpressionColumn)) {
+            //optimize()通常已经把列放到左边了
+            if (!(right instanceof ExpressionColumn))
+                return null;
+            Expression temp = left;
+            left = right;
+            right = temp;
+            op = getReversedCompareOp(op);
+        }
+        Column column = getColumn((ExpressionColumn) left);
+        if (column == null || !right.isEverything(ExpressionVisitor.INDEPENDENT_VISITOR))
+            return null;
+
+        byte[] value = toBytes(column, right.getValue(session), op != CompareOp.EQUAL && op != CompareOp.NOT_EQUAL);
+        if (value == null)
+            return null;
+        if (column.isRowKeyColumn())
+            return new RowFilter(op, new BinaryComparator(value));
+        return newSingleColumnValueFilter(column, op, new BinaryComparator(value));
+    }
+
+    private Filter toFilter(ConditionIn c) {
+        if (!(c.getLeft() instanceof ExpressionColumn))
+            return null;
+        Column column = getColumn((ExpressionColumn) c.getLeft());
+        if (column == null)
+            return null;
+
+        FilterList list = new FilterList(FilterList.Operator.MUST_PASS_ONE);
+        for (Expression e : c.getValueList()) {
+            if (!e.isEverything(ExpressionVisitor.INDEPENDENT_VISITOR))
+                return null;
+            Value v = e.getValue(session);
+            if (v == ValueNull.INSTANCE) //X IN(1, NULL)中的NULL不会匹配任何记录
+                continue;
+            byte[] value = toBytes(column, v, false);
+            if (value == null)
+                return null;
+            if (column.isRowKeyColumn())
+                list.addFilter(new RowFilter(CompareOp.EQUAL, new BinaryComparator(value)));
+            else
+                list.addFilter(newSingleColumnValueFilter(column, CompareOp.EQUAL, new BinaryComparator(value)));
+        }
+        if (list.getFilters().isEmpty())
+            return null;
+        return list;
+    }
+
+    private Filter toFilter(CompareLike c) {
+        Expression left = c.getExpression(true);
+        if (!(left instanceof ExpressionColumn))
+            return null;
+        Column column = getColumn((ExpressionColumn) left);
+        if (column == null || (!column.isRowKeyColumn() && column.getType() != Value.STRING))
+            return null;
+
+        String prefix = c.getPatternPrefix(session);
+        if (prefix == null)
+            return null;
+        byte[] value = HBaseUtils.toBytes(prefix);
+        if (column.isRowKeyColumn())
+            return new PrefixFilter(value);
+        return newSingleColumnValueFilter(column, CompareOp.EQUAL, new BinaryPrefixComparator(value));
+    }
+
+    private Column getColumn(ExpressionColumn e) {
+        if (e.getTableFilter() != filter)
+            return null;
+        Column c = e.getColumn();
+        if (c.isRowKeyColumn())
+            return c;
+        //SingleColumnValueFilter要求被测试的列包含在Scan的结果中
+        if (columns != null && !columns.contains(c))
+            return null;
+        return c;
+    }
+
+    private Filter newSingleColumnValueFilter(Column c, CompareOp op, WritableByteArrayComparable comparator) {
+        byte[] cf = c.getColumnFamilyName() != null ? c.getColumnFamilyNameAsBytes() : defaultColumnFamilyName;
+        SingleColumnValueFilter f = new SingleColumnValueFilter(cf, c.getNameAsBytes(), op, comparator);
+        //列不存在时读出来的是NULL，而NULL跟任何值比较都不为true
+        f.setFilterIfMissing(true);
+        return f;
+    }
+
+    /**
+     * 只有当SQL层的比较结果跟HBase按字节比较的结果一致时才返回常量值的字节形式，否则返回null
+     */
+    private static byte[] toBytes(Column column, Value v, boolean isRangeCompare) {
+        if (v == ValueNull.INSTANCE)
+            return null;
+        //rowKey在HBaseTableCursor中总是被当成字符串
+        if (column.isRowKeyColumn())
+            return v.getType() == Value.STRING ? HBaseUtils.toBytes(v.getString()) : null;
+
+        int type = column.getType();
+        if (isRangeCompare) {
+            //数字的字节形式不能保证大小顺序(比如负数)，所以范围比较只支持字符串
+            if (type != Value.STRING)
+                return null;
+        } else {
+            switch (type) {
+            case Value.BOOLEAN:
+            case Value.BYTE:
+            case Value.SHORT:
+            case Value.INT:
+            case Value.LONG:
+            case Value.STRING:
+            case Value.BYTES:
+                break;
+            default:
+                return null;
+            }
+        }
+        //SQL层会把两边转换成较高的类型再比较，只有列的类型较高时，把常量转成列的类型后再比较才是等价的
+        if (Value.getHigherOrder(type, v.getType()) != type)
+            return null;
+        try {
+            return HBaseUtils.toBytes(v.convertTo(type));
+        } catch (DbException e) {
+            return null;
+        }
+    }
+
+    private static CompareOp getCompareOp(int compareType) {
+        switch (compareType) {
+        case Comparison.EQUAL:
+            return CompareOp.EQUAL;
+        case Comparison.NOT_EQUAL:
+            return CompareOp.NOT_EQUAL;
+        case Comparison.BIGGER:
+            return CompareOp.GREATER;
+        case Comparison.BIGGER_EQUAL:
+            return CompareOp.GREATER_OR_EQUAL;
+        case Comparison.SMALLER:
+            return CompareOp.LESS;
+        case Comparison.SMALLER_EQUAL:
+            return CompareOp.LESS_OR_EQUAL;
+        default:
+            return null;
+        }
+    }
+
+    private static CompareOp getReversedCompareOp(CompareOp op) {
+        switch (op) {
+        case GREATER:
+            return CompareOp.LESS;
+        case GREATER_OR_EQUAL:
+            return CompareOp.LESS_OR_EQUAL;
+        case LESS:
+            return CompareOp.GREATER;
+        case LESS_OR_EQUAL:
+            return CompareOp.GREATER_OR_EQUAL;
+        default:
+            return op;
+        }
+    }
+}
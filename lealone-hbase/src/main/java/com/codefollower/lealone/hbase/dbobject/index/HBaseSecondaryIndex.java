@@ -0,0 +1,478 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.dbobject.index;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.BinaryComparator;
+import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import com.codefollower.lealone.dbobject.index.BaseIndex;
+import com.codefollower.lealone.dbobject.index.Cursor;
+import com.codefollower.lealone.dbobject.index.IndexType;
+import com.codefollower.lealone.dbobject.table.Column;
+import com.codefollower.lealone.dbobject.table.IndexColumn;
+import com.codefollower.lealone.dbobject.table.TableFilter;
+import com.codefollower.lealone.engine.Session;
+import com.codefollower.lealone.hbase.dbobject.table.HBaseTable;
+import com.codefollower.lealone.hbase.engine.HBaseDatabase;
+import com.codefollower.lealone.hbase.engine.HBaseSession;
+import com.codefollower.lealone.hbase.util.HBaseUtils;
+import com.codefollower.lealone.message.DbException;
+import com.codefollower.lealone.result.Row;
+import com.codefollower.lealone.result.SearchRow;
+import com.codefollower.lealone.util.New;
+import com.codefollower.lealone.value.CompareMode;
+import com.codefollower.lealone.value.Value;
+import com.codefollower.lealone.value.ValueNull;
+
+/**
+ * HBase表的二级索引。
+ *
+ * 索引记录保存在单独的HBase表中，rowKey是按顺序编码的索引字段值再加上数据记录的rowKey，
+ * 这样等值和范围查找都变成了对索引表的一次范围扫描。
+ * 每个Region执行查询时用Filter让索引表只返回rowKey落在本Region中的索引记录，
+ * 每次最多取fetchSize条，然后再从本Region中读出数据记录。
+ *
+ * 执行INSERT、UPDATE、DELETE时索引记录先缓存在HBaseSession中，跟数据记录一起在语句结束时批量写入。
+ *
+ * 找到的记录只保证是满足索引条件的记录的超集，原来的条件仍然要在SQL层再检查一次。
+ */
+public class HBaseSecondaryIndex extends BaseIndex {
+    static final byte[] FAMILY = Bytes.toBytes("CF");
+    static final byte[] ROW_KEY = Bytes.toBytes("R");
+
+    private static final HTablePool tablePool = new HTablePool(HBaseUtils.getConfiguration(), Integer.MAX_VALUE);
+    private static final int BUILD_BATCH_SIZE = 1000;
+
+    private final byte[] indexTableName;
+
+    public HBaseSecondaryIndex(Session session, HBaseTable table, int id, String indexName, IndexColumn[] columns,
+            IndexType indexType) {
+        initBaseIndex(table, id, indexName, columns, indexType);
+        //用索引id而不是索引名，这样重命名索引时不用重建索引表
+        indexTableName = Bytes.toBytes(table.getName() + ".INDEX" + id);
+
+        HTableDescriptor htd = new HTableDescriptor(indexTableName);
+        htd.addFamily(new HColumnDescriptor(FAMILY));
+        HBaseTable.createIfNotExists(session, Bytes.toString(indexTableName), htd, null);
+
+        //只在Master执行CREATE INDEX时为已有的记录建立索引，从ZooKeeper同步元数据或重启时不需要
+        HBaseDatabase db = (HBaseDatabase) session.getDatabase();
+        if (((HBaseSession) session).getMaster() != null && !db.isStarting() && !db.isFromZookeeper())
+            build();
+    }
+
+    /**
+     * 所有索引字段都能按顺序编码时才能用索引查找，否则只能退化成全表扫描
+     */
+    boolean isUsable() {
+        boolean binaryCompare = CompareMode.OFF.equals(database.getCompareMode().getName());
+        for (Column c : columns) {
+            switch (c.getType()) {
+            case Value.BOOLEAN:
+            case Value.BYTE:
+            case Value.SHORT:
+            case Value.INT:
+            case Value.LONG:
+            case Value.DECIMAL:
+            case Value.DOUBLE:
+            case Value.FLOAT:
+            case Value.DATE:
+            case Value.TIME:
+            case Value.TIMESTAMP:
+                break;
+            case Value.STRING:
+            case Value.STRING_FIXED:
+                //HBase按字节比较，只有在数据库使用二进制比较规则时结果才跟SQL层一致
+                if (!binaryCompare)
+                    return false;
+                break;
+            default:
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close(Session session) {
+    }
+
+    @Override
+    public void add(Session session, Row row) {
+        Put put = new Put(getIndexKey(row));
+        put.add(FAMILY, ROW_KEY, HBaseUtils.toBytes(row.getRowKey()));
+        write(session, put);
+    }
+
+    @Override
+    public void remove(Session session, Row row) {
+        //Update时也要删除旧的索引记录，因为索引字段的值可能变了
+        write(session, new Delete(getIndexKey(row)));
+    }
+
+    private void write(Session session, Mutation m) {
+        if (((HBaseSession) session).addBatchIndexMutation(indexTableName, m))
+            return;
+        HTableInterface t = tablePool.getTable(indexTableName);
+        try {
+            if (m instanceof Put)
+                t.put((Put) m);
+            else
+                t.delete((Delete) m);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            closeTable(t);
+        }
+    }
+
+    /**
+     * 把HBaseSession批量模式中缓存的索引记录写入索引表
+     *
+     * @param indexTableName 索引表名
+     * @param mutations 索引记录的Put或Delete，同一条索引记录只有一个
+     */
+    public static void batch(byte[] indexTableName, List<? extends Mutation> mutations) {
+        HTableInterface t = tablePool.getTable(indexTableName);
+        try {
+            t.batch(mutations);
+        } catch (Exception e) {
+            throw DbException.convert(e);
+        } finally {
+            closeTable(t);
+        }
+    }
+
+    @Override
+    public Cursor find(TableFilter filter, SearchRow first, SearchRow last) {
+        //join中的非顶层表由HBaseTableCursor转成子查询处理
+        if (!isUsable() || (filter.getSelect() != null && filter.getSelect().getTopTableFilter() != filter))
+            return new HBaseTableCursor(filter, first, last);
+        //按rowKey直接Get更快
+        if (first != null && last != null && first.getRowKey() != null && first.getRowKey() == last.getRowKey())
+            return new HBaseTableCursor(filter, first, last);
+        return new HBaseSecondaryIndexCursor(this, filter, first, last);
+    }
+
+    @Override
+    public Cursor find(Session session, SearchRow first, SearchRow last) {
+        throw DbException.getUnsupportedException("find(Session, SearchRow, SearchRow)");
+    }
+
+    @Override
+    public double getCost(Session session, int[] masks) {
+        if (!isUsable())
+            return getCostRangeIndex(null, table.getRowCountApproximation());
+        return getCostRangeIndex(masks, table.getRowCountApproximation());
+    }
+
+    @Override
+    public void remove(Session session) {
+        if (!((HBaseDatabase) database).isFromZookeeper())
+            HBaseTable.dropIfExists(session, Bytes.toString(indexTableName));
+    }
+
+    @Override
+    public void truncate(Session session) {
+    }
+
+    @Override
+    public boolean canGetFirstOrLast() {
+        return false;
+    }
+
+    @Override
+    public Cursor findFirstOrLast(Session session, boolean first) {
+        throw DbException.getUnsupportedException("findFirstOrLast");
+    }
+
+    @Override
+    public boolean needRebuild() {
+        return false;
+    }
+
+    @Override
+    public long getRowCount(Session session) {
+        return 0;
+    }
+
+    @Override
+    public long getRowCountApproximation() {
+        return table.getRowCountApproximation();
+    }
+
+    @Override
+    public void checkRename() {
+    }
+
+    @Override
+    public long getDiskSpaceUsed() {
+        return 0;
+    }
+
+    /**
+     * 索引表扫描的起始rowKey
+     *
+     * @param first 索引字段的下界，为null或者第一个索引字段没有值时表示没有下界
+     */
+    byte[] getStartRow(SearchRow first) {
+        byte[] start = getKeyPrefix(first);
+        return start == null ? HConstants.EMPTY_START_ROW : start;
+    }
+
+    /**
+     * 索引表扫描的结束rowKey(不包含)
+     *
+     * @param last 索引字段的上界，为null或者第一个索引字段没有值时表示没有上界
+     */
+    byte[] getStopRow(SearchRow last) {
+        byte[] stop = getKeyPrefix(last);
+        if (stop == null)
+            return HConstants.EMPTY_END_ROW;
+        //数据记录的rowKey是UTF-8编码的字符串，不会出现0xFF，所以加上0xFF后就包含了以stop开头的所有索引记录
+        return Bytes.add(stop, new byte[] { (byte) 0xFF });
+    }
+
+    /**
+     * 只让索引表返回数据记录的rowKey在[startKey, endKey)之间并且不大于lastKey的索引记录
+     *
+     * @param startKey 为空时表示没有下界
+     * @param endKey 为空时表示没有上界(不包含)
+     * @param lastKey 为空时表示没有上界(包含)
+     * @return 没有任何限制时返回null
+     */
+    static Filter getRowKeyFilter(byte[] startKey, byte[] endKey, byte[] lastKey) {
+        FilterList list = new FilterList(FilterList.Operator.MUST_PASS_ALL);
+        if (startKey.length > 0)
+            list.addFilter(newRowKeyFilter(CompareOp.GREATER_OR_EQUAL, startKey));
+        if (endKey.length > 0)
+            list.addFilter(newRowKeyFilter(CompareOp.LESS, endKey));
+        if (lastKey.length > 0)
+            list.addFilter(newRowKeyFilter(CompareOp.LESS_OR_EQUAL, lastKey));
+        return list.getFilters().isEmpty() ? null : list;
+    }
+
+    private static Filter newRowKeyFilter(CompareOp op, byte[] key) {
+        SingleColumnValueFilter f = new SingleColumnValueFilter(FAMILY, ROW_KEY, op, new BinaryComparator(key));
+        f.setFilterIfMissing(true);
+        return f;
+    }
+
+    /**
+     * 扫描索引表中[startRow, stopRow)之间的索引记录，最多取出limit条满足filter的记录的rowKey，
+     * 按索引字段值的顺序排列，每次调用都打开一个新的scanner并在返回前关闭它
+     *
+     * @param startRow 从这条索引记录开始(包含)
+     * @param stopRow 到这条索引记录为止(不包含)，为空时表示扫描到最后
+     * @param filter 数据记录rowKey上的过滤条件，可以为null
+     * @param limit 最多取出的记录数
+     * @param rowKeys 取出的rowKey放到这里
+     * @return 下一次扫描的startRow，已扫描完时返回null
+     */
+    byte[] findRowKeys(byte[] startRow, byte[] stopRow, Filter filter, int limit, List<byte[]> rowKeys) {
+        Scan scan = new Scan(startRow, stopRow);
+        scan.addColumn(FAMILY, ROW_KEY);
+        scan.setFilter(filter);
+        scan.setCaching(limit);
+
+        HTableInterface t = tablePool.getTable(indexTableName);
+        try {
+            ResultScanner scanner = t.getScanner(scan);
+            try {
+                int count = 0;
+                for (Result r = scanner.next(); r != null; r = scanner.next()) {
+                    rowKeys.add(r.getValue(FAMILY, ROW_KEY));
+                    if (++count >= limit) //下一次从紧跟在这条索引记录之后的位置开始
+                        return Bytes.add(r.getRow(), new byte[] { 0 });
+                }
+                return null;
+            } finally {
+                scanner.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            closeTable(t);
+        }
+    }
+
+    /**
+     * 为表中已有的记录建立索引
+     */
+    private void build() {
+        HTableInterface dataTable = tablePool.getTable(table.getName());
+        HTableInterface indexTable = tablePool.getTable(indexTableName);
+        try {
+            List<Column> columnList = Arrays.asList(columns);
+            int columnCount = table.getColumns().length;
+            Scan scan = new Scan();
+            for (Column c : columns)
+                if (!c.isRowKeyColumn())
+                    scan.addColumn(c.getColumnFamilyNameAsBytes(), c.getNameAsBytes());
+            scan.setCaching(BUILD_BATCH_SIZE);
+            ResultScanner scanner = dataTable.getScanner(scan);
+            try {
+                List<Put> puts = New.arrayList(BUILD_BATCH_SIZE);
+                for (Result r = scanner.next(); r != null; r = scanner.next()) {
+                    Row row = HBaseTableCursor.createRow(null, r, columnList, columnCount);
+                    Put put = new Put(getIndexKey(row, r.getRow()));
+                    put.add(FAMILY, ROW_KEY, r.getRow());
+                    puts.add(put);
+                    if (puts.size() >= BUILD_BATCH_SIZE) {
+                        indexTable.put(puts);
+                        puts = New.arrayList(BUILD_BATCH_SIZE);
+                    }
+                }
+                if (!puts.isEmpty())
+                    indexTable.put(puts);
+            } finally {
+                scanner.close();
+            }
+        } catch (IOException e) {
+            throw DbException.convertIOException(e, "Failed to build index " + getName());
+        } finally {
+            closeTable(dataTable);
+            closeTable(indexTable);
+        }
+    }
+
+    private static void closeTable(HTableInterface t) {
+        try {
+            t.close(); //把HTable归还到tablePool
+        } catch (IOException e) {
+            //ignore
+        }
+    }
+
+    private byte[] getIndexKey(Row row) {
+        return getIndexKey(row, HBaseUtils.toBytes(row.getRowKey()));
+    }
+
+    private byte[] getIndexKey(SearchRow row, byte[] rowKey) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Column c : columns)
+            encode(out, c, row.getValue(c.getColumnId()));
+        out.write(rowKey, 0, rowKey.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * 从第一个索引字段开始，把连续有值的那些索引字段编码成索引记录rowKey的前缀
+     *
+     * @return 如果第一个索引字段没有值，返回null
+     */
+    private byte[] getKeyPrefix(SearchRow row) {
+        if (row == null)
+            return null;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Column c : columns) {
+            Value v = row.getValue(c.getColumnId());
+            if (v == null)
+                break;
+            if (v != ValueNull.INSTANCE)
+                v = c.convert(v); //查找条件中的常量不一定跟字段的类型一样
+            encode(out, c, v);
+        }
+        if (out.size() == 0)
+            return null;
+        return out.toByteArray();
+    }
+
+    /**
+     * 把字段值编码成按字节比较时跟按值比较的顺序一致的形式。
+     *
+     * 有些类型编码后会丢失精度(比如DECIMAL转成double，TIMESTAMP只保留毫秒)，但顺序不会颠倒，
+     * 所以按编码后的值查找只会多找出一些记录，不会漏掉记录。
+     */
+    private static void encode(ByteArrayOutputStream out, Column c, Value v) {
+        if (v == null || v == ValueNull.INSTANCE) {
+            out.write(0); //NULL排在最前面
+            return;
+        }
+        out.write(1);
+        switch (c.getType()) {
+        case Value.BOOLEAN:
+            out.write(v.getBoolean() ? 1 : 0);
+            break;
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+        case Value.LONG:
+            writeLong(out, v.getLong() ^ Long.MIN_VALUE);
+            break;
+        case Value.DATE:
+            writeLong(out, v.getDate().getTime() ^ Long.MIN_VALUE);
+            break;
+        case Value.TIME:
+            writeLong(out, v.getTime().getTime() ^ Long.MIN_VALUE);
+            break;
+        case Value.TIMESTAMP:
+            writeLong(out, v.getTimestamp().getTime() ^ Long.MIN_VALUE);
+            break;
+        case Value.DECIMAL:
+        case Value.DOUBLE:
+        case Value.FLOAT: {
+            double d = v.getDouble();
+            if (d == 0.0)
+                d = 0.0; //-0.0和0.0要编码成一样的
+            long bits = Double.doubleToLongBits(d);
+            //负数所有位取反，正数只把符号位取反
+            writeLong(out, bits ^ (bits < 0 ? -1L : Long.MIN_VALUE));
+            break;
+        }
+        default: {
+            //字符串以0x00 0x00结尾，字符串中的0x00换成0x00 0xFF，这样短的字符串总是排在以它为前缀的长字符串前面
+            byte[] bytes = HBaseUtils.toBytes(v.getString());
+            for (byte b : bytes) {
+                out.write(b);
+                if (b == 0)
+                    out.write(0xFF);
+            }
+            out.write(0);
+            out.write(0);
+        }
+        }
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long v) {
+        for (int i = 56; i >= 0; i -= 8)
+            out.write((int) (v >>> i));
+    }
+}
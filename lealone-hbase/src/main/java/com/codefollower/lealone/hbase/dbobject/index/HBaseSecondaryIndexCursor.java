@@ -0,0 +1,160 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.dbobject.index;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import com.codefollower.lealone.constant.SysProperties;
+import com.codefollower.lealone.dbobject.index.Cursor;
+import com.codefollower.lealone.dbobject.table.Column;
+import com.codefollower.lealone.dbobject.table.TableFilter;
+import com.codefollower.lealone.hbase.command.HBasePrepared;
+import com.codefollower.lealone.hbase.dbobject.table.HBaseTable;
+import com.codefollower.lealone.hbase.engine.HBaseSession;
+import com.codefollower.lealone.hbase.util.HBaseUtils;
+import com.codefollower.lealone.result.Row;
+import com.codefollower.lealone.result.SearchRow;
+import com.codefollower.lealone.util.New;
+
+/**
+ * 通过二级索引查找当前Region中的记录。
+ *
+ * 每次从索引表中取出最多fetchSize个满足索引条件并且落在当前Region中的rowKey，然后逐个从当前Region中读出记录，
+ * 这批rowKey用完后再从上次停下的位置接着扫描索引表，所以不管有多少条索引记录满足条件，占用的内存都是有限的。
+ */
+public class HBaseSecondaryIndexCursor implements Cursor {
+    private final HBaseSession session;
+    private final byte[] regionName;
+    private final List<Column> columns;
+    private final int columnCount;
+    private final byte[] defaultColumnFamilyName;
+    private final HBaseSecondaryIndex index;
+    private final int fetchSize;
+    private final byte[] stopRow;
+    private final Filter rowKeyFilter;
+    private final List<byte[]> rowKeys = New.arrayList();
+    private byte[] nextStartRow; //为null时表示索引表已扫描完
+    private int rowKeyIndex = -1;
+    private Row row;
+
+    public HBaseSecondaryIndexCursor(HBaseSecondaryIndex index, TableFilter filter, SearchRow first, SearchRow last) {
+        this.index = index;
+        session = (HBaseSession) filter.getSession();
+        HBasePrepared hp = (HBasePrepared) filter.getPrepared();
+        if (hp == null || hp.getRegionName() == null)
+            throw new RuntimeException("regionName is null");
+        regionName = Bytes.toBytes(hp.getRegionName());
+
+        HBaseTable table = (HBaseTable) filter.getTable();
+        columnCount = table.getColumns().length;
+        defaultColumnFamilyName = Bytes.toBytes(table.getDefaultColumnFamilyName());
+        if (filter.getSelect() != null)
+            columns = filter.getSelect().getColumns(filter);
+        else
+            columns = Arrays.asList(table.getColumns());
+
+        int fetchSize = filter.getPrepared().getCommand().getFetchSize();
+        if (fetchSize < 1)
+            fetchSize = SysProperties.SERVER_RESULT_SET_FETCH_SIZE;
+        this.fetchSize = fetchSize;
+
+        //rowKey上的条件跟索引条件可以同时使用
+        byte[] startKey = HConstants.EMPTY_BYTE_ARRAY;
+        byte[] endKey = HConstants.EMPTY_BYTE_ARRAY;
+        if (first != null && first.getRowKey() != null)
+            startKey = HBaseUtils.toBytes(first.getRowKey());
+        if (last != null && last.getRowKey() != null)
+            endKey = HBaseUtils.toBytes(last.getRowKey());
+        HRegionInfo info;
+        try {
+            info = session.getRegionServer().getRegionInfo(regionName);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        if (Bytes.compareTo(startKey, info.getStartKey()) < 0)
+            startKey = info.getStartKey();
+        //让索引表只返回落在当前Region中的rowKey，而不是把所有Region的rowKey都传过来再丢掉
+        rowKeyFilter = HBaseSecondaryIndex.getRowKeyFilter(startKey, info.getEndKey(), endKey);
+        nextStartRow = index.getStartRow(first);
+        stopRow = index.getStopRow(last);
+    }
+
+    @Override
+    public Row get() {
+        return row;
+    }
+
+    @Override
+    public SearchRow getSearchRow() {
+        return get();
+    }
+
+    @Override
+    public boolean next() {
+        while (true) {
+            if (++rowKeyIndex >= rowKeys.size()) {
+                if (nextStartRow == null)
+                    break;
+                rowKeys.clear();
+                rowKeyIndex = -1;
+                nextStartRow = index.findRowKeys(nextStartRow, stopRow, rowKeyFilter, fetchSize, rowKeys);
+                continue;
+            }
+            Get get = new Get(rowKeys.get(rowKeyIndex));
+            if (columns != null) {
+                for (Column c : columns) {
+                    if (c.isRowKeyColumn())
+                        continue;
+                    else if (c.getColumnFamilyName() != null)
+                        get.addColumn(c.getColumnFamilyNameAsBytes(), c.getNameAsBytes());
+                    else
+                        get.addColumn(defaultColumnFamilyName, c.getNameAsBytes());
+                }
+            }
+            Result r;
+            try {
+                r = session.getRegionServer().get(regionName, get);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            //索引记录还在但数据记录已被删除时Get返回的结果是空的，直接跳过
+            //(如果只选了rowKey列，Get中没有指定列，会返回整条记录)
+            if (r != null && !r.isEmpty()) {
+                row = HBaseTableCursor.createRow(regionName, r, columns, columnCount);
+                return true;
+            }
+        }
+        row = null;
+        return false;
+    }
+
+    @Override
+    public boolean previous() {
+        return false;
+    }
+}
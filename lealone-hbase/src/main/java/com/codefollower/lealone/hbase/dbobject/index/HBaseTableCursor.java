@@ -25,9 +25,11 @@ import java.util.List;
 
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.Filter;
 import org.apache.hadoop.hbase.util.Bytes;
 
 import com.codefollower.lealone.constant.SysProperties;
@@ -40,6 +42,7 @@ import com.codefollower.lealone.hbase.engine.HBaseSession;
 import com.codefollower.lealone.hbase.result.HBaseRow;
 import com.codefollower.lealone.hbase.result.HBaseSubqueryResult;
 import com.codefollower.lealone.hbase.util.HBaseUtils;
+import com.codefollower.lealone.result.AdaptiveFetchSize;
 import com.codefollower.lealone.result.Row;
 import com.codefollower.lealone.result.SearchRow;
 import com.codefollower.lealone.value.Value;
@@ -48,6 +51,7 @@ import com.codefollower.lealone.value.ValueString;
 public class HBaseTableCursor implements Cursor {
     private final HBaseSession session;
     private int fetchSize;
+    private AdaptiveFetchSize adaptiveFetchSize;
     private byte[] regionName = null;
 
     private long scannerId;
@@ -72,6 +76,9 @@ public class HBaseTableCursor implements Cursor {
         //非查询的操作一般不设置fetchSize，此时fetchSize为0，所以要设置一个默认值
         if (fetchSize < 1 && !filter.getPrepared().isQuery())
             fetchSize = SysProperties.SERVER_RESULT_SET_FETCH_SIZE;
+        //按已取到的记录的大小和读取速度逐步调大每次从scanner取的记录数
+        if (fetchSize > 0)
+            adaptiveFetchSize = new AdaptiveFetchSize(fetchSize);
 
         rowKeyName = ((HBaseTable) filter.getTable()).getRowKeyName();
         columnCount = ((HBaseTable) filter.getTable()).getColumns().length;
@@ -126,8 +133,8 @@ public class HBaseTableCursor implements Cursor {
                 throw new RuntimeException(e);
             }
 
+            defaultColumnFamilyName = Bytes.toBytes(((HBaseTable) filter.getTable()).getDefaultColumnFamilyName());
             if (columns != null) {
-                defaultColumnFamilyName = Bytes.toBytes(((HBaseTable) filter.getTable()).getDefaultColumnFamilyName());
                 for (Column c : columns) {
                     if (rowKeyName.equalsIgnoreCase(c.getName()))
                         continue;
@@ -137,6 +144,11 @@ public class HBaseTableCursor implements Cursor {
                         scan.addColumn(defaultColumnFamilyName, c.getNameAsBytes());
                 }
             }
+            //把能在RegionServer端计算的条件下推到Scan中，剩下的条件仍由TableFilter检查
+            Filter hbaseFilter = new HBaseFilterBuilder(filter, columns, defaultColumnFamilyName).build(filter
+                    .getFilterCondition());
+            if (hbaseFilter != null)
+                scan.setFilter(hbaseFilter);
             try {
                 scannerId = session.getRegionServer().openScanner(regionName, scan);
             } catch (Exception e) {
@@ -160,25 +172,26 @@ public class HBaseTableCursor implements Cursor {
             }
             return new HBaseRow(regionName, rowKey, data, Row.MEMORY_CALCULATE);
         }
-        if (result != null && index < result.length) {
-            Result r = result[index];
+        if (result != null && index < result.length)
+            return createRow(regionName, result[index], columns, columnCount);
+        return null;
+    }
 
-            Value[] data = new Value[columnCount];
-            Value rowKey = ValueString.get(Bytes.toString(r.getRow()));
-            if (columns != null) {
-                int i = 0;
-                for (Column c : columns) {
-                    i = c.getColumnId();
-                    if (c.isRowKeyColumn())
-                        data[i] = rowKey;
-                    else
-                        data[i] = HBaseUtils.toValue( //
-                                r.getValue(c.getColumnFamilyNameAsBytes(), c.getNameAsBytes()), c.getType());
-                }
+    static HBaseRow createRow(byte[] regionName, Result r, List<Column> columns, int columnCount) {
+        Value[] data = new Value[columnCount];
+        Value rowKey = ValueString.get(Bytes.toString(r.getRow()));
+        if (columns != null) {
+            int i = 0;
+            for (Column c : columns) {
+                i = c.getColumnId();
+                if (c.isRowKeyColumn())
+                    data[i] = rowKey;
+                else
+                    data[i] = HBaseUtils.toValue( //
+                            r.getValue(c.getColumnFamilyNameAsBytes(), c.getNameAsBytes()), c.getType());
             }
-            return new HBaseRow(regionName, rowKey, data, Row.MEMORY_CALCULATE);
         }
-        return null;
+        return new HBaseRow(regionName, rowKey, data, Row.MEMORY_CALCULATE);
     }
 
     @Override
@@ -198,8 +211,13 @@ public class HBaseTableCursor implements Cursor {
             return false;
 
         try {
+            long start = System.nanoTime();
             result = session.getRegionServer().next(scannerId, fetchSize);
             index = 0;
+            if (adaptiveFetchSize != null && result != null) {
+                adaptiveFetchSize.received(result.length, getBytes(result), System.nanoTime() - start);
+                fetchSize = adaptiveFetchSize.get();
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -215,6 +233,17 @@ public class HBaseTableCursor implements Cursor {
         return false;
     }
 
+    private static long getBytes(Result[] result) {
+        long bytes = 0;
+        for (Result r : result) {
+            KeyValue[] kvs = r.raw();
+            if (kvs != null)
+                for (KeyValue kv : kvs)
+                    bytes += kv.getLength();
+        }
+        return bytes;
+    }
+
     @Override
     public boolean previous() {
         return false;
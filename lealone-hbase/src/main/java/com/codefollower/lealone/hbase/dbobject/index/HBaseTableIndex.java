@@ -54,8 +54,12 @@ public class HBaseTableIndex extends BaseIndex {
 
     @Override
     public void add(Session session, Row row) {
+        HBaseSession s = (HBaseSession) session;
+        HBaseRow r = (HBaseRow) row;
+        if (s.addBatchPut(r.getRegionName(), r.getPut()))
+            return;
         try {
-            ((HBaseSession) session).getRegionServer().put(((HBaseRow) row).getRegionName(), ((HBaseRow) row).getPut());
+            s.getRegionServer().put(r.getRegionName(), r.getPut());
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -85,7 +89,8 @@ public class HBaseTableIndex extends BaseIndex {
 
     @Override
     public double getCost(Session session, int[] masks) {
-        return 0;
+        //总是全表扫描(rowKey上的条件不管选哪个索引都会用上)，这样有二级索引可用时会优先选二级索引
+        return getCostRangeIndex(null, table.getRowCountApproximation());
     }
 
     @Override
@@ -118,7 +123,7 @@ public class HBaseTableIndex extends BaseIndex {
 
     @Override
     public long getRowCountApproximation() {
-        return 0;
+        return table.getRowCountApproximation();
     }
 
     @Override
@@ -43,6 +43,7 @@ import com.codefollower.lealone.dbobject.table.IndexColumn;
 import com.codefollower.lealone.dbobject.table.TableBase;
 import com.codefollower.lealone.engine.Session;
 import com.codefollower.lealone.hbase.command.ddl.Options;
+import com.codefollower.lealone.hbase.dbobject.index.HBaseSecondaryIndex;
 import com.codefollower.lealone.hbase.dbobject.index.HBaseTableIndex;
 import com.codefollower.lealone.hbase.engine.HBaseDatabase;
 import com.codefollower.lealone.hbase.engine.HBaseSession;
@@ -63,6 +64,7 @@ public class HBaseTable extends TableBase {
     private final Index scanIndex;
     private final HTableDescriptor hTableDescriptor;
     private final String tableName;
+    private final HBaseTableStatistics statistics = new HBaseTableStatistics(this);
 
     private String rowKeyName;
     private Column rowKeyColumn;
@@ -190,7 +192,11 @@ public class HBaseTable extends TableBase {
         if (!isSessionTemporary) {
             database.lockMeta(session);
         }
-        Index index = new HBaseTableIndex(this, indexId, indexName, cols, indexType);
+        Index index;
+        if (indexType.isPrimaryKey())
+            index = new HBaseTableIndex(this, indexId, indexName, cols, indexType);
+        else
+            index = new HBaseSecondaryIndex(session, this, indexId, indexName, cols, indexType);
 
         index.setTemporary(isTemporary());
         if (index.getCreateSQL() != null) {
@@ -307,7 +313,7 @@ public class HBaseTable extends TableBase {
 
     @Override
     public long getRowCountApproximation() {
-        return 0;
+        return statistics.getRowCount();
     }
 
     @Override
@@ -442,7 +448,7 @@ public class HBaseTable extends TableBase {
         return tableName;
     }
 
-    private static void createIfNotExists(Session session, String tableName, HTableDescriptor htd, byte[][] splitKeys) {
+    public static void createIfNotExists(Session session, String tableName, HTableDescriptor htd, byte[][] splitKeys) {
         try {
             HMaster master = ((HBaseSession) session).getMaster();
             if (master != null && master.getTableDescriptors().get(tableName) == null) {
@@ -463,7 +469,7 @@ public class HBaseTable extends TableBase {
         }
     }
 
-    private static void dropIfExists(Session session, String tableName) {
+    public static void dropIfExists(Session session, String tableName) {
         try {
             HMaster master = ((HBaseSession) session).getMaster();
             if (master != null && master.getTableDescriptors().get(tableName) != null) {
@@ -501,12 +507,20 @@ public class HBaseTable extends TableBase {
 
     @Override
     public boolean supportsIndex() {
-        return false;
+        return true;
     }
 
     @Override
     public long getDiskSpaceUsed() {
-        return 0;
+        return statistics.getDiskSpaceUsed();
+    }
+
+    @Override
+    public boolean analyze(Session session, int sample) {
+        //只在Master上抽样，其他RegionServer通过元数据表同步字段的选择度
+        if (((HBaseSession) session).getMaster() != null)
+            statistics.analyze(sample);
+        return true;
     }
 
     public void addColumn(Column c) {
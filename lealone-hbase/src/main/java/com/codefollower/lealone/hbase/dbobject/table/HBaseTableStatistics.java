@@ -0,0 +1,272 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.dbobject.table;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.io.hfile.FixedFileTrailer;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.FSUtils;
+import org.apache.hadoop.hbase.util.Pair;
+import org.apache.hadoop.hbase.util.Threads;
+
+import com.codefollower.lealone.constant.Constants;
+import com.codefollower.lealone.dbobject.table.Column;
+import com.codefollower.lealone.hbase.util.HBaseUtils;
+import com.codefollower.lealone.util.IntIntHashMap;
+import com.codefollower.lealone.util.New;
+
+/**
+ * HBase表的统计信息，供优化器计算代价时使用。
+ *
+ * 记录数和占用空间是从HDFS上各Region的StoreFile的trailer中估算出来的，不用扫描数据，
+ * 每个RegionServer各自计算并缓存一段时间(lealone.statistics.refresh.interval)。
+ * 过期后在后台线程中重新计算，计算完之前仍然返回上一次的统计信息，所以生成执行计划时不会访问HDFS。
+ *
+ * 字段的选择度(不同值所占的比例)由ANALYZE在Master上对各Region抽样算出，
+ * 然后跟其他元数据一样保存到元数据表中，再由各RegionServer同步过去。
+ */
+class HBaseTableStatistics {
+    private static final long REFRESH_INTERVAL = HBaseUtils.getConfiguration().getLong(
+            "lealone.statistics.refresh.interval", 60000);
+
+    //所有表共用一个后台线程，空闲时线程会退出
+    private static final ThreadPoolExecutor refresher = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), Threads.newDaemonThreadFactory(HBaseTableStatistics.class
+                    .getSimpleName()));
+    static {
+        refresher.allowCoreThreadTimeOut(true);
+    }
+
+    private final HBaseTable table;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private volatile long rowCount;
+    private volatile long diskSpaceUsed;
+    private volatile long nextRefreshTime;
+
+    HBaseTableStatistics(HBaseTable table) {
+        this.table = table;
+    }
+
+    long getRowCount() {
+        refreshIfExpired();
+        return rowCount;
+    }
+
+    long getDiskSpaceUsed() {
+        refreshIfExpired();
+        return diskSpaceUsed;
+    }
+
+    private void refreshIfExpired() {
+        //同一个表同时只有一个刷新任务
+        if (System.currentTimeMillis() < nextRefreshTime || !refreshing.compareAndSet(false, true))
+            return;
+        try {
+            refresher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refresh();
+                    } catch (Exception e) {
+                        //保留上一次的统计信息
+                    } finally {
+                        //出错时也要等下一个周期再重试，不能一直访问HDFS
+                        nextRefreshTime = System.currentTimeMillis() + REFRESH_INTERVAL;
+                        refreshing.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshing.set(false);
+        }
+    }
+
+    /**
+     * 每个StoreFile的trailer中记录了KeyValue的个数，
+     * 一个列族中的KeyValue个数除以这个列族的字段数就近似于这个列族中的记录数，
+     * 各列族中的最大值就是这个Region的记录数。
+     *
+     * 只统计已经flush到StoreFile的记录，MemStore中的记录忽略不计。
+     */
+    private void refresh() throws IOException {
+        Configuration conf = HBaseUtils.getConfiguration();
+        FileSystem fs = FileSystem.get(conf);
+        Path tableDir = HTableDescriptor.getTableDir(FSUtils.getRootDir(conf), Bytes.toBytes(table.getName()));
+        long rows = 0;
+        long size = 0;
+        if (fs.exists(tableDir)) {
+            Map<String, Integer> columnCounts = getColumnCounts();
+            for (FileStatus regionDir : fs.listStatus(tableDir)) {
+                //.tableinfo、.tmp之类的不是Region目录
+                if (!regionDir.isDir() || regionDir.getPath().getName().startsWith("."))
+                    continue;
+                long regionRows = 0;
+                for (Map.Entry<String, Integer> e : columnCounts.entrySet()) {
+                    Path familyDir = new Path(regionDir.getPath(), e.getKey());
+                    if (!fs.exists(familyDir))
+                        continue;
+                    long entries = 0;
+                    for (FileStatus file : fs.listStatus(familyDir)) {
+                        //Region分裂后的引用文件指向父Region的文件，父Region已经统计过了
+                        if (file.isDir() || StoreFile.isReference(file.getPath()))
+                            continue;
+                        entries += getEntryCount(fs, file);
+                        size += file.getLen();
+                    }
+                    regionRows = Math.max(regionRows, entries / e.getValue());
+                }
+                rows += regionRows;
+            }
+        }
+        rowCount = rows;
+        diskSpaceUsed = size;
+    }
+
+    private static long getEntryCount(FileSystem fs, FileStatus file) throws IOException {
+        FSDataInputStream in = fs.open(file.getPath());
+        try {
+            return FixedFileTrailer.readFromStream(in, file.getLen()).getEntryCount();
+        } finally {
+            in.close();
+        }
+    }
+
+    private Map<String, Integer> getColumnCounts() {
+        Map<String, Integer> columnCounts = New.hashMap();
+        for (Column c : table.getColumns()) {
+            if (c.isRowKeyColumn()) //rowKey不是某个列族中的字段，没有对应的KeyValue
+                continue;
+            String cf = c.getColumnFamilyName();
+            if (cf == null)
+                cf = table.getDefaultColumnFamilyName();
+            Integer count = columnCounts.get(cf);
+            columnCounts.put(cf, count == null ? 1 : count + 1);
+        }
+        if (columnCounts.isEmpty()) //只有rowKey字段
+            columnCounts.put(table.getDefaultColumnFamilyName(), 1);
+        return columnCounts;
+    }
+
+    /**
+     * 对表中的记录抽样，计算每个字段的选择度，算法跟SELECTIVITY聚合函数一样。
+     *
+     * 每个Region抽取同样多的记录，这样不会只抽到第一个Region中的记录。
+     * 如果抽样时读完了所有记录，顺便把准确的记录数也记下来。
+     *
+     * @param sample 抽样记录数，0表示读取所有记录
+     */
+    void analyze(int sample) {
+        //rowKey不在列族中，每条记录的rowKey都不一样，不用抽样
+        List<Column> columnList = New.arrayList();
+        for (Column c : table.getColumns())
+            if (!c.isRowKeyColumn())
+                columnList.add(c);
+        Column[] columns = columnList.toArray(new Column[columnList.size()]);
+        IntIntHashMap[] distinctHashes = new IntIntHashMap[columns.length];
+        long[] m2 = new long[columns.length];
+        for (int i = 0; i < columns.length; i++)
+            distinctHashes[i] = new IntIntHashMap();
+        byte[] defaultColumnFamilyName = Bytes.toBytes(table.getDefaultColumnFamilyName());
+        long count = 0;
+        boolean complete = true;
+
+        HTable t = null;
+        try {
+            t = new HTable(HBaseUtils.getConfiguration(), table.getName());
+            Pair<byte[][], byte[][]> keys = t.getStartEndKeys();
+            int regionCount = keys.getFirst().length;
+            int limit = sample > 0 ? Math.max(1, sample / Math.max(1, regionCount)) : Integer.MAX_VALUE;
+            for (int r = 0; r < regionCount; r++) {
+                Scan scan = new Scan(keys.getFirst()[r], keys.getSecond()[r]);
+                scan.setCaching(Math.min(limit, 1000));
+                for (Column c : columns) {
+                    byte[] cf = c.getColumnFamilyName() != null ? c.getColumnFamilyNameAsBytes() : defaultColumnFamilyName;
+                    scan.addColumn(cf, c.getNameAsBytes());
+                }
+                ResultScanner scanner = t.getScanner(scan);
+                try {
+                    int n = 0;
+                    for (Result result = scanner.next(); result != null; result = scanner.next()) {
+                        if (n++ >= limit) {
+                            complete = false;
+                            break;
+                        }
+                        count++;
+                        for (int i = 0; i < columns.length; i++) {
+                            Column c = columns[i];
+                            byte[] cf = c.getColumnFamilyName() != null ? c.getColumnFamilyNameAsBytes()
+                                    : defaultColumnFamilyName;
+                            byte[] v = result.getValue(cf, c.getNameAsBytes());
+                            if (distinctHashes[i].size() > Constants.SELECTIVITY_DISTINCT_COUNT) {
+                                m2[i] += distinctHashes[i].size();
+                                distinctHashes[i] = new IntIntHashMap();
+                            }
+                            //IntIntHashMap不支持-1
+                            int hash = v == null ? 0 : Bytes.hashCode(v);
+                            distinctHashes[i].put(hash == -1 ? 1 : hash, 1);
+                        }
+                    }
+                } finally {
+                    scanner.close();
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (t != null) {
+                try {
+                    t.close();
+                } catch (IOException e) {
+                    //ignore
+                }
+            }
+        }
+
+        if (count == 0)
+            return;
+        for (int i = 0; i < columns.length; i++) {
+            long s = 100 * (m2[i] + distinctHashes[i].size()) / count;
+            columns[i].setSelectivity(s <= 0 ? 1 : s > 100 ? 100 : (int) s);
+        }
+        if (complete) {
+            rowCount = count;
+            nextRefreshTime = System.currentTimeMillis() + REFRESH_INTERVAL;
+        }
+    }
+}
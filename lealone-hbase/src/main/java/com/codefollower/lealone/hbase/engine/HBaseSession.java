@@ -19,10 +19,17 @@
  */
 package com.codefollower.lealone.hbase.engine;
 
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
 
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.master.HMaster;
 import org.apache.hadoop.hbase.regionserver.HRegionServer;
+import org.apache.hadoop.hbase.util.Bytes;
 
 import com.codefollower.lealone.command.Parser;
 import com.codefollower.lealone.command.dml.Query;
@@ -33,6 +40,7 @@ import com.codefollower.lealone.engine.Database;
 import com.codefollower.lealone.engine.Session;
 import com.codefollower.lealone.hbase.command.HBaseParser;
 import com.codefollower.lealone.hbase.dbobject.HBaseSequence;
+import com.codefollower.lealone.hbase.dbobject.index.HBaseSecondaryIndex;
 import com.codefollower.lealone.hbase.result.HBaseSubqueryResult;
 import com.codefollower.lealone.hbase.util.HBaseUtils;
 import com.codefollower.lealone.message.DbException;
@@ -40,8 +48,11 @@ import com.codefollower.lealone.omid.client.TransactionManager;
 import com.codefollower.lealone.omid.client.TransactionState;
 import com.codefollower.lealone.result.Row;
 import com.codefollower.lealone.result.SubqueryResult;
+import com.codefollower.lealone.util.New;
 
 public class HBaseSession extends Session {
+    //批量模式中最多缓存多少个Put和索引记录
+    private static final int BATCH_SIZE = HBaseUtils.getConfiguration().getInt("lealone.session.batch.size", 1000);
 
     /**
      * HBase的HMaster对象，master和regionServer不可能同时非null
@@ -61,6 +72,21 @@ public class HBaseSession extends Session {
     private TransactionManager tm;
     private TransactionState ts;
 
+    /**
+     * 批量模式中按Region缓存的Put，非null时HBaseTableIndex.add只把Put放到这里
+     */
+    private Map<byte[], List<Put>> batchPuts;
+
+    /**
+     * 批量模式中按索引表缓存的索引记录，同一条索引记录只保留最后一次的Put或Delete
+     */
+    private Map<byte[], Map<byte[], Mutation>> batchIndexMutations;
+
+    /**
+     * 批量模式中已缓存的Put和索引记录的个数，达到BATCH_SIZE时先写入一次，免得大批量Update、Delete占用太多内存
+     */
+    private int batchCount;
+
     public HBaseSession(Database database, User user, int id) {
         super(database, user, id);
     }
@@ -89,6 +115,106 @@ public class HBaseSession extends Session {
         this.originalProperties = originalProperties;
     }
 
+    /**
+     * 进入批量模式，数据记录的Put和二级索引的索引记录都先缓存起来，调用endBatch时再一次性写入
+     */
+    public void startBatch() {
+        batchPuts = new TreeMap<byte[], List<Put>>(Bytes.BYTES_COMPARATOR);
+        batchIndexMutations = new TreeMap<byte[], Map<byte[], Mutation>>(Bytes.BYTES_COMPARATOR);
+        batchCount = 0;
+    }
+
+    /**
+     * 如果当前处于批量模式，把put缓存起来
+     *
+     * @return 如果put已被缓存返回true，否则调用者要自己写入put
+     */
+    public boolean addBatchPut(byte[] regionName, Put put) {
+        if (batchPuts == null)
+            return false;
+        List<Put> puts = batchPuts.get(regionName);
+        if (puts == null) {
+            puts = New.arrayList();
+            batchPuts.put(regionName, puts);
+        }
+        puts.add(put);
+        if (++batchCount >= BATCH_SIZE)
+            flushBatch();
+        return true;
+    }
+
+    /**
+     * 如果当前处于批量模式，把索引记录的Put或Delete缓存起来
+     *
+     * 同一条索引记录先Delete再Put(比如Update时索引字段的值没变)，只保留后面的Put，
+     * 因为同一批中的Put和Delete的执行顺序是不确定的。
+     *
+     * @return 如果已被缓存返回true，否则调用者要自己写入
+     */
+    public boolean addBatchIndexMutation(byte[] indexTableName, Mutation m) {
+        if (batchIndexMutations == null)
+            return false;
+        Map<byte[], Mutation> mutations = batchIndexMutations.get(indexTableName);
+        if (mutations == null) {
+            mutations = new TreeMap<byte[], Mutation>(Bytes.BYTES_COMPARATOR);
+            batchIndexMutations.put(indexTableName, mutations);
+        }
+        mutations.put(m.getRow(), m);
+        if (++batchCount >= BATCH_SIZE)
+            flushBatch();
+        return true;
+    }
+
+    /**
+     * 结束批量模式
+     *
+     * 先写索引记录的Put，再写数据记录，最后写索引记录的Delete，
+     * 这样中途失败时最多多出一些指向不存在的数据记录的索引记录(查找时会跳过)，而不会漏掉索引记录。
+     *
+     * @param flush 为true时把缓存的数据记录和索引记录一次性写入，否则直接丢弃
+     */
+    public void endBatch(boolean flush) {
+        try {
+            if (flush)
+                flushBatch();
+        } finally {
+            batchPuts = null;
+            batchIndexMutations = null;
+        }
+    }
+
+    private void flushBatch() {
+        Map<byte[], List<Put>> puts = batchPuts;
+        Map<byte[], Map<byte[], Mutation>> indexMutations = batchIndexMutations;
+        batchPuts = new TreeMap<byte[], List<Put>>(Bytes.BYTES_COMPARATOR);
+        batchIndexMutations = new TreeMap<byte[], Map<byte[], Mutation>>(Bytes.BYTES_COMPARATOR);
+        batchCount = 0;
+        writeIndexMutations(indexMutations, true);
+        try {
+            for (Map.Entry<byte[], List<Put>> e : puts.entrySet()) {
+                //返回-1表示全部成功，否则是第一个失败的Put的下标
+                int failed = regionServer.put(e.getKey(), e.getValue());
+                if (failed != -1)
+                    throw new IOException("put failed at row " + Bytes.toStringBinary(e.getValue().get(failed).getRow())
+                            + " in region " + Bytes.toStringBinary(e.getKey()));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        writeIndexMutations(indexMutations, false);
+    }
+
+    private static void writeIndexMutations(Map<byte[], Map<byte[], Mutation>> indexMutations, boolean put) {
+        for (Map.Entry<byte[], Map<byte[], Mutation>> e : indexMutations.entrySet()) {
+            List<Mutation> list = New.arrayList();
+            for (Mutation m : e.getValue().values())
+                if ((m instanceof Put) == put)
+                    list.add(m);
+            if (!list.isEmpty())
+                HBaseSecondaryIndex.batch(e.getKey(), list);
+        }
+    }
+
     @Override
     public HBaseDatabase getDatabase() {
         return (HBaseDatabase) database;
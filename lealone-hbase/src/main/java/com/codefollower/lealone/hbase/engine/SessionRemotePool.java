@@ -0,0 +1,309 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.engine;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.codefollower.lealone.command.CommandInterface;
+import com.codefollower.lealone.engine.ConnectionInfo;
+import com.codefollower.lealone.engine.SessionRemote;
+import com.codefollower.lealone.hbase.util.HBaseUtils;
+import com.codefollower.lealone.security.SHA256;
+import com.codefollower.lealone.util.MathUtils;
+import com.codefollower.lealone.util.StringUtils;
+
+/**
+ * 按URL和连接参数(包括用户名和密码)缓存到其他RegionServer的SessionRemote，避免每次代理命令时都要重新建立连接和认证。
+ * 池的key中不含明文的连接参数，只含它们的HMAC(密钥是进程启动时随机生成的)。
+ *
+ * 所有池中的Session(包括借出的)总数不超过maxSessions个，达到上限时先关闭一个空闲的Session，
+ * 没有空闲的Session时最多等待maxWait毫秒，还是借不到就抛出异常。
+ *
+ * 每个URL最多缓存maxIdle个空闲的Session，空闲时间超过idleTimeout的Session会被关闭，
+ * 空闲时间超过validationInterval的Session在借出前要先确认连接仍然可用。
+ *
+ * 每个Session还按SQL缓存最近在它上面准备好的命令(最多commandCacheSize个)，
+ * 再次借到这个Session的人执行同样的SQL时不用重新准备，Session关闭时这些命令也随之失效。
+ */
+public class SessionRemotePool {
+    private static final int MAX_IDLE = HBaseUtils.getConfiguration().getInt("lealone.session.pool.max.idle", 8);
+    private static final long IDLE_TIMEOUT = HBaseUtils.getConfiguration().getLong(
+            "lealone.session.pool.idle.timeout", 60000);
+    private static final long VALIDATION_INTERVAL = HBaseUtils.getConfiguration().getLong(
+            "lealone.session.pool.validation.interval", 5000);
+    private static final int COMMAND_CACHE_SIZE = HBaseUtils.getConfiguration().getInt(
+            "lealone.session.pool.command.cache.size", 16);
+    private static final int MAX_SESSIONS = HBaseUtils.getConfiguration().getInt(
+            "lealone.session.pool.max.sessions", 256);
+    private static final long MAX_WAIT = HBaseUtils.getConfiguration().getLong("lealone.session.pool.max.wait",
+            30000);
+
+    //每个Session(不管是空闲的还是借出的)占一个许可，Session关闭时归还
+    private static final Semaphore permits = new Semaphore(MAX_SESSIONS, true);
+    private static final byte[] KEY_SECRET = MathUtils.secureRandomBytes(32);
+
+    private static final ConcurrentHashMap<String, LinkedList<PooledSession>> pools = //
+    new ConcurrentHashMap<String, LinkedList<PooledSession>>();
+
+    private SessionRemotePool() {
+        // utility class
+    }
+
+    /**
+     * 从池中借出一个到url的Session，池中没有可用的Session时新建一个
+     *
+     * @param info 最初从Client端传递过来的配置参数
+     * @param url 目标RegionServer的URL
+     * @return 借出的Session，用完后要调用{@link #release(PooledSession)}归还
+     */
+    public static PooledSession getSession(Properties info, String url) throws Exception {
+        String key = getKey(info, url);
+        LinkedList<PooledSession> pool = getPool(key);
+        long now = System.currentTimeMillis();
+        while (true) {
+            PooledSession ps;
+            synchronized (pool) {
+                evictIdleSessions(pool, now);
+                ps = pool.pollFirst();
+            }
+            if (ps == null)
+                break;
+            if (isValid(ps, now))
+                return ps;
+            closeQuietly(ps);
+        }
+        acquirePermit();
+        try {
+            return new PooledSession(key, createSession(info, url));
+        } catch (Exception e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private static void acquirePermit() throws InterruptedException {
+        if (permits.tryAcquire())
+            return;
+        //其他URL或用户的空闲Session也占着许可，先关掉一个最久没用的
+        if (closeIdleSession() && permits.tryAcquire())
+            return;
+        if (!permits.tryAcquire(MAX_WAIT, TimeUnit.MILLISECONDS))
+            throw new RuntimeException("Too many sessions in SessionRemotePool, max sessions: " + MAX_SESSIONS);
+    }
+
+    private static boolean closeIdleSession() {
+        for (LinkedList<PooledSession> pool : pools.values()) {
+            PooledSession ps;
+            synchronized (pool) {
+                ps = pool.pollLast();
+            }
+            if (ps != null) {
+                closeQuietly(ps);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 归还借出的Session，如果Session已不可用或池已满则直接关闭
+     *
+     * @param ps 借出的Session
+     */
+    public static void release(PooledSession ps) {
+        SessionRemote session = ps.session;
+        //还有未提交的事务的Session不能给别人用
+        if (session.isClosed() || !session.getAutoCommit()) {
+            closeQuietly(ps);
+            return;
+        }
+        LinkedList<PooledSession> pool = getPool(ps.key);
+        ps.lastUsed = System.currentTimeMillis();
+        synchronized (pool) {
+            if (pool.size() < MAX_IDLE) {
+                pool.addFirst(ps); //后进先出，让最近用过的Session优先被重用，其他Session可以尽快过期
+                return;
+            }
+        }
+        closeQuietly(ps);
+    }
+
+    /**
+     * 从所有空闲的Session中删除并关闭为sql准备的命令，比如sql中的Region已经分裂或迁移了
+     *
+     * @param sql 命令的SQL
+     */
+    public static void removeCommand(String sql) {
+        for (LinkedList<PooledSession> pool : pools.values()) {
+            synchronized (pool) {
+                for (PooledSession ps : pool)
+                    ps.removeCommand(sql);
+            }
+        }
+    }
+
+    private static LinkedList<PooledSession> getPool(String key) {
+        LinkedList<PooledSession> pool = pools.get(key);
+        if (pool == null) {
+            pool = new LinkedList<PooledSession>();
+            LinkedList<PooledSession> old = pools.putIfAbsent(key, pool);
+            if (old != null)
+                pool = old;
+        }
+        return pool;
+    }
+
+    private static void evictIdleSessions(LinkedList<PooledSession> pool, long now) {
+        for (Iterator<PooledSession> it = pool.iterator(); it.hasNext();) {
+            PooledSession ps = it.next();
+            if (now - ps.lastUsed > IDLE_TIMEOUT) {
+                it.remove();
+                closeQuietly(ps);
+            }
+        }
+    }
+
+    private static boolean isValid(PooledSession ps, long now) {
+        if (ps.session.isClosed())
+            return false;
+        if (now - ps.lastUsed > VALIDATION_INTERVAL) {
+            try {
+                ps.session.getUndoLogPos(); //一次很轻的往返，确认对方还活着
+            } catch (Exception e) {
+                return false;
+            }
+        }
+        return !ps.session.isClosed();
+    }
+
+    private static void closeQuietly(PooledSession ps) {
+        synchronized (ps) {
+            if (ps.closed)
+                return;
+            ps.closed = true;
+        }
+        permits.release();
+        try {
+            ps.session.close();
+        } catch (Exception e) {
+            //ignore
+        }
+    }
+
+    private static void closeQuietly(CommandInterface c) {
+        try {
+            c.close();
+        } catch (Exception e) {
+            //ignore
+        }
+    }
+
+    private static SessionRemote createSession(Properties info, String url) throws Exception {
+        Properties prop = new Properties();
+        for (String key : info.stringPropertyNames())
+            prop.setProperty(key, info.getProperty(key));
+        ConnectionInfo ci = new ConnectionInfo(url, prop);
+
+        return (SessionRemote) new SessionRemote(ci).connectEmbeddedOrServer(false);
+    }
+
+    private static String getKey(Properties info, String url) {
+        Map<String, String> map = new TreeMap<String, String>();
+        for (String key : info.stringPropertyNames())
+            map.put(key, info.getProperty(key));
+        //连接参数中有密码，不能明文放在key中
+        byte[] hmac = SHA256.getHMAC(KEY_SECRET, StringUtils.utf8Encode(map.toString()));
+        return url + " " + StringUtils.convertBytesToHex(hmac);
+    }
+
+    public static class PooledSession {
+        private final String key;
+        private final SessionRemote session;
+        private long lastUsed;
+        private boolean closed;
+
+        //只有借到这个Session的人才会用到这些命令，所以不会有两个线程同时执行同一个命令
+        private final LinkedHashMap<String, CommandInterface> commands = //
+        new LinkedHashMap<String, CommandInterface>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CommandInterface> eldest) {
+                if (size() > COMMAND_CACHE_SIZE) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        PooledSession(String key, SessionRemote session) {
+            this.key = key;
+            this.session = session;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        public SessionRemote getSession() {
+            return session;
+        }
+
+        /**
+         * 返回在这个Session上为sql准备好的命令，没有时新准备一个并缓存起来，调用者不能关闭返回的命令
+         *
+         * @param sql 命令的SQL
+         * @return 准备好的命令
+         */
+        public CommandInterface prepareCommand(String sql) {
+            CommandInterface c;
+            synchronized (commands) {
+                c = commands.get(sql);
+            }
+            if (c == null) {
+                c = session.prepareCommand(sql, -1); //此时fetchSize还未知
+                synchronized (commands) {
+                    commands.put(sql, c);
+                }
+            }
+            return c;
+        }
+
+        /**
+         * 删除并关闭为sql准备的命令
+         *
+         * @param sql 命令的SQL
+         */
+        public void removeCommand(String sql) {
+            CommandInterface c;
+            synchronized (commands) {
+                c = commands.remove(sql);
+            }
+            if (c != null)
+                closeQuietly(c);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.result;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import com.codefollower.lealone.command.CommandInterface;
+import com.codefollower.lealone.result.DelegatedResult;
+import com.codefollower.lealone.result.ResultInterface;
+
+/**
+ * 并行执行多个Region上的查询，最多提前打开prefetchCount个Region的查询(它们的第一批记录也随之被抓取)。
+ * 
+ * ordered为true时按Region的顺序返回记录，否则哪个Region的结果先到就先返回哪个Region的记录。
+ */
+public class HBaseParallelResult extends DelegatedResult {
+    private final static int UNKNOW_ROW_COUNT = -1;
+    private final HBaseRegionQueries queries;
+
+    public HBaseParallelResult(List<CommandInterface> commands, Executor executor, int maxRows, boolean scrollable,
+            boolean ordered, int prefetchCount) {
+        queries = new HBaseRegionQueries(commands, executor, maxRows, scrollable, ordered, prefetchCount);
+        result = queries.next();
+    }
+
+    private boolean nextResult() {
+        ResultInterface r = queries.next();
+        if (r == null)
+            return false;
+
+        result.close();
+        result = r;
+        return true;
+    }
+
+    @Override
+    public boolean next() {
+        boolean next = result.next();
+        while (!next) {
+            if (!nextResult())
+                break;
+            next = result.next();
+        }
+        return next;
+    }
+
+    @Override
+    public int getRowCount() {
+        return UNKNOW_ROW_COUNT;
+    }
+
+    @Override
+    public void close() {
+        //还在执行的查询完成后由执行它的线程关闭结果
+        queries.close();
+        result.close();
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.result;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.codefollower.lealone.command.CommandInterface;
+import com.codefollower.lealone.result.ResultInterface;
+
+/**
+ * 在线程池中执行多个Region上的查询。
+ *
+ * 同一时刻最多只有maxInFlight个查询已提交但还没被next()取走，前面的查询被取走后才提交后面的查询，
+ * 所以Region个数可以远多于线程池的线程数；线程池满了(RejectedExecutionException)就在当前线程中执行。
+ *
+ * ordered为true时next()按Region的顺序返回结果，否则按完成的先后顺序返回。
+ *
+ * close()之后，已提交但还没被取走的查询，不管是已经完成还是仍在执行，它们的结果都会被关闭，
+ * 仍在执行的查询在完成时由执行它的线程关闭结果，还没开始执行的查询不会再执行。
+ */
+public class HBaseRegionQueries {
+    private final List<CommandInterface> commands;
+    private final Executor executor;
+    private final int maxRows;
+    private final boolean scrollable;
+    private final boolean ordered;
+    private final int maxInFlight;
+
+    //以下字段都在this的锁保护下读写
+
+    //已提交但还没被取走的查询，按提交顺序排列
+    private final LinkedList<RegionQuery> pending = new LinkedList<RegionQuery>();
+    //已完成但还没被取走的查询，按完成顺序排列，只在ordered为false时使用
+    private final LinkedList<RegionQuery> completed = new LinkedList<RegionQuery>();
+    private int index = 0;
+    private boolean closed;
+
+    public HBaseRegionQueries(List<CommandInterface> commands, Executor executor, int maxRows, boolean scrollable,
+            boolean ordered, int maxInFlight) {
+        this.commands = commands;
+        this.executor = executor;
+        this.maxRows = maxRows;
+        this.scrollable = scrollable;
+        this.ordered = ordered;
+        this.maxInFlight = maxInFlight < 1 ? 1 : maxInFlight;
+        submit();
+    }
+
+    public int size() {
+        return commands.size();
+    }
+
+    private void submit() {
+        int size = commands.size();
+        while (true) {
+            RegionQuery q;
+            synchronized (this) {
+                if (closed || index >= size || pending.size() >= maxInFlight)
+                    return;
+                q = new RegionQuery(commands.get(index++));
+                pending.add(q);
+            }
+            try {
+                executor.execute(q);
+            } catch (RejectedExecutionException e) {
+                q.run(); //线程池满了就在当前线程中执行
+            }
+        }
+    }
+
+    /**
+     * 取走下一个查询的结果，调用者负责关闭它。
+     *
+     * 如果查询出错，会先调用close()再抛出异常。
+     *
+     * @return 下一个查询的结果，所有查询的结果都已取走或已调用close()时返回null
+     */
+    public ResultInterface next() {
+        ResultInterface result;
+        synchronized (this) {
+            RegionQuery q;
+            while (true) {
+                if (closed || pending.isEmpty())
+                    return null;
+                if (ordered) {
+                    q = pending.getFirst();
+                    if (q.done)
+                        break;
+                } else if (!completed.isEmpty()) {
+                    q = completed.removeFirst();
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    close();
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            }
+            pending.remove(q);
+            if (q.error != null) {
+                close();
+                if (q.error instanceof RuntimeException)
+                    throw (RuntimeException) q.error;
+                throw new RuntimeException(q.error);
+            }
+            result = q.result;
+            q.result = null;
+        }
+        submit();
+        return result;
+    }
+
+    /**
+     * 取走所有查询的结果，调用者负责关闭它们。
+     *
+     * 如果某个查询出错，已取走的结果和其他查询的结果都会被关闭，然后抛出异常。
+     *
+     * @return 所有查询的结果，ordered为true时按Region的顺序排列
+     */
+    public List<ResultInterface> nextAll() {
+        List<ResultInterface> results = new ArrayList<ResultInterface>(commands.size());
+        try {
+            for (ResultInterface r = next(); r != null; r = next())
+                results.add(r);
+        } catch (RuntimeException e) {
+            for (ResultInterface r : results)
+                r.close();
+            throw e;
+        }
+        return results;
+    }
+
+    /**
+     * 关闭所有已提交但还没被取走的查询的结果，不再执行后面的查询。
+     */
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+        for (RegionQuery q : pending) {
+            if (q.result != null) {
+                q.result.close();
+                q.result = null;
+            }
+        }
+        pending.clear();
+        completed.clear();
+        notifyAll();
+    }
+
+    private class RegionQuery implements Runnable {
+        private final CommandInterface command;
+        //以下字段在HBaseRegionQueries的锁保护下读写
+        private ResultInterface result;
+        private Throwable error;
+        private boolean done;
+
+        RegionQuery(CommandInterface command) {
+            this.command = command;
+        }
+
+        @Override
+        public void run() {
+            ResultInterface r = null;
+            Throwable t = null;
+            boolean skip;
+            synchronized (HBaseRegionQueries.this) {
+                skip = closed;
+            }
+            if (!skip) {
+                try {
+                    r = command.executeQuery(maxRows, scrollable);
+                } catch (Throwable e) {
+                    t = e;
+                }
+            }
+            synchronized (HBaseRegionQueries.this) {
+                if (closed && r != null) {
+                    r.close();
+                    r = null;
+                }
+                result = r;
+                error = t;
+                done = true;
+                if (!ordered && !closed)
+                    completed.add(this);
+                HBaseRegionQueries.this.notifyAll();
+            }
+        }
+    }
+}
@@ -29,6 +29,7 @@ public class HBaseSerializedResult extends DelegatedResult {
     private final static int UNKNOW_ROW_COUNT = -1;
     private final List<ResultInterface> results;
     private final List<CommandInterface> commands;
+    private final HBaseRegionQueries queries;
     private final int maxRows;
     private final boolean scrollable;
 
@@ -38,6 +39,7 @@ public class HBaseSerializedResult extends DelegatedResult {
     public HBaseSerializedResult(List<CommandInterface> commands, int maxRows, boolean scrollable) {
         this.results = null;
         this.commands = commands;
+        this.queries = null;
         this.maxRows = maxRows;
         this.scrollable = scrollable;
         this.size = commands.size();
@@ -47,16 +49,35 @@ public class HBaseSerializedResult extends DelegatedResult {
     public HBaseSerializedResult(List<ResultInterface> results) {
         this.results = results;
         this.commands = null;
+        this.queries = null;
         this.maxRows = -1;
         this.scrollable = false;
         this.size = results.size();
         nextResult();
     }
 
+    /**
+     * 按各个Region返回结果的先后顺序串行化结果集，先返回的结果先被消费，不用等待最慢的Region
+     * 
+     * @param queries 在线程池中执行的各个Region上的查询，关闭结果集时也会关闭它
+     */
+    public HBaseSerializedResult(HBaseRegionQueries queries) {
+        this.results = null;
+        this.commands = null;
+        this.queries = queries;
+        this.maxRows = -1;
+        this.scrollable = false;
+        this.size = queries.size();
+        nextResult();
+    }
+
     private boolean nextResult() {
         if (index >= size)
             return false;
 
+        if (queries != null)
+            return takeResult();
+
         if (result != null)
             result.close();
 
@@ -67,13 +88,25 @@ public class HBaseSerializedResult extends DelegatedResult {
         return true;
     }
 
+    private boolean takeResult() {
+        index++;
+        ResultInterface r = queries.next();
+        if (r == null)
+            return false;
+        if (result != null)
+            result.close();
+        result = r;
+        return true;
+    }
+
     @Override
     public boolean next() {
         boolean next = result.next();
-        if (!next) {
-            next = nextResult();
-            if (next)
-                next = result.next();
+        //跳过没有记录的Region
+        while (!next) {
+            if (!nextResult())
+                break;
+            next = result.next();
         }
         return next;
     }
@@ -82,4 +115,12 @@ public class HBaseSerializedResult extends DelegatedResult {
     public int getRowCount() {
         return UNKNOW_ROW_COUNT;
     }
+
+    @Override
+    public void close() {
+        if (queries != null)
+            queries.close();
+        if (result != null)
+            result.close();
+    }
 }
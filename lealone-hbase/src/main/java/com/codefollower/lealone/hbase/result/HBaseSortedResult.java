@@ -0,0 +1,131 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.result;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.codefollower.lealone.result.DelegatedResult;
+import com.codefollower.lealone.result.ResultInterface;
+import com.codefollower.lealone.result.SortOrder;
+import com.codefollower.lealone.value.Value;
+
+/**
+ * 用堆归并多个已排好序的Region结果集，并在归并之后处理OFFSET和LIMIT。
+ * 
+ * 每个Region的结果集包含Select的所有表达式(包括只在ORDER BY中出现的)，但只返回前visibleColumnCount列。
+ */
+public class HBaseSortedResult extends DelegatedResult {
+    private final static int UNKNOW_ROW_COUNT = -1;
+    private final List<ResultInterface> results;
+    private final PriorityQueue<ResultInterface> queue;
+    private final int visibleColumnCount;
+    private final int limitRows;
+
+    private Value[] currentRow;
+    private int rowId = -1;
+
+    /**
+     * 
+     * @param results 每个Region的结果集，都已按sort排好序
+     * @param sort 排序方式
+     * @param visibleColumnCount 可见列的个数
+     * @param offsetRows 归并后要跳过的记录数
+     * @param limitRows 最多返回的记录数，-1表示不限制
+     */
+    public HBaseSortedResult(List<ResultInterface> results, final SortOrder sort, int visibleColumnCount,
+            int offsetRows, int limitRows) {
+        this.results = results;
+        this.visibleColumnCount = visibleColumnCount;
+        this.limitRows = limitRows;
+        this.result = results.get(0);
+
+        queue = new PriorityQueue<ResultInterface>(results.size(), new Comparator<ResultInterface>() {
+            @Override
+            public int compare(ResultInterface r1, ResultInterface r2) {
+                return sort.compare(r1.currentRow(), r2.currentRow());
+            }
+        });
+        for (ResultInterface r : results) {
+            if (r.next())
+                queue.add(r);
+        }
+        for (int i = 0; i < offsetRows; i++) {
+            if (!nextRow())
+                break;
+        }
+    }
+
+    private boolean nextRow() {
+        ResultInterface r = queue.poll();
+        if (r == null) {
+            currentRow = null;
+            return false;
+        }
+        currentRow = r.currentRow();
+        if (r.next())
+            queue.add(r);
+        return true;
+    }
+
+    @Override
+    public boolean next() {
+        if (limitRows >= 0 && rowId + 1 >= limitRows) {
+            currentRow = null;
+            return false;
+        }
+        if (nextRow()) {
+            rowId++;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public Value[] currentRow() {
+        if (currentRow == null || currentRow.length <= visibleColumnCount)
+            return currentRow;
+        Value[] row = new Value[visibleColumnCount];
+        System.arraycopy(currentRow, 0, row, 0, visibleColumnCount);
+        return row;
+    }
+
+    @Override
+    public int getRowId() {
+        return rowId;
+    }
+
+    @Override
+    public int getVisibleColumnCount() {
+        return visibleColumnCount;
+    }
+
+    @Override
+    public int getRowCount() {
+        return UNKNOW_ROW_COUNT;
+    }
+
+    @Override
+    public void close() {
+        for (ResultInterface r : results)
+            r.close();
+    }
+}
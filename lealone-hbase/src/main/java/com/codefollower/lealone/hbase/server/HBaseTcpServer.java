@@ -62,7 +62,7 @@ public class HBaseTcpServer extends TcpServer implements Runnable {
         tcpPort = getMasterTcpPort(master.getConfiguration());
         serverName = master.getServerName();
         this.master = master;
-        init();
+        init(master.getConfiguration());
     }
 
     public HBaseTcpServer(HRegionServer regionServer) {
@@ -70,7 +70,7 @@ public class HBaseTcpServer extends TcpServer implements Runnable {
         tcpPort = getRegionServerTcpPort(regionServer.getConfiguration());
         serverName = regionServer.getServerName();
         this.regionServer = regionServer;
-        init();
+        init(regionServer.getConfiguration());
     }
 
     public HMaster getMaster() {
@@ -135,8 +135,11 @@ public class HBaseTcpServer extends TcpServer implements Runnable {
     protected void removeConnection(int id) {
     }
 
-    private void init() {
+    private void init(Configuration conf) {
         String[] args = { "-tcp", "-tcpPort", "" + tcpPort, "-tcpDaemon" };
+        //用少量selector线程服务所有连接，避免每个连接一个线程
+        if (conf.getBoolean(Constants.PROJECT_NAME_PREFIX + "tcp.nio", false))
+            args = new String[] { "-tcp", "-tcpPort", "" + tcpPort, "-tcpDaemon", "-tcpNio" };
         super.init(args);
     }
 
@@ -53,6 +53,10 @@ public class HBaseRegionInfo {
         return regionLocation.getHostname();
     }
 
+    public String getHostnamePort() {
+        return regionLocation.getHostnamePort();
+    }
+
     public int getTcpPort() {
         return ZooKeeperAdmin.getTcpPort(regionLocation);
     }
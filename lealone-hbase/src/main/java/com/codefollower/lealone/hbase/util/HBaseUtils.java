@@ -263,8 +263,7 @@ public class HBaseUtils {
     }
 
     public static String getRegionServerURL(byte[] tableName, byte[] rowKey) throws IOException {
-        HRegionLocation regionLocation = getConnection().locateRegion(tableName, rowKey);
-        return createURL(regionLocation);
+        return getHBaseRegionInfo(tableName, rowKey).getRegionServerURL();
     }
 
     public static HBaseRegionInfo getHBaseRegionInfo(String tableName, String rowKey) throws IOException {
@@ -272,14 +271,13 @@ public class HBaseUtils {
     }
 
     public static HBaseRegionInfo getHBaseRegionInfo(byte[] tableName, byte[] rowKey) throws IOException {
-        HRegionLocation regionLocation = getConnection().locateRegion(tableName, rowKey);
-        return new HBaseRegionInfo(regionLocation);
+        return RegionLocationCache.getHBaseRegionInfo(tableName, rowKey);
     }
 
     //-----------------以下代码来自org.apache.hadoop.hbase.client.HTable---------------------------//
 
     public static List<byte[]> getStartKeysInRange(byte[] tableName, byte[] startKey, byte[] endKey) throws IOException {
-        Pair<byte[][], byte[][]> startEndKeys = getStartEndKeys(tableName);
+        Pair<byte[][], byte[][]> startEndKeys = RegionLocationCache.getStartEndKeys(tableName);
         byte[][] startKeys = startEndKeys.getFirst();
         byte[][] endKeys = startEndKeys.getSecond();
 
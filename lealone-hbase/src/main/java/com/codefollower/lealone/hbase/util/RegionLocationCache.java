@@ -0,0 +1,172 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.hbase.util;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.NotServingRegionException;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+
+/**
+ * 缓存每个表的所有Region的位置(按startKey排好序)，确定一个rowKey在哪个Region时只需做一次二分查找，不用再查.META.表。
+ *
+ * 缓存是按表整体加载的(Region分裂后相邻的Region也会变化)，以下情况会让表的缓存失效，下次用到时再从.META.表重新加载:
+ * <ul>
+ * <li>执行SQL时遇到NotServingRegionException(Region已分裂或迁移)</li>
+ * <li>RegionServerTracker或TcpPortTracker发现某个RegionServer下线或TCP端口变了</li>
+ * <li>MetaTableTracker发现有DDL执行过</li>
+ * </ul>
+ */
+public class RegionLocationCache {
+    private static final ConcurrentHashMap<String, TableRegions> tables = new ConcurrentHashMap<String, TableRegions>();
+
+    private RegionLocationCache() {
+        // utility class
+    }
+
+    public static HBaseRegionInfo getHBaseRegionInfo(byte[] tableName, byte[] rowKey) throws IOException {
+        HBaseRegionInfo hri = getTableRegions(tableName).find(rowKey);
+        if (hri == null) {
+            //Region还没有分配到RegionServer上，由HConnection负责等待和重试
+            invalidateTable(tableName);
+            HRegionLocation regionLocation = HBaseUtils.getConnection().relocateRegion(tableName, rowKey);
+            hri = new HBaseRegionInfo(regionLocation);
+        }
+        return hri;
+    }
+
+    public static Pair<byte[][], byte[][]> getStartEndKeys(byte[] tableName) throws IOException {
+        TableRegions t = getTableRegions(tableName);
+        return new Pair<byte[][], byte[][]>(t.startKeys, t.endKeys);
+    }
+
+    /**
+     * 使表的缓存失效
+     */
+    public static void invalidateTable(byte[] tableName) {
+        tables.remove(Bytes.toString(tableName));
+    }
+
+    /**
+     * 使所有包含在hostAndPort这个RegionServer上的Region的表的缓存失效
+     *
+     * @param hostAndPort 格式同ServerName.getHostAndPort()
+     */
+    public static void invalidateServer(String hostAndPort) {
+        for (Map.Entry<String, TableRegions> e : tables.entrySet()) {
+            if (e.getValue().containsServer(hostAndPort))
+                tables.remove(e.getKey(), e.getValue());
+        }
+    }
+
+    public static void clear() {
+        tables.clear();
+    }
+
+    /**
+     * 如果执行SQL时的异常是由NotServingRegionException引起的，使对应Region所在表的缓存失效
+     *
+     * @param t 执行SQL时的异常
+     * @param tableName SQL访问的表
+     * @return 是否是NotServingRegionException
+     */
+    public static boolean invalidate(Throwable t, String tableName) {
+        for (; t != null; t = t.getCause()) {
+            //远程RegionServer抛出的异常传回来后只剩下消息了
+            if (t instanceof NotServingRegionException
+                    || (t.getMessage() != null && t.getMessage().contains(NotServingRegionException.class.getName()))) {
+                invalidateTable(Bytes.toBytes(tableName));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static TableRegions getTableRegions(byte[] tableName) throws IOException {
+        String key = Bytes.toString(tableName);
+        TableRegions t = tables.get(key);
+        if (t == null) {
+            t = new TableRegions(HBaseUtils.getRegionLocations(tableName));
+            tables.put(key, t);
+        }
+        return t;
+    }
+
+    private static class TableRegions {
+        private final byte[][] startKeys;
+        private final byte[][] endKeys;
+        private final HBaseRegionInfo[] regions; //还没分配到RegionServer的Region对应的元素为null
+
+        TableRegions(NavigableMap<HRegionInfo, ServerName> locations) {
+            int size = locations.size();
+            startKeys = new byte[size][];
+            endKeys = new byte[size][];
+            regions = new HBaseRegionInfo[size];
+            int i = 0;
+            for (Map.Entry<HRegionInfo, ServerName> e : locations.entrySet()) {
+                HRegionInfo info = e.getKey();
+                ServerName sn = e.getValue();
+                startKeys[i] = info.getStartKey();
+                endKeys[i] = info.getEndKey();
+                if (sn != null)
+                    regions[i] = new HBaseRegionInfo(new HRegionLocation(info, sn.getHostname(), sn.getPort()));
+                i++;
+            }
+        }
+
+        HBaseRegionInfo find(byte[] rowKey) {
+            //找最后一个startKey <= rowKey的Region
+            int low = 0;
+            int high = startKeys.length - 1;
+            int index = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (Bytes.compareTo(startKeys[mid], rowKey) <= 0) {
+                    index = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (index < 0)
+                return null;
+            byte[] endKey = endKeys[index];
+            if (!Bytes.equals(endKey, HConstants.EMPTY_END_ROW) && Bytes.compareTo(rowKey, endKey) >= 0)
+                return null; //Region之间有空洞，比如正在分裂
+            return regions[index];
+        }
+
+        boolean containsServer(String hostAndPort) {
+            for (HBaseRegionInfo hri : regions) {
+                if (hri == null || hri.getHostnamePort().equals(hostAndPort))
+                    return true;
+            }
+            return false;
+        }
+    }
+}
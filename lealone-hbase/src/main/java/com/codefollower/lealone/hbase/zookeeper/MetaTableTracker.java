@@ -25,6 +25,7 @@ import org.apache.hadoop.hbase.zookeeper.ZooKeeperListener;
 import org.apache.hadoop.hbase.zookeeper.ZooKeeperWatcher;
 
 import com.codefollower.lealone.hbase.dbobject.table.MetaTable;
+import com.codefollower.lealone.hbase.util.RegionLocationCache;
 
 public class MetaTableTracker extends ZooKeeperListener {
     private final MetaTable table;
@@ -52,6 +53,8 @@ public class MetaTableTracker extends ZooKeeperListener {
             try {
                 table.redoRecords(startPos, stopPos);
                 redoPos = newRedoPos;
+                //有DDL执行过，表可能被删除或重建了
+                RegionLocationCache.clear();
             } catch (Exception e) {
                 throw new MetaTableTrackerException(e);
             }
@@ -32,6 +32,8 @@ import org.apache.hadoop.hbase.zookeeper.ZooKeeperListener;
 import org.apache.hadoop.hbase.zookeeper.ZooKeeperWatcher;
 import org.apache.zookeeper.KeeperException;
 
+import com.codefollower.lealone.hbase.util.RegionLocationCache;
+
 /**
  * 
  * 改编自{@link org.apache.hadoop.hbase.zookeeper.RegionServerTracker}
@@ -75,6 +77,8 @@ public class RegionServerTracker extends ZooKeeperListener {
         synchronized (this.regionServers) {
             this.regionServers.remove(sn);
         }
+        //这个RegionServer上的Region会被重新分配
+        RegionLocationCache.invalidateServer(sn.getHostAndPort());
     }
 
     @Override
@@ -21,7 +21,7 @@ package com.codefollower.lealone.hbase.zookeeper;
 
 import java.io.IOException;
 import java.util.List;
-
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.hadoop.hbase.Abortable;
@@ -34,6 +34,8 @@ import org.apache.hadoop.hbase.zookeeper.ZooKeeperListener;
 import org.apache.hadoop.hbase.zookeeper.ZooKeeperWatcher;
 import org.apache.zookeeper.KeeperException;
 
+import com.codefollower.lealone.hbase.util.RegionLocationCache;
+
 public class TcpPortTracker extends ZooKeeperListener {
 
     /*
@@ -85,6 +87,11 @@ public class TcpPortTracker extends ZooKeeperListener {
             tcpPortMap.put(n.substring(0, pos), Integer.parseInt(n.substring(pos + 1)));
         }
 
+        //Region的URL中包含TCP端口，端口变了的RegionServer上的Region位置都要重新加载
+        for (Map.Entry<String, Integer> e : this.tcpPortMap.entrySet()) {
+            if (!e.getValue().equals(tcpPortMap.get(e.getKey())))
+                RegionLocationCache.invalidateServer(e.getKey());
+        }
         this.tcpPortMap = tcpPortMap;
     }
 
@@ -93,7 +100,9 @@ public class TcpPortTracker extends ZooKeeperListener {
         if (path.startsWith(ZooKeeperAdmin.TCP_SERVER_NODE)) {
             String serverName = ZKUtil.getNodeName(path);
             serverName = serverName.substring(2);
-            tcpPortMap.remove(serverName.substring(0, serverName.lastIndexOf(Addressing.HOSTNAME_PORT_SEPARATOR)));
+            serverName = serverName.substring(0, serverName.lastIndexOf(Addressing.HOSTNAME_PORT_SEPARATOR));
+            tcpPortMap.remove(serverName);
+            RegionLocationCache.invalidateServer(serverName);
         }
     }
 
@@ -0,0 +1,203 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.client;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The commit status of the transactions the client has heard of, shared by
+ * all the transactions of a TSOClient. It's fed by the commit and abort
+ * reports TSO replicates to the client and by the answers to commit queries.
+ *
+ * Start timestamps are kept in a bounded open addressing table of primitive
+ * longs. A transaction can only live in the first MAX_PROBES slots after its
+ * hash, lookups read them without locking and updates are serialized. When
+ * there is no free slot, a commit below the largest deleted timestamp is
+ * replaced first, since TSO has already forgotten those rows as well, and the
+ * oldest commit otherwise. Evicting a commit above the largest deleted
+ * timestamp is remembered, so callers don't take its absence as a proof that
+ * it didn't commit. Evictions are remembered by ranges of EVICTION_RANGE start
+ * timestamps, so only the transactions of the same range become uncertain,
+ * and a range is forgotten once the largest deleted timestamp passes it.
+ * Aborts are never evicted, they are only removed once TSO reports them as
+ * cleaned.
+ */
+class CommitStatusCache {
+    /**
+     * Status of a transaction the cache doesn't know about
+     */
+    static final long UNKNOWN = -1;
+    /**
+     * Status of a half aborted transaction
+     */
+    static final long ABORTED = -2;
+
+    private static final int MAX_PROBES = 16;
+    private static final long EMPTY = 0;
+    /**
+     * Number of start timestamps an eviction makes uncertain, a power of two
+     */
+    static final int EVICTION_RANGE = 64;
+    private static final int EVICTION_RANGE_SHIFT = Integer.numberOfTrailingZeros(EVICTION_RANGE);
+
+    private final AtomicLongArray keys;
+    private final AtomicLongArray values;
+    private final int mask;
+
+    /**
+     * Aborts that found no room in the table
+     */
+    private final ConcurrentHashMap<Long, Boolean> overflow = new ConcurrentHashMap<Long, Boolean>();
+
+    /**
+     * Ranges of start timestamps above the largest deleted timestamp whose
+     * commits may have been evicted
+     */
+    private final ConcurrentSkipListSet<Long> evictedRanges = new ConcurrentSkipListSet<Long>();
+
+    private volatile long largestDeletedTimestamp;
+
+    CommitStatusCache(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, MAX_PROBES) - 1) << 1;
+        keys = new AtomicLongArray(size);
+        values = new AtomicLongArray(size);
+        mask = size - 1;
+    }
+
+    private int indexOf(long startTimestamp) {
+        long h = startTimestamp * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * Returns the commit timestamp of a transaction, ABORTED or UNKNOWN
+     */
+    long get(long startTimestamp) {
+        int start = indexOf(startTimestamp);
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int index = (start + i) & mask;
+            if (keys.get(index) == startTimestamp) {
+                long value = values.get(index);
+                //the slot may have been reused while reading it
+                if (keys.get(index) == startTimestamp)
+                    return value;
+            }
+        }
+        if (!overflow.isEmpty() && overflow.containsKey(startTimestamp))
+            return ABORTED;
+        return UNKNOWN;
+    }
+
+    /**
+     * Checks whether the commit of the given transaction may have been evicted
+     */
+    boolean mayBeEvicted(long startTimestamp) {
+        return !evictedRanges.isEmpty() && evictedRanges.contains(startTimestamp >> EVICTION_RANGE_SHIFT);
+    }
+
+    synchronized void commit(long startTimestamp, long commitTimestamp) {
+        //the window is full of aborts, the commit can't be cached
+        if (!put(startTimestamp, commitTimestamp))
+            evicted(startTimestamp);
+    }
+
+    synchronized void abort(long startTimestamp) {
+        if (!put(startTimestamp, ABORTED))
+            overflow.put(startTimestamp, Boolean.TRUE);
+    }
+
+    /**
+     * Forgets a fully aborted transaction
+     */
+    synchronized void clean(long startTimestamp) {
+        int start = indexOf(startTimestamp);
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int index = (start + i) & mask;
+            if (keys.get(index) == startTimestamp && values.get(index) == ABORTED) {
+                keys.set(index, EMPTY);
+                return;
+            }
+        }
+        overflow.remove(startTimestamp);
+    }
+
+    void raiseLargestDeletedTimestamp(long largestDeletedTimestamp) {
+        this.largestDeletedTimestamp = largestDeletedTimestamp;
+        //validRead doesn't need the cache to decide transactions up to the largest deleted timestamp
+        if (!evictedRanges.isEmpty())
+            evictedRanges.headSet((largestDeletedTimestamp + 1) >> EVICTION_RANGE_SHIFT).clear();
+    }
+
+    synchronized void clear() {
+        for (int i = 0; i <= mask; i++)
+            keys.set(i, EMPTY);
+        overflow.clear();
+        evictedRanges.clear();
+        largestDeletedTimestamp = 0;
+    }
+
+    private void evicted(long startTimestamp) {
+        if (startTimestamp > largestDeletedTimestamp)
+            evictedRanges.add(startTimestamp >> EVICTION_RANGE_SHIFT);
+    }
+
+    /**
+     * @return false if the window of the transaction is full of aborts
+     */
+    private boolean put(long startTimestamp, long value) {
+        int start = indexOf(startTimestamp);
+        int empty = -1;
+        int victim = -1;
+        long victimKey = Long.MAX_VALUE;
+        boolean victimDeleted = false;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int index = (start + i) & mask;
+            long key = keys.get(index);
+            if (key == startTimestamp) {
+                values.set(index, value);
+                return true;
+            }
+            if (key == EMPTY) {
+                if (empty == -1)
+                    empty = index;
+            } else if (values.get(index) != ABORTED) {
+                boolean deleted = key <= largestDeletedTimestamp;
+                //prefer commits TSO has already forgotten, then the oldest one
+                if (victim == -1 || deleted && !victimDeleted || deleted == victimDeleted && key < victimKey) {
+                    victim = index;
+                    victimKey = key;
+                    victimDeleted = deleted;
+                }
+            }
+        }
+        if (empty != -1) {
+            victim = empty;
+        } else if (victim == -1) {
+            return false;
+        } else {
+            if (!victimDeleted)
+                evicted(victimKey);
+            //readers check the key again after reading the value
+            keys.set(victim, EMPTY);
+        }
+        values.set(victim, value);
+        keys.set(victim, startTimestamp);
+        return true;
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A table of the requests waiting for a reply from TSO, keyed by
+ * the start timestamp of the transaction.
+ * 
+ * It's an open addressing table with a fixed capacity. Keys are primitive
+ * longs, so neither the key nor a map entry is allocated per request. A key
+ * can only live in the first MAX_PROBES slots after its hash and lookups
+ * always check all of them, so a removed key can simply be cleared without
+ * tombstones. Lookups don't lock, insertions and removals are serialized so
+ * that checking for a pending key and claiming a slot for it is atomic.
+ * Timestamps are positive, so 0 marks an empty slot.
+ */
+class PendingRequests<V> {
+    private static final int MAX_PROBES = 32;
+    private static final long EMPTY = 0;
+
+    private final AtomicLongArray keys;
+    private final AtomicReferenceArray<V> values;
+    private final int mask;
+
+    PendingRequests(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, MAX_PROBES) - 1) << 1;
+        keys = new AtomicLongArray(size);
+        values = new AtomicReferenceArray<V>(size);
+        mask = size - 1;
+    }
+
+    private int indexOf(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    boolean containsKey(long key) {
+        int start = indexOf(key);
+        for (int i = 0; i < MAX_PROBES; i++) {
+            if (keys.get((start + i) & mask) == key)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds a request unless one is already pending for the key
+     * 
+     * @return the request already pending for the key, null if the request
+     *         was added, or the given request itself if there's no room for it
+     */
+    synchronized V putIfAbsent(long key, V value) {
+        int start = indexOf(key);
+        int empty = -1;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int index = (start + i) & mask;
+            long k = keys.get(index);
+            if (k == key) {
+                V pending = values.get(index);
+                if (pending != null)
+                    return pending;
+                //a slot claimed without a request isn't pending
+                values.set(index, value);
+                return null;
+            }
+            if (k == EMPTY && empty == -1)
+                empty = index;
+        }
+        if (empty == -1)
+            return value;
+        keys.set(empty, key);
+        values.set(empty, value);
+        return null;
+    }
+
+    synchronized V remove(long key) {
+        int start = indexOf(key);
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int index = (start + i) & mask;
+            if (keys.get(index) == key) {
+                V value = values.getAndSet(index, null);
+                keys.set(index, EMPTY);
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes all the requests
+     * 
+     * @return the removed requests
+     */
+    synchronized List<V> removeAll() {
+        List<V> list = new ArrayList<V>();
+        for (int i = 0; i <= mask; i++) {
+            V value = values.getAndSet(i, null);
+            if (value != null) {
+                list.add(value);
+                keys.set(i, EMPTY);
+            }
+        }
+        return list;
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.client;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The commit status of the transactions started in the last window of start
+ * timestamps, sorted, so a {@link TransactionSnapshot} is built from the
+ * transactions the client heard of instead of probing every timestamp of the
+ * window.
+ *
+ * It's fed by the same reports as the {@link CommitStatusCache} but doesn't
+ * depend on its evictions: every transaction above the horizon the client was
+ * told about is kept, the ones falling behind the window are dropped as newer
+ * ones come in.
+ */
+class RecentTransactions {
+    private final int window;
+
+    /**
+     * Start timestamp -> commit timestamp or CommitStatusCache.ABORTED
+     */
+    private final ConcurrentSkipListMap<Long, Long> statuses = new ConcurrentSkipListMap<Long, Long>();
+
+    /**
+     * The transactions up to the horizon may have been dropped
+     */
+    private volatile long horizon;
+    private long newest;
+
+    RecentTransactions(int window) {
+        this.window = window;
+    }
+
+    synchronized void commit(long startTimestamp, long commitTimestamp) {
+        put(startTimestamp, commitTimestamp);
+    }
+
+    synchronized void abort(long startTimestamp) {
+        put(startTimestamp, CommitStatusCache.ABORTED);
+    }
+
+    /**
+     * Forgets a fully aborted transaction
+     */
+    synchronized void clean(long startTimestamp) {
+        statuses.remove(startTimestamp);
+    }
+
+    synchronized void clear() {
+        statuses.clear();
+        horizon = 0;
+        newest = 0;
+    }
+
+    private void put(long startTimestamp, long status) {
+        //it may have been dropped already, so there's no point in keeping it
+        if (startTimestamp <= horizon)
+            return;
+        statuses.put(startTimestamp, status);
+        if (startTimestamp <= newest)
+            return;
+        newest = startTimestamp;
+        if (newest - window > horizon) {
+            //raised before dropping, readers check it after reading the entries
+            horizon = newest - window;
+            while (!statuses.isEmpty() && statuses.firstKey() <= horizon)
+                statuses.pollFirstEntry();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the transactions started in the window of the
+     * given size before startTimestamp
+     */
+    TransactionSnapshot getSnapshot(long startTimestamp, int window, long largestDeletedTimestamp,
+            long connectionTimestamp) {
+        long low = Math.max(startTimestamp - window, 0);
+        Map<Long, Long> inWindow = statuses.subMap(low, false, startTimestamp, false);
+        long[] starts = new long[16];
+        long[] commits = new long[16];
+        long[] aborted = new long[16];
+        int size = 0;
+        int abortedSize = 0;
+        for (Map.Entry<Long, Long> e : inWindow.entrySet()) {
+            long id = e.getKey();
+            long commitTimestamp = e.getValue();
+            if (commitTimestamp == CommitStatusCache.ABORTED) {
+                if (abortedSize == aborted.length)
+                    aborted = Arrays.copyOf(aborted, abortedSize * 2);
+                aborted[abortedSize++] = id;
+            } else {
+                if (size == starts.length) {
+                    starts = Arrays.copyOf(starts, size * 2);
+                    commits = Arrays.copyOf(commits, size * 2);
+                }
+                starts[size] = id;
+                commits[size++] = commitTimestamp;
+            }
+        }
+        //entries dropped while reading them are below the horizon, leave them to the client
+        long horizon = this.horizon;
+        if (horizon > low) {
+            low = horizon;
+            int from = firstAbove(starts, size, low);
+            starts = Arrays.copyOfRange(starts, from, size);
+            commits = Arrays.copyOfRange(commits, from, size);
+            size = starts.length;
+            from = firstAbove(aborted, abortedSize, low);
+            aborted = Arrays.copyOfRange(aborted, from, abortedSize);
+            abortedSize = aborted.length;
+        }
+        return new TransactionSnapshot(startTimestamp, low, largestDeletedTimestamp, connectionTimestamp,
+                Arrays.copyOf(starts, size), Arrays.copyOf(commits, size), Arrays.copyOf(aborted, abortedSize));
+    }
+
+    /**
+     * Returns the index of the first element of the sorted array above the key
+     */
+    private static int firstAbove(long[] a, int size, long key) {
+        int i = Arrays.binarySearch(a, 0, size, key);
+        return i >= 0 ? i + 1 : -(i + 1);
+    }
+}
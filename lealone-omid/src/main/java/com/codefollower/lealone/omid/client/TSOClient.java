@@ -21,16 +21,17 @@ import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
-import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -51,7 +52,6 @@ import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 
 import com.codefollower.lealone.omid.replication.Zipper;
 import com.codefollower.lealone.omid.replication.ZipperState;
-import com.codefollower.lealone.omid.tso.Committed;
 import com.codefollower.lealone.omid.tso.RowKey;
 import com.codefollower.lealone.omid.tso.TSOMessage;
 import com.codefollower.lealone.omid.tso.messages.AbortRequest;
@@ -64,6 +64,8 @@ import com.codefollower.lealone.omid.tso.messages.CommitResponse;
 import com.codefollower.lealone.omid.tso.messages.CommittedTransactionReport;
 import com.codefollower.lealone.omid.tso.messages.FullAbortRequest;
 import com.codefollower.lealone.omid.tso.messages.LargestDeletedTimestampReport;
+import com.codefollower.lealone.omid.tso.messages.MultiRequest;
+import com.codefollower.lealone.omid.tso.messages.MultiResponse;
 import com.codefollower.lealone.omid.tso.messages.TimestampRequest;
 import com.codefollower.lealone.omid.tso.messages.TimestampResponse;
 import com.codefollower.lealone.omid.tso.serialization.TSODecoder;
@@ -79,11 +81,11 @@ public class TSOClient extends SimpleChannelHandler {
     };
 
     private Queue<CreateCallback> createCallbacks;
-    private Map<Long, CommitCallback> commitCallbacks;
+    private PendingRequests<CommitCallback> commitCallbacks;
     private Map<Long, List<CommitQueryCallback>> isCommittedCallbacks;
 
-    private Committed committed = new Committed();
-    private Set<Long> aborted = Collections.synchronizedSet(new HashSet<Long>(1000));
+    private CommitStatusCache commitStatus;
+    private RecentTransactions recentTransactions;
     private long largestDeletedTimestamp;
     private long connectionTimestamp = 0;
     private boolean hasConnectionTimestamp = false;
@@ -107,6 +109,29 @@ public class TSOClient extends SimpleChannelHandler {
         public void error(Exception e);
     }
 
+    /**
+     * An operation that can be sent to TSO in a MultiRequest
+     */
+    private interface BatchableOp extends Op {
+        /**
+         * Registers the callback of the operation and returns its request
+         */
+        public TSOMessage prepare() throws IOException;
+    }
+
+    private static void write(Channel channel, TSOMessage msg, final Op... ops) {
+        ChannelFuture f = channel.write(msg);
+        f.addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) {
+                if (!future.isSuccess()) {
+                    for (Op op : ops) {
+                        op.error(new IOException("Error writing to socket"));
+                    }
+                }
+            }
+        });
+    }
+
     private class AbortOp implements Op {
         long transactionId;
 
@@ -116,10 +141,8 @@ public class TSOClient extends SimpleChannelHandler {
 
         public void execute(Channel channel) {
             try {
-                synchronized (commitCallbacks) {
-                    if (commitCallbacks.containsKey(transactionId)) {
-                        throw new IOException("Already committing transaction " + transactionId);
-                    }
+                if (commitCallbacks.containsKey(transactionId)) {
+                    throw new IOException("Already committing transaction " + transactionId);
                 }
 
                 AbortRequest ar = new AbortRequest();
@@ -141,28 +164,23 @@ public class TSOClient extends SimpleChannelHandler {
         }
     }
 
-    private class NewTimestampOp implements Op {
+    private class NewTimestampOp implements BatchableOp {
         private CreateCallback cb;
 
         NewTimestampOp(CreateCallback cb) {
             this.cb = cb;
         }
 
+        public TSOMessage prepare() {
+            synchronized (createCallbacks) {
+                createCallbacks.add(cb);
+            }
+            return new TimestampRequest();
+        }
+
         public void execute(Channel channel) {
             try {
-                synchronized (createCallbacks) {
-                    createCallbacks.add(cb);
-                }
-
-                TimestampRequest tr = new TimestampRequest();
-                ChannelFuture f = channel.write(tr);
-                f.addListener(new ChannelFutureListener() {
-                    public void operationComplete(ChannelFuture future) {
-                        if (!future.isSuccess()) {
-                            error(new IOException("Error writing to socket"));
-                        }
-                    }
-                });
+                write(channel, prepare(), this);
             } catch (Exception e) {
                 error(e);
             }
@@ -222,10 +240,11 @@ public class TSOClient extends SimpleChannelHandler {
         }
     }
 
-    private class CommitOp implements Op {
+    private class CommitOp implements BatchableOp {
         long transactionId;
         RowKey[] rows;
         CommitCallback cb;
+        boolean registered;
 
         CommitOp(long transactionid, RowKey[] rows, CommitCallback cb) throws IOException {
             this.transactionId = transactionid;
@@ -233,35 +252,34 @@ public class TSOClient extends SimpleChannelHandler {
             this.cb = cb;
         }
 
+        public TSOMessage prepare() throws IOException {
+            CommitCallback pending = commitCallbacks.putIfAbsent(transactionId, cb);
+            if (pending == cb) {
+                throw new IOException("Too many pending commits");
+            }
+            if (pending != null) {
+                //the callback of the commit in progress isn't ours to remove
+                throw new IOException("Already committing transaction " + transactionId);
+            }
+            registered = true;
+
+            CommitRequest cr = new CommitRequest();
+            cr.startTimestamp = transactionId;
+            cr.rows = rows;
+            return cr;
+        }
+
         public void execute(Channel channel) {
             try {
-                synchronized (commitCallbacks) {
-                    if (commitCallbacks.containsKey(transactionId)) {
-                        throw new IOException("Already committing transaction " + transactionId);
-                    }
-                    commitCallbacks.put(transactionId, cb);
-                }
-
-                CommitRequest cr = new CommitRequest();
-                cr.startTimestamp = transactionId;
-                cr.rows = rows;
-                ChannelFuture f = channel.write(cr);
-                f.addListener(new ChannelFutureListener() {
-                    public void operationComplete(ChannelFuture future) {
-                        if (!future.isSuccess()) {
-                            error(new IOException("Error writing to socket"));
-                        }
-                    }
-                });
+                write(channel, prepare(), this);
             } catch (Exception e) {
                 error(e);
             }
         }
 
         public void error(Exception e) {
-            synchronized (commitCallbacks) {
+            if (registered)
                 commitCallbacks.remove(transactionId);
-            }
             cb.error(e);
         }
     }
@@ -301,8 +319,101 @@ public class TSOClient extends SimpleChannelHandler {
         }
     }
 
+    /**
+     * Coalesces the timestamp and commit requests issued concurrently by the
+     * application threads into MultiRequests. While one frame is written, the
+     * requests that arrive queue up and go together in the next one. A frame
+     * carries at most batchSize requests; with a batch wait, the batcher waits
+     * up to that long for a frame to fill up before sending it. There is one
+     * batcher per channel, it's stopped when the channel is disconnected.
+     */
+    private class RequestBatcher implements Runnable {
+        private final BlockingQueue<BatchableOp> queue = new LinkedBlockingQueue<BatchableOp>();
+        private final Channel channel;
+        private final Thread thread;
+        private boolean stopped;
+
+        RequestBatcher(Channel channel) {
+            this.channel = channel;
+            thread = new Thread(this, "TSOClient request batcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        synchronized void add(BatchableOp op) {
+            if (stopped)
+                op.error(new IOException("Channel Disconnected"));
+            else
+                queue.add(op);
+        }
+
+        synchronized void stop() {
+            stopped = true;
+            thread.interrupt();
+        }
+
+        @Override
+        public void run() {
+            ArrayList<BatchableOp> batch = new ArrayList<BatchableOp>(batchSize);
+            ArrayList<BatchableOp> prepared = new ArrayList<BatchableOp>(batchSize);
+            ArrayList<TSOMessage> requests = new ArrayList<TSOMessage>(batchSize);
+            try {
+                while (true) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, batchSize - 1);
+                    if (batchWaitMs > 0) {
+                        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchWaitMs);
+                        while (batch.size() < batchSize) {
+                            BatchableOp op = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                            if (op == null)
+                                break;
+                            batch.add(op);
+                            queue.drainTo(batch, batchSize - batch.size());
+                        }
+                    }
+                    send(batch, prepared, requests);
+                    batch.clear();
+                    prepared.clear();
+                    requests.clear();
+                }
+            } catch (InterruptedException e) {
+                // stopped
+            }
+            batch.addAll(queue);
+            queue.clear();
+            for (BatchableOp op : batch) {
+                op.error(new IOException("Channel Disconnected"));
+            }
+        }
+
+        private void send(List<BatchableOp> batch, List<BatchableOp> prepared, List<TSOMessage> requests) {
+            for (BatchableOp op : batch) {
+                try {
+                    requests.add(op.prepare());
+                    prepared.add(op);
+                } catch (Exception e) {
+                    op.error(e);
+                }
+            }
+            if (requests.size() == 1) {
+                write(channel, requests.get(0), prepared.get(0));
+            } else if (requests.size() > 1) {
+                write(channel, new MultiRequest(requests.toArray(new TSOMessage[requests.size()])),
+                        prepared.toArray(new Op[prepared.size()]));
+            }
+        }
+    }
+
     private ArrayBlockingQueue<Op> queuedOps;
 
+    private boolean batchRequests;
+    private int batchSize;
+    private long batchWaitMs;
+    /**
+     * Not null while connected if the requests are batched
+     */
+    private volatile RequestBatcher batcher;
+
     private State state;
 
     public TSOClient(Configuration conf) throws IOException {
@@ -310,7 +421,9 @@ public class TSOClient extends SimpleChannelHandler {
         queuedOps = new ArrayBlockingQueue<Op>(200);
         retryTimer = new Timer(true);
 
-        commitCallbacks = Collections.synchronizedMap(new HashMap<Long, CommitCallback>());
+        commitCallbacks = new PendingRequests<CommitCallback>(conf.getInt("tso.pending.requests", 64 * 1024));
+        commitStatus = new CommitStatusCache(conf.getInt("tso.commit.cache.size", 1024 * 1024));
+        recentTransactions = new RecentTransactions(conf.getInt("tso.snapshot.window", 4096));
         isCommittedCallbacks = Collections.synchronizedMap(new HashMap<Long, List<CommitQueryCallback>>());
         createCallbacks = new ConcurrentLinkedQueue<CreateCallback>();
         channel = null;
@@ -341,6 +454,10 @@ public class TSOClient extends SimpleChannelHandler {
             throw new IOException("tso.host missing from configuration");
         }
 
+        batchRequests = conf.getBoolean("tso.batch.requests", false);
+        batchSize = Math.max(conf.getInt("tso.batch.size", 256), 1);
+        batchWaitMs = conf.getLong("tso.batch.wait.ms", 0);
+
         addr = new InetSocketAddress(host, port);
         connectIfNeeded();
     }
@@ -382,7 +499,11 @@ public class TSOClient extends SimpleChannelHandler {
                 throw new IOException("Couldn't add new operation", e);
             }
         } else if (state == State.CONNECTED) {
-            op.execute(channel);
+            RequestBatcher batcher = this.batcher;
+            if (batcher != null && op instanceof BatchableOp)
+                batcher.add((BatchableOp) op);
+            else
+                op.execute(channel);
         } else {
             throw new IOException("Invalid connection state " + state);
         }
@@ -421,6 +542,8 @@ public class TSOClient extends SimpleChannelHandler {
     synchronized public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) {
         synchronized (state) {
             channel = e.getChannel();
+            if (batchRequests)
+                batcher = new RequestBatcher(channel);
             state = State.CONNECTED;
             retries = 0;
         }
@@ -435,8 +558,8 @@ public class TSOClient extends SimpleChannelHandler {
     }
 
     private void clearState() {
-        committed = new Committed();
-        aborted.clear();
+        commitStatus.clear();
+        recentTransactions.clear();
         largestDeletedTimestamp = 0;
         connectionTimestamp = 0;
         hasConnectionTimestamp = false;
@@ -449,10 +572,14 @@ public class TSOClient extends SimpleChannelHandler {
                 LOG.debug("Channel disconnected");
             channel = null;
             state = State.DISCONNECTED;
+            if (batcher != null) {
+                batcher.stop();
+                batcher = null;
+            }
             for (CreateCallback cb : createCallbacks) {
                 cb.error(new IOException("Channel Disconnected"));
             }
-            for (CommitCallback cb : commitCallbacks.values()) {
+            for (CommitCallback cb : commitCallbacks.removeAll()) {
                 cb.error(new IOException("Channel Disconnected"));
             }
             for (List<CommitQueryCallback> lcqb : isCommittedCallbacks.values()) {
@@ -461,7 +588,6 @@ public class TSOClient extends SimpleChannelHandler {
                 }
             }
             createCallbacks.clear();
-            commitCallbacks.clear();
             isCommittedCallbacks.clear();
             connectIfNeeded();
         }
@@ -470,12 +596,13 @@ public class TSOClient extends SimpleChannelHandler {
     public boolean validRead(long transaction, long startTimestamp) throws IOException {
         if (transaction == startTimestamp)
             return true;
-        if (aborted.contains(transaction))
+        long commitTimestamp = commitStatus.get(transaction);
+        if (commitTimestamp == CommitStatusCache.ABORTED)
             return false;
-        long commitTimestamp = committed.getCommit(transaction);
-        if (commitTimestamp != -1)
+        if (commitTimestamp != CommitStatusCache.UNKNOWN)
             return commitTimestamp <= startTimestamp;
-        if (hasConnectionTimestamp && transaction > connectionTimestamp)
+        //the commit may have been evicted from the cache, so not knowing it proves nothing
+        if (hasConnectionTimestamp && transaction > connectionTimestamp && !commitStatus.mayBeEvicted(transaction))
             return transaction <= largestDeletedTimestamp;
         if (transaction <= largestDeletedTimestamp)
             return true;
@@ -490,6 +617,16 @@ public class TSOClient extends SimpleChannelHandler {
         return cb.isCommitted();
     }
 
+    /**
+     * Returns what this client knows about the transactions started in the
+     * window of the given size before startTimestamp, so a region server can
+     * filter the versions of the snapshot the way {@link #validRead} would.
+     */
+    public TransactionSnapshot getSnapshot(long startTimestamp, int window) {
+        return recentTransactions.getSnapshot(startTimestamp, window, largestDeletedTimestamp,
+                hasConnectionTimestamp ? connectionTimestamp : -1);
+    }
+
     /**
      * When a message is received, handle it based on its type
      */
@@ -499,12 +636,19 @@ public class TSOClient extends SimpleChannelHandler {
             LOG.trace("messageReceived " + e.getMessage());
         }
         Object msg = e.getMessage();
+        if (msg instanceof MultiResponse) {
+            for (TSOMessage m : ((MultiResponse) msg).messages) {
+                handleMessage(m);
+            }
+        } else {
+            handleMessage(msg);
+        }
+    }
+
+    private void handleMessage(Object msg) {
         if (msg instanceof CommitResponse) {
             CommitResponse r = (CommitResponse) msg;
-            CommitCallback cb = null;
-            synchronized (commitCallbacks) {
-                cb = commitCallbacks.remove(r.startTimestamp);
-            }
+            CommitCallback cb = commitCallbacks.remove(r.startTimestamp);
             if (cb == null) {
                 LOG.error("Received a commit response for a nonexisting commit");
                 return;
@@ -525,9 +669,11 @@ public class TSOClient extends SimpleChannelHandler {
         } else if (msg instanceof CommitQueryResponse) {
             CommitQueryResponse r = (CommitQueryResponse) msg;
             if (r.commitTimestamp != 0) {
-                committed.commit(r.queryTimestamp, r.commitTimestamp);
+                commitStatus.commit(r.queryTimestamp, r.commitTimestamp);
+                recentTransactions.commit(r.queryTimestamp, r.commitTimestamp);
             } else if (r.committed) {
-                committed.commit(r.queryTimestamp, largestDeletedTimestamp);
+                commitStatus.commit(r.queryTimestamp, largestDeletedTimestamp);
+                recentTransactions.commit(r.queryTimestamp, largestDeletedTimestamp);
             }
             List<CommitQueryCallback> cbs = null;
             synchronized (isCommittedCallbacks) {
@@ -542,17 +688,20 @@ public class TSOClient extends SimpleChannelHandler {
             }
         } else if (msg instanceof CommittedTransactionReport) {
             CommittedTransactionReport ctr = (CommittedTransactionReport) msg;
-            committed.commit(ctr.startTimestamp, ctr.commitTimestamp);
+            commitStatus.commit(ctr.startTimestamp, ctr.commitTimestamp);
+            recentTransactions.commit(ctr.startTimestamp, ctr.commitTimestamp);
         } else if (msg instanceof CleanedTransactionReport) {
             CleanedTransactionReport r = (CleanedTransactionReport) msg;
-            aborted.remove(r.startTimestamp);
+            commitStatus.clean(r.startTimestamp);
+            recentTransactions.clean(r.startTimestamp);
         } else if (msg instanceof AbortedTransactionReport) {
             AbortedTransactionReport r = (AbortedTransactionReport) msg;
-            aborted.add(r.startTimestamp);
+            commitStatus.abort(r.startTimestamp);
+            recentTransactions.abort(r.startTimestamp);
         } else if (msg instanceof LargestDeletedTimestampReport) {
             LargestDeletedTimestampReport r = (LargestDeletedTimestampReport) msg;
             largestDeletedTimestamp = r.largestDeletedTimestamp;
-            committed.raiseLargestDeletedTransaction(r.largestDeletedTimestamp);
+            commitStatus.raiseLargestDeletedTimestamp(r.largestDeletedTimestamp);
         } else if (msg instanceof ZipperState) {
             // ignore
         } else {
@@ -612,11 +761,8 @@ public class TSOClient extends SimpleChannelHandler {
             createCallbacks.clear();
         }
 
-        synchronized (commitCallbacks) {
-            for (CommitCallback cb : commitCallbacks.values()) {
-                cb.error(e);
-            }
-            commitCallbacks.clear();
+        for (CommitCallback cb : commitCallbacks.removeAll()) {
+            cb.error(e);
         }
 
         synchronized (isCommittedCallbacks) {
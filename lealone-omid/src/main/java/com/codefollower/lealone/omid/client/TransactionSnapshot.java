@@ -0,0 +1,194 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.KeyValue;
+
+/**
+ * The part of the client's view of the commit table a region server needs to
+ * filter the versions of a transaction's snapshot on its own.
+ *
+ * The client knows exactly which transactions started in the window
+ * (lowTimestamp, startTimestamp] committed or aborted, so versions written in
+ * the window are decided the same way {@link TSOClient#validRead} would decide
+ * them. Older versions are left for the client to decide.
+ */
+public class TransactionSnapshot {
+    /**
+     * Name of the Get/Scan attribute carrying the serialized snapshot
+     */
+    public static final String ATTRIBUTE = "omid.snapshot";
+
+    public static final int INVISIBLE = 0;
+    public static final int VISIBLE = 1;
+    public static final int UNKNOWN = 2;
+
+    private static final int MAX_UNKNOWN_VERSIONS = 8;
+
+    private final long startTimestamp;
+    private final long lowTimestamp;
+    private final long largestDeletedTimestamp;
+    private final long connectionTimestamp; // -1 if the client has none
+
+    /**
+     * Transactions of the window known to be committed, sorted by start timestamp
+     */
+    private final long[] committedStarts;
+    private final long[] commitTimestamps;
+
+    /**
+     * Transactions of the window known to be aborted, sorted
+     */
+    private final long[] aborted;
+
+    TransactionSnapshot(long startTimestamp, long lowTimestamp, long largestDeletedTimestamp, long connectionTimestamp,
+            long[] committedStarts, long[] commitTimestamps, long[] aborted) {
+        this.startTimestamp = startTimestamp;
+        this.lowTimestamp = lowTimestamp;
+        this.largestDeletedTimestamp = largestDeletedTimestamp;
+        this.connectionTimestamp = connectionTimestamp;
+        this.committedStarts = committedStarts;
+        this.commitTimestamps = commitTimestamps;
+        this.aborted = aborted;
+    }
+
+    public long getStartTimestamp() {
+        return startTimestamp;
+    }
+
+    /**
+     * Decides whether a version written by the given transaction belongs to
+     * this snapshot
+     *
+     * @return VISIBLE, INVISIBLE or UNKNOWN
+     */
+    public int isVisible(long transaction) {
+        if (transaction == startTimestamp)
+            return VISIBLE;
+        if (transaction > startTimestamp)
+            return INVISIBLE;
+        if (transaction <= lowTimestamp)
+            return UNKNOWN;
+        if (binarySearch(aborted, aborted.length, transaction) >= 0)
+            return INVISIBLE;
+        int i = binarySearch(committedStarts, committedStarts.length, transaction);
+        if (i >= 0)
+            return commitTimestamps[i] <= startTimestamp ? VISIBLE : INVISIBLE;
+        if (connectionTimestamp != -1 && transaction > connectionTimestamp)
+            return transaction <= largestDeletedTimestamp ? VISIBLE : INVISIBLE;
+        if (transaction <= largestDeletedTimestamp)
+            return VISIBLE;
+        return UNKNOWN;
+    }
+
+    /**
+     * Keeps, for every column, the versions this snapshot can't decide plus
+     * the newest visible one. At most MAX_UNKNOWN_VERSIONS undecided versions
+     * are kept per column, the client asks for older ones if it needs them.
+     * The versions of a column are sorted newest first.
+     */
+    public List<KeyValue> filter(List<KeyValue> kvs) {
+        List<KeyValue> filtered = new ArrayList<KeyValue>(kvs.size());
+        KeyValue lastColumn = null;
+        boolean done = false;
+        int unknown = 0;
+        for (KeyValue kv : kvs) {
+            if (lastColumn == null || !lastColumn.matchingColumn(kv.getFamily(), kv.getQualifier())) {
+                lastColumn = kv;
+                done = false;
+                unknown = 0;
+            }
+            if (done)
+                continue;
+            switch (isVisible(kv.getTimestamp())) {
+            case VISIBLE:
+                filtered.add(kv);
+                done = true;
+                break;
+            case UNKNOWN:
+                filtered.add(kv);
+                done = ++unknown >= MAX_UNKNOWN_VERSIONS;
+                break;
+            }
+        }
+        return filtered;
+    }
+
+    private static int binarySearch(long[] a, int size, long key) {
+        int low = 0, high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (a[mid] < key)
+                low = mid + 1;
+            else if (a[mid] > key)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+
+    public byte[] toBytes() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(40 + 16 * committedStarts.length + 8 * aborted.length);
+        DataOutputStream out = new DataOutputStream(baos);
+        try {
+            out.writeLong(startTimestamp);
+            out.writeLong(lowTimestamp);
+            out.writeLong(largestDeletedTimestamp);
+            out.writeLong(connectionTimestamp);
+            out.writeInt(committedStarts.length);
+            for (int i = 0; i < committedStarts.length; i++) {
+                out.writeLong(committedStarts[i]);
+                out.writeLong(commitTimestamps[i]);
+            }
+            out.writeInt(aborted.length);
+            for (long a : aborted)
+                out.writeLong(a);
+        } catch (IOException e) {
+            // can't happen
+            throw new RuntimeException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    public static TransactionSnapshot fromBytes(byte[] bytes) {
+        ByteBuffer bb = ByteBuffer.wrap(bytes);
+        long startTimestamp = bb.getLong();
+        long lowTimestamp = bb.getLong();
+        long largestDeletedTimestamp = bb.getLong();
+        long connectionTimestamp = bb.getLong();
+        int size = bb.getInt();
+        long[] committedStarts = new long[size];
+        long[] commitTimestamps = new long[size];
+        for (int i = 0; i < size; i++) {
+            committedStarts[i] = bb.getLong();
+            commitTimestamps[i] = bb.getLong();
+        }
+        long[] aborted = new long[bb.getInt()];
+        for (int i = 0; i < aborted.length; i++)
+            aborted[i] = bb.getLong();
+        return new TransactionSnapshot(startTimestamp, lowTimestamp, largestDeletedTimestamp, connectionTimestamp,
+                committedStarts, commitTimestamps, aborted);
+    }
+}
@@ -53,8 +53,19 @@ public class TransactionalTable extends HTable {
     /** Average number of versions needed to reach the right snapshot */
     private double versionsAvg = 3;
 
+    /** Used as the number of versions when the region servers filter the snapshot */
+    private static final int ALL_VERSIONS = Integer.MAX_VALUE;
+
+    /** Whether the region servers run the SnapshotFilter coprocessor */
+    private final boolean serverSideFilter;
+
+    /** Number of transactions before the start timestamp described to the region servers */
+    private final int snapshotWindow;
+
     public TransactionalTable(Configuration conf, byte[] tableName) throws IOException {
         super(conf, tableName);
+        serverSideFilter = conf.getBoolean("tso.snapshot.filter", false);
+        snapshotWindow = conf.getInt("tso.snapshot.window", 4096);
     }
 
     public TransactionalTable(Configuration conf, String tableName) throws IOException {
@@ -69,7 +80,7 @@ public class TransactionalTable extends HTable {
      * @throws IOException
      */
     public Result get(TransactionState transactionState, final Get get) throws IOException {
-        final int requestedVersions = (int) (versionsAvg + CACHE_VERSIONS_OVERHEAD);
+        final int requestedVersions = getRequestedVersions();
         final long readTimestamp = transactionState.getStartTimestamp();
         final Get tsget = new Get(get.getRow());
         TimeRange timeRange = get.getTimeRange();
@@ -88,6 +99,7 @@ public class TransactionalTable extends HTable {
                 }
             }
         }
+        setSnapshot(transactionState, tsget);
         // Return the KVs that belong to the transaction snapshot, ask for more versions if needed
         return new Result(filter(transactionState, super.get(tsget).list(), requestedVersions));
     }
@@ -179,10 +191,29 @@ public class TransactionalTable extends HTable {
      */
     public ResultScanner getScanner(TransactionState transactionState, Scan scan) throws IOException {
         Scan tsscan = new Scan(scan);
-        tsscan.setMaxVersions((int) (versionsAvg + CACHE_VERSIONS_OVERHEAD));
+        int requestedVersions = getRequestedVersions();
+        tsscan.setMaxVersions(requestedVersions);
         tsscan.setTimeRange(0, transactionState.getStartTimestamp() + 1);
-        return new ClientScanner(transactionState, getConfiguration(), tsscan, getTableName(),
-                (int) (versionsAvg + CACHE_VERSIONS_OVERHEAD));
+        if (serverSideFilter) {
+            tsscan.setAttribute(TransactionSnapshot.ATTRIBUTE,
+                    transactionState.tsoclient.getSnapshot(transactionState.getStartTimestamp(), snapshotWindow).toBytes());
+        }
+        return new ClientScanner(transactionState, getConfiguration(), tsscan, getTableName(), requestedVersions);
+    }
+
+    /**
+     * When the region servers filter the snapshot they only return the versions that matter, so all of them are
+     * requested at once
+     */
+    private int getRequestedVersions() {
+        return serverSideFilter ? ALL_VERSIONS : (int) (versionsAvg + CACHE_VERSIONS_OVERHEAD);
+    }
+
+    private void setSnapshot(TransactionState transactionState, Get get) {
+        if (serverSideFilter) {
+            get.setAttribute(TransactionSnapshot.ATTRIBUTE,
+                    transactionState.tsoclient.getSnapshot(transactionState.getStartTimestamp(), snapshotWindow).toBytes());
+        }
     }
 
     /**
@@ -201,7 +232,7 @@ public class TransactionalTable extends HTable {
             return Collections.emptyList();
         }
 
-        final int requestVersions = localVersions * 2 + CACHE_VERSIONS_OVERHEAD;
+        final int requestVersions = localVersions == ALL_VERSIONS ? ALL_VERSIONS : localVersions * 2 + CACHE_VERSIONS_OVERHEAD;
 
         long startTimestamp = transactionState.getStartTimestamp();
         // Filtered kvs
@@ -218,12 +249,10 @@ public class TransactionalTable extends HTable {
             ColumnWrapper currentColumn = new ColumnWrapper(kv.getFamily(), kv.getQualifier());
             if (!currentColumn.equals(lastColumn)) {
                 // New column, if we didn't read a committed value for last one, add it to pending
-                if (!validRead && versionsProcessed == localVersions) {
-                    Get get = new Get(kv.getRow());
-                    get.addColumn(kv.getFamily(), kv.getQualifier());
-                    get.setMaxVersions(requestVersions); // TODO set maxVersions wisely
-                    get.setTimeRange(0, oldestUncommittedTS - 1);
-                    pendingGets.add(get);
+                // (the region servers may have cut the versions of any column they couldn't decide)
+                if (!validRead && (versionsProcessed == localVersions || localVersions == ALL_VERSIONS)) {
+                    pendingGets.add(newPendingGet(transactionState, kv.getRow(), lastColumn, oldestUncommittedTS,
+                            requestVersions));
                 }
                 validRead = false;
                 versionsProcessed = 0;
@@ -250,6 +279,11 @@ public class TransactionalTable extends HTable {
             }
         }
 
+        if (!validRead && (versionsProcessed == localVersions || localVersions == ALL_VERSIONS)) {
+            pendingGets.add(newPendingGet(transactionState, kvs.get(kvs.size() - 1).getRow(), lastColumn,
+                    oldestUncommittedTS, requestVersions));
+        }
+
         // If we have pending columns, request (and filter recursively) them
         if (!pendingGets.isEmpty()) {
             Result[] results = this.get(pendingGets);
@@ -261,6 +295,19 @@ public class TransactionalTable extends HTable {
         return filtered;
     }
 
+    /**
+     * Creates a Get for the versions of a column older than the ones already read
+     */
+    private Get newPendingGet(TransactionState transactionState, byte[] row, ColumnWrapper column, long oldestUncommittedTS,
+            int requestVersions) throws IOException {
+        Get get = new Get(row);
+        get.addColumn(column.getFamily(), column.getQualifier());
+        get.setMaxVersions(requestVersions); // TODO set maxVersions wisely
+        get.setTimeRange(0, oldestUncommittedTS);
+        setSnapshot(transactionState, get);
+        return get;
+    }
+
     private class ClientScanner extends org.apache.hadoop.hbase.client.ClientScanner {
         private final TransactionState state;
         private final int maxVersions;
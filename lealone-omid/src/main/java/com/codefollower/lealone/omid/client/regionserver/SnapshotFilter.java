@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.client.regionserver;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.coprocessor.BaseRegionObserver;
+import org.apache.hadoop.hbase.coprocessor.ObserverContext;
+import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.hadoop.hbase.regionserver.InternalScanner;
+import org.apache.hadoop.hbase.regionserver.RegionScanner;
+
+import com.codefollower.lealone.omid.client.TransactionSnapshot;
+
+/**
+ * Filters the versions read by a transaction inside the region server, so only
+ * the versions of its snapshot, and those the client has to decide itself,
+ * are sent back. Gets and Scans without the {@link TransactionSnapshot#ATTRIBUTE}
+ * attribute are not touched.
+ */
+public class SnapshotFilter extends BaseRegionObserver {
+
+    private final ConcurrentHashMap<InternalScanner, TransactionSnapshot> snapshots = //
+    new ConcurrentHashMap<InternalScanner, TransactionSnapshot>();
+
+    private static TransactionSnapshot getSnapshot(byte[] attribute) {
+        return attribute == null ? null : TransactionSnapshot.fromBytes(attribute);
+    }
+
+    @Override
+    public void postGet(ObserverContext<RegionCoprocessorEnvironment> e, Get get, List<KeyValue> results) throws IOException {
+        TransactionSnapshot snapshot = getSnapshot(get.getAttribute(TransactionSnapshot.ATTRIBUTE));
+        if (snapshot != null) {
+            List<KeyValue> filtered = snapshot.filter(results);
+            results.clear();
+            results.addAll(filtered);
+        }
+    }
+
+    @Override
+    public RegionScanner postScannerOpen(ObserverContext<RegionCoprocessorEnvironment> e, Scan scan, RegionScanner s)
+            throws IOException {
+        TransactionSnapshot snapshot = getSnapshot(scan.getAttribute(TransactionSnapshot.ATTRIBUTE));
+        if (snapshot != null) {
+            snapshots.put(s, snapshot);
+        }
+        return s;
+    }
+
+    @Override
+    public boolean postScannerNext(ObserverContext<RegionCoprocessorEnvironment> e, InternalScanner s, List<Result> results,
+            int limit, boolean hasMore) throws IOException {
+        TransactionSnapshot snapshot = snapshots.get(s);
+        if (snapshot != null) {
+            for (int i = 0, size = results.size(); i < size; i++) {
+                List<KeyValue> kvs = results.get(i).list();
+                //empty results are kept, the client scanner would take an empty batch as the end of the region
+                if (kvs != null) {
+                    results.set(i, new Result(snapshot.filter(kvs)));
+                }
+            }
+        }
+        return hasMore;
+    }
+
+    @Override
+    public void postScannerClose(ObserverContext<RegionCoprocessorEnvironment> e, InternalScanner s) throws IOException {
+        snapshots.remove(s);
+    }
+}
@@ -16,20 +16,20 @@
 
 package com.codefollower.lealone.omid.tso;
 
-import java.util.BitSet;
-import java.util.Set;
-import java.util.TreeSet;
-
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+/**
+ * The commit state of BUCKET_SIZE consecutive transactions, one bit per
+ * transaction kept in a plain long array.
+ */
 public class Bucket {
 
     private static final Log LOG = LogFactory.getLog(Bucket.class);
 
     private static final long BUCKET_SIZE = 32768; // 2 ^ 15
 
-    private BitSet transactions = new BitSet((int) BUCKET_SIZE);
+    private final long[] transactions = new long[(int) (BUCKET_SIZE >>> 6)];
 
     private int transactionsCommited = 0;
     private int firstUncommited = 0;
@@ -41,29 +41,48 @@ public class Bucket {
     }
 
     public boolean isUncommited(long id) {
-        return !transactions.get((int) (id % BUCKET_SIZE));
+        int i = (int) (id % BUCKET_SIZE);
+        return (transactions[i >>> 6] & (1L << i)) == 0;
     }
 
-    public Set<Long> abortAllUncommited() {
-        Set<Long> result = abortUncommited(BUCKET_SIZE - 1);
+    public int abortAllUncommited(Uncommited.AbortHandler handler) {
+        int result = abortUncommited(BUCKET_SIZE - 1, handler);
         closed = true;
         return result;
     }
 
-    public synchronized Set<Long> abortUncommited(long id) {
+    /**
+     * Aborts the uncommitted transactions up to id, in ascending order.
+     *
+     * @return the number of aborted transactions
+     */
+    public synchronized int abortUncommited(long id, Uncommited.AbortHandler handler) {
         int lastCommited = (int) (id % BUCKET_SIZE);
 
-        Set<Long> aborted = new TreeSet<Long>();
-        if (allCommited()) {
-            return aborted;
+        if (allCommited() || lastCommited < firstUncommited) {
+            return 0;
         }
 
         LOG.trace("Performing scanning...");
 
-        for (int i = transactions.nextClearBit(firstUncommited); i >= 0 && i <= lastCommited; i = transactions
-                .nextClearBit(i + 1)) {
-            aborted.add(((long) position) * BUCKET_SIZE + i);
-            commit(i);
+        int aborted = 0;
+        long base = ((long) position) * BUCKET_SIZE;
+        for (int w = firstUncommited >>> 6, last = lastCommited >>> 6; w <= last; w++) {
+            //the clear bits of the word that are in [firstUncommited, lastCommited]
+            long uncommited = ~transactions[w];
+            if (w == firstUncommited >>> 6)
+                uncommited &= -1L << firstUncommited;
+            if (w == last && (lastCommited & 63) != 63)
+                uncommited &= (1L << (lastCommited + 1)) - 1;
+            if (uncommited == 0)
+                continue;
+            transactions[w] |= uncommited;
+            transactionsCommited += Long.bitCount(uncommited);
+            aborted += Long.bitCount(uncommited);
+            do {
+                handler.abort(base + (w << 6) + Long.numberOfTrailingZeros(uncommited));
+                uncommited &= uncommited - 1;
+            } while (uncommited != 0);
         }
 
         firstUncommited = lastCommited + 1;
@@ -72,8 +91,12 @@ public class Bucket {
     }
 
     public synchronized void commit(long id) {
-        transactions.set((int) (id % BUCKET_SIZE));
-        ++transactionsCommited;
+        int i = (int) (id % BUCKET_SIZE);
+        long bit = 1L << i;
+        if ((transactions[i >>> 6] & bit) == 0) {
+            transactions[i >>> 6] |= bit;
+            ++transactionsCommited;
+        }
     }
 
     public boolean allCommited() {
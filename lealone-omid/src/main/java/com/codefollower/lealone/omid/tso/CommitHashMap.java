@@ -28,10 +28,20 @@ import org.jboss.netty.util.internal.ConcurrentHashMap;
  * Change it to lazyly clean the old entries, i.e., upon a hit This would reduce
  * the mem access benefiting from cache locality
  * 
+ * There are two implementations: {@link JavaCommitHashMap} (the default) and
+ * {@link NativeCommitHashMap} which needs the tso-commithashmap library. Set
+ * the system property <code>omid.commitHashMap</code> to <code>native</code>
+ * to use the latter.
+ * 
+ * The native methods are declared in this class and not in
+ * NativeCommitHashMap, so that they still bind to the symbols of the
+ * existing library (Java_com_codefollower_lealone_omid_tso_CommitHashMap_*).
+ * JavaCommitHashMap overrides all of them that it uses.
+ * 
  * @author maysam
  */
 
-class CommitHashMap {
+abstract class CommitHashMap {
 
     native void init(int initialCapacity, int maxCommits, float loadFactor);
 
@@ -43,31 +53,35 @@ class CommitHashMap {
 
     native static long gettotalwalkforget();
 
-    // Load the library
-    static {
-        System.loadLibrary("tso-commithashmap");
+    /**
+     * Creates the implementation selected by the <code>omid.commitHashMap</code>
+     * system property (<code>java</code> or <code>native</code>).
+     */
+    static CommitHashMap create(int initialCapacity, float loadFactor) {
+        String type = System.getProperty("omid.commitHashMap", "java");
+        if ("native".equalsIgnoreCase(type))
+            return new NativeCommitHashMap(initialCapacity, loadFactor);
+        else if ("java".equalsIgnoreCase(type))
+            return new JavaCommitHashMap(initialCapacity, loadFactor);
+        else
+            throw new IllegalArgumentException("Unknown omid.commitHashMap: " + type);
     }
 
     /**
-     * Constructs a new, empty hashtable with a default capacity and load factor,
-     * which is <code>1000</code> and <code>0.75</code> respectively.
+     * The number of buckets of the hashtable.
      */
-    public CommitHashMap() {
-        this(1000, 0.75f);
-    }
+    protected final int capacity;
 
     /**
-     * Constructs a new, empty hashtable with the specified initial capacity and
-     * default load factor, which is <code>0.75</code>.
-     * 
-     * @param initialCapacity
-     *           the initial capacity of the hashtable.
-     * @throws IllegalArgumentException
-     *            if the initial capacity is less than zero.
+     * An entry could be garbage collected if its older than this threshold
+     * (The value of this field is (int)(capacity * loadFactor).)
      */
-    public CommitHashMap(int initialCapacity) {
-        this(initialCapacity, 0.75f);
-    }
+    protected final int threshold;
+
+    /**
+     * The size of the start timestamp to commit timestamp table.
+     */
+    protected final int maxCommits;
 
     /**
      * Constructs a new, empty hashtable with the specified initial capacity and
@@ -81,7 +95,7 @@ class CommitHashMap {
      *            if the initial capacity is less than zero, or if the load
      *            factor is nonpositive.
      */
-    public CommitHashMap(int initialCapacity, float loadFactor) {
+    protected CommitHashMap(int initialCapacity, float loadFactor) {
         if (initialCapacity < 0) {
             throw new IllegalArgumentException("Illegal Capacity: " + initialCapacity);
         }
@@ -91,11 +105,12 @@ class CommitHashMap {
         if (initialCapacity == 0) {
             initialCapacity = 1;
         }
+        capacity = initialCapacity;
+        threshold = (int) (initialCapacity * loadFactor);
 
         //assuming the worst case that each transaction modifies a value, 
         //this is the right size because it is proportional to the hashmap size
-        int txnCommitArraySize = (int) (initialCapacity * loadFactor);
-        this.init(initialCapacity, txnCommitArraySize, loadFactor);
+        maxCommits = Math.max(1, (int) (initialCapacity * loadFactor));
     }
 
     /**
@@ -105,32 +120,37 @@ class CommitHashMap {
      * ahead, (ii) a new put on the same key has always larger value (because
      * value is commit timestamp and the map is atmoic)
      * 
-     * @param key
-     *           a key in the hashtable.
+     * @param rowId
+     *           the row of the key.
+     * @param tableId
+     *           the table of the key.
+     * @param hash
+     *           the hash code of the key.
      * @return the value to which the key is mapped in this hashtable;
-     *         <code>null</code> if the key is not mapped to any value in this
+     *         <code>0</code> if the key is not mapped to any value in this
      *         hashtable.
-     * @see #put(int, Object)
      */
     native long get(byte[] rowId, byte[] tableId, int hash);
 
     /**
-     * Maps the specified <code>key</code> to the specified <code>value</code> in
-     * this hashtable. The key cannot be <code>null</code>.
-     * 
-     * The value can be retrieved by calling the <code>get</code> method with a
-     * key that is equal to the original key.
+     * Maps the specified key to the specified <code>value</code> in this
+     * hashtable. Entries older than the threshold are reused, and the largest
+     * value of the reused entries is reported back.
      * 
      * It guarantees that if multiple entries with the same keys exist then the
      * first one is the most fresh one, i.e., with the largest value
      * 
-     * @param key
-     *           the hashtable key.
+     * @param rowId
+     *           the row of the key.
+     * @param tableId
+     *           the table of the key.
      * @param value
-     *           the value.
-     * @throws NullPointerException
-     *            if the key is <code>null</code>. return true if the vlaue is
-     *            replaced
+     *           the value (commit timestamp).
+     * @param hash
+     *           the hash code of the key.
+     * @param largestDeletedTimestamp
+     *           the current largest deleted timestamp.
+     * @return the new largest deleted timestamp
      */
     native long put(byte[] rowId, byte[] tableId, long value, int hash, long largestDeletedTimestamp);
 
@@ -142,6 +162,12 @@ class CommitHashMap {
      */
     native long getCommittedTimestamp(long startTimestamp);
 
+    /**
+     * Records the commit timestamp of a transaction, overwriting the slot of an
+     * older transaction if needed.
+     * 
+     * @return the new largest deleted timestamp
+     */
     native long setCommitted(long startTimestamp, long commitTimestamp, long largestDeletedTimestamp);
 
     // set of half aborted transactions
@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.tso;
+
+/**
+ * A pure Java CommitHashMap with the same semantics as the native one.
+ * 
+ * The entries live in parallel primitive arrays and collisions are resolved
+ * with linear probing, so a lookup walks adjacent array slots instead of
+ * following pointers. Only the keys are separate objects. An entry whose
+ * order is more than <code>threshold</code> puts behind the latest one is
+ * old and its slot is reused by a later put, like the buckets of the native
+ * map.
+ * 
+ * A probe never looks at more than {@link #MAX_PROBE} slots: an entry is
+ * always stored within that distance from the slot of its hash. If none of
+ * these slots is empty or old, put evicts the oldest entry among them and
+ * reports its value as deleted, so get and put take constant time even if
+ * many keys have the same hash.
+ * 
+ * Not thread safe, the TSO accesses it while holding the shared state lock.
+ */
+class JavaCommitHashMap extends CommitHashMap {
+
+    static final int MAX_PROBE = 64;
+
+    /**
+     * The number of slots. It is at least twice the threshold so that a probe
+     * always finds an old or empty slot quickly.
+     */
+    private final int length;
+
+    /**
+     * The number of slots a probe looks at.
+     */
+    private final int probe;
+
+    /**
+     * The insertion order of each slot, 0 means the slot has never been used.
+     */
+    private final long[] orders;
+    private final int[] hashes;
+    private final long[] values;
+
+    /**
+     * The row id concatenated with the table id.
+     */
+    private final byte[][] keys;
+    private final int[] rowIdLengths;
+
+    private long largestOrder = 1;
+
+    private final long[] commitStarts;
+    private final long[] commitValues;
+
+    JavaCommitHashMap(int initialCapacity, float loadFactor) {
+        super(initialCapacity, loadFactor);
+        length = Math.max(capacity, 2 * threshold + 1);
+        probe = Math.min(MAX_PROBE, length);
+        orders = new long[length];
+        hashes = new int[length];
+        values = new long[length];
+        keys = new byte[length][];
+        rowIdLengths = new int[length];
+
+        commitStarts = new long[maxCommits];
+        commitValues = new long[maxCommits];
+    }
+
+    @Override
+    long get(byte[] rowId, byte[] tableId, int hash) {
+        int index = (hash & 0x7FFFFFFF) % length;
+        for (int i = 0; i < probe; i++) {
+            if (orders[index] == 0) //empty, slots are never emptied again so the key can't be further
+                break;
+            if (hashes[index] == hash && equalsKey(index, rowId, tableId))
+                return values[index];
+            if (++index == length)
+                index = 0;
+        }
+        return 0;
+    }
+
+    @Override
+    long put(byte[] rowId, byte[] tableId, long value, int hash, long largestDeletedTimestamp) {
+        int index = (hash & 0x7FFFFFFF) % length;
+        int free = -1; //the first empty or old slot
+        int oldest = index;
+        for (int i = 0; i < probe; i++) {
+            long order = orders[index];
+            if (order == 0) {
+                if (free < 0)
+                    free = index;
+                break;
+            }
+            if (hashes[index] == hash && equalsKey(index, rowId, tableId)) {
+                values[index] = value;
+                orders[index] = ++largestOrder;
+                return largestDeletedTimestamp;
+            }
+            if (free < 0 && largestOrder - order > threshold)
+                free = index;
+            if (order < orders[oldest])
+                oldest = index;
+            if (++index == length)
+                index = 0;
+        }
+
+        //no empty or old slot within the probe distance: evict the oldest entry
+        if (free < 0)
+            free = oldest;
+        if (values[free] > largestDeletedTimestamp)
+            largestDeletedTimestamp = values[free];
+        setEntry(free, rowId, tableId, value, hash);
+        return largestDeletedTimestamp;
+    }
+
+    @Override
+    long getCommittedTimestamp(long startTimestamp) {
+        int index = (int) (startTimestamp % maxCommits);
+        if (commitStarts[index] == startTimestamp)
+            return commitValues[index];
+        return 0; //which means that there is not such entry in the array, either deleted or never entered
+    }
+
+    @Override
+    long setCommitted(long startTimestamp, long commitTimestamp, long largestDeletedTimestamp) {
+        int index = (int) (startTimestamp % maxCommits);
+        if (commitStarts[index] != startTimestamp && commitValues[index] > largestDeletedTimestamp)
+            largestDeletedTimestamp = commitValues[index];
+        commitStarts[index] = startTimestamp;
+        commitValues[index] = commitTimestamp;
+        return largestDeletedTimestamp;
+    }
+
+    private boolean equalsKey(int index, byte[] rowId, byte[] tableId) {
+        byte[] key = keys[index];
+        if (rowIdLengths[index] != rowId.length || key.length != rowId.length + tableId.length)
+            return false;
+        for (int i = 0; i < rowId.length; i++)
+            if (key[i] != rowId[i])
+                return false;
+        for (int i = 0, j = rowId.length; i < tableId.length; i++, j++)
+            if (key[j] != tableId[i])
+                return false;
+        return true;
+    }
+
+    private void setEntry(int index, byte[] rowId, byte[] tableId, long value, int hash) {
+        int keyLength = rowId.length + tableId.length;
+        byte[] key = keys[index];
+        //reuse the key array of the evicted entry when it has the same size
+        if (key == null || key.length != keyLength)
+            key = keys[index] = new byte[keyLength];
+        System.arraycopy(rowId, 0, key, 0, rowId.length);
+        System.arraycopy(tableId, 0, key, rowId.length, tableId.length);
+        rowIdLengths[index] = rowId.length;
+        hashes[index] = hash;
+        values[index] = value;
+        orders[index] = ++largestOrder;
+    }
+}
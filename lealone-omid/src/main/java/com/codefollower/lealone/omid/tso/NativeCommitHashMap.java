@@ -0,0 +1,38 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.tso;
+
+/**
+ * The CommitHashMap implemented in C++ (see src/main/native), which needs the
+ * tso-commithashmap library in java.library.path. The native methods are
+ * declared in CommitHashMap.
+ * 
+ * The native code keeps its state in global variables, so there must be only
+ * one instance per process.
+ */
+class NativeCommitHashMap extends CommitHashMap {
+
+    // Load the library
+    static {
+        System.loadLibrary("tso-commithashmap");
+    }
+
+    NativeCommitHashMap(int initialCapacity, float loadFactor) {
+        super(initialCapacity, loadFactor);
+        this.init(capacity, maxCommits, loadFactor);
+    }
+}
@@ -22,7 +22,8 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -52,6 +53,8 @@ import com.codefollower.lealone.omid.tso.messages.CommitQueryResponse;
 import com.codefollower.lealone.omid.tso.messages.CommitRequest;
 import com.codefollower.lealone.omid.tso.messages.CommitResponse;
 import com.codefollower.lealone.omid.tso.messages.FullAbortRequest;
+import com.codefollower.lealone.omid.tso.messages.MultiRequest;
+import com.codefollower.lealone.omid.tso.messages.MultiResponse;
 import com.codefollower.lealone.omid.tso.messages.TimestampRequest;
 import com.codefollower.lealone.omid.tso.messages.TimestampResponse;
 import com.codefollower.lealone.omid.tso.persistence.LoggerException;
@@ -116,7 +119,12 @@ public class TSOHandler extends SimpleChannelHandler {
     private final int batchSize;
 
     private ScheduledFuture<?> flushFuture;
-    private boolean finish;
+    private volatile boolean finish;
+
+    /**
+     * Not null in single writer mode
+     */
+    private final RequestLoop requestLoop;
 
     private final Map<Channel, ReadingBuffer> messageBuffersMap = new HashMap<Channel, ReadingBuffer>();
     private final Object sharedMsgBufLock = new Object();
@@ -128,6 +136,18 @@ public class TSOHandler extends SimpleChannelHandler {
         }
     };
 
+    /**
+     * Half aborts the transactions left uncommitted when the largest deleted
+     * timestamp is raised, must be used holding sharedMsgBufLock
+     */
+    private final Uncommited.AbortHandler halfAbortHandler = new Uncommited.AbortHandler() {
+        @Override
+        public void abort(long startTimestamp) {
+            sharedState.hashmap.setHalfAborted(startTimestamp);
+            queueHalfAbort(startTimestamp);
+        }
+    };
+
     private final Runnable createAbortedSnaphostTask = new Runnable() {
         @Override
         public void run() {
@@ -140,6 +160,15 @@ public class TSOHandler extends SimpleChannelHandler {
      * @param channelGroup
      */
     public TSOHandler(ChannelGroup channelGroup, TSOState state, int batchSize) {
+        this(channelGroup, state, batchSize, false);
+    }
+
+    /**
+     * Constructor
+     * @param channelGroup
+     * @param singleWriter if true all requests are processed by one thread
+     */
+    public TSOHandler(ChannelGroup channelGroup, TSOState state, int batchSize, boolean singleWriter) {
         this.channelGroup = channelGroup;
         this.timestampOracle = state.getTimestampOracle();
         this.sharedState = state;
@@ -155,6 +184,7 @@ public class TSOHandler extends SimpleChannelHandler {
             }
         });
         this.batchSize = batchSize;
+        this.requestLoop = singleWriter ? new RequestLoop() : null;
     }
 
     private void createAbortedSnapshot() {
@@ -183,10 +213,16 @@ public class TSOHandler extends SimpleChannelHandler {
 
     public void start() {
         scheduleFlushThread();
+        if (requestLoop != null) {
+            requestLoop.start();
+        }
     }
 
     public void stop() {
         finish = true;
+        if (requestLoop != null) {
+            requestLoop.stop();
+        }
     }
 
     private void scheduleFlushThread() {
@@ -272,7 +308,14 @@ public class TSOHandler extends SimpleChannelHandler {
      */
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
-        Object msg = e.getMessage();
+        if (requestLoop != null) {
+            requestLoop.submit(ctx, (TSOMessage) e.getMessage());
+        } else {
+            process(ctx, e.getMessage());
+        }
+    }
+
+    private void process(ChannelHandlerContext ctx, Object msg) {
         if (msg instanceof TimestampRequest) {
             handle((TimestampRequest) msg, ctx);
         } else if (msg instanceof CommitRequest) {
@@ -283,6 +326,108 @@ public class TSOHandler extends SimpleChannelHandler {
             handle((CommitQueryRequest) msg, ctx);
         } else if (msg instanceof AbortRequest) {
             handle((AbortRequest) msg, ctx);
+        } else if (msg instanceof MultiRequest) {
+            handle((MultiRequest) msg, ctx);
+        }
+    }
+
+    /**
+     * Hands the requests of all channels to one thread. The thread takes all
+     * the queued requests at once and processes them holding the shared state
+     * lock only once, so the conflict checks, timestamp allocations and WAL
+     * appends of a batch run back to back without contention. The replies are
+     * written asynchronously by Netty as before.
+     * <p>
+     * When the handler is stopped, the requests that were not processed yet
+     * are failed by closing their channels, so the clients fail their pending
+     * callbacks instead of waiting for a reply that never comes.
+     */
+    private class RequestLoop implements Runnable {
+        private static final int MAX_BATCH = 1024;
+
+        private final BlockingQueue<ChannelAndMessage> queue = new ArrayBlockingQueue<ChannelAndMessage>(
+                Integer.getInteger("omid.requestQueueSize", 64 * 1024));
+        private final Thread thread = new Thread(this, "TSO Request Loop");
+
+        void start() {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop() {
+            try {
+                //the loop checks finish at least every FLUSH_TIMEOUT ms
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            failPending();
+        }
+
+        void submit(ChannelHandlerContext ctx, TSOMessage msg) {
+            ChannelAndMessage cam = new ChannelAndMessage(ctx, msg);
+            try {
+                //blocks the Netty worker when the loop falls behind, which throttles the clients,
+                //but gives up once the handler is stopped
+                while (!queue.offer(cam, TSOState.FLUSH_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    if (finish) {
+                        fail(cam);
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(cam);
+                return;
+            }
+            if (finish) {
+                //stopped while the request was queued, the loop may not see it anymore
+                failPending();
+            }
+        }
+
+        private void failPending() {
+            ArrayList<ChannelAndMessage> pending = new ArrayList<ChannelAndMessage>();
+            queue.drainTo(pending);
+            for (ChannelAndMessage cam : pending) {
+                fail(cam);
+            }
+        }
+
+        private void fail(ChannelAndMessage cam) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("TSO stopped, dropping " + cam.msg);
+            }
+            cam.ctx.getChannel().close();
+        }
+
+        @Override
+        public void run() {
+            ArrayList<ChannelAndMessage> batch = new ArrayList<ChannelAndMessage>(MAX_BATCH);
+            while (!finish) {
+                try {
+                    ChannelAndMessage first = queue.poll(TSOState.FLUSH_TIMEOUT, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    synchronized (sharedState) {
+                        for (int i = 0, size = batch.size(); i < size; i++) {
+                            ChannelAndMessage cam = batch.get(i);
+                            try {
+                                process(cam.ctx, cam.msg);
+                            } catch (RuntimeException e) {
+                                LOG.error("failed to process " + cam.msg, e);
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    batch.clear();
+                }
+            }
         }
     }
 
@@ -300,6 +445,15 @@ public class TSOHandler extends SimpleChannelHandler {
             }
         }
 
+        flushReports(ctx);
+        Channels.write(ctx.getChannel(), new TimestampResponse(timestamp));
+    }
+
+    /**
+     * Sends the commit and abort reports the client hasn't seen yet. They must
+     * reach the client before a new start timestamp.
+     */
+    private void flushReports(ChannelHandlerContext ctx) {
         ReadingBuffer buffer;
         Channel channel = ctx.getChannel();
         boolean bootstrap = false;
@@ -331,7 +485,36 @@ public class TSOHandler extends SimpleChannelHandler {
             cb = buffer.flush(future);
         }
         Channels.write(ctx, future, cb);
-        Channels.write(channel, new TimestampResponse(timestamp));
+    }
+
+    /**
+     * Handle the MultiRequest message. All the requests are processed holding
+     * the shared state lock once. The timestamps are answered at once with one
+     * MultiResponse, the commits with another one after they are persisted.
+     */
+    private void handle(MultiRequest msg, ChannelHandlerContext ctx) {
+        ArrayList<TSOMessage> timestamps = new ArrayList<TSOMessage>();
+        ArrayList<TSOMessage> commits = new ArrayList<TSOMessage>();
+        synchronized (sharedState) {
+            for (TSOMessage request : msg.messages) {
+                if (request instanceof TimestampRequest) {
+                    try {
+                        timestamps.add(new TimestampResponse(timestampOracle.next(sharedState.toWAL)));
+                    } catch (IOException e) {
+                        LOG.error("failed to return the next timestamp", e);
+                    }
+                } else {
+                    commits.add(commit((CommitRequest) request));
+                }
+            }
+            if (!commits.isEmpty()) {
+                queueReply(ctx, new MultiResponse(commits.toArray(new TSOMessage[commits.size()])));
+            }
+        }
+        if (!timestamps.isEmpty()) {
+            flushReports(ctx);
+            Channels.write(ctx.getChannel(), new MultiResponse(timestamps.toArray(new TSOMessage[timestamps.size()])));
+        }
     }
 
     private void handle(AbortRequest msg, ChannelHandlerContext ctx) {
@@ -374,137 +557,146 @@ public class TSOHandler extends SimpleChannelHandler {
      * Handle the CommitRequest message
      */
     private void handle(CommitRequest msg, ChannelHandlerContext ctx) {
+        synchronized (sharedState) {
+            queueReply(ctx, commit(msg));
+        }
+    }
+
+    /**
+     * Decides a commit request, the caller must hold the shared state lock
+     */
+    private CommitResponse commit(CommitRequest msg) {
         CommitResponse reply = new CommitResponse(msg.startTimestamp);
-        ByteArrayOutputStream baos = sharedState.baos;
         DataOutputStream toWAL = sharedState.toWAL;
-        synchronized (sharedState) {
-            //0. check if it should abort
-            if (msg.startTimestamp < timestampOracle.first()) {
-                reply.committed = false;
-                LOG.warn("Aborting transaction after restarting TSO");
-            } else if (msg.startTimestamp < sharedState.largestDeletedTimestamp) {
-                // Too old
-                reply.committed = false;//set as abort
-                LOG.warn("Too old starttimestamp: ST " + msg.startTimestamp + " MAX " + sharedState.largestDeletedTimestamp);
-            } else {
-                //1. check the write-write conflicts
-                for (RowKey r : msg.rows) {
-                    long value;
-                    value = sharedState.hashmap.get(r.getRow(), r.getTable(), r.hashCode());
-                    if (value != 0 && value > msg.startTimestamp) {
-                        reply.committed = false;//set as abort
-                        break;
-                    } else if (value == 0 && sharedState.largestDeletedTimestamp > msg.startTimestamp) {
-                        //then it could have been committed after start timestamp but deleted by recycling
-                        LOG.warn("Old transaction {Start timestamp  " + msg.startTimestamp + "} {Largest deleted timestamp "
-                                + sharedState.largestDeletedTimestamp + "}");
-                        reply.committed = false;//set as abort
-                        break;
-                    }
+        //0. check if it should abort
+        if (msg.startTimestamp < timestampOracle.first()) {
+            reply.committed = false;
+            LOG.warn("Aborting transaction after restarting TSO");
+        } else if (msg.startTimestamp < sharedState.largestDeletedTimestamp) {
+            // Too old
+            reply.committed = false;//set as abort
+            LOG.warn("Too old starttimestamp: ST " + msg.startTimestamp + " MAX " + sharedState.largestDeletedTimestamp);
+        } else {
+            //1. check the write-write conflicts
+            for (RowKey r : msg.rows) {
+                long value;
+                value = sharedState.hashmap.get(r.getRow(), r.getTable(), r.hashCode());
+                if (value != 0 && value > msg.startTimestamp) {
+                    reply.committed = false;//set as abort
+                    break;
+                } else if (value == 0 && sharedState.largestDeletedTimestamp > msg.startTimestamp) {
+                    //then it could have been committed after start timestamp but deleted by recycling
+                    LOG.warn("Old transaction {Start timestamp  " + msg.startTimestamp + "} {Largest deleted timestamp "
+                            + sharedState.largestDeletedTimestamp + "}");
+                    reply.committed = false;//set as abort
+                    break;
                 }
             }
+        }
 
-            if (reply.committed) {
-                //2. commit
-                try {
-                    long commitTimestamp = timestampOracle.next(toWAL);
-                    sharedState.uncommited.commit(commitTimestamp);
-                    sharedState.uncommited.commit(msg.startTimestamp);
-                    reply.commitTimestamp = commitTimestamp;
-                    if (msg.rows.length > 0) {
-                        if (LOG.isTraceEnabled()) {
-                            LOG.trace("Adding commit to WAL");
-                        }
-                        toWAL.writeByte(LoggerProtocol.COMMIT);
-                        toWAL.writeLong(msg.startTimestamp);
-                        toWAL.writeLong(commitTimestamp);
+        if (reply.committed) {
+            //2. commit
+            try {
+                long commitTimestamp = timestampOracle.next(toWAL);
+                sharedState.uncommited.commit(commitTimestamp);
+                sharedState.uncommited.commit(msg.startTimestamp);
+                reply.commitTimestamp = commitTimestamp;
+                if (msg.rows.length > 0) {
+                    if (LOG.isTraceEnabled()) {
+                        LOG.trace("Adding commit to WAL");
+                    }
+                    toWAL.writeByte(LoggerProtocol.COMMIT);
+                    toWAL.writeLong(msg.startTimestamp);
+                    toWAL.writeLong(commitTimestamp);
 
-                        long oldLargestDeletedTimestamp = sharedState.largestDeletedTimestamp;
+                    long oldLargestDeletedTimestamp = sharedState.largestDeletedTimestamp;
 
-                        for (RowKey r : msg.rows) {
-                            sharedState.largestDeletedTimestamp = sharedState.hashmap.put(r.getRow(), r.getTable(),
-                                    commitTimestamp, r.hashCode(), oldLargestDeletedTimestamp);
-                        }
+                    for (RowKey r : msg.rows) {
+                        sharedState.largestDeletedTimestamp = sharedState.hashmap.put(r.getRow(), r.getTable(),
+                                commitTimestamp, r.hashCode(), oldLargestDeletedTimestamp);
+                    }
 
-                        sharedState.processCommit(msg.startTimestamp, commitTimestamp);
-                        if (sharedState.largestDeletedTimestamp > oldLargestDeletedTimestamp) {
-                            toWAL.writeByte(LoggerProtocol.LARGEST_DELETED_TIMESTAMP);
-                            toWAL.writeLong(sharedState.largestDeletedTimestamp);
-                            Set<Long> toAbort = sharedState.uncommited
-                                    .raiseLargestDeletedTransaction(sharedState.largestDeletedTimestamp);
-                            if (LOG.isWarnEnabled() && !toAbort.isEmpty()) {
-                                LOG.warn("Slow transactions after raising max: " + toAbort.size());
-                            }
-                            synchronized (sharedMsgBufLock) {
-                                for (Long id : toAbort) {
-                                    sharedState.hashmap.setHalfAborted(id);
-                                    queueHalfAbort(id);
-                                }
-                                queueLargestIncrease(sharedState.largestDeletedTimestamp);
-                            }
-                        }
-                        if (sharedState.largestDeletedTimestamp > sharedState.previousLargestDeletedTimestamp
-                                + TSOState.MAX_ITEMS) {
-                            // schedule snapshot
-                            executor.submit(createAbortedSnaphostTask);
-                            sharedState.previousLargestDeletedTimestamp = sharedState.largestDeletedTimestamp;
-                        }
+                    sharedState.processCommit(msg.startTimestamp, commitTimestamp);
+                    if (sharedState.largestDeletedTimestamp > oldLargestDeletedTimestamp) {
+                        toWAL.writeByte(LoggerProtocol.LARGEST_DELETED_TIMESTAMP);
+                        toWAL.writeLong(sharedState.largestDeletedTimestamp);
+                        int aborted;
                         synchronized (sharedMsgBufLock) {
-                            queueCommit(msg.startTimestamp, commitTimestamp);
+                            aborted = sharedState.uncommited.raiseLargestDeletedTransaction(
+                                    sharedState.largestDeletedTimestamp, halfAbortHandler);
+                            queueLargestIncrease(sharedState.largestDeletedTimestamp);
+                        }
+                        if (LOG.isWarnEnabled() && aborted > 0) {
+                            LOG.warn("Slow transactions after raising max: " + aborted);
                         }
                     }
-                } catch (IOException e) {
-                    LOG.error("failed to handle CommitRequest", e);
-                }
-            } else { //add it to the aborted list
-                abortCount++;
-                try {
-                    toWAL.writeByte(LoggerProtocol.ABORT);
-                    toWAL.writeLong(msg.startTimestamp);
-                } catch (IOException e) {
-                    LOG.error("failed to handle abort wal", e);
+                    if (sharedState.largestDeletedTimestamp > sharedState.previousLargestDeletedTimestamp
+                            + TSOState.MAX_ITEMS) {
+                        // schedule snapshot
+                        executor.submit(createAbortedSnaphostTask);
+                        sharedState.previousLargestDeletedTimestamp = sharedState.largestDeletedTimestamp;
+                    }
+                    synchronized (sharedMsgBufLock) {
+                        queueCommit(msg.startTimestamp, commitTimestamp);
+                    }
                 }
-                sharedState.processAbort(msg.startTimestamp);
+            } catch (IOException e) {
+                LOG.error("failed to handle CommitRequest", e);
+            }
+        } else { //add it to the aborted list
+            abortCount++;
+            try {
+                toWAL.writeByte(LoggerProtocol.ABORT);
+                toWAL.writeLong(msg.startTimestamp);
+            } catch (IOException e) {
+                LOG.error("failed to handle abort wal", e);
+            }
+            sharedState.processAbort(msg.startTimestamp);
 
-                synchronized (sharedMsgBufLock) {
-                    queueHalfAbort(msg.startTimestamp);
-                }
+            synchronized (sharedMsgBufLock) {
+                queueHalfAbort(msg.startTimestamp);
             }
+        }
 
-            TSOHandler.transferredBytes.incrementAndGet();
+        TSOHandler.transferredBytes.incrementAndGet();
+        return reply;
+    }
 
-            ChannelAndMessage cam = new ChannelAndMessage(ctx, reply);
+    /**
+     * Queues a reply to be sent once the current WAL batch is persisted, the
+     * caller must hold the shared state lock
+     */
+    private void queueReply(ChannelHandlerContext ctx, TSOMessage reply) {
+        ByteArrayOutputStream baos = sharedState.baos;
+        ChannelAndMessage cam = new ChannelAndMessage(ctx, reply);
 
-            sharedState.nextBatch.add(cam);
-            if (sharedState.baos.size() >= batchSize) {
-                if (LOG.isTraceEnabled()) {
-                    LOG.trace("Going to add record of size " + sharedState.baos.size());
-                }
-                //sharedState.lh.asyncAddEntry(baos.toByteArray(), this, sharedState.nextBatch);
-                sharedState.addRecord(baos.toByteArray(), new AddRecordCallback() {
-                    @Override
-                    public void addRecordComplete(int rc, Object ctx) {
-                        if (rc != Code.OK) {
-                            LOG.warn("Write failed: " + LoggerException.getMessage(rc));
-
-                        } else {
-                            synchronized (callbackLock) {
-                                @SuppressWarnings("unchecked")
-                                ArrayList<ChannelAndMessage> theBatch = (ArrayList<ChannelAndMessage>) ctx;
-                                for (ChannelAndMessage cam : theBatch) {
-                                    Channels.write(cam.ctx, Channels.succeededFuture(cam.ctx.getChannel()), cam.msg);
-                                }
-                            }
+        sharedState.nextBatch.add(cam);
+        if (sharedState.baos.size() >= batchSize) {
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("Going to add record of size " + sharedState.baos.size());
+            }
+            //sharedState.lh.asyncAddEntry(baos.toByteArray(), this, sharedState.nextBatch);
+            sharedState.addRecord(baos.toByteArray(), new AddRecordCallback() {
+                @Override
+                public void addRecordComplete(int rc, Object ctx) {
+                    if (rc != Code.OK) {
+                        LOG.warn("Write failed: " + LoggerException.getMessage(rc));
 
+                    } else {
+                        synchronized (callbackLock) {
+                            @SuppressWarnings("unchecked")
+                            ArrayList<ChannelAndMessage> theBatch = (ArrayList<ChannelAndMessage>) ctx;
+                            for (ChannelAndMessage cam : theBatch) {
+                                Channels.write(cam.ctx, Channels.succeededFuture(cam.ctx.getChannel()), cam.msg);
+                            }
                         }
-                    }
-                }, sharedState.nextBatch);
-                sharedState.nextBatch = new ArrayList<ChannelAndMessage>(sharedState.nextBatch.size() + 5);
-                sharedState.baos.reset();
-            }
 
+                    }
+                }
+            }, sharedState.nextBatch);
+            sharedState.nextBatch = new ArrayList<ChannelAndMessage>(sharedState.nextBatch.size() + 5);
+            sharedState.baos.reset();
         }
-
     }
 
     /**
@@ -39,6 +39,7 @@ import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 import org.jboss.netty.util.ObjectSizeEstimator;
 
 import com.codefollower.lealone.omid.tso.persistence.BookKeeperStateBuilder;
+import com.codefollower.lealone.omid.tso.persistence.LocalStateBuilder;
 import com.codefollower.lealone.omid.tso.persistence.LoggerProtocol;
 import com.codefollower.lealone.omid.tso.persistence.LoggerAsyncCallback.AddRecordCallback;
 
@@ -88,7 +89,10 @@ public class TSOServer implements Runnable {
                     }
                 }, Executors.defaultThreadFactory());
 
-        state = BookKeeperStateBuilder.getState(config);
+        if (config.getWalDir() != null)
+            state = LocalStateBuilder.getState(config);
+        else
+            state = BookKeeperStateBuilder.getState(config);
         if (state == null) {
             LOG.error("Couldn't build state");
             return;
@@ -104,8 +108,10 @@ public class TSOServer implements Runnable {
         LOG.info("PARAM BATCH_SIZE: " + config.getBatchSize());
         LOG.info("PARAM LOAD_FACTOR: " + TSOState.LOAD_FACTOR);
         LOG.info("PARAM MAX_THREADS: " + maxThreads);
+        LOG.info("PARAM SINGLE_WRITER: " + config.isSingleWriter());
+        LOG.info("PARAM WAL_DIR: " + config.getWalDir());
 
-        final TSOHandler handler = new TSOHandler(channelGroup, state, config.getBatchSize());
+        final TSOHandler handler = new TSOHandler(channelGroup, state, config.getBatchSize(), config.isSingleWriter());
         handler.start();
 
         bootstrap.setPipelineFactory(new TSOPipelineFactory(pipelineExecutor, handler));
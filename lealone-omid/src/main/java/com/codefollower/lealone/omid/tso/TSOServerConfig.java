@@ -56,6 +56,14 @@ public class TSOServerConfig {
     @Parameter(names = "-quorum", description = "WAL quorum size")
     private int quorum;
 
+    @Parameter(names = "-singleWriter", description = "Process all requests in one thread instead of "
+            + "the Netty worker threads, so the shared state is not contended")
+    private boolean singleWriter;
+
+    @Parameter(names = "-walDir", description = "Local directory of the WAL, "
+            + "used instead of BookKeeper when it is set")
+    private String walDir;
+
     private TSOServerConfig() {
         this.port = Integer.parseInt(System.getProperty("PORT", "1234"));
         this.batch = Integer.parseInt(System.getProperty("BATCH", "0"));
@@ -63,6 +71,8 @@ public class TSOServerConfig {
         this.zkServers = System.getProperty("ZKSERVERS");
         this.ensemble = Integer.parseInt(System.getProperty("ENSEMBLE", "3"));
         this.quorum = Integer.parseInt(System.getProperty("QUORUM", "2"));
+        this.singleWriter = Boolean.parseBoolean(System.getProperty("SINGLE_WRITER", "false"));
+        this.walDir = System.getProperty("WAL_DIR");
     }
 
     public int getPort() {
@@ -88,4 +98,12 @@ public class TSOServerConfig {
     public int getQuorumSize() {
         return quorum;
     }
+
+    public boolean isSingleWriter() {
+        return singleWriter;
+    }
+
+    public String getWalDir() {
+        return walDir;
+    }
 }
@@ -16,16 +16,20 @@
 
 package com.codefollower.lealone.omid.tso;
 
-import java.util.Collections;
-import java.util.Set;
-import java.util.TreeSet;
-
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 public class Uncommited {
     private static final Log LOG = LogFactory.getLog(Uncommited.class);
 
+    /**
+     * Receives the transactions aborted when the largest deleted timestamp is
+     * raised, without boxing them into a collection
+     */
+    public interface AbortHandler {
+        void abort(long startTimestamp);
+    }
+
     private static final int BKT_NUMBER = 1 << 10; // 2 ^ 10
 
     private Bucket buckets[] = new Bucket[BKT_NUMBER];
@@ -73,22 +77,28 @@ public class Uncommited {
         return bucket.isUncommited(id);
     }
 
-    public Set<Long> raiseLargestDeletedTransaction(long id) {
+    /**
+     * Aborts all the transactions up to id that are still uncommitted,
+     * passing them to the handler in ascending order.
+     *
+     * @return the number of aborted transactions
+     */
+    public int raiseLargestDeletedTransaction(long id, AbortHandler handler) {
         if (firstUncommitedAbsolute > getAbsolutePosition(id))
-            return Collections.emptySet();
+            return 0;
         int maxBucket = getRelativePosition(id);
-        Set<Long> aborted = new TreeSet<Long>();
+        int aborted = 0;
         for (int i = firstUncommitedBucket; i != maxBucket; i = (i + 1) % BKT_NUMBER) {
             Bucket bucket = buckets[i];
             if (bucket != null) {
-                aborted.addAll(bucket.abortAllUncommited());
+                aborted += bucket.abortAllUncommited(handler);
                 buckets[i] = null;
             }
         }
 
         Bucket bucket = buckets[maxBucket];
         if (bucket != null) {
-            aborted.addAll(bucket.abortUncommited(id));
+            aborted += bucket.abortUncommited(id, handler);
         }
 
         increaseFirstUncommitedBucket();
@@ -0,0 +1,73 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.tso.messages;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import com.codefollower.lealone.omid.tso.TSOMessage;
+
+/**
+ * Base class of the messages that carry several requests or responses in
+ * one frame. Each element is written as its type byte followed by its body.
+ */
+abstract class MultiMessage implements TSOMessage {
+
+    /**
+     * The carried messages, in the order they were added
+     */
+    public TSOMessage[] messages;
+
+    MultiMessage() {
+    }
+
+    MultiMessage(TSOMessage[] messages) {
+        this.messages = messages;
+    }
+
+    /**
+     * Returns the type byte of an element, or throws if it can't be carried
+     */
+    abstract byte getType(TSOMessage msg);
+
+    /**
+     * Creates an empty element of the given type
+     */
+    abstract TSOMessage newMessage(byte type);
+
+    @Override
+    public void readObject(ChannelBuffer aInputStream) {
+        int size = aInputStream.readInt();
+        messages = new TSOMessage[size];
+        for (int i = 0; i < size; i++) {
+            TSOMessage msg = newMessage(aInputStream.readByte());
+            msg.readObject(aInputStream);
+            messages[i] = msg;
+        }
+    }
+
+    @Override
+    public void writeObject(DataOutputStream aOutputStream) throws IOException {
+        aOutputStream.writeInt(messages.length);
+        for (TSOMessage msg : messages) {
+            aOutputStream.writeByte(getType(msg));
+            msg.writeObject(aOutputStream);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.tso.messages;
+
+import com.codefollower.lealone.omid.tso.TSOMessage;
+
+/**
+ * The message object for sending several timestamp and commit requests to
+ * TSO in one frame. TSO answers the timestamp requests with one
+ * MultiResponse and the commit requests with another one once they are
+ * persisted.
+ * 
+ */
+public class MultiRequest extends MultiMessage {
+
+    public MultiRequest() {
+    }
+
+    public MultiRequest(TSOMessage[] requests) {
+        super(requests);
+    }
+
+    @Override
+    byte getType(TSOMessage msg) {
+        if (msg instanceof TimestampRequest)
+            return TSOMessage.TimestampRequest;
+        else if (msg instanceof CommitRequest)
+            return TSOMessage.CommitRequest;
+        throw new IllegalArgumentException("Can't batch " + msg);
+    }
+
+    @Override
+    TSOMessage newMessage(byte type) {
+        switch (type) {
+        case TSOMessage.TimestampRequest:
+            return new TimestampRequest();
+        case TSOMessage.CommitRequest:
+            return new CommitRequest();
+        default:
+            throw new IllegalArgumentException("Wrong type in batch " + Integer.toHexString(type));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MultiRequest: " + messages.length;
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.tso.messages;
+
+import com.codefollower.lealone.omid.tso.TSOMessage;
+
+/**
+ * The message object for the responses to the requests of a MultiRequest
+ * 
+ */
+public class MultiResponse extends MultiMessage {
+
+    public MultiResponse() {
+    }
+
+    public MultiResponse(TSOMessage[] responses) {
+        super(responses);
+    }
+
+    @Override
+    byte getType(TSOMessage msg) {
+        if (msg instanceof TimestampResponse)
+            return TSOMessage.TimestampResponse;
+        else if (msg instanceof CommitResponse)
+            return TSOMessage.CommitResponse;
+        throw new IllegalArgumentException("Can't batch " + msg);
+    }
+
+    @Override
+    TSOMessage newMessage(byte type) {
+        switch (type) {
+        case TSOMessage.TimestampResponse:
+            return new TimestampResponse();
+        case TSOMessage.CommitResponse:
+            return new CommitResponse();
+        default:
+            throw new IllegalArgumentException("Wrong type in batch " + Integer.toHexString(type));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MultiResponse: " + messages.length;
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.tso.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.codefollower.lealone.omid.tso.TSOServerConfig;
+import com.codefollower.lealone.omid.tso.TSOState;
+import com.codefollower.lealone.omid.tso.TimestampOracle;
+import com.codefollower.lealone.omid.tso.persistence.LoggerAsyncCallback.LoggerInitCallback;
+import com.codefollower.lealone.omid.tso.persistence.LoggerException.Code;
+
+/**
+ * Builds the TSO state from the segments written by a LocalStateLogger to a
+ * local directory, so a TSO can recover without a BookKeeper ensemble.
+ *
+ * Like the BookKeeper builder, records are replayed from the newest to the
+ * oldest and the replay stops as soon as LoggerProtocol has seen enough,
+ * which usually is the last snapshot, so only the tail of the log is read.
+ */
+public class LocalStateBuilder implements StateBuilder {
+    private static final Log LOG = LogFactory.getLog(LocalStateBuilder.class);
+
+    public static TSOState getState(TSOServerConfig config) {
+        TSOState returnValue;
+        if (!config.isRecoveryEnabled()) {
+            LOG.warn("Logger is disabled");
+            returnValue = new TSOState(new TimestampOracle());
+            returnValue.initialize();
+        } else {
+            LocalStateBuilder builder = new LocalStateBuilder(config);
+
+            try {
+                returnValue = builder.buildState();
+                LOG.info("State built");
+            } catch (Throwable e) {
+                LOG.error("Error while building the state.", e);
+                returnValue = null;
+                builder.shutdown();
+            }
+        }
+        return returnValue;
+    }
+
+    private final TimestampOracle timestampOracle;
+    private final LocalStateLogger logger;
+
+    LocalStateBuilder(TSOServerConfig config) {
+        this.timestampOracle = new TimestampOracle();
+        this.logger = new LocalStateLogger(new File(config.getWalDir()));
+    }
+
+    @Override
+    public TSOState buildState() throws LoggerException {
+        logger.lock();
+
+        TSOState state;
+        LoggerProtocol lp = new LoggerProtocol(timestampOracle);
+        long recoveredIncarnation = replay(lp);
+        if (recoveredIncarnation > 0) {
+            state = lp.getState();
+        } else {
+            LOG.warn("No records in the WAL, starting with an empty state");
+            state = new TSOState(timestampOracle);
+        }
+        logger.setRecoveredIncarnation(recoveredIncarnation);
+
+        final int[] result = new int[] { Code.OK };
+        logger.initialize(new LoggerInitCallback() {
+            @Override
+            public void loggerInitComplete(int rc, StateLogger sl, Object ctx) {
+                result[0] = rc;
+            }
+        }, null);
+        if (result[0] != Code.OK) {
+            throw LoggerException.create(result[0]);
+        }
+        state.setLogger(logger);
+        return state;
+    }
+
+    /**
+     * Replays the log backward until the recovery is finished.
+     *
+     * @return the incarnation the replay stopped in, or 0 if there are no records
+     */
+    private long replay(LoggerProtocol lp) throws LoggerException {
+        File[] segments = logger.getSegments();
+        long incarnation = 0;
+        for (int i = segments.length - 1; i >= 0; i--) {
+            List<byte[]> records;
+            try {
+                records = LocalStateLogger.readRecords(segments[i]);
+            } catch (IOException e) {
+                LOG.error("Failed to read segment " + segments[i], e);
+                throw LoggerException.create(Code.LOCALOPFAILED);
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Replaying " + records.size() + " records from " + segments[i]);
+            }
+            if (!records.isEmpty())
+                incarnation = LocalStateLogger.getIncarnation(segments[i]);
+            for (int j = records.size() - 1; j >= 0; j--) {
+                lp.execute(ByteBuffer.wrap(records.get(j)));
+                //an incarnation that crashed before logging the timestamp oracle
+                //is not enough, keep on reading the previous one
+                if (lp.finishedRecovery() && lp.hasTimestampOracle())
+                    return incarnation;
+            }
+        }
+        return incarnation;
+    }
+
+    @Override
+    public void shutdown() {
+        logger.shutdown();
+    }
+}
@@ -0,0 +1,413 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.tso.persistence;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.codefollower.lealone.omid.tso.persistence.LoggerAsyncCallback.AddRecordCallback;
+import com.codefollower.lealone.omid.tso.persistence.LoggerAsyncCallback.LoggerInitCallback;
+import com.codefollower.lealone.omid.tso.persistence.LoggerException.Code;
+
+/**
+ * Local disk implementation of StateLogger.
+ *
+ * Records are appended to preallocated segment files in the WAL directory.
+ * Each incarnation of the TSO writes its own sequence of segments, named
+ * wal-<incarnation>-<sequence>.log, so that the builder can tell where the
+ * log of the last incarnation starts. Every record is stored as its length,
+ * its CRC32 and its bytes; a zero length or a CRC mismatch marks the end of
+ * the written part of a segment.
+ *
+ * A single writer thread appends the records and forces the channel once for
+ * all the records queued while the previous force was running (group commit).
+ * Callbacks are invoked in the order the records were added, after the force.
+ *
+ * If a batch fails, the part of it already written is zeroed, so that none of
+ * its records is replayed although its callbacks were told it failed, and the
+ * next batch starts at the end of the previous one again. If that isn't
+ * possible either, the logger is disabled and fails all later records.
+ */
+class LocalStateLogger implements StateLogger {
+    private static final Log LOG = LogFactory.getLog(LocalStateLogger.class);
+
+    static final long SEGMENT_SIZE = Long.getLong("omid.wal.segmentSize", 64 * 1024 * 1024);
+    private static final String LOCK_FILE = "LOCK";
+    private static final String PREFIX = "wal-";
+    private static final String SUFFIX = ".log";
+    private static final int HEADER_SIZE = 8;
+    private static final PendingRecord STOP = new PendingRecord(null, null, null);
+
+    private final File dir;
+    private final BlockingQueue<PendingRecord> queue = new LinkedBlockingQueue<PendingRecord>();
+
+    private RandomAccessFile lockFile;
+    private FileLock lock;
+
+    private long recoveredIncarnation;
+    private long incarnation;
+    private long sequence;
+    private File segment;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private Thread writer;
+
+    /**
+     * Flag to determine whether this logger is operating or not.
+     */
+    private volatile boolean enabled = false;
+
+    LocalStateLogger(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Locks the WAL directory, so that two TSO instances never write to the
+     * same log.
+     *
+     * @throws LoggerException if the directory can't be created or is locked
+     */
+    void lock() throws LoggerException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            LOG.error("Couldn't create WAL directory " + dir);
+            throw LoggerException.create(Code.LOCALOPFAILED);
+        }
+        try {
+            lockFile = new RandomAccessFile(new File(dir, LOCK_FILE), "rw");
+            lock = lockFile.getChannel().tryLock();
+        } catch (IOException e) {
+            LOG.error("Failed to lock WAL directory " + dir, e);
+            lock = null;
+        }
+        if (lock == null) {
+            LOG.warn("WAL directory " + dir + " is locked by another process");
+            close(lockFile);
+            lockFile = null;
+            throw LoggerException.create(Code.INITLOCKFAILED);
+        }
+    }
+
+    /**
+     * Returns the segments of the log, oldest first.
+     */
+    File[] getSegments() {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }
+        });
+        if (files == null)
+            return new File[0];
+        //names are zero padded, so the lexical order is the log order
+        Arrays.sort(files);
+        return files;
+    }
+
+    static long getIncarnation(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(PREFIX.length(), name.indexOf('-', PREFIX.length())));
+    }
+
+    /**
+     * Sets the incarnation the state was recovered from. Its segments and the
+     * newer ones are kept when the log is initialized.
+     */
+    void setRecoveredIncarnation(long recoveredIncarnation) {
+        this.recoveredIncarnation = recoveredIncarnation;
+    }
+
+    /**
+     * Reads all the records written to a segment.
+     *
+     * @param segment segment file
+     * @return records in the order they were written
+     * @throws IOException
+     */
+    static List<byte[]> readRecords(File segment) throws IOException {
+        List<byte[]> records = new ArrayList<byte[]>();
+        RandomAccessFile in = new RandomAccessFile(segment, "r");
+        try {
+            ByteBuffer bb = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+            CRC32 crc = new CRC32();
+            while (bb.remaining() >= HEADER_SIZE) {
+                int length = bb.getInt();
+                int checksum = bb.getInt();
+                if (length <= 0 || length > bb.remaining())
+                    break;
+                byte[] record = new byte[length];
+                bb.get(record);
+                crc.reset();
+                crc.update(record);
+                if ((int) crc.getValue() != checksum) {
+                    LOG.warn("Checksum mismatch in " + segment + ", ignoring the rest of the segment");
+                    break;
+                }
+                records.add(record);
+            }
+        } finally {
+            in.close();
+        }
+        return records;
+    }
+
+    /**
+     * Starts a new incarnation of the log. Segments older than the incarnation
+     * the state was recovered from are no longer needed and are deleted.
+     */
+    @Override
+    public void initialize(LoggerInitCallback cb, Object ctx) throws LoggerException {
+        File[] segments = getSegments();
+        long last = segments.length == 0 ? 0 : getIncarnation(segments[segments.length - 1]);
+        for (File segment : segments) {
+            if (getIncarnation(segment) < recoveredIncarnation && !segment.delete()) {
+                LOG.warn("Couldn't delete old segment " + segment);
+            }
+        }
+        incarnation = last + 1;
+        sequence = 0;
+        try {
+            openSegment();
+        } catch (IOException e) {
+            LOG.error("Failed to create segment in " + dir, e);
+            cb.loggerInitComplete(Code.LOCALOPFAILED, this, ctx);
+            return;
+        }
+
+        writer = new Thread(new Writer(), "TSO WAL writer");
+        writer.setDaemon(true);
+        enabled = true;
+        writer.start();
+        cb.loggerInitComplete(Code.OK, this, ctx);
+    }
+
+    /**
+     * Adds a record to the log of operations. The record is a byte array.
+     *
+     * @param record
+     * @param cb
+     * @param ctx
+     */
+    @Override
+    public void addRecord(byte[] record, AddRecordCallback cb, Object ctx) {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Adding record.");
+        }
+
+        if (enabled) {
+            queue.add(new PendingRecord(record, cb, ctx));
+        } else {
+            cb.addRecordComplete(Code.LOGGERDISABLED, ctx);
+        }
+    }
+
+    /**
+     * Shuts down this logger.
+     */
+    @Override
+    public void shutdown() {
+        enabled = false;
+        if (writer != null) {
+            //let the writer finish the records already queued instead of interrupting
+            //it, an interrupt would close the channel in the middle of a write
+            queue.add(STOP);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writer = null;
+        }
+        close(file);
+        file = null;
+        channel = null;
+        try {
+            if (lock != null)
+                lock.release();
+        } catch (IOException e) {
+            LOG.warn("Failed to release WAL directory lock", e);
+        }
+        lock = null;
+        close(lockFile);
+        lockFile = null;
+    }
+
+    private void openSegment() throws IOException {
+        close(file);
+        segment = new File(dir, String.format("%s%010d-%010d%s", PREFIX, incarnation, sequence++, SUFFIX));
+        file = new RandomAccessFile(segment, "rw");
+        channel = file.getChannel();
+
+        //write zeros instead of only setting the length, so that forcing a record
+        //doesn't have to update the file metadata as well
+        fillZeros(0, SEGMENT_SIZE);
+        channel.force(true);
+        channel.position(0);
+    }
+
+    private void fillZeros(long pos, long end) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocate(1024 * 1024);
+        while (pos < end) {
+            zeros.clear();
+            if (end - pos < zeros.capacity())
+                zeros.limit((int) (end - pos));
+            pos += channel.write(zeros, pos);
+        }
+    }
+
+    /**
+     * Erases what a failed batch has written, so that the log ends where it
+     * ended before the batch.
+     *
+     * @param goodSegment the segment the batch started in
+     * @param goodSequence the sequence number following that segment
+     * @param goodPosition the position the batch started at
+     * @throws IOException
+     */
+    private void rollback(File goodSegment, long goodSequence, long goodPosition) throws IOException {
+        long end;
+        if (goodSegment.equals(segment)) {
+            end = channel.position();
+        } else {
+            //the segments opened by the batch only hold records of the batch
+            close(file);
+            file = null;
+            channel = null;
+            for (File s : getSegments()) {
+                if (s.compareTo(goodSegment) > 0 && !s.delete())
+                    throw new IOException("Couldn't delete segment " + s);
+            }
+            segment = goodSegment;
+            sequence = goodSequence;
+            file = new RandomAccessFile(goodSegment, "rw");
+            channel = file.getChannel();
+            end = SEGMENT_SIZE;
+        }
+        fillZeros(goodPosition, Math.max(end, goodPosition + HEADER_SIZE));
+        channel.force(false);
+        channel.position(goodPosition);
+    }
+
+    /**
+     * Appends a record to the current segment, or to a new one if it is full.
+     * The channel is forced by the caller.
+     *
+     * @param record
+     * @throws IOException
+     */
+    void write(byte[] record) throws IOException {
+        if (channel.position() + HEADER_SIZE + record.length > SEGMENT_SIZE) {
+            if (channel.position() == 0)
+                throw new IOException("Record of " + record.length + " bytes doesn't fit in a segment");
+            channel.force(false);
+            openSegment();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        ByteBuffer bb = ByteBuffer.allocate(HEADER_SIZE + record.length);
+        bb.putInt(record.length);
+        bb.putInt((int) crc.getValue());
+        bb.put(record);
+        bb.flip();
+        while (bb.hasRemaining())
+            channel.write(bb);
+    }
+
+    private static void close(RandomAccessFile f) {
+        if (f != null) {
+            try {
+                f.close();
+            } catch (IOException e) {
+                LOG.warn("Failed to close " + f, e);
+            }
+        }
+    }
+
+    private static class PendingRecord {
+        final byte[] record;
+        final AddRecordCallback cb;
+        final Object ctx;
+
+        PendingRecord(byte[] record, AddRecordCallback cb, Object ctx) {
+            this.record = record;
+            this.cb = cb;
+            this.ctx = ctx;
+        }
+    }
+
+    private class Writer implements Runnable {
+        @Override
+        public void run() {
+            List<PendingRecord> batch = new ArrayList<PendingRecord>();
+            boolean stopped = false;
+            boolean failed = false;
+            while (!stopped) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                queue.drainTo(batch);
+                stopped = batch.remove(STOP);
+
+                int rc = Code.OK;
+                if (failed) {
+                    rc = Code.LOGGERDISABLED;
+                } else if (!batch.isEmpty()) {
+                    File goodSegment = segment;
+                    long goodSequence = sequence;
+                    long goodPosition = -1;
+                    try {
+                        goodPosition = channel.position();
+                        for (PendingRecord r : batch)
+                            write(r.record);
+                        channel.force(false);
+                    } catch (IOException e) {
+                        LOG.error("Failed to write to the WAL", e);
+                        rc = Code.ADDFAILED;
+                        try {
+                            if (goodPosition < 0)
+                                throw e;
+                            rollback(goodSegment, goodSequence, goodPosition);
+                        } catch (IOException e2) {
+                            LOG.error("Failed to erase the failed records from the WAL, disabling the logger", e2);
+                            enabled = false;
+                            failed = true;
+                        }
+                    }
+                }
+                for (PendingRecord r : batch)
+                    r.cb.addRecordComplete(rc, r.ctx);
+                batch.clear();
+            }
+        }
+    }
+}
@@ -127,6 +127,15 @@ public class LoggerProtocol extends TSOState {
         return (oracle && commits && aborts) || consumed;
     }
 
+    /**
+     * Checks whether the timestamp oracle has been recovered from the log.
+     * 
+     * @return true if a timestamp oracle record has been executed
+     */
+    boolean hasTimestampOracle() {
+        return oracle;
+    }
+
     /**
      * Returns a TSOState object based on this object.
      * 
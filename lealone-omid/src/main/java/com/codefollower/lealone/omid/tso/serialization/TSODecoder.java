@@ -34,6 +34,8 @@ import com.codefollower.lealone.omid.tso.messages.CommitResponse;
 import com.codefollower.lealone.omid.tso.messages.CommittedTransactionReport;
 import com.codefollower.lealone.omid.tso.messages.FullAbortRequest;
 import com.codefollower.lealone.omid.tso.messages.LargestDeletedTimestampReport;
+import com.codefollower.lealone.omid.tso.messages.MultiRequest;
+import com.codefollower.lealone.omid.tso.messages.MultiResponse;
 import com.codefollower.lealone.omid.tso.messages.TimestampRequest;
 import com.codefollower.lealone.omid.tso.messages.TimestampResponse;
 
@@ -99,6 +101,12 @@ public class TSODecoder extends FrameDecoder {
             case TSOMessage.FullAbortReport:
                 msg = new FullAbortRequest();
                 break;
+            case TSOMessage.MultiRequest:
+                msg = new MultiRequest();
+                break;
+            case TSOMessage.MultiResponse:
+                msg = new MultiResponse();
+                break;
             default:
                 throw new Exception("Wrong type " + type + " (" + Integer.toHexString(type) + ") " + buf.toString().length());
             }
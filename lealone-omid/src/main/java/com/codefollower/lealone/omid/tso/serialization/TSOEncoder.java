@@ -37,6 +37,8 @@ import com.codefollower.lealone.omid.tso.messages.CommitResponse;
 import com.codefollower.lealone.omid.tso.messages.CommittedTransactionReport;
 import com.codefollower.lealone.omid.tso.messages.FullAbortRequest;
 import com.codefollower.lealone.omid.tso.messages.LargestDeletedTimestampReport;
+import com.codefollower.lealone.omid.tso.messages.MultiRequest;
+import com.codefollower.lealone.omid.tso.messages.MultiResponse;
 import com.codefollower.lealone.omid.tso.messages.TimestampRequest;
 import com.codefollower.lealone.omid.tso.messages.TimestampResponse;
 
@@ -74,6 +76,10 @@ public class TSOEncoder extends OneToOneEncoder {
             objWrapper.writeByte(TSOMessage.LargestDeletedTimestampReport);
         } else if (msg instanceof ZipperState) {
             objWrapper.writeByte(TSOMessage.ZipperState);
+        } else if (msg instanceof MultiRequest) {
+            objWrapper.writeByte(TSOMessage.MultiRequest);
+        } else if (msg instanceof MultiResponse) {
+            objWrapper.writeByte(TSOMessage.MultiResponse);
         } else
             throw new Exception("Wrong obj");
         ((TSOMessage) msg).writeObject(objWrapper);
@@ -105,11 +105,14 @@ public class OmidTestBase {
 
         // HBase setup
         hbaseConf = HBaseConfiguration.create();
-        hbaseConf.set("hbase.coprocessor.region.classes", "com.codefollower.lealone.omid.client.regionserver.Compacter");
+        hbaseConf.set("hbase.coprocessor.region.classes", "com.codefollower.lealone.omid.client.regionserver.Compacter,"
+                + "com.codefollower.lealone.omid.client.regionserver.SnapshotFilter");
         hbaseConf.setInt("hbase.hregion.memstore.flush.size", 100 * 1024);
         hbaseConf.setInt("hbase.regionserver.nbreservationblocks", 1);
         hbaseConf.set("tso.host", "localhost");
         hbaseConf.setInt("tso.port", 1234);
+        // the transactional tests read through the SnapshotFilter
+        hbaseConf.setBoolean("tso.snapshot.filter", true);
         final String rootdir = "/tmp/hbase.test.dir/";
         File rootdirFile = new File(rootdir);
         if (rootdirFile.exists()) {
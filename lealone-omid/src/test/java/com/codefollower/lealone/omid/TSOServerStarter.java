@@ -25,7 +25,9 @@ import com.codefollower.lealone.omid.tso.TSOServer;
 
 /**
  * 
- * 如果出现java.lang.UnsatisfiedLinkError: no tso-commithashmap in java.library.path
+ * 默认使用纯Java实现的CommitHashMap，只有加上VM参数-Domid.commitHashMap=native时才需要tso-commithashmap库。
+ * 
+ * 此时如果出现java.lang.UnsatisfiedLinkError: no tso-commithashmap in java.library.path
  * 
  * 请加上VM参数: -Djava.library.path=<tso-commithashmap path> (见下面的输出信息"tso-commithashmap path: ")
  * 
@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestCommitStatusCache {
+    //the smallest table, every transaction can use every slot
+    private static final int CAPACITY = 16;
+    private static final long RANGE = CommitStatusCache.EVICTION_RANGE;
+
+    @Test
+    public void testHitAndMiss() {
+        CommitStatusCache cache = new CommitStatusCache(CAPACITY);
+        assertEquals(CommitStatusCache.UNKNOWN, cache.get(10));
+
+        cache.commit(10, 12);
+        cache.abort(11);
+        assertEquals(12, cache.get(10));
+        assertEquals(CommitStatusCache.ABORTED, cache.get(11));
+        assertEquals(CommitStatusCache.UNKNOWN, cache.get(13));
+
+        //a commit query may answer after the report
+        cache.commit(10, 12);
+        assertEquals(12, cache.get(10));
+
+        cache.clean(11);
+        assertEquals(CommitStatusCache.UNKNOWN, cache.get(11));
+
+        cache.clear();
+        assertEquals(CommitStatusCache.UNKNOWN, cache.get(10));
+        assertFalse(cache.mayBeEvicted(10));
+    }
+
+    @Test
+    public void testEvictionIsTrackedByRange() {
+        CommitStatusCache cache = new CommitStatusCache(CAPACITY);
+        //one transaction per range
+        for (int i = 1; i <= CAPACITY; i++)
+            cache.commit(i * RANGE, i * RANGE + 1);
+        for (int i = 1; i <= CAPACITY; i++) {
+            assertEquals(i * RANGE + 1, cache.get(i * RANGE));
+            assertFalse(cache.mayBeEvicted(i * RANGE));
+        }
+
+        //the oldest commit makes room
+        long newest = (CAPACITY + 1) * RANGE;
+        cache.commit(newest, newest + 1);
+        assertEquals(newest + 1, cache.get(newest));
+        assertEquals(CommitStatusCache.UNKNOWN, cache.get(RANGE));
+        assertTrue(cache.mayBeEvicted(RANGE));
+        assertTrue(cache.mayBeEvicted(2 * RANGE - 1));
+        //the transactions of other ranges are still known or known not to have committed
+        assertFalse(cache.mayBeEvicted(RANGE - 1));
+        assertFalse(cache.mayBeEvicted(2 * RANGE));
+        assertFalse(cache.mayBeEvicted(newest));
+        assertFalse(cache.mayBeEvicted(newest + RANGE));
+
+        //a later eviction doesn't make the ranges in between uncertain
+        cache.commit(newest + RANGE, newest + RANGE + 1);
+        assertTrue(cache.mayBeEvicted(2 * RANGE));
+        assertFalse(cache.mayBeEvicted(3 * RANGE));
+
+        //TSO forgets them as well
+        cache.raiseLargestDeletedTimestamp(2 * RANGE);
+        assertFalse(cache.mayBeEvicted(RANGE));
+        assertTrue(cache.mayBeEvicted(2 * RANGE));
+        cache.raiseLargestDeletedTimestamp(3 * RANGE);
+        assertFalse(cache.mayBeEvicted(2 * RANGE));
+    }
+
+    @Test
+    public void testDeletedCommitsAreEvictedFirst() {
+        CommitStatusCache cache = new CommitStatusCache(CAPACITY);
+        for (int i = 1; i <= CAPACITY; i++)
+            cache.commit(i * RANGE, i * RANGE + 1);
+        //TSO has forgotten the oldest commits, replacing one of them loses nothing
+        cache.raiseLargestDeletedTimestamp(2 * RANGE - 1);
+        long newest = (CAPACITY + 1) * RANGE;
+        cache.commit(newest, newest + 1);
+        assertEquals(newest + 1, cache.get(newest));
+        assertEquals(CommitStatusCache.UNKNOWN, cache.get(RANGE));
+        assertFalse(cache.mayBeEvicted(RANGE));
+
+        //then the oldest commit above the largest deleted timestamp
+        cache.commit(newest + RANGE, newest + RANGE + 1);
+        assertEquals(CommitStatusCache.UNKNOWN, cache.get(2 * RANGE));
+        assertTrue(cache.mayBeEvicted(2 * RANGE));
+        assertEquals(3 * RANGE + 1, cache.get(3 * RANGE));
+        assertFalse(cache.mayBeEvicted(3 * RANGE));
+    }
+
+    @Test
+    public void testAbortsAreNotEvicted() {
+        CommitStatusCache cache = new CommitStatusCache(CAPACITY);
+        for (int i = 1; i <= CAPACITY; i++)
+            cache.abort(i * RANGE);
+        //no room for another abort, it's kept aside
+        long extra = (CAPACITY + 1) * RANGE;
+        cache.abort(extra);
+        for (int i = 1; i <= CAPACITY + 1; i++)
+            assertEquals(CommitStatusCache.ABORTED, cache.get(i * RANGE));
+
+        //no room for a commit either, so it may be missing
+        long commit = (CAPACITY + 2) * RANGE;
+        cache.commit(commit, commit + 1);
+        assertEquals(CommitStatusCache.UNKNOWN, cache.get(commit));
+        assertTrue(cache.mayBeEvicted(commit));
+
+        cache.clean(extra);
+        assertEquals(CommitStatusCache.UNKNOWN, cache.get(extra));
+        cache.clean(RANGE);
+        cache.commit(commit, commit + 1);
+        assertEquals(commit + 1, cache.get(commit));
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class TestPendingRequests {
+
+    @Test
+    public void testPutIfAbsent() {
+        PendingRequests<String> pending = new PendingRequests<String>(64);
+        assertEquals(null, pending.putIfAbsent(10, "a"));
+        assertEquals("a", pending.putIfAbsent(10, "b"));
+        assertTrue(pending.containsKey(10));
+        assertEquals("a", pending.remove(10));
+        assertFalse(pending.containsKey(10));
+        assertEquals(null, pending.remove(10));
+        assertEquals(null, pending.putIfAbsent(10, "b"));
+        assertEquals("b", pending.remove(10));
+    }
+
+    @Test
+    public void testFull() {
+        //every key probes the whole table
+        PendingRequests<String> pending = new PendingRequests<String>(1);
+        List<String> values = new ArrayList<String>();
+        for (long key = 1; key <= 64; key++) {
+            String value = "v" + key;
+            String result = pending.putIfAbsent(key, value);
+            if (result == value)
+                break;
+            assertEquals(null, result);
+            values.add(value);
+        }
+        String extra = "extra";
+        assertTrue(extra == pending.putIfAbsent(1000, extra));
+        assertEquals(values.size(), pending.removeAll().size());
+        assertEquals(null, pending.putIfAbsent(1000, extra));
+    }
+
+    @Test
+    public void testConcurrentPutsOfTheSameKey() throws Exception {
+        final PendingRequests<Integer> pending = new PendingRequests<Integer>(1024);
+        final int threads = 8;
+        for (long key = 1; key <= 200; key++) {
+            final long k = key;
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicInteger added = new AtomicInteger();
+            Thread[] ts = new Thread[threads];
+            for (int i = 0; i < threads; i++) {
+                final int value = i;
+                ts[i] = new Thread() {
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        if (pending.putIfAbsent(k, value) == null)
+                            added.incrementAndGet();
+                    }
+                };
+                ts[i].start();
+            }
+            start.countDown();
+            for (Thread t : ts)
+                t.join();
+            assertEquals(1, added.get());
+            pending.remove(k);
+            assertFalse(pending.containsKey(k));
+        }
+    }
+
+    @Test
+    public void testConcurrentPutsAndRemoves() throws Exception {
+        final PendingRequests<Long> pending = new PendingRequests<Long>(64);
+        final int threads = 8;
+        final int rounds = 200000;
+        final AtomicLong nextValue = new AtomicLong();
+        final AtomicInteger added = new AtomicInteger();
+        final AtomicInteger removed = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] ts = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final long seed = i;
+            ts[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int r = 0; r < rounds; r++) {
+                        //two keys, so that the threads keep removing each other's requests
+                        long key = 1 + (seed * 31 + r) % 2;
+                        if (pending.putIfAbsent(key, nextValue.incrementAndGet()) == null)
+                            added.incrementAndGet();
+                        if (pending.remove(1 + (seed + r) % 2) != null)
+                            removed.incrementAndGet();
+                    }
+                }
+            };
+            ts[i].start();
+        }
+        start.countDown();
+        for (Thread t : ts)
+            t.join();
+        //every request that was added is removed exactly once, none is lost
+        assertEquals(added.get(), removed.get() + pending.removeAll().size());
+        for (long key = 1; key <= 2; key++)
+            assertFalse(pending.containsKey(key));
+    }
+}
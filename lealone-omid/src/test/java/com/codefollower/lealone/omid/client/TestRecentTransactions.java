@@ -0,0 +1,97 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.client;
+
+import static com.codefollower.lealone.omid.client.TransactionSnapshot.INVISIBLE;
+import static com.codefollower.lealone.omid.client.TransactionSnapshot.UNKNOWN;
+import static com.codefollower.lealone.omid.client.TransactionSnapshot.VISIBLE;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TestRecentTransactions {
+    private static final int WINDOW = 100;
+
+    @Test
+    public void testSnapshot() {
+        RecentTransactions recent = new RecentTransactions(WINDOW);
+        recent.commit(10, 12);
+        recent.commit(20, 30);
+        recent.abort(15);
+        recent.abort(16);
+        recent.clean(16);
+
+        TransactionSnapshot s = recent.getSnapshot(25, WINDOW, 0, -1);
+        assertEquals(VISIBLE, s.isVisible(10));
+        assertEquals(INVISIBLE, s.isVisible(15));
+        assertEquals(UNKNOWN, s.isVisible(16));
+        assertEquals(INVISIBLE, s.isVisible(20));
+        assertEquals(UNKNOWN, s.isVisible(11));
+
+        //a smaller window leaves the older transactions to the client
+        s = recent.getSnapshot(25, 12, 0, -1);
+        assertEquals(UNKNOWN, s.isVisible(10));
+        assertEquals(INVISIBLE, s.isVisible(15));
+
+        s = recent.getSnapshot(35, WINDOW, 0, -1);
+        assertEquals(VISIBLE, s.isVisible(20));
+
+        recent.clear();
+        assertEquals(UNKNOWN, recent.getSnapshot(35, WINDOW, 0, -1).isVisible(20));
+    }
+
+    @Test
+    public void testOldTransactionsAreDropped() {
+        RecentTransactions recent = new RecentTransactions(WINDOW);
+        for (long t = 1; t <= 3 * WINDOW; t++) {
+            if (t % 3 == 0)
+                recent.abort(t);
+            else
+                recent.commit(t, t + 1);
+        }
+        long start = 3 * WINDOW + 1;
+        TransactionSnapshot s = recent.getSnapshot(start, 3 * WINDOW, 0, -1);
+        //only the last window is known, even if a larger one is asked for
+        for (long t = 1; t <= 2 * WINDOW; t++)
+            assertEquals(UNKNOWN, s.isVisible(t));
+        for (long t = 2 * WINDOW + 1; t < start; t++)
+            assertEquals(t % 3 == 0 ? INVISIBLE : VISIBLE, s.isVisible(t));
+
+        //too late, it could be mistaken for a complete window
+        recent.commit(WINDOW, WINDOW + 1);
+        assertEquals(UNKNOWN, recent.getSnapshot(start, 3 * WINDOW, 0, -1).isVisible(WINDOW));
+    }
+
+    @Test
+    public void testReportsOutOfOrder() {
+        RecentTransactions recent = new RecentTransactions(WINDOW);
+        recent.commit(2 * WINDOW, 2 * WINDOW + 1);
+        //still in the window of the newest one
+        recent.commit(WINDOW + 1, 2 * WINDOW + 2);
+        recent.abort(WINDOW + 2);
+        TransactionSnapshot s = recent.getSnapshot(2 * WINDOW + 3, WINDOW + 3, 0, -1);
+        assertEquals(VISIBLE, s.isVisible(2 * WINDOW));
+        assertEquals(VISIBLE, s.isVisible(WINDOW + 1));
+        assertEquals(INVISIBLE, s.isVisible(WINDOW + 2));
+
+        //behind it
+        recent.commit(WINDOW, WINDOW + 1);
+        s = recent.getSnapshot(2 * WINDOW + 3, 2 * WINDOW, 0, -1);
+        assertEquals(UNKNOWN, s.isVisible(WINDOW));
+        assertEquals(VISIBLE, s.isVisible(WINDOW + 1));
+    }
+}
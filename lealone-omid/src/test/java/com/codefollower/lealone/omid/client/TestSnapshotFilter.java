@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import com.codefollower.lealone.omid.OmidTestBase;
+
+public class TestSnapshotFilter extends OmidTestBase {
+    private final byte[] row = Bytes.toBytes("row");
+    private final byte[] fam = Bytes.toBytes(TEST_FAMILY);
+    private final byte[] col = Bytes.toBytes("col");
+    private final byte[] committed = Bytes.toBytes("committed");
+    private final byte[] uncommitted = Bytes.toBytes("uncommitted");
+    private final byte[] aborted = Bytes.toBytes("aborted");
+
+    @Test
+    public void testUncommittedAndAbortedWritesAreHidden() throws Exception {
+        TransactionManager tm = new TransactionManager(hbaseConf);
+        TransactionalTable tt = new TransactionalTable(hbaseConf, TEST_TABLE);
+
+        TransactionState t0 = tm.beginTransaction();
+        put(tt, t0, committed);
+        tm.tryCommit(t0);
+
+        //still running when the snapshot is read
+        TransactionState t1 = tm.beginTransaction();
+        put(tt, t1, uncommitted);
+
+        //aborted but not cleaned up yet, like the writes of a client that died
+        TransactionState t2 = tm.beginTransaction();
+        put(tt, t2, aborted);
+        t2.tsoclient.abort(t2.getStartTimestamp());
+
+        TransactionState reader = tm.beginTransaction();
+        assertTrue(Bytes.equals(committed, tt.get(reader, new Get(row).addColumn(fam, col)).getValue(fam, col)));
+
+        ResultScanner rs = tt.getScanner(reader, new Scan().addColumn(fam, col));
+        Result r = rs.next();
+        assertTrue(Bytes.equals(committed, r.getValue(fam, col)));
+        assertNull(rs.next());
+        rs.close();
+
+        //the region server has already dropped them
+        HTable table = new HTable(hbaseConf, TEST_TABLE);
+        Get get = new Get(row).addColumn(fam, col).setMaxVersions();
+        assertEquals(3, table.get(get).size());
+        get.setAttribute(TransactionSnapshot.ATTRIBUTE,
+                reader.tsoclient.getSnapshot(reader.getStartTimestamp(), Integer.MAX_VALUE).toBytes());
+        KeyValue[] kvs = table.get(get).raw();
+        assertEquals(1, kvs.length);
+        assertEquals(t0.getStartTimestamp(), kvs[0].getTimestamp());
+        table.close();
+
+        //without the filter the client drops them itself
+        Configuration conf = new Configuration(hbaseConf);
+        conf.setBoolean("tso.snapshot.filter", false);
+        TransactionalTable clientSide = new TransactionalTable(conf, TEST_TABLE);
+        assertTrue(Bytes.equals(committed, clientSide.get(reader, new Get(row).addColumn(fam, col)).getValue(fam, col)));
+        clientSide.close();
+
+        tm.abort(t1);
+        tt.close();
+    }
+
+    private void put(TransactionalTable tt, TransactionState t, byte[] value) throws Exception {
+        Put p = new Put(row);
+        p.add(fam, col, value);
+        tt.put(t, p);
+    }
+}
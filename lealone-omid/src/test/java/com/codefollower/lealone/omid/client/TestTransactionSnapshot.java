@@ -0,0 +1,135 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.client;
+
+import static com.codefollower.lealone.omid.client.TransactionSnapshot.INVISIBLE;
+import static com.codefollower.lealone.omid.client.TransactionSnapshot.UNKNOWN;
+import static com.codefollower.lealone.omid.client.TransactionSnapshot.VISIBLE;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+public class TestTransactionSnapshot {
+    private static final byte[] ROW = Bytes.toBytes("row");
+    private static final byte[] FAMILY = Bytes.toBytes("f");
+
+    //start 100, window (50, 100], 60 and 70 committed before 100, 80 after it, 65 aborted
+    private static TransactionSnapshot snapshot(long largestDeletedTimestamp, long connectionTimestamp) {
+        return new TransactionSnapshot(100, 50, largestDeletedTimestamp, connectionTimestamp, new long[] { 60, 70, 80 },
+                new long[] { 61, 99, 101 }, new long[] { 65 });
+    }
+
+    @Test
+    public void testIsVisible() {
+        TransactionSnapshot s = snapshot(0, -1);
+        assertEquals(VISIBLE, s.isVisible(100));
+        assertEquals(INVISIBLE, s.isVisible(101));
+        assertEquals(VISIBLE, s.isVisible(60));
+        assertEquals(VISIBLE, s.isVisible(70));
+        assertEquals(INVISIBLE, s.isVisible(80));
+        assertEquals(INVISIBLE, s.isVisible(65));
+        //nothing heard of them
+        assertEquals(UNKNOWN, s.isVisible(90));
+        //below the window the client decides
+        assertEquals(UNKNOWN, s.isVisible(50));
+        assertEquals(UNKNOWN, s.isVisible(10));
+    }
+
+    @Test
+    public void testLargestDeletedTimestamp() {
+        TransactionSnapshot s = snapshot(75, -1);
+        //TSO has forgotten them, they committed unless reported aborted
+        assertEquals(VISIBLE, s.isVisible(55));
+        assertEquals(VISIBLE, s.isVisible(75));
+        assertEquals(INVISIBLE, s.isVisible(65));
+        assertEquals(UNKNOWN, s.isVisible(76));
+        assertEquals(UNKNOWN, s.isVisible(50));
+    }
+
+    @Test
+    public void testConnectionTimestamp() {
+        //every commit after the connection was reported to the client
+        TransactionSnapshot s = snapshot(75, 72);
+        assertEquals(INVISIBLE, s.isVisible(90));
+        assertEquals(VISIBLE, s.isVisible(73));
+        assertEquals(VISIBLE, s.isVisible(70));
+        assertEquals(INVISIBLE, s.isVisible(80));
+        assertEquals(VISIBLE, s.isVisible(55));
+    }
+
+    @Test
+    public void testToBytes() {
+        TransactionSnapshot s = TransactionSnapshot.fromBytes(snapshot(75, 72).toBytes());
+        assertEquals(100, s.getStartTimestamp());
+        for (long t = 0; t <= 110; t++)
+            assertEquals(snapshot(75, 72).isVisible(t), s.isVisible(t));
+
+        s = TransactionSnapshot.fromBytes(new TransactionSnapshot(10, 0, 0, -1, new long[0], new long[0], new long[0])
+                .toBytes());
+        assertEquals(VISIBLE, s.isVisible(10));
+        assertEquals(UNKNOWN, s.isVisible(5));
+    }
+
+    @Test
+    public void testFilter() {
+        TransactionSnapshot s = snapshot(0, -1);
+        List<KeyValue> kvs = new ArrayList<KeyValue>();
+        //newest first: invisible, unknown, visible, then older versions that are dropped
+        kvs.add(kv("a", 101));
+        kvs.add(kv("a", 80));
+        kvs.add(kv("a", 90));
+        kvs.add(kv("a", 70));
+        kvs.add(kv("a", 60));
+        kvs.add(kv("a", 10));
+        //only invisible versions
+        kvs.add(kv("b", 80));
+        kvs.add(kv("b", 65));
+        //only unknown versions, too many of them
+        for (int t = 49; t > 30; t--)
+            kvs.add(kv("c", t));
+        //the snapshot's own write
+        kvs.add(kv("d", 100));
+        kvs.add(kv("d", 60));
+
+        List<KeyValue> filtered = s.filter(kvs);
+        List<String> expected = new ArrayList<String>();
+        expected.add("a/90");
+        expected.add("a/70");
+        for (int t = 49; t > 41; t--)
+            expected.add("c/" + t);
+        expected.add("d/100");
+        assertEquals(expected, toStrings(filtered));
+
+        assertEquals(0, s.filter(new ArrayList<KeyValue>()).size());
+    }
+
+    private static KeyValue kv(String qualifier, long timestamp) {
+        return new KeyValue(ROW, FAMILY, Bytes.toBytes(qualifier), timestamp, Bytes.toBytes(timestamp));
+    }
+
+    private static List<String> toStrings(List<KeyValue> kvs) {
+        List<String> strings = new ArrayList<String>(kvs.size());
+        for (KeyValue kv : kvs)
+            strings.add(Bytes.toString(kv.getQualifier()) + "/" + kv.getTimestamp());
+        return strings;
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.tso;
+
+import java.util.Random;
+
+/**
+ * Measures commit-conflict checks per second of the CommitHashMap
+ * implementations, using the same get-then-put pattern as TSOHandler.
+ * 
+ * The native map is only measured when the tso-commithashmap library can be
+ * loaded (add -Djava.library.path=...).
+ */
+public class CommitHashMapBenchmark {
+    private static final int ROWS_PER_COMMIT = 10;
+    private static final int KEY_SPACE = 1000000;
+
+    public static void main(String[] args) {
+        int capacity = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int commits = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+
+        RowKey[] keys = new RowKey[KEY_SPACE];
+        byte[] table = "benchmark".getBytes();
+        for (int i = 0; i < KEY_SPACE; i++) {
+            keys[i] = new RowKey(("row" + i).getBytes(), table);
+        }
+
+        //warm up, then measure
+        run("java", new JavaCommitHashMap(capacity, TSOState.LOAD_FACTOR), keys, commits / 10);
+        run("java", new JavaCommitHashMap(capacity, TSOState.LOAD_FACTOR), keys, commits);
+
+        CommitHashMap nativeMap;
+        try {
+            nativeMap = new NativeCommitHashMap(capacity, TSOState.LOAD_FACTOR);
+        } catch (UnsatisfiedLinkError e) {
+            System.out.println("native: skipped, " + e.getMessage());
+            return;
+        }
+        //the native map has global state, so there is only one instance to warm up and measure
+        run("native", nativeMap, keys, commits);
+    }
+
+    private static void run(String name, CommitHashMap map, RowKey[] keys, int commits) {
+        Random random = new Random(0);
+        long largestDeletedTimestamp = 0;
+        long timestamp = 1;
+        int conflicts = 0;
+        long start = System.nanoTime();
+        for (int c = 0; c < commits; c++) {
+            long startTimestamp = timestamp++;
+            long commitTimestamp = timestamp++;
+            boolean committed = true;
+            int first = random.nextInt(KEY_SPACE - ROWS_PER_COMMIT);
+            for (int i = first; i < first + ROWS_PER_COMMIT; i++) {
+                RowKey r = keys[i];
+                long value = map.get(r.getRow(), r.getTable(), r.hashCode());
+                if (value != 0 && value > startTimestamp) {
+                    committed = false;
+                    break;
+                }
+            }
+            if (committed) {
+                for (int i = first; i < first + ROWS_PER_COMMIT; i++) {
+                    RowKey r = keys[i];
+                    largestDeletedTimestamp = map.put(r.getRow(), r.getTable(), commitTimestamp, r.hashCode(),
+                            largestDeletedTimestamp);
+                }
+                largestDeletedTimestamp = map.setCommitted(startTimestamp, commitTimestamp, largestDeletedTimestamp);
+            } else {
+                conflicts++;
+            }
+        }
+        long ms = Math.max(1, (System.nanoTime() - start) / 1000000);
+        System.out.println(name + ": " + commits + " commits in " + ms + " ms, " + (commits * 1000L / ms)
+                + " commits/s, " + (commits * 1000L * ROWS_PER_COMMIT / ms) + " row checks/s, " + conflicts
+                + " conflicts");
+    }
+}
@@ -17,6 +17,7 @@
 package com.codefollower.lealone.omid.tso;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -154,8 +155,13 @@ public class TSOTestBase {
         Thread.sleep(500);
 
         LOG.info("Starting TSO");
-        tso = new TSOServer(TSOServerConfig.parseConfig(new String[] { "-zk", "127.0.0.1:2181", "-port", "1234", "-ha",
-                recoveryEnabled() + "", "-ensemble", "4", "-quorum", "2", "-batch", "0" }));
+        String[] args = new String[] { "-zk", "127.0.0.1:2181", "-port", "1234", "-ha", recoveryEnabled() + "",
+                "-ensemble", "4", "-quorum", "2", "-batch", "0" };
+        if (singleWriter()) {
+            args = Arrays.copyOf(args, args.length + 1);
+            args[args.length - 1] = "-singleWriter";
+        }
+        tso = new TSOServer(TSOServerConfig.parseConfig(args));
         tsoExecutor = Executors.newSingleThreadExecutor();
         tsoExecutor.execute(tso);
         TestUtils.waitForSocketListening("localhost", 1234, 100);
@@ -197,4 +203,8 @@ public class TSOTestBase {
         return false;
     }
 
+    protected boolean singleWriter() {
+        return false;
+    }
+
 }
\ No newline at end of file
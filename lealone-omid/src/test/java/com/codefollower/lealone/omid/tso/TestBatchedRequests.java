@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.tso;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.junit.Test;
+
+import com.codefollower.lealone.omid.tso.messages.CommitRequest;
+import com.codefollower.lealone.omid.tso.messages.CommitResponse;
+import com.codefollower.lealone.omid.tso.messages.TimestampRequest;
+import com.codefollower.lealone.omid.tso.messages.TimestampResponse;
+
+public class TestBatchedRequests extends TSOTestBase {
+    private static final String BATCHER = "TSOClient request batcher";
+
+    //two requests per frame, the batcher waits for the second one, so the requests are always sent in pairs
+    private static TestClientHandler createClient() throws IOException {
+        Configuration conf = HBaseConfiguration.create();
+        conf.set("tso.host", "localhost");
+        conf.setInt("tso.port", 1234);
+        conf.setBoolean("tso.batch.requests", true);
+        conf.setInt("tso.batch.size", 2);
+        conf.setLong("tso.batch.wait.ms", 10000);
+        TestClientHandler client = new TestClientHandler(conf);
+        client.await();
+        return client;
+    }
+
+    @Test
+    public void testBatchedRequests() throws Exception {
+        TestClientHandler client = createClient();
+
+        client.sendMessage(new TimestampRequest());
+        client.sendMessage(new TimestampRequest());
+        client.receiveBootstrap();
+        TimestampResponse tr1 = client.receiveMessage(TimestampResponse.class);
+        TimestampResponse tr2 = client.receiveMessage(TimestampResponse.class);
+        assertTrue(tr2.timestamp > tr1.timestamp);
+        //TSO answers a MultiRequest only
+        assertEquals(Integer.valueOf(2), client.multiResponses.poll());
+        assertNull(client.multiResponses.poll());
+
+        client.sendMessage(new CommitRequest(tr1.timestamp, new RowKey[] { r1 }));
+        client.sendMessage(new CommitRequest(tr2.timestamp, new RowKey[] { r2 }));
+        CommitResponse cr1 = client.receiveMessage(CommitResponse.class);
+        CommitResponse cr2 = client.receiveMessage(CommitResponse.class);
+        assertTrue(cr1.committed);
+        assertTrue(cr2.committed);
+        Set<Long> committed = new HashSet<Long>();
+        committed.add(cr1.startTimestamp);
+        committed.add(cr2.startTimestamp);
+        assertTrue(committed.contains(tr1.timestamp));
+        assertTrue(committed.contains(tr2.timestamp));
+        assertEquals(Integer.valueOf(2), client.multiResponses.poll());
+        assertNull(client.multiResponses.poll());
+    }
+
+    @Test
+    public void testDuplicateCommitInBatch() throws Exception {
+        TestClientHandler client = createClient();
+
+        client.sendMessage(new TimestampRequest());
+        client.sendMessage(new TimestampRequest());
+        client.receiveBootstrap();
+        TimestampResponse tr = client.receiveMessage(TimestampResponse.class);
+        client.receiveMessage(TimestampResponse.class);
+        client.multiResponses.clear();
+
+        //the second one fails without unregistering the first one, which is sent alone
+        client.sendMessage(new CommitRequest(tr.timestamp, new RowKey[] { r1 }));
+        client.sendMessage(new CommitRequest(tr.timestamp, new RowKey[] { r1 }));
+        CommitResponse cr = client.receiveMessage(CommitResponse.class);
+        assertTrue(cr.committed);
+        assertEquals(tr.timestamp, cr.startTimestamp);
+        assertNull(client.multiResponses.poll());
+    }
+
+    @Test
+    public void testBatcherStopsWithChannel() throws Exception {
+        Set<Thread> before = batchers();
+        TestClientHandler client = createClient();
+        Set<Thread> started = batchers();
+        started.removeAll(before);
+        assertEquals(1, started.size());
+
+        client.closeChannel();
+        Thread batcher = started.iterator().next();
+        batcher.join(5000);
+        assertFalse(batcher.isAlive());
+    }
+
+    private static Set<Thread> batchers() {
+        Set<Thread> batchers = new HashSet<Thread>();
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.isAlive() && BATCHER.equals(t.getName()))
+                batchers.add(t);
+        }
+        return batchers;
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.tso;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestBucket {
+    private static final long SIZE = Bucket.getBucketSize();
+    //not the first bucket, so the ids don't match the bit indexes
+    private static final long BASE = SIZE;
+
+    private static class Aborts implements Uncommited.AbortHandler {
+        final List<Long> ids = new ArrayList<Long>();
+
+        @Override
+        public void abort(long startTimestamp) {
+            ids.add(startTimestamp);
+        }
+    }
+
+    private static List<Long> range(long from, long to, long... skip) {
+        List<Long> ids = new ArrayList<Long>();
+        outer: for (long id = from; id <= to; id++) {
+            for (long s : skip)
+                if (s == id)
+                    continue outer;
+            ids.add(BASE + id);
+        }
+        return ids;
+    }
+
+    @Test
+    public void testAbortAcrossWordBoundary() {
+        Bucket bucket = new Bucket(1);
+        bucket.commit(BASE + 62);
+        bucket.commit(BASE + 65);
+
+        Aborts aborts = new Aborts();
+        //the last bit of the first word
+        assertEquals(63, bucket.abortUncommited(BASE + 63, aborts));
+        assertEquals(range(0, 63, 62), aborts.ids);
+        assertEquals(BASE + 64, bucket.getFirstUncommitted());
+
+        //the first bit of the second word
+        aborts = new Aborts();
+        assertEquals(1, bucket.abortUncommited(BASE + 64, aborts));
+        assertEquals(range(64, 64), aborts.ids);
+
+        //both words at once
+        bucket = new Bucket(1);
+        bucket.commit(BASE + 62);
+        bucket.commit(BASE + 65);
+        aborts = new Aborts();
+        assertEquals(128 - 2, bucket.abortUncommited(BASE + 127, aborts));
+        assertEquals(range(0, 127, 62, 65), aborts.ids);
+        assertEquals(BASE + 128, bucket.getFirstUncommitted());
+        assertFalse(bucket.isUncommited(BASE + 63));
+        assertTrue(bucket.isUncommited(BASE + 128));
+    }
+
+    @Test
+    public void testFirstUncommitedInTheMiddleOfAWord() {
+        Bucket bucket = new Bucket(1);
+        Aborts aborts = new Aborts();
+        assertEquals(11, bucket.abortUncommited(BASE + 10, aborts));
+        assertEquals(BASE + 11, bucket.getFirstUncommitted());
+
+        bucket.commit(BASE + 20);
+        bucket.commit(BASE + 70);
+        aborts = new Aborts();
+        assertEquals(90 - 2, bucket.abortUncommited(BASE + 100, aborts));
+        assertEquals(range(11, 100, 20, 70), aborts.ids);
+
+        //already scanned
+        aborts = new Aborts();
+        assertEquals(0, bucket.abortUncommited(BASE + 50, aborts));
+        assertEquals(0, aborts.ids.size());
+        assertEquals(BASE + 101, bucket.getFirstUncommitted());
+    }
+
+    @Test
+    public void testFullBucket() {
+        Bucket bucket = new Bucket(1);
+        for (long id = 0; id < SIZE; id++) {
+            assertFalse(bucket.allCommited());
+            bucket.commit(BASE + id);
+        }
+        assertTrue(bucket.allCommited());
+        Aborts aborts = new Aborts();
+        assertEquals(0, bucket.abortAllUncommited(aborts));
+        assertEquals(0, aborts.ids.size());
+
+        //the remaining ones up to the last bit of the last word
+        bucket = new Bucket(1);
+        for (long id = 0; id < SIZE; id += 2)
+            bucket.commit(BASE + id);
+        aborts = new Aborts();
+        assertEquals(SIZE / 2, bucket.abortAllUncommited(aborts));
+        assertEquals(SIZE / 2, aborts.ids.size());
+        assertEquals(BASE + 1, (long) aborts.ids.get(0));
+        assertEquals(BASE + SIZE - 1, (long) aborts.ids.get(aborts.ids.size() - 1));
+        assertTrue(bucket.allCommited());
+    }
+
+    @Test
+    public void testCommitThenAbort() {
+        Bucket bucket = new Bucket(1);
+        bucket.commit(BASE + 5);
+        Aborts aborts = new Aborts();
+        assertEquals(5, bucket.abortUncommited(BASE + 5, aborts));
+        assertEquals(range(0, 4), aborts.ids);
+        assertFalse(bucket.isUncommited(BASE + 5));
+
+        //late commits of aborted or committed ones are not counted twice
+        bucket.commit(BASE + 3);
+        bucket.commit(BASE + 5);
+        for (long id = 6; id < SIZE - 1; id++)
+            bucket.commit(BASE + id);
+        assertFalse(bucket.allCommited());
+        bucket.commit(BASE + SIZE - 1);
+        assertTrue(bucket.allCommited());
+    }
+}
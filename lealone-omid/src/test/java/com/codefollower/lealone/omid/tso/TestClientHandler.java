@@ -33,6 +33,7 @@ import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
 import com.codefollower.lealone.omid.client.SyncAbortCompleteCallback;
 import com.codefollower.lealone.omid.client.SyncCommitCallback;
 import com.codefollower.lealone.omid.client.SyncCommitQueryCallback;
@@ -45,6 +46,7 @@ import com.codefollower.lealone.omid.tso.messages.CommitQueryRequest;
 import com.codefollower.lealone.omid.tso.messages.CommitRequest;
 import com.codefollower.lealone.omid.tso.messages.CommitResponse;
 import com.codefollower.lealone.omid.tso.messages.FullAbortRequest;
+import com.codefollower.lealone.omid.tso.messages.MultiResponse;
 import com.codefollower.lealone.omid.tso.messages.TimestampRequest;
 
 /**
@@ -61,6 +63,10 @@ public class TestClientHandler extends TSOClient {
      */
     final BlockingQueue<Boolean> answer = new LinkedBlockingQueue<Boolean>();
     final BlockingQueue<TSOMessage> messageQueue = new LinkedBlockingQueue<TSOMessage>();
+    /**
+     * Number of messages of every MultiResponse received
+     */
+    final BlockingQueue<Integer> multiResponses = new LinkedBlockingQueue<Integer>();
 
     private Channel channel;
 
@@ -134,6 +140,22 @@ public class TestClientHandler extends TSOClient {
         messageQueue.add(msg);
     }
 
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+        //recorded before its messages are handed to the test
+        if (e.getMessage() instanceof MultiResponse)
+            multiResponses.add(((MultiResponse) e.getMessage()).messages.length);
+        super.messageReceived(ctx, e);
+    }
+
+    public void closeChannel() {
+        Channel channel;
+        synchronized (this) {
+            channel = this.channel;
+        }
+        Channels.close(channel).awaitUninterruptibly();
+    }
+
     public void receiveBootstrap() {
         Object msg = null;
         receiveMessage(ZipperState.class);
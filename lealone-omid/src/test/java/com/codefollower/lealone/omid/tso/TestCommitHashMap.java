@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.tso;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TestCommitHashMap {
+    private static final byte[] TABLE = "t".getBytes();
+
+    private static byte[] row(int i) {
+        return ("row" + i).getBytes();
+    }
+
+    private static int hash(int i) {
+        return new RowKey(row(i), TABLE).hashCode();
+    }
+
+    @Test
+    public void testPutAndGet() {
+        CommitHashMap map = new JavaCommitHashMap(100, 0.5f);
+        for (int i = 0; i < 50; i++)
+            map.put(row(i), TABLE, 1000 + i, hash(i), 0);
+        for (int i = 0; i < 50; i++)
+            assertEquals(1000 + i, map.get(row(i), TABLE, hash(i)));
+        assertEquals(0, map.get(row(50), TABLE, hash(50)));
+        assertEquals(0, map.get(row(1), "t2".getBytes(), hash(1)));
+
+        map.put(row(1), TABLE, 2000, hash(1), 0);
+        assertEquals(2000, map.get(row(1), TABLE, hash(1)));
+    }
+
+    @Test
+    public void testLargestDeletedTimestamp() {
+        int threshold = 50;
+        CommitHashMap map = new JavaCommitHashMap(100, 0.5f);
+        long largestDeletedTimestamp = 0;
+        for (int i = 0; i < 1000; i++) {
+            largestDeletedTimestamp = map.put(row(i), TABLE, i + 1, hash(i), largestDeletedTimestamp);
+            //only entries older than the threshold can be evicted
+            assertEquals(true, largestDeletedTimestamp <= i + 1 - threshold || largestDeletedTimestamp == 0);
+        }
+        assertEquals(true, largestDeletedTimestamp > 0);
+        //recent entries are never evicted
+        for (int i = 1000 - threshold; i < 1000; i++)
+            assertEquals(i + 1, map.get(row(i), TABLE, hash(i)));
+    }
+
+    @Test
+    public void testSameHash() {
+        //all keys have the same hash, so they all compete for the slots within the probe distance
+        testSameHash(100); //threshold (50) < MAX_PROBE: only old entries are evicted
+        testSameHash(1000); //threshold (500) > MAX_PROBE: recent entries are evicted too
+    }
+
+    private void testSameHash(int capacity) {
+        int hash = 7;
+        int n = 2000;
+        int threshold = capacity / 2;
+        CommitHashMap map = new JavaCommitHashMap(capacity, 0.5f);
+        long largestDeletedTimestamp = 0;
+        for (int i = 0; i < n; i++) {
+            largestDeletedTimestamp = map.put(row(i), TABLE, i + 1, hash, largestDeletedTimestamp);
+            assertEquals(i + 1, map.get(row(i), TABLE, hash));
+        }
+        assertEquals(true, largestDeletedTimestamp > 0);
+        if (threshold < JavaCommitHashMap.MAX_PROBE)
+            assertEquals(true, largestDeletedTimestamp <= n - threshold);
+        //a key is either still in the map or its value is reported as deleted
+        int found = 0;
+        for (int i = 0; i < n; i++) {
+            long value = map.get(row(i), TABLE, hash);
+            if (value == i + 1)
+                found++;
+            else
+                assertEquals(true, value == 0 && i + 1 <= largestDeletedTimestamp);
+        }
+        //old slots are reused before the probe reaches an empty one, otherwise the whole probe is used
+        if (threshold < JavaCommitHashMap.MAX_PROBE)
+            assertEquals(true, found > threshold);
+        else
+            assertEquals(JavaCommitHashMap.MAX_PROBE, found);
+    }
+
+    @Test
+    public void testCommitted() {
+        CommitHashMap map = new JavaCommitHashMap(100, 0.5f);
+        assertEquals(0, map.setCommitted(10, 11, 0));
+        assertEquals(11, map.getCommittedTimestamp(10));
+        assertEquals(0, map.getCommittedTimestamp(12));
+
+        //60 shares the slot of 10 (maxCommits is 50)
+        assertEquals(11, map.setCommitted(60, 61, 0));
+        assertEquals(0, map.getCommittedTimestamp(10));
+        assertEquals(61, map.getCommittedTimestamp(60));
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.tso;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.junit.Test;
+
+import com.codefollower.lealone.omid.tso.messages.CommitRequest;
+import com.codefollower.lealone.omid.tso.messages.CommitResponse;
+import com.codefollower.lealone.omid.tso.messages.TimestampRequest;
+import com.codefollower.lealone.omid.tso.messages.TimestampResponse;
+
+public class TestSingleWriter extends TSOTestBase {
+    private static final int REQUESTS = 100;
+
+    @Override
+    protected boolean singleWriter() {
+        return true;
+    }
+
+    @Test
+    public void testPipelinedRequestsKeepTheirOrder() throws Exception {
+        for (int i = 0; i < REQUESTS; i++) {
+            clientHandler.sendMessage(new TimestampRequest());
+        }
+        clientHandler.receiveBootstrap();
+        long[] timestamps = new long[REQUESTS];
+        for (int i = 0; i < REQUESTS; i++) {
+            timestamps[i] = clientHandler.receiveMessage(TimestampResponse.class).timestamp;
+            if (i > 0) {
+                assertEquals(timestamps[i - 1] + 1, timestamps[i]);
+            }
+        }
+
+        // commits without conflicts, answered in the order they were sent
+        for (int i = REQUESTS - 1; i >= 0; i--) {
+            RowKey row = new RowKey(new byte[] { (byte) i }, new byte[] { 0xa });
+            clientHandler.sendMessage(new CommitRequest(timestamps[i], new RowKey[] { row }));
+        }
+        long last = timestamps[REQUESTS - 1];
+        for (int i = REQUESTS - 1; i >= 0; i--) {
+            CommitResponse cr = clientHandler.receiveMessage(CommitResponse.class);
+            assertTrue(cr.committed);
+            assertEquals(timestamps[i], cr.startTimestamp);
+            assertTrue(cr.commitTimestamp > last);
+            last = cr.commitTimestamp;
+        }
+
+        // the second of two conflicting commits is aborted
+        clientHandler.sendMessage(new TimestampRequest());
+        clientHandler.sendMessage(new TimestampRequest());
+        long t1 = receiveTimestamp();
+        long t2 = receiveTimestamp();
+        assertTrue(t1 > last && t2 > t1);
+        clientHandler.sendMessage(new CommitRequest(t2, new RowKey[] { r1 }));
+        clientHandler.sendMessage(new CommitRequest(t1, new RowKey[] { r1 }));
+        CommitResponse cr1 = clientHandler.receiveMessage(CommitResponse.class);
+        assertEquals(t2, cr1.startTimestamp);
+        assertTrue(cr1.committed);
+        CommitResponse cr2 = clientHandler.receiveMessage(CommitResponse.class);
+        assertEquals(t1, cr2.startTimestamp);
+        assertFalse(cr2.committed);
+    }
+
+    @Test(timeout = 10000)
+    public void testStopFailsPendingRequests() throws Exception {
+        // a handler of its own whose loop is never started, so its queue fills up
+        final TSOHandler handler;
+        System.setProperty("omid.requestQueueSize", "2");
+        try {
+            handler = new TSOHandler(null, new TSOState(new TimestampOracle()), 0, true);
+        } finally {
+            System.clearProperty("omid.requestQueueSize");
+        }
+        final List<FakeChannel> channels = new ArrayList<FakeChannel>();
+        for (int i = 0; i < 2; i++) {
+            FakeChannel channel = new FakeChannel();
+            channels.add(channel);
+            handler.messageReceived(channel.ctx, channel.event);
+        }
+
+        // a Netty worker that blocks because the queue is full
+        final FakeChannel blocked = new FakeChannel();
+        channels.add(blocked);
+        Thread worker = new Thread() {
+            @Override
+            public void run() {
+                handler.messageReceived(blocked.ctx, blocked.event);
+            }
+        };
+        worker.start();
+        Thread.sleep(TSOState.FLUSH_TIMEOUT * 10);
+        assertTrue(worker.isAlive());
+        for (FakeChannel channel : channels) {
+            assertFalse(channel.closed);
+        }
+
+        handler.stop();
+        worker.join();
+        for (FakeChannel channel : channels) {
+            assertTrue(channel.closed);
+        }
+
+        // requests arriving after stop are failed right away
+        FakeChannel late = new FakeChannel();
+        handler.messageReceived(late.ctx, late.event);
+        assertTrue(late.closed);
+    }
+
+    /**
+     * Skips the commit reports sent before the timestamp
+     */
+    private static long receiveTimestamp() {
+        while (true) {
+            Object msg = clientHandler.receiveMessage();
+            if (msg instanceof TimestampResponse) {
+                return ((TimestampResponse) msg).timestamp;
+            }
+        }
+    }
+
+    /**
+     * A channel with its context and a TimestampRequest event, remembers if it
+     * was closed
+     */
+    private static class FakeChannel implements InvocationHandler {
+        final Channel channel = proxy(Channel.class, this);
+        final ChannelHandlerContext ctx = proxy(ChannelHandlerContext.class, this);
+        final MessageEvent event = proxy(MessageEvent.class, this);
+        volatile boolean closed;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("getChannel")) {
+                return channel;
+            } else if (name.equals("getMessage")) {
+                return new TimestampRequest();
+            } else if (name.equals("close")) {
+                closed = true;
+            }
+            return null;
+        }
+
+        private static <T> T proxy(Class<T> c, InvocationHandler h) {
+            return c.cast(Proxy.newProxyInstance(c.getClassLoader(), new Class<?>[] { c }, h));
+        }
+    }
+}
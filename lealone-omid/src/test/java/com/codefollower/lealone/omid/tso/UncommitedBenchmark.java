@@ -0,0 +1,71 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.tso;
+
+/**
+ * Measures how fast Uncommited tracks commits and raises the largest deleted
+ * timestamp, leaving one transaction in SLOW_RATIO uncommitted so every raise
+ * has to find and abort some of them.
+ */
+public class UncommitedBenchmark {
+    private static final int SLOW_RATIO = 1000;
+    private static final int RAISE_INTERVAL = 10000;
+
+    public static void main(String[] args) {
+        int transactions = args.length > 0 ? Integer.parseInt(args[0]) : 50000000;
+
+        //warm up, then measure
+        run(transactions / 10);
+        run(transactions);
+    }
+
+    private static void run(int transactions) {
+        final long[] aborted = new long[1];
+        Uncommited.AbortHandler handler = new Uncommited.AbortHandler() {
+            @Override
+            public void abort(long startTimestamp) {
+                aborted[0]++;
+            }
+        };
+
+        long timestamp = 1;
+        Uncommited uncommited = new Uncommited(timestamp);
+        long gcBefore = getCollectionTime();
+        long start = System.nanoTime();
+        for (int i = 0; i < transactions; i++) {
+            long startTimestamp = ++timestamp;
+            if (i % SLOW_RATIO != 0)
+                uncommited.commit(startTimestamp);
+            //the commit timestamp is never left uncommitted
+            uncommited.commit(++timestamp);
+            if (i % RAISE_INTERVAL == 0 && i > 0)
+                uncommited.raiseLargestDeletedTransaction(timestamp - RAISE_INTERVAL, handler);
+        }
+        long ms = Math.max(1, (System.nanoTime() - start) / 1000000);
+        System.out.println(transactions + " transactions in " + ms + " ms, " + (transactions * 1000L / ms)
+                + " transactions/s, " + aborted[0] + " aborted, " + (getCollectionTime() - gcBefore) + " ms in GC");
+    }
+
+    private static long getCollectionTime() {
+        long time = 0;
+        for (java.lang.management.GarbageCollectorMXBean gc : java.lang.management.ManagementFactory
+                .getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+}
@@ -0,0 +1,274 @@
+/**
+ * Copyright (c) 2011 Yahoo! Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. See accompanying LICENSE file.
+ */
+
+package com.codefollower.lealone.omid.tso.persistence;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codefollower.lealone.omid.tso.TSOServerConfig;
+import com.codefollower.lealone.omid.tso.TSOState;
+import com.codefollower.lealone.omid.tso.persistence.LoggerAsyncCallback.AddRecordCallback;
+import com.codefollower.lealone.omid.tso.persistence.LoggerAsyncCallback.LoggerInitCallback;
+import com.codefollower.lealone.omid.tso.persistence.LoggerException.Code;
+
+public class TestLocalStateLogger {
+    static {
+        //small segments, so that the tests cross segment boundaries
+        System.setProperty("omid.wal.segmentSize", "65536");
+    }
+
+    private static final byte FAIL = (byte) 0x7f;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("wal", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testWriteAndReplay() throws Exception {
+        LocalStateLogger logger = start(new LocalStateLogger(dir), 0);
+        List<byte[]> records = new ArrayList<byte[]>();
+        for (int i = 0; i < 200; i++) {
+            byte[] record = record(i, 1000);
+            records.add(record);
+            assertEquals(Code.OK, add(logger, record));
+        }
+        logger.shutdown();
+
+        assertTrue(new LocalStateLogger(dir).getSegments().length > 1);
+        assertRecords(records, readAll());
+    }
+
+    @Test
+    public void testTornLastRecord() throws Exception {
+        LocalStateLogger logger = start(new LocalStateLogger(dir), 0);
+        List<byte[]> records = new ArrayList<byte[]>();
+        for (int i = 0; i < 50; i++) {
+            byte[] record = record(i, 100);
+            records.add(record);
+            assertEquals(Code.OK, add(logger, record));
+        }
+        logger.shutdown();
+
+        //a crash in the middle of the last write
+        tearLastRecord();
+        records.remove(records.size() - 1);
+        assertRecords(records, readAll());
+
+        //the next incarnation writes its own segments after the torn one
+        logger = start(new LocalStateLogger(dir), 1);
+        byte[] record = record(100, 100);
+        records.add(record);
+        assertEquals(Code.OK, add(logger, record));
+        logger.shutdown();
+        assertRecords(records, readAll());
+    }
+
+    @Test
+    public void testFailedWriteIsErased() throws Exception {
+        FailingLogger logger = (FailingLogger) start(new FailingLogger(dir), 0);
+        List<byte[]> records = new ArrayList<byte[]>();
+        byte[] record = record(1, 100);
+        records.add(record);
+        assertEquals(Code.OK, add(logger, record));
+
+        //the record is written completely before the write fails, it must not be replayed
+        byte[] failed = record(2, 100);
+        failed[0] = FAIL;
+        assertEquals(Code.ADDFAILED, add(logger, failed));
+
+        //the logger goes on writing after the last good record
+        record = record(3, 10);
+        records.add(record);
+        assertEquals(Code.OK, add(logger, record));
+        logger.shutdown();
+        assertRecords(records, readAll());
+    }
+
+    @Test
+    public void testFailedWriteInNewSegmentIsErased() throws Exception {
+        int size = (int) (LocalStateLogger.SEGMENT_SIZE / 2);
+        FailingLogger logger = (FailingLogger) start(new FailingLogger(dir), 0);
+        List<byte[]> records = new ArrayList<byte[]>();
+        byte[] record = record(1, size);
+        records.add(record);
+        assertEquals(Code.OK, add(logger, record));
+
+        //doesn't fit in the first segment, so the failed write opens a new one
+        byte[] failed = record(2, size);
+        failed[0] = FAIL;
+        assertEquals(Code.ADDFAILED, add(logger, failed));
+        assertEquals(1, logger.getSegments().length);
+
+        record = record(3, size);
+        records.add(record);
+        assertEquals(Code.OK, add(logger, record));
+        logger.shutdown();
+        assertEquals(2, logger.getSegments().length);
+        assertRecords(records, readAll());
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        LocalStateLogger logger = start(new LocalStateLogger(dir), 0);
+        ByteBuffer bb = ByteBuffer.allocate(18);
+        bb.put(LoggerProtocol.TIMESTAMP_ORACLE).putLong(1000);
+        bb.put(LoggerProtocol.LARGEST_DELETED_TIMESTAMP).putLong(500);
+        assertEquals(Code.OK, add(logger, bb.array()));
+        assertEquals(Code.OK, add(logger, largestDeletedTimestamp(700)));
+        assertEquals(Code.OK, add(logger, largestDeletedTimestamp(900)));
+        logger.shutdown();
+        tearLastRecord();
+
+        TSOServerConfig config = TSOServerConfig.parseConfig(new String[] { "-port", "1234", "-ha", "-walDir",
+                dir.getPath() });
+        LocalStateBuilder builder = new LocalStateBuilder(config);
+        TSOState state = builder.buildState();
+        try {
+            assertEquals(700, state.largestDeletedTimestamp);
+        } finally {
+            builder.shutdown();
+        }
+
+        //the recovered incarnation is kept and the new one starts empty
+        builder = new LocalStateBuilder(config);
+        state = builder.buildState();
+        try {
+            assertEquals(700, state.largestDeletedTimestamp);
+        } finally {
+            builder.shutdown();
+        }
+    }
+
+    private static byte[] largestDeletedTimestamp(long timestamp) {
+        ByteBuffer bb = ByteBuffer.allocate(9);
+        bb.put(LoggerProtocol.LARGEST_DELETED_TIMESTAMP).putLong(timestamp);
+        return bb.array();
+    }
+
+    private static byte[] record(int i, int length) {
+        byte[] record = new byte[length];
+        for (int j = 0; j < length; j++)
+            record[j] = (byte) (i + j);
+        record[0] = (byte) i;
+        return record;
+    }
+
+    private static LocalStateLogger start(LocalStateLogger logger, long recoveredIncarnation) throws Exception {
+        logger.lock();
+        logger.setRecoveredIncarnation(recoveredIncarnation);
+        final int[] result = new int[] { Code.ADDFAILED };
+        logger.initialize(new LoggerInitCallback() {
+            @Override
+            public void loggerInitComplete(int rc, StateLogger sl, Object ctx) {
+                result[0] = rc;
+            }
+        }, null);
+        assertEquals(Code.OK, result[0]);
+        return logger;
+    }
+
+    private static int add(StateLogger logger, byte[] record) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final int[] result = new int[1];
+        logger.addRecord(record, new AddRecordCallback() {
+            @Override
+            public void addRecordComplete(int rc, Object ctx) {
+                result[0] = rc;
+                latch.countDown();
+            }
+        }, null);
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        return result[0];
+    }
+
+    private List<byte[]> readAll() throws IOException {
+        List<byte[]> records = new ArrayList<byte[]>();
+        for (File segment : new LocalStateLogger(dir).getSegments())
+            records.addAll(LocalStateLogger.readRecords(segment));
+        return records;
+    }
+
+    /**
+     * Zeros the second half of the last record, like a crash in the middle of
+     * writing it would.
+     */
+    private void tearLastRecord() throws IOException {
+        File[] segments = new LocalStateLogger(dir).getSegments();
+        for (int i = segments.length - 1; i >= 0; i--) {
+            List<byte[]> records = LocalStateLogger.readRecords(segments[i]);
+            if (records.isEmpty())
+                continue;
+            long end = 0;
+            for (byte[] r : records)
+                end += 8 + r.length;
+            int length = records.get(records.size() - 1).length;
+            RandomAccessFile f = new RandomAccessFile(segments[i], "rw");
+            try {
+                f.seek(end - length / 2);
+                f.write(new byte[length / 2]);
+            } finally {
+                f.close();
+            }
+            return;
+        }
+    }
+
+    private static void assertRecords(List<byte[]> expected, List<byte[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+            assertArrayEquals(expected.get(i), actual.get(i));
+    }
+
+    private static class FailingLogger extends LocalStateLogger {
+        FailingLogger(File dir) {
+            super(dir);
+        }
+
+        @Override
+        void write(byte[] record) throws IOException {
+            super.write(record);
+            if (record[0] == FAIL)
+                throw new IOException("Injected failure");
+        }
+    }
+}
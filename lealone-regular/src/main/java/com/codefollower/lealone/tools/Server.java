@@ -80,6 +80,14 @@ public class Server extends Tool implements Runnable, ShutdownHandler {
      * <td>Allow other computers to connect - see below</td></tr>
      * <tr><td>[-tcpDaemon]</td>
      * <td>Use a daemon thread</td></tr>
+     * <tr><td>[-tcpNio]</td>
+     * <td>Serve the connections with a few selector threads</td></tr>
+     * <tr><td>[-tcpNioWorkers &lt;count&gt;]</td>
+     * <td>The maximum number of worker threads of -tcpNio, 0 for no limit
+     * (default: 8 times the number of processors)</td></tr>
+     * <tr><td>[-tcpNioQueue &lt;count&gt;]</td>
+     * <td>The maximum number of -tcpNio requests waiting for a worker,
+     * more are answered with an error (default: 1024)</td></tr>
      * <tr><td>[-tcpPort &lt;port&gt;]</td>
      * <td>The port (default: 9092)</td></tr>
      * <tr><td>[-tcpSSL]</td>
@@ -148,6 +156,12 @@ public class Server extends Tool implements Runnable, ShutdownHandler {
                     // no parameters
                 } else if ("-tcpDaemon".equals(arg)) {
                     // no parameters
+                } else if ("-tcpNio".equals(arg)) {
+                    // no parameters
+                } else if ("-tcpNioWorkers".equals(arg)) {
+                    i++;
+                } else if ("-tcpNioQueue".equals(arg)) {
+                    i++;
                 } else if ("-tcpSSL".equals(arg)) {
                     // no parameters
                 } else if ("-tcpPort".equals(arg)) {
@@ -247,6 +261,12 @@ public class Server extends Tool implements Runnable, ShutdownHandler {
                     // no parameters
                 } else if ("-tcpDaemon".equals(arg)) {
                     // no parameters
+                } else if ("-tcpNio".equals(arg)) {
+                    // no parameters
+                } else if ("-tcpNioWorkers".equals(arg)) {
+                    i++;
+                } else if ("-tcpNioQueue".equals(arg)) {
+                    i++;
                 } else if ("-tcpSSL".equals(arg)) {
                     // no parameters
                 } else if ("-tcpPort".equals(arg)) {
@@ -78,6 +78,25 @@ public class Analyze extends DefineCommand {
             return;
         }
         Database db = session.getDatabase();
+        if (!table.analyze(session, sample)) {
+            updateSelectivity(session, table, sample);
+        }
+        if (manual) {
+            db.update(session, table);
+        } else {
+            Session s = db.getSystemSession();
+            if (s != session) {
+                // if the current session is the system session
+                // (which is the case if we are within a trigger)
+                // then we can't update the statistics because
+                // that would unlock all locked objects
+                db.update(s, table);
+                s.commit(true);
+            }
+        }
+    }
+
+    private static void updateSelectivity(Session session, Table table, int sample) {
         StatementBuilder buff = new StatementBuilder("SELECT ");
         Column[] columns = table.getColumns();
         for (Column col : columns) {
@@ -103,19 +122,6 @@ public class Analyze extends DefineCommand {
             int selectivity = result.currentRow()[j].getInt();
             columns[j].setSelectivity(selectivity);
         }
-        if (manual) {
-            db.update(session, table);
-        } else {
-            Session s = db.getSystemSession();
-            if (s != session) {
-                // if the current session is the system session
-                // (which is the case if we are within a trigger)
-                // then we can't update the statistics because
-                // that would unlock all locked objects
-                db.update(s, table);
-                s.commit(true);
-            }
-        }
     }
 
     public void setTop(int top) {
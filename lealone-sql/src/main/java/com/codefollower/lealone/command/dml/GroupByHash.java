@@ -0,0 +1,292 @@
+/*
+ * Copyright 2004-2011 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.codefollower.lealone.command.dml;
+
+import com.codefollower.lealone.value.Value;
+import com.codefollower.lealone.value.ValueNull;
+
+/**
+ * A hash table that maps the GROUP BY key of a row to the number of its group
+ * (the slot). The groups are numbered 0, 1, 2,... in the order they are first
+ * seen, so that the state of the aggregates can be kept in arrays.
+ * <p>
+ * The table uses open addressing with linear probing. A key of a single
+ * INT, LONG, SHORT or BYTE column is stored as a long, and a key of a single
+ * STRING column as a String, so that looking up the group of a row doesn't
+ * allocate anything. Other keys are compared value by value. The key array
+ * passed to getSlot can be reused by the caller; it is only copied when a new
+ * group is added.
+ */
+class GroupByHash {
+
+    private static final int MODE_LONG = 0, MODE_STRING = 1, MODE_VALUES = 2;
+
+    private int mode;
+    private final int keyType;
+
+    /**
+     * The hash table: the slot + 1 of each entry, or 0 if it is empty.
+     */
+    private int[] table;
+    private int mask;
+
+    private int size;
+    private Value[][] keys;
+    private int[] hashes;
+    private long[] longKeys;
+    private String[] stringKeys;
+    private int nullSlot = -1;
+
+    /**
+     * Create a new hash table.
+     *
+     * @param keyTypes the data types of the key columns
+     */
+    GroupByHash(int[] keyTypes) {
+        keyType = keyTypes.length == 1 ? keyTypes[0] : Value.UNKNOWN;
+        mode = getMode(keyType);
+        int capacity = 64;
+        table = new int[capacity * 2];
+        mask = table.length - 1;
+        keys = new Value[capacity][];
+        hashes = new int[capacity];
+        if (mode == MODE_LONG) {
+            longKeys = new long[capacity];
+        } else if (mode == MODE_STRING) {
+            stringKeys = new String[capacity];
+        }
+    }
+
+    private static int getMode(int type) {
+        switch (type) {
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+        case Value.LONG:
+            return MODE_LONG;
+        case Value.STRING:
+            return MODE_STRING;
+        default:
+            return MODE_VALUES;
+        }
+    }
+
+    /**
+     * Get the slot of the group with the given key, and add a group if there
+     * is none yet.
+     *
+     * @param key the key values (not modified, may be reused by the caller)
+     * @return the slot
+     */
+    int getSlot(Value[] key) {
+        return getSlot(key, true);
+    }
+
+    /**
+     * Get the slot of the group with the given key.
+     *
+     * @param key the key values
+     * @return the slot, or -1 if there is no such group
+     */
+    int get(Value[] key) {
+        return getSlot(key, false);
+    }
+
+    private int getSlot(Value[] key, boolean create) {
+        if (mode != MODE_VALUES) {
+            Value v = key[0];
+            if (v == ValueNull.INSTANCE) {
+                if (nullSlot < 0 && create) {
+                    nullSlot = add(key, 0);
+                }
+                return nullSlot;
+            }
+            if (v.getType() != keyType) {
+                // not expected, but the values must be compared as they are
+                toValues();
+            } else if (mode == MODE_LONG) {
+                return getSlot(key, v.getLong(), create);
+            } else {
+                return getSlot(key, v.getString(), create);
+            }
+        }
+        int hash = hash(key);
+        for (int i = hash & mask;; i = (i + 1) & mask) {
+            int s = table[i] - 1;
+            if (s < 0) {
+                return create ? insert(i, key, hash) : -1;
+            }
+            if (hashes[s] == hash && equals(keys[s], key)) {
+                return s;
+            }
+        }
+    }
+
+    private int getSlot(Value[] key, long x, boolean create) {
+        int hash = mix((int) (x ^ (x >>> 32)));
+        for (int i = hash & mask;; i = (i + 1) & mask) {
+            int s = table[i] - 1;
+            if (s < 0) {
+                if (!create) {
+                    return -1;
+                }
+                s = add(key, hash);
+                longKeys[s] = x;
+                return insert(i, s);
+            }
+            if (longKeys[s] == x) {
+                return s;
+            }
+        }
+    }
+
+    private int getSlot(Value[] key, String x, boolean create) {
+        int hash = mix(x.hashCode());
+        for (int i = hash & mask;; i = (i + 1) & mask) {
+            int s = table[i] - 1;
+            if (s < 0) {
+                if (!create) {
+                    return -1;
+                }
+                s = add(key, hash);
+                stringKeys[s] = x;
+                return insert(i, s);
+            }
+            if (hashes[s] == hash && x.equals(stringKeys[s])) {
+                return s;
+            }
+        }
+    }
+
+    private int insert(int i, Value[] key, int hash) {
+        return insert(i, add(key, hash));
+    }
+
+    /**
+     * Add a group to the hash table, and grow the table if it is more than
+     * half full.
+     *
+     * @param i the empty entry of the table
+     * @param s the slot of the group
+     * @return the slot
+     */
+    private int insert(int i, int s) {
+        table[i] = s + 1;
+        if (size * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        return s;
+    }
+
+    /**
+     * Add a group, without adding it to the hash table.
+     *
+     * @param key the key values
+     * @param hash the hash code
+     * @return the slot
+     */
+    private int add(Value[] key, int hash) {
+        if (size == keys.length) {
+            grow();
+        }
+        int s = size++;
+        keys[s] = key.clone();
+        hashes[s] = hash;
+        return s;
+    }
+
+    private void grow() {
+        int len = keys.length * 2;
+        Value[][] k = new Value[len][];
+        System.arraycopy(keys, 0, k, 0, size);
+        keys = k;
+        int[] h = new int[len];
+        System.arraycopy(hashes, 0, h, 0, size);
+        hashes = h;
+        if (longKeys != null) {
+            long[] l = new long[len];
+            System.arraycopy(longKeys, 0, l, 0, size);
+            longKeys = l;
+        }
+        if (stringKeys != null) {
+            String[] s = new String[len];
+            System.arraycopy(stringKeys, 0, s, 0, size);
+            stringKeys = s;
+        }
+    }
+
+    private void rehash(int len) {
+        table = new int[len];
+        mask = len - 1;
+        for (int s = 0; s < size; s++) {
+            if (s == nullSlot) {
+                continue;
+            }
+            int i = hashes[s] & mask;
+            while (table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            table[i] = s + 1;
+        }
+    }
+
+    /**
+     * Compare all keys value by value from now on.
+     */
+    private void toValues() {
+        mode = MODE_VALUES;
+        longKeys = null;
+        stringKeys = null;
+        nullSlot = -1;
+        for (int s = 0; s < size; s++) {
+            hashes[s] = hash(keys[s]);
+        }
+        rehash(table.length);
+    }
+
+    private static int hash(Value[] key) {
+        int h = 0;
+        for (Value v : key) {
+            h = 31 * h + v.hashCode();
+        }
+        return mix(h);
+    }
+
+    private static int mix(int h) {
+        h *= 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equals(Value[] a, Value[] b) {
+        for (int i = 0; i < a.length; i++) {
+            if (!a[i].equals(b[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of groups.
+     *
+     * @return the number of groups
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Get the key of a group.
+     *
+     * @param slot the slot
+     * @return the key values
+     */
+    Value[] getKey(int slot) {
+        return keys[slot];
+    }
+
+}
@@ -212,6 +212,10 @@ public abstract class Query extends Prepared {
         distinct = b;
     }
 
+    public boolean isDistinct() {
+        return distinct;
+    }
+
     /**
      * Whether results need to support random access.
      *
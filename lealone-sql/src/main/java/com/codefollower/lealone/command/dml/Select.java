@@ -27,6 +27,8 @@ import com.codefollower.lealone.dbobject.table.Table;
 import com.codefollower.lealone.dbobject.table.TableFilter;
 import com.codefollower.lealone.engine.Database;
 import com.codefollower.lealone.engine.Session;
+import com.codefollower.lealone.expression.Aggregate;
+import com.codefollower.lealone.expression.AggregateDataArray;
 import com.codefollower.lealone.expression.Calculator;
 import com.codefollower.lealone.expression.Comparison;
 import com.codefollower.lealone.expression.ConditionAndOr;
@@ -37,6 +39,8 @@ import com.codefollower.lealone.expression.Parameter;
 import com.codefollower.lealone.expression.Wildcard;
 import com.codefollower.lealone.message.DbException;
 import com.codefollower.lealone.result.LocalResult;
+import com.codefollower.lealone.result.PartitionedRows;
+import com.codefollower.lealone.result.ResultExternal;
 import com.codefollower.lealone.result.ResultInterface;
 import com.codefollower.lealone.result.ResultTarget;
 import com.codefollower.lealone.result.Row;
@@ -93,6 +97,10 @@ public class Select extends Query {
         return isGroupQuery;
     }
 
+    public SortOrder getSortOrder() {
+        return sort;
+    }
+
     public boolean isNotAggregate() {
         return isGroupQuery && groupByExpression != null && groupByExpression.length > 0;
     }
@@ -432,7 +440,209 @@ public class Select extends Query {
         return result;
     }
 
+    /**
+     * Get the aggregates of the columns, if all expressions that are not
+     * grouped are aggregates that can keep their data in arrays.
+     *
+     * @param columnCount the number of columns
+     * @return the aggregates (null for the grouped columns), or null
+     */
+    private Aggregate[] getArrayAggregates(int columnCount) {
+        Aggregate[] aggregates = new Aggregate[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            if (groupByExpression != null && groupByExpression[i]) {
+                continue;
+            }
+            Expression expr = expressions.get(i).getNonAliasExpression();
+            if (!(expr instanceof Aggregate) || ((Aggregate) expr).createDataArray(session) == null) {
+                return null;
+            }
+            aggregates[i] = (Aggregate) expr;
+        }
+        return aggregates;
+    }
+
+    private AggregateDataArray[] createDataArrays(Aggregate[] aggregates) {
+        AggregateDataArray[] data = new AggregateDataArray[aggregates.length];
+        for (int i = 0; i < aggregates.length; i++) {
+            if (aggregates[i] != null) {
+                data[i] = aggregates[i].createDataArray(session);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Group the rows using a GroupByHash, and keep the data of the aggregates
+     * in arrays indexed by the slot of the group, so that no objects are
+     * created per row (except for new groups).
+     * <p>
+     * If there are more groups than maxMemoryRows, the rows of the groups
+     * that are not in memory yet are written to temporary files, partitioned
+     * by the hash code of the group key, as the key and the values of the
+     * aggregates. The partitions are grouped one after the other once all
+     * rows are read.
+     */
+    private void queryGroupArrays(int columnCount, LocalResult result, Aggregate[] aggregates) {
+        AggregateDataArray[] data = createDataArrays(aggregates);
+        int keyCount = groupIndex == null ? 0 : groupIndex.length;
+        int aggregateCount = 0;
+        for (AggregateDataArray d : data) {
+            if (d != null) {
+                aggregateCount++;
+            }
+        }
+        GroupByHash groups = null;
+        int[] keyTypes = new int[keyCount];
+        Value[] keyValues = new Value[keyCount];
+        if (keyCount > 0) {
+            for (int i = 0; i < keyCount; i++) {
+                keyTypes[i] = expressions.get(groupIndex[i]).getType();
+            }
+            groups = new GroupByHash(keyTypes);
+        }
+        Database db = session.getDatabase();
+        int maxGroups = db.isPersistent() ? db.getMaxMemoryRows() : Integer.MAX_VALUE;
+        PartitionedRows spilled = null;
+        try {
+            int rowNumber = 0;
+            setCurrentRowNumber(0);
+            while (topTableFilter.next()) {
+                setCurrentRowNumber(rowNumber + 1);
+                if (condition == null || Boolean.TRUE.equals(condition.getBooleanValue(session))) {
+                    rowNumber++;
+                    int slot = 0;
+                    if (groups != null) {
+                        for (int i = 0; i < keyCount; i++) {
+                            keyValues[i] = expressions.get(groupIndex[i]).getValue(session);
+                        }
+                        if (spilled == null) {
+                            slot = groups.getSlot(keyValues);
+                            if (groups.size() > maxGroups) {
+                                spilled = new PartitionedRows(session, keyCount + aggregateCount, keyCount, 0);
+                            }
+                        } else {
+                            slot = groups.get(keyValues);
+                        }
+                    }
+                    if (slot >= 0) {
+                        for (int i = 0; i < columnCount; i++) {
+                            if (data[i] != null) {
+                                data[i].add(slot, data[i].getInput(session));
+                            }
+                        }
+                    } else {
+                        Value[] row = new Value[keyCount + aggregateCount];
+                        System.arraycopy(keyValues, 0, row, 0, keyCount);
+                        for (int i = 0, k = keyCount; i < columnCount; i++) {
+                            if (data[i] != null) {
+                                row[k++] = data[i].getInput(session);
+                            }
+                        }
+                        spilled.add(row);
+                    }
+                    if (sampleSize > 0 && rowNumber >= sampleSize) {
+                        break;
+                    }
+                }
+            }
+            addGroupRows(columnCount, result, groups, data);
+            if (spilled != null) {
+                spilled.done();
+                groupPartitions(columnCount, result, aggregates, keyTypes, spilled);
+            }
+        } finally {
+            if (spilled != null) {
+                spilled.close();
+            }
+        }
+    }
+
+    /**
+     * Group the rows of each partition. If a partition still has too many
+     * groups, its rows are partitioned again.
+     */
+    private void groupPartitions(int columnCount, LocalResult result, Aggregate[] aggregates, int[] keyTypes,
+            PartitionedRows partitions) {
+        int keyCount = keyTypes.length;
+        int maxGroups = session.getDatabase().getMaxMemoryRows();
+        Value[] keyValues = new Value[keyCount];
+        for (int p = 0; p < partitions.getPartitionCount(); p++) {
+            int rowCount = partitions.getRowCount(p);
+            if (rowCount == 0) {
+                continue;
+            }
+            ResultExternal rows = partitions.getPartition(p);
+            AggregateDataArray[] data = createDataArrays(aggregates);
+            GroupByHash groups = new GroupByHash(keyTypes);
+            PartitionedRows spilled = null;
+            try {
+                for (int r = 0; r < rowCount; r++) {
+                    Value[] row = rows.next();
+                    System.arraycopy(row, 0, keyValues, 0, keyCount);
+                    int slot;
+                    if (spilled == null) {
+                        slot = groups.getSlot(keyValues);
+                        if (groups.size() > maxGroups && partitions.canPartition()) {
+                            spilled = partitions.createNextLevel();
+                        }
+                    } else {
+                        slot = groups.get(keyValues);
+                        if (slot < 0) {
+                            spilled.add(row);
+                            continue;
+                        }
+                    }
+                    for (int i = 0, k = keyCount; i < columnCount; i++) {
+                        if (data[i] != null) {
+                            data[i].add(slot, row[k++]);
+                        }
+                    }
+                }
+                partitions.closePartition(p);
+                addGroupRows(columnCount, result, groups, data);
+                if (spilled != null) {
+                    spilled.done();
+                    groupPartitions(columnCount, result, aggregates, keyTypes, spilled);
+                }
+            } finally {
+                if (spilled != null) {
+                    spilled.close();
+                }
+            }
+        }
+    }
+
+    private void addGroupRows(int columnCount, LocalResult result, GroupByHash groups, AggregateDataArray[] data) {
+        // without GROUP BY, there is exactly one group
+        int size = groups == null ? 1 : groups.size();
+        for (int slot = 0; slot < size; slot++) {
+            Value[] row = new Value[columnCount];
+            if (groups != null) {
+                Value[] key = groups.getKey(slot);
+                for (int j = 0; j < groupIndex.length; j++) {
+                    row[groupIndex[j]] = key[j];
+                }
+            }
+            for (int j = 0; j < columnCount; j++) {
+                if (data[j] != null) {
+                    row[j] = data[j].getValue(slot);
+                }
+            }
+            if (isHavingNullOrFalse(row)) {
+                continue;
+            }
+            row = keepOnlyDistinct(row, columnCount);
+            result.addRow(row);
+        }
+    }
+
     private void queryGroup(int columnCount, LocalResult result) {
+        Aggregate[] aggregates = getArrayAggregates(columnCount);
+        if (aggregates != null) {
+            queryGroupArrays(columnCount, result, aggregates);
+            return;
+        }
         ValueHashMap<HashMap<Expression, Object>> groups = ValueHashMap.newInstance();
         int rowNumber = 0;
         setCurrentRowNumber(0);
@@ -680,7 +890,14 @@ public class Select extends Query {
         return result;
     }
 
-    protected LocalResult queryWithoutCache(int maxRows, ResultTarget target) {
+    /**
+     * Get the maximum number of rows to return, using the LIMIT clause and the
+     * limit as specified in the JDBC method call.
+     *
+     * @param maxRows the limit as specified in the JDBC method call (0 means no limit)
+     * @return the maximum number of rows, or -1 if there is no limit
+     */
+    public int getLimitRows(int maxRows) {
         int limitRows = maxRows == 0 ? -1 : maxRows;
         if (limitExpr != null) {
             Value v = limitExpr.getValue(session);
@@ -691,6 +908,24 @@ public class Select extends Query {
                 limitRows = Math.min(l, limitRows);
             }
         }
+        return limitRows;
+    }
+
+    /**
+     * Get the number of rows to skip as specified in the OFFSET clause.
+     *
+     * @return the offset, or 0 if there is no OFFSET clause
+     */
+    public int getOffsetRows() {
+        if (offsetExpr == null) {
+            return 0;
+        }
+        Value v = offsetExpr.getValue(session);
+        return v == ValueNull.INSTANCE ? 0 : v.getInt();
+    }
+
+    protected LocalResult queryWithoutCache(int maxRows, ResultTarget target) {
+        int limitRows = getLimitRows(maxRows);
         int columnCount = expressions.size();
         LocalResult result = null;
         if (target == null || !session.getDatabase().getSettings().optimizeInsertFromSelect) {
@@ -1119,6 +1354,25 @@ public class Select extends Query {
     }
 
     public String getPlanSQL(boolean isDistributed) {
+        return getPlanSQL(isDistributed, false, -1);
+    }
+
+    /**
+     * Get the SQL statement that is sent to each region of a distributed
+     * ORDER BY query. All expressions are selected and the rows are sorted by
+     * column index, so that the sorted region results can be merged. The
+     * offset can only be applied after merging, so the OFFSET clause is not
+     * included and each region returns up to topNLimit rows.
+     *
+     * @param topNLimit the number of rows each region needs to return, or -1
+     *            for all rows
+     * @return the SQL statement
+     */
+    public String getTopNPlanSQL(int topNLimit) {
+        return getPlanSQL(true, true, topNLimit);
+    }
+
+    private String getPlanSQL(boolean isDistributed, boolean isTopN, int topNLimit) {
         // can not use the field sqlStatement because the parameter
         // indexes may be incorrect: ? may be in fact ?2 for a subquery
         // but indexes may be set manually as well
@@ -1188,18 +1442,27 @@ public class Select extends Query {
             Expression h = exprList[havingIndex];
             buff.append("\nHAVING ").append(StringUtils.unEnclose(h.getSQL(isDistributed)));
         }
-        if (sort != null) {
-            buff.append("\nORDER BY ").append(sort.getSQL(exprList, visibleColumnCount));
-        }
-        if (orderList != null) {
-            buff.append("\nORDER BY ");
-            buff.resetCount();
-            for (SelectOrderBy o : orderList) {
-                buff.appendExceptFirst(", ");
-                buff.append(StringUtils.unEnclose(o.getSQL()));
+        if (isTopN) {
+            if (sort != null) {
+                buff.append("\nORDER BY ").append(sort.getSQL(exprList, exprList.length));
+            }
+            if (topNLimit >= 0) {
+                buff.append("\nLIMIT ").append(topNLimit);
+            }
+        } else {
+            if (sort != null) {
+                buff.append("\nORDER BY ").append(sort.getSQL(exprList, visibleColumnCount));
+            }
+            if (orderList != null) {
+                buff.append("\nORDER BY ");
+                buff.resetCount();
+                for (SelectOrderBy o : orderList) {
+                    buff.appendExceptFirst(", ");
+                    buff.append(StringUtils.unEnclose(o.getSQL()));
+                }
             }
         }
-        if (limitExpr != null) {
+        if (!isTopN && limitExpr != null) {
             buff.append("\nLIMIT ").append(StringUtils.unEnclose(limitExpr.getSQL(isDistributed)));
             if (offsetExpr != null) {
                 buff.append(" OFFSET ").append(StringUtils.unEnclose(offsetExpr.getSQL(isDistributed)));
@@ -1116,6 +1116,20 @@ public abstract class Table extends SchemaObjectBase {
     public boolean isDistributed() {
         return false;
     }
+
+    /**
+     * Update the selectivity of the columns of this table. Tables that can
+     * not be sampled with a local query (for example distributed tables)
+     * override this method.
+     *
+     * @param session the session
+     * @param sample the number of sample rows, 0 for all rows
+     * @return true if the table has updated the statistics itself, false if
+     *         the default sampling query should be used
+     */
+    public boolean analyze(Session session, int sample) {
+        return false;
+    }
     
     public String getRowKeyName() {
         return null;
@@ -262,6 +262,24 @@ public class Aggregate extends Expression {
         data.add(session.getDatabase(), distinct, v);
     }
 
+    /**
+     * Create the data of this aggregate for many groups, stored in arrays.
+     *
+     * @param session the session
+     * @return the data, or null if this aggregate needs an AggregateData
+     *         object per group
+     */
+    public AggregateDataArray createDataArray(Session session) {
+        if (distinct) {
+            return null;
+        }
+        int kind = AggregateDataArray.getKind(type, dataType);
+        if (kind < 0) {
+            return null;
+        }
+        return new AggregateDataArray(type, dataType, on, session.getDatabase(), kind);
+    }
+
     public void mergeAggregate(Session session, Value v) {
         HashMap<Expression, Object> group = select.getCurrentGroup();
         if (group == null) {
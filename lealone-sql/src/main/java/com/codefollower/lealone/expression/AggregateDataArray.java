@@ -0,0 +1,204 @@
+/*
+ * Copyright 2004-2011 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.codefollower.lealone.expression;
+
+import com.codefollower.lealone.engine.Database;
+import com.codefollower.lealone.engine.Session;
+import com.codefollower.lealone.value.Value;
+import com.codefollower.lealone.value.ValueDouble;
+import com.codefollower.lealone.value.ValueLong;
+import com.codefollower.lealone.value.ValueNull;
+
+/**
+ * The data of an aggregate for many groups, stored in arrays indexed by the
+ * slot of the group. Unlike AggregateData, adding a row doesn't allocate
+ * objects. Only COUNT, SUM, MIN and MAX without DISTINCT are supported: see
+ * Aggregate.createDataArray.
+ */
+public class AggregateDataArray {
+
+    private static final int LONG = 0, DOUBLE = 1, VALUE = 2;
+
+    private final int aggregateType;
+    private final int dataType;
+    private final Expression on;
+    private final Database database;
+
+    /**
+     * How the values are stored.
+     */
+    private final int kind;
+
+    /**
+     * The number of non-null values (the number of rows for COUNT(*)).
+     */
+    private long[] counts = new long[0];
+    private long[] longs;
+    private double[] doubles;
+    private Value[] values;
+
+    AggregateDataArray(int aggregateType, int dataType, Expression on, Database database, int kind) {
+        this.aggregateType = aggregateType;
+        this.dataType = dataType;
+        this.on = on;
+        this.database = database;
+        this.kind = kind;
+    }
+
+    /**
+     * Get how the values of an aggregate can be stored.
+     *
+     * @param aggregateType the aggregate type
+     * @param dataType the data type of the result
+     * @return the kind, or -1 if the aggregate is not supported
+     */
+    static int getKind(int aggregateType, int dataType) {
+        switch (aggregateType) {
+        case Aggregate.COUNT_ALL:
+        case Aggregate.COUNT:
+            return LONG;
+        case Aggregate.SUM:
+            if (dataType == Value.LONG) {
+                return LONG;
+            } else if (dataType == Value.DOUBLE) {
+                return DOUBLE;
+            }
+            return -1;
+        case Aggregate.MIN:
+        case Aggregate.MAX:
+            switch (dataType) {
+            case Value.BYTE:
+            case Value.SHORT:
+            case Value.INT:
+            case Value.LONG:
+                return LONG;
+            default:
+                return VALUE;
+            }
+        default:
+            return -1;
+        }
+    }
+
+    /**
+     * Evaluate the expression of the aggregate for the current row.
+     *
+     * @param session the session
+     * @return the value (NULL for COUNT(*))
+     */
+    public Value getInput(Session session) {
+        return on == null ? ValueNull.INSTANCE : on.getValue(session);
+    }
+
+    /**
+     * Add a value to a group.
+     *
+     * @param slot the slot of the group
+     * @param v the value returned by getInput
+     */
+    public void add(int slot, Value v) {
+        if (slot >= counts.length) {
+            grow(slot);
+        }
+        if (aggregateType == Aggregate.COUNT_ALL) {
+            counts[slot]++;
+            return;
+        }
+        if (v == ValueNull.INSTANCE) {
+            return;
+        }
+        long count = counts[slot]++;
+        switch (aggregateType) {
+        case Aggregate.COUNT:
+            break;
+        case Aggregate.SUM:
+            if (kind == DOUBLE) {
+                doubles[slot] += v.getDouble();
+            } else {
+                long x = v.getLong();
+                long old = longs[slot];
+                long result = old + x;
+                if (((old ^ result) & (x ^ result)) < 0) {
+                    // overflow: throws the same exception as before
+                    ValueLong.get(old).add(ValueLong.get(x));
+                }
+                longs[slot] = result;
+            }
+            break;
+        case Aggregate.MIN:
+        case Aggregate.MAX: {
+            boolean min = aggregateType == Aggregate.MIN;
+            if (kind == LONG) {
+                long x = v.getLong();
+                if (count == 0 || (min ? x < longs[slot] : x > longs[slot])) {
+                    longs[slot] = x;
+                }
+            } else if (count == 0) {
+                values[slot] = v;
+            } else {
+                int comp = database.compare(v, values[slot]);
+                if (min ? comp < 0 : comp > 0) {
+                    values[slot] = v;
+                }
+            }
+            break;
+        }
+        default:
+        }
+    }
+
+    /**
+     * Get the value of the aggregate for a group.
+     *
+     * @param slot the slot of the group
+     * @return the value
+     */
+    public Value getValue(int slot) {
+        long count = slot < counts.length ? counts[slot] : 0;
+        if (aggregateType == Aggregate.COUNT_ALL || aggregateType == Aggregate.COUNT) {
+            return ValueLong.get(count);
+        }
+        if (count == 0) {
+            return ValueNull.INSTANCE;
+        }
+        switch (kind) {
+        case DOUBLE:
+            return ValueDouble.get(doubles[slot]);
+        case LONG:
+            return ValueLong.get(longs[slot]).convertTo(dataType);
+        default:
+            return values[slot];
+        }
+    }
+
+    private void grow(int slot) {
+        int len = Math.max(Math.max(64, counts.length * 2), slot + 1);
+        long[] c = new long[len];
+        System.arraycopy(counts, 0, c, 0, counts.length);
+        counts = c;
+        if (kind == LONG && aggregateType != Aggregate.COUNT && aggregateType != Aggregate.COUNT_ALL) {
+            long[] l = new long[len];
+            if (longs != null) {
+                System.arraycopy(longs, 0, l, 0, longs.length);
+            }
+            longs = l;
+        } else if (kind == DOUBLE) {
+            double[] d = new double[len];
+            if (doubles != null) {
+                System.arraycopy(doubles, 0, d, 0, doubles.length);
+            }
+            doubles = d;
+        } else if (kind == VALUE) {
+            Value[] v = new Value[len];
+            if (values != null) {
+                System.arraycopy(values, 0, v, 0, values.length);
+            }
+            values = v;
+        }
+    }
+
+}
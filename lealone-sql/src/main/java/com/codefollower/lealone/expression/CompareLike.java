@@ -376,6 +376,54 @@ public class CompareLike extends Condition {
         return true;
     }
 
+    /**
+     * Get the constant prefix of the pattern, as in NAME LIKE 'Hello%'.
+     *
+     * @param session the session
+     * @return the prefix, or null if the pattern can not be evaluated or
+     *         does not start with a constant prefix
+     */
+    public String getPatternPrefix(Session session) {
+        if (regexp || ignoreCase) {
+            return null;
+        }
+        if (!right.isEverything(ExpressionVisitor.INDEPENDENT_VISITOR)) {
+            return null;
+        }
+        if (escape != null && !escape.isEverything(ExpressionVisitor.INDEPENDENT_VISITOR)) {
+            return null;
+        }
+        Value r = right.getValue(session);
+        if (r == ValueNull.INSTANCE) {
+            return null;
+        }
+        Value e = escape == null ? null : escape.getValue(session);
+        if (e == ValueNull.INSTANCE) {
+            return null;
+        }
+        initPattern(r.getString(), getEscapeChar(e));
+        if (invalidPattern) {
+            return null;
+        }
+        int maxMatch = 0;
+        StringBuilder buff = new StringBuilder();
+        while (maxMatch < patternLength && patternTypes[maxMatch] == MATCH) {
+            buff.append(patternChars[maxMatch++]);
+        }
+        return buff.length() == 0 ? null : buff.toString();
+    }
+
+    /**
+     * Get the left or the right sub-expression of this condition.
+     *
+     * @param getLeft true to get the left sub-expression, false to get the right
+     *            sub-expression.
+     * @return the sub-expression
+     */
+    public Expression getExpression(boolean getLeft) {
+        return getLeft ? this.left : right;
+    }
+
     public void mapColumns(ColumnResolver resolver, int level) {
         left.mapColumns(resolver, level);
         right.mapColumns(resolver, level);
@@ -175,6 +175,14 @@ public class ConditionIn extends Condition {
         return true;
     }
 
+    public Expression getLeft() {
+        return left;
+    }
+
+    public ArrayList<Expression> getValueList() {
+        return valueList;
+    }
+
     public int getCost() {
         int cost = left.getCost();
         for (Expression e : valueList) {
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2004-2011 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.codefollower.lealone.result;
+
+import java.util.ArrayList;
+
+import com.codefollower.lealone.engine.Session;
+import com.codefollower.lealone.util.New;
+import com.codefollower.lealone.value.Value;
+
+/**
+ * Rows that are spread over a number of temporary files by the hash code of
+ * their first columns (the key), so that rows with the same key are in the
+ * same partition. Used to process more groups than fit in memory: each
+ * partition is processed on its own, and if it is still too large, it is
+ * partitioned again using a different hash function (the next level).
+ */
+public class PartitionedRows {
+
+    /**
+     * The number of partitions.
+     */
+    private static final int PARTITIONS = 16;
+
+    /**
+     * The number of rows of a partition that are kept in memory before they
+     * are written.
+     */
+    private static final int BUFFER_ROWS = 128;
+
+    /**
+     * Rows are not partitioned again after this level, because the keys
+     * probably all have the same hash code.
+     */
+    private static final int MAX_LEVEL = 6;
+
+    private final Session session;
+    private final int columnCount;
+    private final int keyCount;
+    private final int level;
+    private final ResultDiskBuffer[] files = new ResultDiskBuffer[PARTITIONS];
+    private final ArrayList<ArrayList<Value[]>> buffers = New.arrayList(PARTITIONS);
+    private final int[] rowCounts = new int[PARTITIONS];
+
+    /**
+     * Create a new set of partitions.
+     *
+     * @param session the session
+     * @param columnCount the number of columns
+     * @param keyCount the number of key columns (the first columns)
+     * @param level the level (0 for the rows of a query)
+     */
+    public PartitionedRows(Session session, int columnCount, int keyCount, int level) {
+        this.session = session;
+        this.columnCount = columnCount;
+        this.keyCount = keyCount;
+        this.level = level;
+        for (int p = 0; p < PARTITIONS; p++) {
+            buffers.add(null);
+        }
+    }
+
+    /**
+     * Check if the rows of a partition can be partitioned again.
+     *
+     * @return true if they can
+     */
+    public boolean canPartition() {
+        return level < MAX_LEVEL;
+    }
+
+    /**
+     * Create the partitions for the rows of one of these partitions that
+     * don't fit in memory.
+     *
+     * @return the new partitions
+     */
+    public PartitionedRows createNextLevel() {
+        return new PartitionedRows(session, columnCount, keyCount, level + 1);
+    }
+
+    /**
+     * Add a row.
+     *
+     * @param row the row
+     */
+    public void add(Value[] row) {
+        int h = level + 1;
+        for (int i = 0; i < keyCount; i++) {
+            h = 31 * h + row[i].hashCode();
+        }
+        // the hash code of a level is independent from the one of the other
+        // levels and of the hash table the rows were grouped with
+        h *= 0x9e3779b9 + 2 * level;
+        h ^= h >>> 15;
+        h *= 0x85ebca6b;
+        int p = (h >>> 16) % PARTITIONS;
+        ArrayList<Value[]> buff = buffers.get(p);
+        if (buff == null) {
+            buff = New.arrayList();
+            buffers.set(p, buff);
+        }
+        buff.add(row);
+        rowCounts[p]++;
+        if (buff.size() >= BUFFER_ROWS) {
+            write(p);
+        }
+    }
+
+    private void write(int p) {
+        if (files[p] == null) {
+            files[p] = new ResultDiskBuffer(session, null, columnCount);
+        }
+        ArrayList<Value[]> buff = buffers.get(p);
+        files[p].addRows(buff);
+        buff.clear();
+    }
+
+    /**
+     * Write the remaining rows. This method is called after all rows have
+     * been added.
+     */
+    public void done() {
+        for (int p = 0; p < PARTITIONS; p++) {
+            ArrayList<Value[]> buff = buffers.get(p);
+            if (buff != null && buff.size() > 0) {
+                write(p);
+            }
+            buffers.set(p, null);
+            if (files[p] != null) {
+                files[p].done();
+            }
+        }
+    }
+
+    public int getPartitionCount() {
+        return PARTITIONS;
+    }
+
+    /**
+     * Get the number of rows in a partition.
+     *
+     * @param p the partition
+     * @return the number of rows
+     */
+    public int getRowCount(int p) {
+        return rowCounts[p];
+    }
+
+    /**
+     * Get the rows of a partition, to read them with next(). The number of
+     * rows is returned by getRowCount.
+     *
+     * @param p the partition
+     * @return the rows, or null if the partition is empty
+     */
+    public ResultExternal getPartition(int p) {
+        ResultDiskBuffer file = files[p];
+        if (file != null) {
+            file.reset();
+        }
+        return file;
+    }
+
+    /**
+     * Delete the file of a partition after it was read.
+     *
+     * @param p the partition
+     */
+    public void closePartition(int p) {
+        if (files[p] != null) {
+            files[p].close();
+            files[p] = null;
+        }
+    }
+
+    /**
+     * Close the temporary files.
+     */
+    public void close() {
+        for (int p = 0; p < PARTITIONS; p++) {
+            closePartition(p);
+            buffers.set(p, null);
+        }
+    }
+
+}
@@ -0,0 +1,465 @@
+/*
+ * Copyright 2004-2011 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.codefollower.lealone.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.codefollower.lealone.constant.ErrorCode;
+import com.codefollower.lealone.constant.SysProperties;
+import com.codefollower.lealone.message.DbException;
+import com.codefollower.lealone.message.TraceSystem;
+
+/**
+ * Accepts the connections of a TCP server with non-blocking sockets, so that
+ * idle connections don't need a thread.
+ *
+ * The accepted connections are spread over a few event loops. An event loop
+ * reads the bytes of its connections until TcpFrameDecoder finds a complete
+ * request, and then passes the connection to the worker pool, where the
+ * request is processed by the TcpServerThread of the connection. While a
+ * request is processed or its response is written, no more bytes are read
+ * from the connection, so the requests of a connection are processed one
+ * after the other, as in the blocking server. The SSL option is not
+ * supported.
+ *
+ * The number of workers and of the requests waiting for one are limited. A
+ * request that finds them all taken is not processed, it is answered with an
+ * error in the event loop. A request may wait for another request of the
+ * same server, for example a query over several regions of this server, so
+ * the number of workers can also be left unlimited: a worker is then started
+ * whenever all the workers are busy. Idle workers end after a minute.
+ */
+class NioTcpListener {
+
+    private final TcpServer server;
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    private final ThreadPoolExecutor workers;
+    private volatile boolean stop;
+    private int nextLoop;
+    private int nextThreadId;
+
+    /**
+     * Open the server socket.
+     *
+     * @param server the TCP server
+     * @param port the port, or 0 to use any free port
+     * @param maxWorkers the maximum number of worker threads, or 0 for no
+     *            limit
+     * @param maxQueued the maximum number of requests waiting for a worker
+     *            when the number of workers is limited, at least 1
+     */
+    NioTcpListener(TcpServer server, int port, int maxWorkers, int maxQueued) {
+        this.server = server;
+        try {
+            serverChannel = ServerSocketChannel.open();
+            String host = SysProperties.BIND_ADDRESS;
+            InetSocketAddress address;
+            if (host == null || host.length() == 0) {
+                address = new InetSocketAddress(port);
+            } else {
+                address = new InetSocketAddress(host, port);
+            }
+            serverChannel.socket().bind(address);
+        } catch (IOException e) {
+            throw DbException.get(ErrorCode.EXCEPTION_OPENING_PORT_2, e, "" + port, e.toString());
+        }
+        loops = new EventLoop[Math.max(1, SysProperties.SERVER_NIO_SELECTORS)];
+        final boolean daemon = server.isDaemon();
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "TCP worker " + count.incrementAndGet());
+                t.setDaemon(daemon);
+                return t;
+            }
+        };
+        if (maxWorkers > 0) {
+            // without a queue, a request could be rejected while the worker
+            // that just answered the previous one is not taking tasks yet
+            workers = new ThreadPoolExecutor(maxWorkers, maxWorkers, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(Math.max(1, maxQueued)), threadFactory);
+            workers.allowCoreThreadTimeOut(true);
+        } else {
+            workers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), threadFactory);
+        }
+    }
+
+    int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Start the event loops and accept connections until the listener is
+     * closed.
+     *
+     * @param threadName the name prefix of the event loop threads
+     */
+    void listen(String threadName) throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            Thread t = new Thread(loops[i], threadName + " selector " + i);
+            t.setDaemon(server.isDaemon());
+            t.start();
+        }
+        while (!stop) {
+            SocketChannel channel = serverChannel.accept();
+            if (stop) {
+                channel.close();
+                break;
+            }
+            Connection c = new Connection(channel, server.createTcpServerThread(channel.socket(), nextThreadId++));
+            EventLoop loop = loops[nextLoop++ % loops.length];
+            loop.resume(c);
+        }
+    }
+
+    /**
+     * Close the server socket and stop the event loops and the workers. The
+     * connections are closed by the server.
+     */
+    void close() {
+        stop = true;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            TraceSystem.traceThrowable(e);
+        }
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.selector.wakeup();
+            }
+        }
+        workers.shutdown();
+    }
+
+    /**
+     * A selector thread that reads requests and writes the responses that
+     * could not be written at once.
+     */
+    private class EventLoop implements Runnable {
+
+        final Selector selector;
+        private final ConcurrentLinkedQueue<Connection> resumed = new ConcurrentLinkedQueue<Connection>();
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        /**
+         * Let the event loop take care of the connection again, after it was
+         * accepted or after a request was processed.
+         */
+        void resume(Connection c) {
+            c.loop = this;
+            resumed.add(c);
+            selector.wakeup();
+        }
+
+        public void run() {
+            try {
+                while (!stop) {
+                    selector.select();
+                    for (Connection c = resumed.poll(); c != null; c = resumed.poll()) {
+                        register(c);
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection c = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                write(c, key);
+                            } else if (key.isValid() && key.isReadable()) {
+                                read(c, key);
+                            }
+                        } catch (Exception e) {
+                            server.traceError(e);
+                            key.cancel();
+                            c.thread.close();
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                if (!stop) {
+                    TraceSystem.traceThrowable(e);
+                }
+            } finally {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        private void register(Connection c) {
+            if (c.thread.isStopped() || !c.channel.isOpen()) {
+                c.thread.close();
+                return;
+            }
+            try {
+                SelectionKey key = c.channel.keyFor(selector);
+                if (key == null) {
+                    c.channel.configureBlocking(false);
+                    key = c.channel.register(selector, 0, c);
+                }
+                if (c.output != null) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                } else if (c.nextFrame()) {
+                    execute(c, key);
+                } else {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            } catch (IOException e) {
+                server.traceError(e);
+                c.thread.close();
+            }
+        }
+
+        private void read(Connection c, SelectionKey key) throws IOException {
+            if (c.receive() < 0) {
+                key.cancel();
+                c.thread.close();
+            } else if (c.nextFrame()) {
+                execute(c, key);
+            }
+        }
+
+        private void execute(Connection c, SelectionKey key) {
+            key.interestOps(0);
+            try {
+                workers.execute(c);
+            } catch (RejectedExecutionException e) {
+                c.reject(DbException.get(ErrorCode.GENERAL_ERROR_1, "no free TCP worker"));
+                register(c);
+            }
+        }
+
+        private void write(Connection c, SelectionKey key) throws IOException {
+            if (c.write()) {
+                key.interestOps(0);
+                register(c);
+            }
+        }
+    }
+
+    /**
+     * The state of a connection: the received bytes, the request being
+     * processed and the response not written yet.
+     */
+    private static class Connection extends InputStream implements Runnable {
+
+        final SocketChannel channel;
+        final TcpServerThread thread;
+        volatile EventLoop loop;
+
+        /**
+         * The response not written yet, or null
+         */
+        ByteBuffer output;
+
+        private final Output out = new Output();
+        private byte[] buff = new byte[4 * 1024];
+        private int start, end;
+        private boolean connected;
+        private int frameEnd = -1;
+
+        Connection(SocketChannel channel, TcpServerThread thread) {
+            this.channel = channel;
+            this.thread = thread;
+            thread.transfer.init(this, out);
+        }
+
+        /**
+         * Read the available bytes.
+         *
+         * @return the number of bytes read, or -1 at the end of the stream
+         */
+        int receive() throws IOException {
+            if (end == buff.length) {
+                if (start > 0) {
+                    System.arraycopy(buff, start, buff, 0, end - start);
+                    end -= start;
+                    start = 0;
+                } else {
+                    byte[] b = new byte[buff.length * 2];
+                    System.arraycopy(buff, 0, b, 0, end);
+                    buff = b;
+                }
+            }
+            int n = channel.read(ByteBuffer.wrap(buff, end, buff.length - end));
+            if (n > 0) {
+                end += n;
+            }
+            return n;
+        }
+
+        /**
+         * Check if a complete request was received.
+         */
+        boolean nextFrame() {
+            if (frameEnd < 0 && start < end) {
+                int len;
+                if (connected) {
+                    len = TcpFrameDecoder.getRequestLength(buff, start, end, thread.getClientVersion());
+                } else {
+                    len = TcpFrameDecoder.getConnectLength(buff, start, end);
+                }
+                if (len >= 0) {
+                    frameEnd = start + len;
+                }
+            }
+            return frameEnd >= 0;
+        }
+
+        /**
+         * Process the received requests in a worker thread.
+         */
+        public void run() {
+            try {
+                while (nextFrame() && !thread.isStopped()) {
+                    if (connected) {
+                        thread.processFrame();
+                    } else {
+                        thread.connect();
+                        connected = true;
+                    }
+                    start = frameEnd;
+                    frameEnd = -1;
+                }
+                if (start == end) {
+                    start = end = 0;
+                }
+                if (out.size() > 0) {
+                    output = ByteBuffer.wrap(out.getBuffer(), 0, out.size());
+                    write();
+                }
+            } catch (Throwable e) {
+                thread.server.traceError(e);
+                thread.close();
+            }
+            loop.resume(this);
+        }
+
+        /**
+         * Answer the received request with an error instead of processing it,
+         * when no worker can take it.
+         *
+         * @param e the error
+         */
+        void reject(DbException e) {
+            if (connected) {
+                thread.rejectFrame(e);
+            } else {
+                thread.rejectConnect(e);
+            }
+            start = frameEnd;
+            frameEnd = -1;
+            if (out.size() > 0) {
+                output = ByteBuffer.wrap(out.getBuffer(), 0, out.size());
+            }
+        }
+
+        /**
+         * Write the pending response.
+         *
+         * @return true if everything was written
+         */
+        boolean write() throws IOException {
+            while (output.hasRemaining()) {
+                if (channel.write(output) == 0) {
+                    return false;
+                }
+            }
+            output = null;
+            out.reset();
+            return true;
+        }
+
+        // the input stream of the current request, used by the transfer object
+
+        public int read() {
+            if (start >= frameEnd) {
+                return -1;
+            }
+            return buff[start++] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            int available = frameEnd - start;
+            if (available <= 0) {
+                return len == 0 ? 0 : -1;
+            }
+            len = Math.min(len, available);
+            System.arraycopy(buff, start, b, off, len);
+            start += len;
+            return len;
+        }
+
+        public int available() {
+            return Math.max(0, frameEnd - start);
+        }
+
+        public long skip(long n) {
+            n = Math.max(0, Math.min(n, frameEnd - start));
+            start += (int) n;
+            return n;
+        }
+
+        /**
+         * Collects the response of a request. Flushing writes as much as the
+         * socket accepts without blocking, the rest is written by the event
+         * loop.
+         */
+        private class Output extends ByteArrayOutputStream {
+
+            Output() {
+                super(4 * 1024);
+            }
+
+            byte[] getBuffer() {
+                return buf;
+            }
+
+            public void flush() throws IOException {
+                if (count == 0) {
+                    return;
+                }
+                ByteBuffer bb = ByteBuffer.wrap(buf, 0, count);
+                while (bb.hasRemaining() && channel.write(bb) > 0) {
+                    // write until the socket buffer is full
+                }
+                count = bb.remaining();
+                if (count > 0) {
+                    System.arraycopy(buf, bb.position(), buf, 0, count);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2004-2011 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package com.codefollower.lealone.server;
+
+import com.codefollower.lealone.constant.Constants;
+import com.codefollower.lealone.engine.SessionRemote;
+import com.codefollower.lealone.value.Value;
+
+/**
+ * Finds the end of the next request in the bytes received from a client,
+ * without blocking. The protocol has no length prefix, so the request is
+ * walked the same way TcpServerThread and Transfer read it, only skipping the
+ * data instead of converting it.
+ */
+class TcpFrameDecoder {
+
+    private static final Incomplete INCOMPLETE = new Incomplete();
+
+    private final byte[] buff;
+    private final int end;
+    private final int clientVersion;
+    private int pos;
+
+    private TcpFrameDecoder(byte[] buff, int start, int end, int clientVersion) {
+        this.buff = buff;
+        this.pos = start;
+        this.end = end;
+        this.clientVersion = clientVersion;
+    }
+
+    /**
+     * Get the length of the connection request at the given position.
+     *
+     * @param buff the received bytes
+     * @param start the start of the request
+     * @param end the end of the received bytes
+     * @return the length, or -1 if the request is not complete yet
+     */
+    static int getConnectLength(byte[] buff, int start, int end) {
+        TcpFrameDecoder d = new TcpFrameDecoder(buff, start, end, 0);
+        try {
+            d.skipConnect();
+        } catch (Incomplete e) {
+            return -1;
+        }
+        return d.pos - start;
+    }
+
+    /**
+     * Get the length of the request at the given position.
+     *
+     * @param buff the received bytes
+     * @param start the start of the request
+     * @param end the end of the received bytes
+     * @param clientVersion the protocol version of the connection
+     * @return the length, or -1 if the request is not complete yet
+     */
+    static int getRequestLength(byte[] buff, int start, int end, int clientVersion) {
+        TcpFrameDecoder d = new TcpFrameDecoder(buff, start, end, clientVersion);
+        try {
+            d.skipRequest();
+        } catch (Incomplete e) {
+            return -1;
+        }
+        return d.pos - start;
+    }
+
+    private void skipConnect() throws Incomplete {
+        skip(8); // min and max client version
+        boolean hasDb = skipString();
+        boolean hasURL = skipString();
+        if (!hasDb && !hasURL) {
+            skipString();
+            int command = readInt();
+            if (command == SessionRemote.SESSION_CANCEL_STATEMENT) {
+                skip(4);
+            }
+            // the client closes the connection after these commands
+            return;
+        }
+        skipString(); // user name
+        skipBytes(); // user password hash
+        skipBytes(); // file password hash
+        int len = readInt();
+        for (int i = 0; i < len; i++) {
+            skipString();
+            skipString();
+        }
+    }
+
+    private void skipRequest() throws Incomplete {
+        int operation = readInt();
+        switch (operation) {
+        case SessionRemote.SESSION_PREPARE_READ_PARAMS:
+        case SessionRemote.SESSION_PREPARE:
+            skip(4);
+            skipString();
+            break;
+        case SessionRemote.SESSION_CLOSE:
+        case SessionRemote.COMMAND_COMMIT:
+        case SessionRemote.SESSION_UNDO_LOG_POS:
+            break;
+        case SessionRemote.COMMAND_GET_META_DATA:
+        case SessionRemote.RESULT_FETCH_ROWS:
+        case SessionRemote.CHANGE_ID:
+            skip(8);
+            break;
+        case SessionRemote.COMMAND_EXECUTE_QUERY:
+            skip(16);
+            skipParameters();
+            break;
+        case SessionRemote.COMMAND_EXECUTE_UPDATE:
+            skip(4);
+            skipParameters();
+            break;
+        case SessionRemote.COMMAND_EXECUTE_BATCH_UPDATE: {
+            skip(4);
+            int size = readInt();
+            for (int i = 0; i < size; i++) {
+                skipParameters();
+            }
+            break;
+        }
+        case SessionRemote.REQUEST_ID:
+            skip(4);
+            skipRequest();
+            break;
+        case SessionRemote.COMMAND_CLOSE:
+        case SessionRemote.RESULT_RESET:
+        case SessionRemote.RESULT_CLOSE:
+            skip(4);
+            break;
+        case SessionRemote.SESSION_SET_ID:
+            skipString();
+            break;
+        case SessionRemote.SESSION_SET_AUTOCOMMIT:
+            skip(1);
+            break;
+        case SessionRemote.LOB_READ:
+            skip(8);
+            if (clientVersion >= Constants.TCP_PROTOCOL_VERSION_12) {
+                skipBytes();
+            }
+            skip(12);
+            break;
+        default:
+            // the server closes the connection
+        }
+    }
+
+    private void skipParameters() throws Incomplete {
+        int len = readInt();
+        for (int i = 0; i < len; i++) {
+            skipValue();
+        }
+    }
+
+    private void skipValue() throws Incomplete {
+        int type = readInt();
+        switch (type) {
+        case Value.NULL:
+            break;
+        case Value.BYTES:
+        case Value.JAVA_OBJECT:
+            skipBytes();
+            break;
+        case Value.UUID:
+            skip(16);
+            break;
+        case Value.BOOLEAN:
+        case Value.BYTE:
+            skip(1);
+            break;
+        case Value.DATE:
+        case Value.TIME:
+        case Value.DOUBLE:
+        case Value.LONG:
+            skip(8);
+            break;
+        case Value.TIMESTAMP:
+            skip(clientVersion >= Constants.TCP_PROTOCOL_VERSION_9 ? 16 : 12);
+            break;
+        case Value.FLOAT:
+        case Value.INT:
+        case Value.SHORT:
+            skip(4);
+            break;
+        case Value.DECIMAL:
+        case Value.STRING:
+        case Value.STRING_IGNORECASE:
+        case Value.STRING_FIXED:
+            skipString();
+            break;
+        case Value.BLOB:
+        case Value.CLOB: {
+            long length = readLong();
+            if (length == -1 && clientVersion >= Constants.TCP_PROTOCOL_VERSION_11) {
+                skip(12); // table id and lob id
+                if (clientVersion >= Constants.TCP_PROTOCOL_VERSION_12) {
+                    skipBytes();
+                }
+                skip(8);
+            } else if (type == Value.BLOB) {
+                skip(length);
+                skip(4);
+            } else {
+                skipChars(length);
+                skip(4);
+            }
+            break;
+        }
+        case Value.ARRAY: {
+            int len = readInt();
+            if (len < 0) {
+                len = -(len + 1);
+                skipString();
+            }
+            for (int i = 0; i < len; i++) {
+                skipValue();
+            }
+            break;
+        }
+        case Value.RESULT_SET: {
+            int columns = readInt();
+            for (int i = 0; i < columns; i++) {
+                skipString();
+                skip(12);
+            }
+            while (readByte() == 1) {
+                for (int i = 0; i < columns; i++) {
+                    skipValue();
+                }
+            }
+            break;
+        }
+        default:
+            // the server fails reading the value
+        }
+    }
+
+    /**
+     * Skip a string.
+     *
+     * @return false if the string is null
+     */
+    private boolean skipString() throws Incomplete {
+        int len = readInt();
+        if (len == -1) {
+            return false;
+        }
+        skip(2L * len);
+        return true;
+    }
+
+    private void skipBytes() throws Incomplete {
+        skip(readInt());
+    }
+
+    /**
+     * Skip characters in the encoding used by DataReader.
+     */
+    private void skipChars(long len) throws Incomplete {
+        for (long i = 0; i < len; i++) {
+            int x = readByte() & 0xff;
+            if (x >= 0xe0) {
+                skip(2);
+            } else if (x >= 0x80) {
+                skip(1);
+            }
+        }
+    }
+
+    private void skip(long n) throws Incomplete {
+        if (n <= 0) {
+            // invalid lengths are reported when the request is processed
+            return;
+        }
+        if (n > end - pos) {
+            throw INCOMPLETE;
+        }
+        pos += (int) n;
+    }
+
+    private byte readByte() throws Incomplete {
+        if (pos >= end) {
+            throw INCOMPLETE;
+        }
+        return buff[pos++];
+    }
+
+    private int readInt() throws Incomplete {
+        if (end - pos < 4) {
+            throw INCOMPLETE;
+        }
+        int x = ((buff[pos] & 0xff) << 24) | ((buff[pos + 1] & 0xff) << 16) | ((buff[pos + 2] & 0xff) << 8)
+                | (buff[pos + 3] & 0xff);
+        pos += 4;
+        return x;
+    }
+
+    private long readLong() throws Incomplete {
+        return ((long) readInt() << 32) | (readInt() & 0xffffffffL);
+    }
+
+    /**
+     * Thrown when the end of the received bytes is reached. Like
+     * DataReader.FastEOFException, the stack trace is not filled in.
+     */
+    private static class Incomplete extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        public synchronized Throwable fillInStackTrace() {
+            return null;
+        }
+
+    }
+
+}
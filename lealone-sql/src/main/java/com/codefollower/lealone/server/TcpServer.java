@@ -25,6 +25,7 @@ import java.util.Set;
 import com.codefollower.lealone.Driver;
 import com.codefollower.lealone.constant.Constants;
 import com.codefollower.lealone.constant.ErrorCode;
+import com.codefollower.lealone.constant.SysProperties;
 import com.codefollower.lealone.message.DbException;
 import com.codefollower.lealone.message.TraceSystem;
 import com.codefollower.lealone.util.JdbcUtils;
@@ -61,6 +62,10 @@ public class TcpServer implements Service {
     private boolean stop;
     private ShutdownHandler shutdownHandler;
     private ServerSocket serverSocket;
+    private boolean nio;
+    private int nioWorkers;
+    private int nioQueue;
+    private NioTcpListener nioListener;
     private final Set<TcpServerThread> running = Collections.synchronizedSet(new HashSet<TcpServerThread>());
     private String baseDir;
     private boolean allowOthers;
@@ -163,6 +168,8 @@ public class TcpServer implements Service {
 
     public void init(String... args) {
         port = Constants.DEFAULT_TCP_PORT;
+        nioWorkers = SysProperties.SERVER_NIO_WORKERS;
+        nioQueue = SysProperties.SERVER_NIO_WORKER_QUEUE;
         for (int i = 0; args != null && i < args.length; i++) {
             String a = args[i];
             if (Tool.isOption(a, "-trace")) {
@@ -183,6 +190,12 @@ public class TcpServer implements Service {
                 allowOthers = true;
             } else if (Tool.isOption(a, "-tcpDaemon")) {
                 isDaemon = true;
+            } else if (Tool.isOption(a, "-tcpNioWorkers")) {
+                nioWorkers = Integer.decode(args[++i]);
+            } else if (Tool.isOption(a, "-tcpNioQueue")) {
+                nioQueue = Integer.decode(args[++i]);
+            } else if (Tool.isOption(a, "-tcpNio")) {
+                nio = true;
             } else if (Tool.isOption(a, "-ifExists")) {
                 ifExists = true;
             }
@@ -219,6 +232,20 @@ public class TcpServer implements Service {
 
     public synchronized void start() throws SQLException {
         stop = false;
+        if (nio && !ssl) {
+            try {
+                nioListener = new NioTcpListener(this, port, nioWorkers, nioQueue);
+            } catch (DbException e) {
+                if (!portIsSet) {
+                    nioListener = new NioTcpListener(this, 0, nioWorkers, nioQueue);
+                } else {
+                    throw e;
+                }
+            }
+            port = nioListener.getLocalPort();
+            initManagementDb();
+            return;
+        }
         try {
             serverSocket = NetUtils.createServerSocket(port, ssl);
         } catch (DbException e) {
@@ -235,6 +262,18 @@ public class TcpServer implements Service {
     public void listen() {
         listenerThread = Thread.currentThread();
         String threadName = listenerThread.getName();
+        if (nioListener != null) {
+            try {
+                nioListener.listen(threadName);
+            } catch (Exception e) {
+                if (!stop) {
+                    TraceSystem.traceThrowable(e);
+                }
+            }
+            nioListener.close();
+            stopManagementDb();
+            return;
+        }
         try {
             while (!stop) {
                 Socket s = serverSocket.accept();
@@ -259,7 +298,7 @@ public class TcpServer implements Service {
     }
 
     public synchronized boolean isRunning(boolean traceError) {
-        if (serverSocket == null) {
+        if (serverSocket == null && nioListener == null) {
             return false;
         }
         try {
@@ -292,6 +331,9 @@ public class TcpServer implements Service {
                 }
                 serverSocket = null;
             }
+            if (nioListener != null) {
+                nioListener.close();
+            }
             if (listenerThread != null) {
                 try {
                     listenerThread.join(1000);
@@ -304,6 +346,10 @@ public class TcpServer implements Service {
         for (TcpServerThread c : New.arrayList(running)) {
             if (c != null) {
                 c.close();
+                if (c.getThread() == null) {
+                    // served by a worker of the NIO listener
+                    continue;
+                }
                 try {
                     c.getThread().join(100);
                 } catch (Exception e) {
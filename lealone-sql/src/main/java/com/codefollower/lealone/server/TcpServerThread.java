@@ -14,6 +14,7 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.Socket;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 
 import com.codefollower.lealone.command.Command;
@@ -32,6 +33,7 @@ import com.codefollower.lealone.result.ResultColumn;
 import com.codefollower.lealone.result.ResultInterface;
 import com.codefollower.lealone.store.LobStorage;
 import com.codefollower.lealone.util.IOUtils;
+import com.codefollower.lealone.util.New;
 import com.codefollower.lealone.util.SmallLRUCache;
 import com.codefollower.lealone.util.SmallMap;
 import com.codefollower.lealone.util.StringUtils;
@@ -74,65 +76,9 @@ public class TcpServerThread implements Runnable {
         try {
             transfer.init();
             trace("Connect");
-            // TODO server: should support a list of allowed databases
-            // and a list of allowed clients
-            try {
-                if (!server.allow(transfer.getSocket())) {
-                    throw DbException.get(ErrorCode.REMOTE_CONNECTION_NOT_ALLOWED);
-                }
-                int minClientVersion = transfer.readInt();
-                if (minClientVersion < Constants.TCP_PROTOCOL_VERSION_6) {
-                    throw DbException.get(ErrorCode.DRIVER_VERSION_ERROR_2, "" + clientVersion, "" + Constants.TCP_PROTOCOL_VERSION_6);
-                } else if (minClientVersion > Constants.TCP_PROTOCOL_VERSION_12) {
-                    throw DbException.get(ErrorCode.DRIVER_VERSION_ERROR_2, "" + clientVersion, "" + Constants.TCP_PROTOCOL_VERSION_12);
-                }
-                int maxClientVersion = transfer.readInt();
-                if (maxClientVersion >= Constants.TCP_PROTOCOL_VERSION_12) {
-                    clientVersion = Constants.TCP_PROTOCOL_VERSION_12;
-                } else {
-                    clientVersion = minClientVersion;
-                }
-                transfer.setVersion(clientVersion);
-                String db = transfer.readString();
-                String originalURL = transfer.readString();
-                if (db == null && originalURL == null) {
-                    String targetSessionId = transfer.readString();
-                    int command = transfer.readInt();
-                    stop = true;
-                    if (command == SessionRemote.SESSION_CANCEL_STATEMENT) {
-                        // cancel a running statement
-                        int statementId = transfer.readInt();
-                        server.cancelStatement(targetSessionId, statementId);
-                    } else if (command == SessionRemote.SESSION_CHECK_KEY) {
-                        // check if this is the correct server
-                        db = server.checkKeyAndGetDatabaseName(targetSessionId);
-                        if (!targetSessionId.equals(db)) {
-                            transfer.writeInt(SessionRemote.STATUS_OK);
-                        } else {
-                            transfer.writeInt(SessionRemote.STATUS_ERROR);
-                        }
-                    }
-                }
-
-                String userName = transfer.readString();
-                userName = StringUtils.toUpperEnglish(userName);
-                session = createSession(db, originalURL, userName, transfer);
-                transfer.setSession(session);
-                transfer.writeInt(SessionRemote.STATUS_OK);
-                transfer.writeInt(clientVersion);
-                transfer.flush();
-                server.addConnection(threadId, originalURL, userName);
-                trace("Connected");
-            } catch (Throwable e) {
-                sendError(e);
-                stop = true;
-            }
+            connect();
             while (!stop) {
-                try {
-                    process();
-                } catch (Throwable e) {
-                    sendError(e);
-                }
+                processFrame();
             }
             trace("Disconnect");
         } catch (Throwable e) {
@@ -142,6 +88,132 @@ public class TcpServerThread implements Runnable {
         }
     }
 
+    /**
+     * Read the connection request of the client and open the session.
+     * Errors are sent to the client and stop this connection.
+     */
+    void connect() {
+        // TODO server: should support a list of allowed databases
+        // and a list of allowed clients
+        try {
+            if (!server.allow(transfer.getSocket())) {
+                throw DbException.get(ErrorCode.REMOTE_CONNECTION_NOT_ALLOWED);
+            }
+            int minClientVersion = transfer.readInt();
+            if (minClientVersion < Constants.TCP_PROTOCOL_VERSION_6) {
+                throw DbException.get(ErrorCode.DRIVER_VERSION_ERROR_2, "" + clientVersion, "" + Constants.TCP_PROTOCOL_VERSION_6);
+            } else if (minClientVersion > Constants.TCP_PROTOCOL_VERSION_15) {
+                throw DbException.get(ErrorCode.DRIVER_VERSION_ERROR_2, "" + clientVersion, "" + Constants.TCP_PROTOCOL_VERSION_15);
+            }
+            int maxClientVersion = transfer.readInt();
+            if (maxClientVersion >= Constants.TCP_PROTOCOL_VERSION_15) {
+                clientVersion = Constants.TCP_PROTOCOL_VERSION_15;
+            } else if (maxClientVersion >= Constants.TCP_PROTOCOL_VERSION_14) {
+                clientVersion = Constants.TCP_PROTOCOL_VERSION_14;
+            } else if (maxClientVersion >= Constants.TCP_PROTOCOL_VERSION_13) {
+                clientVersion = Constants.TCP_PROTOCOL_VERSION_13;
+            } else if (maxClientVersion >= Constants.TCP_PROTOCOL_VERSION_12) {
+                clientVersion = Constants.TCP_PROTOCOL_VERSION_12;
+            } else {
+                clientVersion = minClientVersion;
+            }
+            transfer.setVersion(clientVersion);
+            String db = transfer.readString();
+            String originalURL = transfer.readString();
+            if (db == null && originalURL == null) {
+                String targetSessionId = transfer.readString();
+                int command = transfer.readInt();
+                stop = true;
+                if (command == SessionRemote.SESSION_CANCEL_STATEMENT) {
+                    // cancel a running statement
+                    int statementId = transfer.readInt();
+                    server.cancelStatement(targetSessionId, statementId);
+                } else if (command == SessionRemote.SESSION_CHECK_KEY) {
+                    // check if this is the correct server
+                    db = server.checkKeyAndGetDatabaseName(targetSessionId);
+                    if (!targetSessionId.equals(db)) {
+                        transfer.writeInt(SessionRemote.STATUS_OK);
+                    } else {
+                        transfer.writeInt(SessionRemote.STATUS_ERROR);
+                    }
+                }
+            }
+
+            String userName = transfer.readString();
+            userName = StringUtils.toUpperEnglish(userName);
+            session = createSession(db, originalURL, userName, transfer);
+            transfer.setSession(session);
+            transfer.writeInt(SessionRemote.STATUS_OK);
+            transfer.writeInt(clientVersion);
+            transfer.flush();
+            server.addConnection(threadId, originalURL, userName);
+            trace("Connected");
+        } catch (Throwable e) {
+            sendError(e);
+            stop = true;
+        }
+    }
+
+    /**
+     * Process one request of the client. Errors are sent to the client.
+     */
+    void processFrame() {
+        try {
+            process();
+        } catch (Throwable e) {
+            sendError(e);
+        }
+    }
+
+    /**
+     * Answer the connection request of the client with an error and stop this
+     * connection, without opening a session.
+     *
+     * @param e the error
+     */
+    void rejectConnect(DbException e) {
+        sendError(e);
+        stop = true;
+    }
+
+    /**
+     * Answer one request of the client with an error instead of processing
+     * it. The requests that have no response only free or rename objects of
+     * the session, they are processed anyway so that the ids of the client
+     * stay valid.
+     *
+     * @param e the error
+     */
+    void rejectFrame(DbException e) {
+        try {
+            int operation = transfer.readInt();
+            if (operation == SessionRemote.REQUEST_ID) {
+                transfer.writeInt(transfer.readInt());
+                operation = transfer.readInt();
+            }
+            switch (operation) {
+            case SessionRemote.COMMAND_CLOSE:
+            case SessionRemote.RESULT_RESET:
+            case SessionRemote.RESULT_CLOSE:
+            case SessionRemote.CHANGE_ID:
+                process(operation);
+                break;
+            default:
+                sendError(e);
+            }
+        } catch (Throwable t) {
+            sendError(t);
+        }
+    }
+
+    boolean isStopped() {
+        return stop;
+    }
+
+    int getClientVersion() {
+        return clientVersion;
+    }
+
     protected Session createSession(String db, String originalURL, String userName, Transfer transfer) throws IOException {
         String baseDir = server.getBaseDir();
         if (baseDir == null) {
@@ -219,22 +291,9 @@ public class TcpServerThread implements Runnable {
 
     private void sendError(Throwable t) {
         try {
-            SQLException e = DbException.convert(t).getSQLException();
-            StringWriter writer = new StringWriter();
-            e.printStackTrace(new PrintWriter(writer));
-            String trace = writer.toString();
-            String message;
-            String sql;
-            if (e instanceof JdbcSQLException) {
-                JdbcSQLException j = (JdbcSQLException) e;
-                message = j.getOriginalMessage();
-                sql = j.getSQL();
-            } else {
-                message = e.getMessage();
-                sql = null;
-            }
-            transfer.writeInt(SessionRemote.STATUS_ERROR).writeString(e.getSQLState()).writeString(message)
-                    .writeString(sql).writeInt(e.getErrorCode()).writeString(trace).flush();
+            transfer.writeInt(SessionRemote.STATUS_ERROR);
+            writeError(t);
+            transfer.flush();
         } catch (Exception e2) {
             if (!transfer.isClosed()) {
                 server.traceError(e2);
@@ -244,6 +303,25 @@ public class TcpServerThread implements Runnable {
         }
     }
 
+    private void writeError(Throwable t) throws IOException {
+        SQLException e = DbException.convert(t).getSQLException();
+        StringWriter writer = new StringWriter();
+        e.printStackTrace(new PrintWriter(writer));
+        String trace = writer.toString();
+        String message;
+        String sql;
+        if (e instanceof JdbcSQLException) {
+            JdbcSQLException j = (JdbcSQLException) e;
+            message = j.getOriginalMessage();
+            sql = j.getSQL();
+        } else {
+            message = e.getMessage();
+            sql = null;
+        }
+        transfer.writeString(e.getSQLState()).writeString(message).writeString(sql).writeInt(e.getErrorCode())
+                .writeString(trace);
+    }
+
     private void setParameters(Command command) throws IOException {
         int len = transfer.readInt();
         ArrayList<? extends ParameterInterface> params = command.getParameters();
@@ -254,7 +332,10 @@ public class TcpServerThread implements Runnable {
     }
 
     private void process() throws IOException {
-        int operation = transfer.readInt();
+        process(transfer.readInt());
+    }
+
+    private void process(int operation) throws IOException {
         switch (operation) {
         case SessionRemote.SESSION_PREPARE_READ_PARAMS:
         case SessionRemote.SESSION_PREPARE: {
@@ -331,10 +412,7 @@ public class TcpServerThread implements Runnable {
             int fetch = fetchSize;
             if (rowCount != -1)
                 fetch = Math.min(rowCount, fetchSize);
-            boolean isEnd = false;
-            for (int i = 0; !isEnd && i < fetch; i++) {
-                isEnd = sendRow(result);
-            }
+            sendRows(result, fetch);
             transfer.flush();
             break;
         }
@@ -357,6 +435,49 @@ public class TcpServerThread implements Runnable {
             transfer.flush();
             break;
         }
+        case SessionRemote.COMMAND_EXECUTE_BATCH_UPDATE: {
+            int id = transfer.readInt();
+            Command command = (Command) cache.getObject(id, false);
+            int size = transfer.readInt();
+            ArrayList<Value[]> batchParameters = New.arrayList();
+            for (int i = 0; i < size; i++) {
+                Value[] set = new Value[transfer.readInt()];
+                for (int j = 0; j < set.length; j++) {
+                    set[j] = transfer.readValue();
+                }
+                batchParameters.add(set);
+            }
+            int old = session.getModificationId();
+            int[] updateCounts = new int[size];
+            Throwable[] errors = new Throwable[size];
+            synchronized (session) {
+                executeBatchUpdate(command, batchParameters, updateCounts, errors);
+            }
+            int status;
+            if (session.isClosed()) {
+                status = SessionRemote.STATUS_CLOSED;
+            } else {
+                status = getState(old);
+            }
+            transfer.writeInt(status);
+            for (int i = 0; i < size; i++) {
+                transfer.writeInt(updateCounts[i]);
+                if (errors[i] != null) {
+                    writeError(errors[i]);
+                }
+            }
+            transfer.writeBoolean(session.getAutoCommit());
+            transfer.flush();
+            break;
+        }
+        case SessionRemote.REQUEST_ID: {
+            // the response of the request that follows starts with the
+            // request id, so that the client can match it
+            int requestId = transfer.readInt();
+            transfer.writeInt(requestId);
+            process();
+            break;
+        }
         case SessionRemote.COMMAND_CLOSE: {
             int id = transfer.readInt();
             Command command = (Command) cache.getObject(id, true);
@@ -371,10 +492,7 @@ public class TcpServerThread implements Runnable {
             int count = transfer.readInt();
             ResultInterface result = (ResultInterface) cache.getObject(id, false);
             transfer.writeInt(SessionRemote.STATUS_OK);
-            boolean isEnd = false;
-            for (int i = 0; !isEnd && i < count; i++) {
-                isEnd = sendRow(result);
-            }
+            sendRows(result, count);
             transfer.flush();
             break;
         }
@@ -466,6 +584,50 @@ public class TcpServerThread implements Runnable {
         }
     }
 
+    /**
+     * Execute a command once for each parameter set of a batch. In auto commit
+     * mode, the batch is executed in one transaction that is committed at the
+     * end, instead of committing after each parameter set. A failed parameter
+     * set is rolled back by the command and doesn't stop the batch.
+     */
+    private void executeBatchUpdate(Command command, ArrayList<Value[]> batchParameters, int[] updateCounts,
+            Throwable[] errors) {
+        boolean autoCommit = session.getAutoCommit();
+        if (autoCommit) {
+            session.setAutoCommit(false);
+        }
+        boolean committed = false;
+        try {
+            ArrayList<? extends ParameterInterface> params = command.getParameters();
+            for (int i = 0, size = batchParameters.size(); i < size; i++) {
+                Value[] set = batchParameters.get(i);
+                try {
+                    for (int j = 0; j < set.length; j++) {
+                        ((Parameter) params.get(j)).setValue(set[j]);
+                    }
+                    updateCounts[i] = command.executeUpdate();
+                } catch (Throwable e) {
+                    updateCounts[i] = Statement.EXECUTE_FAILED;
+                    errors[i] = e;
+                }
+            }
+            if (autoCommit) {
+                if (commit == null) {
+                    commit = session.prepareLocal("COMMIT");
+                }
+                commit.executeUpdate();
+            }
+            committed = true;
+        } finally {
+            if (autoCommit) {
+                if (!committed) {
+                    session.prepareLocal("ROLLBACK").executeUpdate();
+                }
+                session.setAutoCommit(true);
+            }
+        }
+    }
+
     private int getState(int oldModificationId) {
         if (session.getModificationId() == oldModificationId) {
             return SessionRemote.STATUS_OK;
@@ -473,6 +635,28 @@ public class TcpServerThread implements Runnable {
         return SessionRemote.STATUS_OK_STATE_CHANGED;
     }
 
+    /**
+     * Send the next rows of a result. Since the protocol version 15, the rows
+     * are sent in one batch in the compact format of Transfer.writeRows.
+     *
+     * @param result the result
+     * @param count the maximum number of rows to send
+     */
+    private void sendRows(ResultInterface result, int count) throws IOException {
+        if (clientVersion >= Constants.TCP_PROTOCOL_VERSION_15) {
+            ArrayList<Value[]> rows = New.arrayList();
+            while (rows.size() < count && result.next()) {
+                rows.add(result.currentRow());
+            }
+            transfer.writeRows(rows, result.getVisibleColumnCount(), SysProperties.SERVER_RESULT_SET_COMPRESS);
+        } else {
+            boolean isEnd = false;
+            for (int i = 0; !isEnd && i < count; i++) {
+                isEnd = sendRow(result);
+            }
+        }
+    }
+
     private boolean sendRow(ResultInterface result) throws IOException {
         if (result.next()) {
             transfer.writeBoolean(true);
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.hbase;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codefollower.lealone.command.CommandInterface;
+import com.codefollower.lealone.hbase.result.HBaseParallelResult;
+import com.codefollower.lealone.hbase.result.HBaseRegionQueries;
+import com.codefollower.lealone.hbase.result.HBaseSerializedResult;
+import com.codefollower.lealone.result.ResultInterface;
+import com.codefollower.lealone.util.New;
+import com.codefollower.lealone.value.Value;
+import com.codefollower.lealone.value.ValueInt;
+
+//不需要启动HBase，用假的CommandInterface和ResultInterface模拟各个Region上的查询
+public class HBaseRegionQueriesTest {
+    private static final int REGIONS = 30;
+    private static final int ROWS = 3;
+
+    //跟CommandParallel的线程池一样用SynchronousQueue，但线程数远少于Region个数
+    private ThreadPoolExecutor pool;
+    private final Queue<RegionResult> opened = new ConcurrentLinkedQueue<RegionResult>();
+
+    @Before
+    public void setUp() {
+        pool = new ThreadPoolExecutor(1, 2, 5, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+        opened.clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void parallelResult() {
+        for (boolean ordered : new boolean[] { true, false }) {
+            opened.clear();
+            HBaseParallelResult result = new HBaseParallelResult(createCommands(null, null), pool, 0, false, ordered,
+                    4);
+            int[] counts = new int[REGIONS];
+            int lastRegion = -1;
+            while (result.next()) {
+                int region = result.currentRow()[0].getInt();
+                if (ordered)
+                    assertTrue(region >= lastRegion);
+                lastRegion = region;
+                counts[region]++;
+            }
+            result.close();
+            for (int i = 0; i < REGIONS; i++)
+                assertEquals(getRowCount(i), counts[i]);
+            assertEquals(REGIONS, opened.size());
+            assertAllClosed();
+        }
+    }
+
+    @Test
+    public void closeParallelResultEarly() throws Exception {
+        //线程池满时查询在当前线程中执行，会一直等待release，所以这里的线程数要多于提前打开的Region个数
+        pool.shutdown();
+        pool = new ThreadPoolExecutor(1, 8, 5, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(2);
+        HBaseParallelResult result = new HBaseParallelResult(createCommands(release, started), pool, 0, false, true,
+                4);
+        assertTrue(result.next());
+        //等后面的Region开始执行后再关闭，这时它们的结果还没返回
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        result.close();
+        release.countDown();
+        awaitPool();
+
+        //只打开了第一个Region和提前打开的几个Region，它们都要被关闭
+        assertTrue(opened.size() > 1);
+        assertTrue(opened.size() <= 1 + 4);
+        assertAllClosed();
+    }
+
+    @Test
+    public void parallelResultWithError() {
+        List<CommandInterface> commands = createCommands(null, null);
+        commands.set(REGIONS / 2, createCommand(-1, null, null));
+        HBaseParallelResult result = new HBaseParallelResult(commands, pool, 0, false, true, 4);
+        try {
+            while (result.next()) {
+                //nothing
+            }
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("region failed", e.getMessage());
+        }
+        result.close();
+        awaitPool();
+        assertAllClosed();
+    }
+
+    @Test
+    public void serializedResult() {
+        //同时提交的查询比线程数多，线程池满了的查询在当前线程中执行
+        HBaseRegionQueries queries = new HBaseRegionQueries(createCommands(null, null), pool, 0, false, false, 20);
+        HBaseSerializedResult result = new HBaseSerializedResult(queries);
+        int[] counts = new int[REGIONS];
+        while (result.next())
+            counts[result.currentRow()[0].getInt()]++;
+        result.close();
+        for (int i = 0; i < REGIONS; i++)
+            assertEquals(getRowCount(i), counts[i]);
+        awaitPool();
+        assertEquals(REGIONS, opened.size());
+        assertAllClosed();
+    }
+
+    @Test
+    public void closeSerializedResultEarly() {
+        HBaseRegionQueries queries = new HBaseRegionQueries(createCommands(null, null), pool, 0, false, false, 20);
+        HBaseSerializedResult result = new HBaseSerializedResult(queries);
+        assertTrue(result.next());
+        result.close();
+        awaitPool();
+        assertTrue(opened.size() < REGIONS);
+        assertAllClosed();
+    }
+
+    @Test
+    public void serializedResultWithError() {
+        List<CommandInterface> commands = createCommands(null, null);
+        commands.set(REGIONS / 2, createCommand(-1, null, null));
+        HBaseRegionQueries queries = new HBaseRegionQueries(commands, pool, 0, false, false, 20);
+        try {
+            HBaseSerializedResult result = new HBaseSerializedResult(queries);
+            try {
+                while (result.next()) {
+                    //nothing
+                }
+                fail();
+            } finally {
+                result.close();
+            }
+        } catch (RuntimeException e) {
+            assertEquals("region failed", e.getMessage());
+        }
+        awaitPool();
+        assertAllClosed();
+    }
+
+    @Test
+    public void nextAll() {
+        HBaseRegionQueries queries = new HBaseRegionQueries(createCommands(null, null), pool, 0, false, true, 20);
+        List<ResultInterface> results = queries.nextAll();
+        assertEquals(REGIONS, results.size());
+        for (int i = 0; i < REGIONS; i++) {
+            ResultInterface r = results.get(i);
+            assertEquals(getRowCount(i), r.getRowCount());
+            if (r.next())
+                assertEquals(i, r.currentRow()[0].getInt());
+            r.close();
+        }
+        awaitPool();
+        assertAllClosed();
+    }
+
+    @Test
+    public void nextAllWithError() {
+        List<CommandInterface> commands = createCommands(null, null);
+        commands.set(REGIONS / 2, createCommand(-1, null, null));
+        HBaseRegionQueries queries = new HBaseRegionQueries(commands, pool, 0, false, true, 20);
+        try {
+            queries.nextAll();
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("region failed", e.getMessage());
+        }
+        awaitPool();
+        assertTrue(opened.size() < REGIONS);
+        assertAllClosed();
+    }
+
+    private void awaitPool() {
+        pool.shutdown();
+        try {
+            assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void assertAllClosed() {
+        for (RegionResult r : opened)
+            assertTrue("result of region " + r.region + " not closed", r.closed);
+    }
+
+    /**
+     * 第一个Region立即返回，后面的Region等待release
+     */
+    private List<CommandInterface> createCommands(CountDownLatch release, CountDownLatch started) {
+        List<CommandInterface> commands = New.arrayList(REGIONS);
+        for (int i = 0; i < REGIONS; i++)
+            commands.add(createCommand(i, i == 0 ? null : release, started));
+        return commands;
+    }
+
+    /**
+     * @param region 小于0时executeQuery抛出异常
+     */
+    private CommandInterface createCommand(final int region, final CountDownLatch release,
+            final CountDownLatch started) {
+        return (CommandInterface) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { CommandInterface.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("executeQuery")) {
+                            if (started != null)
+                                started.countDown();
+                            if (release != null)
+                                release.await();
+                            if (region < 0)
+                                throw new RuntimeException("region failed");
+                            RegionResult r = new RegionResult(region);
+                            opened.add(r);
+                            return r.createProxy();
+                        }
+                        return defaultValue(method);
+                    }
+                });
+    }
+
+    //有些Region没有记录
+    private static int getRowCount(int region) {
+        return region % 7 == 3 ? 0 : ROWS;
+    }
+
+    private static Object defaultValue(Method method) {
+        Class<?> c = method.getReturnType();
+        if (c == boolean.class)
+            return false;
+        else if (c == int.class)
+            return 0;
+        else if (c == long.class)
+            return 0L;
+        return null;
+    }
+
+    private static class RegionResult implements InvocationHandler {
+        final int region;
+        volatile boolean closed;
+        int rowId = -1;
+
+        RegionResult(int region) {
+            this.region = region;
+        }
+
+        ResultInterface createProxy() {
+            return (ResultInterface) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { ResultInterface.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("next")) {
+                if (closed)
+                    throw new IllegalStateException("closed");
+                return ++rowId < getRowCount(region);
+            } else if (name.equals("currentRow")) {
+                return new Value[] { ValueInt.get(region) };
+            } else if (name.equals("close")) {
+                closed = true;
+                return null;
+            } else if (name.equals("getRowCount")) {
+                return getRowCount(region);
+            } else if (name.equals("getVisibleColumnCount")) {
+                return 1;
+            }
+            return defaultValue(method);
+        }
+    }
+}
@@ -19,6 +19,8 @@
  */
 package com.codefollower.lealone.test.jdbc.ddl;
 
+import static junit.framework.Assert.assertEquals;
+
 import org.junit.Test;
 
 import com.codefollower.lealone.test.jdbc.TestBase;
@@ -44,6 +46,68 @@ public class CreateIndexTest extends TestBase {
 
         //stmt.executeUpdate("ALTER INDEX mydb.public.idx0 RENAME TO idx1");
 
+        testSecondaryIndex();
+    }
+
+    void testSecondaryIndex() throws Exception {
+        createTableIfNotExists("SecondaryIndexTest");
+        stmt.executeUpdate("INSERT INTO SecondaryIndexTest(_rowkey_, f1, cf1.f2, cf2.f3) VALUES('01', 'a1', 'b', 51)");
+        stmt.executeUpdate("INSERT INTO SecondaryIndexTest(_rowkey_, f1, cf1.f2, cf2.f3) VALUES('26', 'a2', 'b', 61)");
+        //建索引前已有的记录也要能通过索引找到
+        stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_f3 ON SecondaryIndexTest(cf2.f3)");
+        stmt.executeUpdate("INSERT INTO SecondaryIndexTest(_rowkey_, f1, cf1.f2, cf2.f3) VALUES('52', 'a1', 'b', 61)");
+        stmt.executeUpdate("INSERT INTO SecondaryIndexTest(_rowkey_, f1, cf1.f2, cf2.f3) VALUES('77', 'a2', 'b', 71)");
+
+        sql = "SELECT count(*) FROM SecondaryIndexTest WHERE cf2.f3 = 61";
+        assertEquals(2, getIntValue(1, true));
+        sql = "SELECT count(*) FROM SecondaryIndexTest WHERE cf2.f3 > 55";
+        assertEquals(3, getIntValue(1, true));
+
+        stmt.executeUpdate("UPDATE SecondaryIndexTest SET cf2.f3 = 81 WHERE _rowkey_ = '52'");
+        sql = "SELECT count(*) FROM SecondaryIndexTest WHERE cf2.f3 = 61";
+        assertEquals(1, getIntValue(1, true));
+
+        //索引字段的值没变时Update不能把索引记录删掉
+        stmt.executeUpdate("UPDATE SecondaryIndexTest SET f1 = 'a3' WHERE cf2.f3 = 71");
+        sql = "SELECT count(*) FROM SecondaryIndexTest WHERE cf2.f3 = 71";
+        assertEquals(1, getIntValue(1, true));
+
+        testManyRows();
+
+        stmt.executeUpdate("DROP INDEX IF EXISTS idx_f3");
+    }
+
+    //满足索引条件的记录比每次从索引表中取出的rowKey个数(fetchSize，默认是100)多，并且分布在所有Region中
+    void testManyRows() throws Exception {
+        int count = 250;
+        StringBuilder buff = new StringBuilder("INSERT INTO SecondaryIndexTest(_rowkey_, f1, cf2.f3) VALUES");
+        for (int i = 0; i < count; i++) {
+            if (i > 0)
+                buff.append(", ");
+            buff.append("('").append(String.format("%02d_%03d", i % 100, i)).append("', 'm', 91)");
+        }
+        stmt.executeUpdate(buff.toString());
+
+        sql = "SELECT count(*) FROM SecondaryIndexTest WHERE cf2.f3 = 91";
+        assertEquals(count, getIntValue(1, true));
+
+        //rowKey上的条件跟索引条件同时使用，跨两个Region
+        sql = "SELECT count(*) FROM SecondaryIndexTest WHERE cf2.f3 = 91 AND _rowkey_ >= '30' AND _rowkey_ < '60'";
+        assertEquals(90, getIntValue(1, true));
+
+        sql = "SELECT count(*) FROM SecondaryIndexTest WHERE cf2.f3 > 81";
+        assertEquals(count, getIntValue(1, true));
+
+        stmt.executeUpdate("DELETE FROM SecondaryIndexTest WHERE cf2.f3 = 91 AND _rowkey_ < '50'");
+        sql = "SELECT count(*) FROM SecondaryIndexTest WHERE cf2.f3 = 91";
+        assertEquals(count - 150, getIntValue(1, true));
+
+        stmt.executeUpdate("UPDATE SecondaryIndexTest SET cf2.f3 = 92 WHERE cf2.f3 = 91");
+        sql = "SELECT count(*) FROM SecondaryIndexTest WHERE cf2.f3 = 91";
+        assertEquals(0, getIntValue(1, true));
+        sql = "SELECT count(*) FROM SecondaryIndexTest WHERE cf2.f3 = 92";
+        assertEquals(count - 150, getIntValue(1, true));
+        stmt.executeUpdate("DELETE FROM SecondaryIndexTest WHERE cf2.f3 = 92");
     }
 
 }
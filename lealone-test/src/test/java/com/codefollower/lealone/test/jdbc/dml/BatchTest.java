@@ -0,0 +1,235 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.jdbc.dml;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.Test;
+
+import com.codefollower.lealone.test.jdbc.TestBase;
+
+//JdbcPreparedStatement.executeBatch在一个请求中把所有参数发给服务器
+public class BatchTest extends TestBase {
+    private static final int ROWS = 100;
+
+    @Test
+    public void run() throws Exception {
+        createTableSQL("CREATE TABLE IF NOT EXISTS BatchTest (id int primary key, name varchar)");
+
+        try {
+            insert();
+            update();
+            partialFailure();
+            parameterNotSet();
+            autoCommitOff();
+            partialFailureWithAutoCommitOff();
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    private void clear() throws Exception {
+        stmt.executeUpdate("DELETE FROM BatchTest");
+    }
+
+    private int count(Connection conn) throws Exception {
+        Statement s = conn.createStatement();
+        ResultSet r = s.executeQuery("SELECT count(*) FROM BatchTest");
+        assertTrue(r.next());
+        int count = r.getInt(1);
+        r.close();
+        s.close();
+        return count;
+    }
+
+    private static void addBatch(PreparedStatement ps, int id) throws Exception {
+        ps.setInt(1, id);
+        ps.setString(2, "name" + id);
+        ps.addBatch();
+    }
+
+    void insert() throws Exception {
+        clear();
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO BatchTest(id, name) VALUES(?, ?)");
+        for (int i = 0; i < ROWS; i++)
+            addBatch(ps, i);
+        int[] counts = ps.executeBatch();
+        assertEquals(ROWS, counts.length);
+        for (int c : counts)
+            assertEquals(1, c);
+
+        //空的batch
+        assertEquals(0, ps.executeBatch().length);
+        ps.close();
+
+        //自动提交时batch结束就已经提交了，其他连接也能看到
+        Connection conn2 = DriverManager.getConnection(getURL(), "sa", "");
+        try {
+            assertEquals(ROWS, count(conn2));
+        } finally {
+            conn2.close();
+        }
+        assertTrue(conn.getAutoCommit());
+
+        sql = "SELECT name FROM BatchTest WHERE id = 10";
+        assertEquals("name10", getStringValue(1, true));
+    }
+
+    void update() throws Exception {
+        //每组参数的更新记录数都不一样
+        PreparedStatement ps = conn.prepareStatement("UPDATE BatchTest SET name = ? WHERE id < ?");
+        int[] limits = { 0, 1, 10, ROWS + 10 };
+        for (int limit : limits) {
+            ps.setString(1, "limit" + limit);
+            ps.setInt(2, limit);
+            ps.addBatch();
+        }
+        int[] counts = ps.executeBatch();
+        ps.close();
+        assertEquals(limits.length, counts.length);
+        assertEquals(0, counts[0]);
+        assertEquals(1, counts[1]);
+        assertEquals(10, counts[2]);
+        assertEquals(ROWS, counts[3]);
+
+        sql = "SELECT count(*) FROM BatchTest WHERE name = 'limit" + (ROWS + 10) + "'";
+        assertEquals(ROWS, getIntValue(1, true));
+    }
+
+    void partialFailure() throws Exception {
+        clear();
+        stmt.executeUpdate("INSERT INTO BatchTest(id, name) VALUES(2, 'old2')");
+        stmt.executeUpdate("INSERT INTO BatchTest(id, name) VALUES(4, 'old4')");
+
+        //id为2和4的记录已经存在，只有这两组参数失败，其他的照样执行
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO BatchTest(id, name) VALUES(?, ?)");
+        for (int i = 0; i < 6; i++)
+            addBatch(ps, i);
+        try {
+            ps.executeBatch();
+            fail();
+        } catch (BatchUpdateException e) {
+            int[] counts = e.getUpdateCounts();
+            assertEquals(6, counts.length);
+            for (int i = 0; i < 6; i++)
+                assertEquals(i == 2 || i == 4 ? Statement.EXECUTE_FAILED : 1, counts[i]);
+            //每个失败的参数组都有一个异常
+            SQLException next = e.getNextException();
+            assertNotNull(next);
+            assertNotNull(next.getNextException());
+            assertNull(next.getNextException().getNextException());
+        }
+
+        //batch已经清空了
+        assertEquals(0, ps.executeBatch().length);
+        ps.close();
+
+        assertTrue(conn.getAutoCommit());
+        assertEquals(6, count(conn));
+        sql = "SELECT name FROM BatchTest WHERE id = 2";
+        assertEquals("old2", getStringValue(1, true));
+        sql = "SELECT name FROM BatchTest WHERE id = 5";
+        assertEquals("name5", getStringValue(1, true));
+    }
+
+    void parameterNotSet() throws Exception {
+        clear();
+        //有参数没有设置时每组参数单独执行，只有这一组失败
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO BatchTest(id, name) VALUES(?, ?)");
+        addBatch(ps, 1);
+        ps.clearParameters();
+        ps.setInt(1, 2);
+        ps.addBatch();
+        addBatch(ps, 3);
+        try {
+            ps.executeBatch();
+            fail();
+        } catch (BatchUpdateException e) {
+            int[] counts = e.getUpdateCounts();
+            assertEquals(1, counts[0]);
+            assertEquals(Statement.EXECUTE_FAILED, counts[1]);
+            assertEquals(1, counts[2]);
+        }
+        ps.close();
+        assertEquals(2, count(conn));
+    }
+
+    void autoCommitOff() throws Exception {
+        clear();
+        conn.setAutoCommit(false);
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO BatchTest(id, name) VALUES(?, ?)");
+        for (int i = 0; i < ROWS; i++)
+            addBatch(ps, i);
+        assertEquals(ROWS, ps.executeBatch().length);
+        assertFalse(conn.getAutoCommit());
+        assertEquals(ROWS, count(conn));
+
+        //batch不会自动提交
+        conn.rollback();
+        assertEquals(0, count(conn));
+
+        for (int i = 0; i < ROWS; i++)
+            addBatch(ps, i);
+        assertEquals(ROWS, ps.executeBatch().length);
+        conn.commit();
+        ps.close();
+        conn.setAutoCommit(true);
+        assertEquals(ROWS, count(conn));
+    }
+
+    void partialFailureWithAutoCommitOff() throws Exception {
+        clear();
+        stmt.executeUpdate("INSERT INTO BatchTest(id, name) VALUES(1, 'old1')");
+        conn.setAutoCommit(false);
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO BatchTest(id, name) VALUES(?, ?)");
+        for (int i = 0; i < 3; i++)
+            addBatch(ps, i);
+        try {
+            ps.executeBatch();
+            fail();
+        } catch (BatchUpdateException e) {
+            int[] counts = e.getUpdateCounts();
+            assertEquals(1, counts[0]);
+            assertEquals(Statement.EXECUTE_FAILED, counts[1]);
+            assertEquals(1, counts[2]);
+        }
+        ps.close();
+
+        //失败的那组参数只回滚它自己，其他的还在事务中，可以回滚
+        assertFalse(conn.getAutoCommit());
+        assertEquals(3, count(conn));
+        conn.rollback();
+        conn.setAutoCommit(true);
+        assertEquals(1, count(conn));
+    }
+}
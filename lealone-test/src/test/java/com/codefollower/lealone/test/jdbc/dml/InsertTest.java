@@ -19,6 +19,8 @@
  */
 package com.codefollower.lealone.test.jdbc.dml;
 
+import static junit.framework.Assert.assertEquals;
+
 import org.junit.Test;
 
 import com.codefollower.lealone.test.jdbc.TestBase;
@@ -28,6 +30,7 @@ public class InsertTest extends TestBase {
     public void run() throws Exception {
         createTableIfNotExists("InsertTest");
         testInsert();
+        testMultiRowInsert();
         testSelect();
     }
 
@@ -49,6 +52,17 @@ public class InsertTest extends TestBase {
         stmt.executeUpdate("INSERT INTO InsertTest(_rowkey_, f1, cf1.f2, cf2.f3) VALUES('77', 'a1', 'b', 12)");
     }
 
+    void testMultiRowInsert() throws Exception {
+        //这些记录分布在不同的Region中
+        assertEquals(4, stmt.executeUpdate("INSERT INTO InsertTest(_rowkey_, f1, cf1.f2, cf2.f3) "
+                + "VALUES('04', 'a1', 'b', 13), ('28', 'a2', 'b', 13), ('53', 'a1', 'b', 13), ('78', 'a2', 'b', 13)"));
+
+        sql = "SELECT count(*) FROM InsertTest WHERE cf2.f3 = 13";
+        assertEquals(4, getIntValue(1, true));
+        sql = "SELECT f1 FROM InsertTest WHERE _rowkey_ = '53'";
+        assertEquals("a1", getStringValue(1, true));
+    }
+
     void testSelect() throws Exception {
         sql = "select _rowkey_, f1, f2, cf2.f3 from InsertTest";
         printResultSet();
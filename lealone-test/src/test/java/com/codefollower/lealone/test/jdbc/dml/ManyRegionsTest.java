@@ -0,0 +1,110 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.jdbc.dml;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.codefollower.lealone.test.jdbc.TestBase;
+
+//Region个数(31)比CommandParallel的线程池的最大线程数(默认20)多
+public class ManyRegionsTest extends TestBase {
+    private static final int REGIONS = 31;
+    private static final int ROWS_PER_REGION = 3;
+
+    @Test
+    public void run() throws Exception {
+        String[] splitKeys = new String[REGIONS - 1];
+        for (int i = 1; i < REGIONS; i++)
+            splitKeys[i - 1] = rowKey(i, 0);
+        createTable("ManyRegionsTest", splitKeys);
+
+        insert();
+        groupBy();
+        orderBy();
+    }
+
+    //第i个Region的行键以i开头
+    private static String rowKey(int region, int row) {
+        return (region < 10 ? "0" : "") + region + (row == 0 ? "" : "_" + row);
+    }
+
+    void insert() throws Exception {
+        for (int i = 0; i < REGIONS; i++) {
+            for (int j = 1; j <= ROWS_PER_REGION; j++) {
+                stmt.executeUpdate("INSERT INTO ManyRegionsTest(_rowkey_, f1, cf2.f3) VALUES('" + rowKey(i, j)
+                        + "', 'a" + (j % 2) + "', " + j + ")");
+            }
+        }
+    }
+
+    void groupBy() throws Exception {
+        sql = "SELECT count(*) FROM ManyRegionsTest";
+        assertEquals(REGIONS * ROWS_PER_REGION, getIntValue(1, true));
+
+        sql = "SELECT f1, count(*), sum(cf2.f3) FROM ManyRegionsTest GROUP BY f1 ORDER BY f1";
+        rs = stmt.executeQuery(sql);
+        assertTrue(rs.next());
+        assertEquals("a0", rs.getString(1));
+        assertEquals(REGIONS, rs.getInt(2));
+        assertEquals(REGIONS * 2, rs.getInt(3));
+        assertTrue(rs.next());
+        assertEquals("a1", rs.getString(1));
+        assertEquals(REGIONS * 2, rs.getInt(2));
+        assertEquals(REGIONS * (1 + 3), rs.getInt(3));
+        assertFalse(rs.next());
+        closeResultSet();
+
+        //同样的查询多执行几次，前面的查询不能占着各Region的Session不放
+        for (int i = 0; i < 5; i++) {
+            sql = "SELECT count(*) FROM ManyRegionsTest WHERE f1 = 'a1'";
+            assertEquals(REGIONS * 2, getIntValue(1, true));
+        }
+    }
+
+    void orderBy() throws Exception {
+        sql = "SELECT _rowkey_, cf2.f3 FROM ManyRegionsTest ORDER BY cf2.f3 DESC, _rowkey_";
+        rs = stmt.executeQuery(sql);
+        int count = 0;
+        for (int j = ROWS_PER_REGION; j >= 1; j--) {
+            for (int i = 0; i < REGIONS; i++) {
+                assertTrue(rs.next());
+                assertEquals(rowKey(i, j), rs.getString(1));
+                assertEquals(j, rs.getInt(2));
+                count++;
+            }
+        }
+        assertFalse(rs.next());
+        closeResultSet();
+        assertEquals(REGIONS * ROWS_PER_REGION, count);
+
+        sql = "SELECT _rowkey_ FROM ManyRegionsTest ORDER BY _rowkey_ DESC LIMIT 2 OFFSET 1";
+        rs = stmt.executeQuery(sql);
+        assertTrue(rs.next());
+        assertEquals(rowKey(REGIONS - 1, ROWS_PER_REGION - 1), rs.getString(1));
+        assertTrue(rs.next());
+        assertEquals(rowKey(REGIONS - 1, ROWS_PER_REGION - 2), rs.getString(1));
+        assertFalse(rs.next());
+        closeResultSet();
+    }
+}
@@ -20,6 +20,15 @@
 package com.codefollower.lealone.test.jdbc.dml;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import org.junit.Test;
 
@@ -32,6 +41,7 @@ public class SelectTest extends TestBase {
         testInsert();
         testSelect();
         testAggregate();
+        testGroupByFastPath();
     }
 
     void testInsert() throws Exception {
@@ -74,11 +84,34 @@ public class SelectTest extends TestBase {
 
         sql = "SELECT count(*) FROM SelectTest WHERE _rowkey_ = '75' AND f1 = 'a2'";
         assertEquals(0, getIntValue(1, true));
+
+        sql = "SELECT count(*) FROM SelectTest WHERE f1 IN('a2', 'a3')";
+        assertEquals(5, getIntValue(1, true));
+
+        sql = "SELECT count(*) FROM SelectTest WHERE f1 LIKE 'a%'";
+        assertEquals(12, getIntValue(1, true));
+
+        sql = "SELECT count(*) FROM SelectTest WHERE f1 = 'a1' OR _rowkey_ = '25'";
+        assertEquals(8, getIntValue(1, true));
+
+        sql = "SELECT count(*) FROM SelectTest WHERE _rowkey_ LIKE '2%' AND f1 = 'a2'";
+        assertEquals(3, getIntValue(1, true));
     }
 
     private void orderBy() throws Exception {
         sql = "FROM SelectTest SELECT f1, f2, cf2.f3 ORDER BY f1 desc";
         printResultSet();
+
+        //跨4个Region的ORDER BY ... LIMIT
+        sql = "SELECT _rowkey_ FROM SelectTest ORDER BY _rowkey_ DESC LIMIT 2 OFFSET 1";
+        assertEquals("76", getStringValue(1));
+        assertTrue(next());
+        assertEquals("75", getStringValue(1));
+        assertFalse(next());
+        closeResultSet();
+
+        sql = "SELECT _rowkey_ FROM SelectTest ORDER BY cf2.f3, _rowkey_ LIMIT 1";
+        assertEquals("50", getStringValue(1, true));
     }
 
     private void groupBy() throws Exception {
@@ -94,4 +127,139 @@ public class SelectTest extends TestBase {
         //因为cf2.f3是int，所以内部已进行4舍5入
         assertEquals(35.0, getDoubleValue(1, true), 0.2);
     }
+
+    //只有COUNT、SUM、MIN、MAX的分组查询不用为每一行创建对象，
+    //再加一个COUNT(DISTINCT id)就会用原来的方式分组，两种方式的结果必须一样
+    void testGroupByFastPath() throws Exception {
+        initFastPathTable();
+
+        //NULL和各种类型的分组字段
+        String[] keys = { "i", "l", "s", "d", "n", "i, s", "s, d", "l, n" };
+        for (String key : keys) {
+            String orderBy = key.indexOf(',') < 0 ? "1" : "1, 2";
+            List<String> rows = compare("SELECT " + key
+                    + ", COUNT(*), COUNT(d), SUM(i), MIN(d), MAX(d), MIN(s), MAX(l){old} FROM SelectFastPathTest GROUP BY " + key
+                    + " ORDER BY " + orderBy);
+            if (key.equals("i")) {
+                assertEquals(6, rows.size());
+                assertTrue(rows.get(0).startsWith("null|"));
+            }
+        }
+        //同一个分组字段的值有不同的类型，IFNULL不转换类型，i是NULL时返回的是字符串，
+        //不同类型的值不能排序，所以在这里排序
+        sql = "SELECT IFNULL(i, s), COUNT(*), SUM(i){old} FROM SelectFastPathTest GROUP BY IFNULL(i, s)";
+        List<String> mixed = query(sql.replace("{old}", ""), false);
+        List<String> expectedMixed = query(sql.replace("{old}", ", COUNT(DISTINCT id)"), true);
+        Collections.sort(mixed);
+        Collections.sort(expectedMixed);
+        assertEquals(expectedMixed, mixed);
+        assertEquals(5 + 5, mixed.size()); //5个int，s0到s3和NULL
+
+        //没有记录也没有GROUP BY时返回一行
+        List<String> rows = compare("SELECT COUNT(*), COUNT(d), SUM(i), MIN(d), MAX(s){old} "
+                + "FROM SelectFastPathTest WHERE id < 0");
+        assertEquals(1, rows.size());
+        assertEquals("0|0|null|null|null|", rows.get(0));
+        rows = compare("SELECT s, COUNT(*){old} FROM SelectFastPathTest WHERE id < 0 GROUP BY s");
+        assertEquals(0, rows.size());
+
+        //SUM(i)超出int的范围，SUM(l)超出long的范围
+        rows = compare("SELECT s, SUM(i), SUM(l){old} FROM SelectFastPathTest GROUP BY s ORDER BY 1");
+        long sumI = 0;
+        BigDecimal sumL = BigDecimal.ZERO;
+        for (int id = 0; id < FAST_PATH_ROWS; id++) {
+            if ("s1".equals(getS(id))) {
+                if (getI(id) != null)
+                    sumI += getI(id);
+                if (getL(id) != null)
+                    sumL = sumL.add(BigDecimal.valueOf(getL(id)));
+            }
+        }
+        assertTrue(sumI > Integer.MAX_VALUE);
+        assertEquals("s1|" + sumI + "|" + sumL + "|", rows.get(2));
+
+        //浮点数的MIN、MAX、SUM，AVG不支持，用原来的方式
+        rows = compare("SELECT i, MIN(d), MAX(d), SUM(d), COUNT(d){old} FROM SelectFastPathTest GROUP BY i ORDER BY 1");
+        List<String> avgRows = query("SELECT i, MIN(d), MAX(d), AVG(d) FROM SelectFastPathTest GROUP BY i ORDER BY 1",
+                false);
+        assertEquals(rows.size(), avgRows.size());
+        for (int r = 0; r < rows.size(); r++) {
+            String[] row = rows.get(r).split("\\|");
+            String[] avgRow = avgRows.get(r).split("\\|");
+            assertEquals(row[1], avgRow[1]);
+            assertEquals(row[2], avgRow[2]);
+            assertEquals(Double.parseDouble(row[3]) / Long.parseLong(row[4]), Double.parseDouble(avgRow[3]), 1e-9);
+        }
+
+        //有HAVING时用原来的方式，结果跟过滤之后的一样
+        rows = compare("SELECT s, COUNT(*), SUM(i){old} FROM SelectFastPathTest GROUP BY s ORDER BY 1");
+        List<String> expected = new ArrayList<String>();
+        for (String row : rows)
+            if (Integer.parseInt(row.split("\\|")[1]) > 45)
+                expected.add(row);
+        assertTrue(expected.size() > 0 && expected.size() < rows.size());
+        assertEquals(expected,
+                query("SELECT s, COUNT(*), SUM(i) FROM SelectFastPathTest GROUP BY s HAVING COUNT(*) > 45 ORDER BY 1",
+                        false));
+    }
+
+    private static final int FAST_PATH_ROWS = 200;
+
+    private static Integer getI(int id) {
+        return id % 7 == 0 ? null : Integer.MAX_VALUE - id % 5;
+    }
+
+    private static Long getL(int id) {
+        return id % 11 == 0 ? null : Long.MAX_VALUE - id % 3;
+    }
+
+    private static String getS(int id) {
+        return id % 13 == 0 ? null : "s" + (id % 4);
+    }
+
+    private static Double getD(int id) {
+        return id % 17 == 0 ? null : (id % 6) * 1.5 - 4;
+    }
+
+    private void initFastPathTable() throws Exception {
+        createTableSQL("CREATE TABLE IF NOT EXISTS SelectFastPathTest "
+                + "(id int primary key, i int, l bigint, s varchar, d double, n decimal)");
+        stmt.executeUpdate("DELETE FROM SelectFastPathTest");
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO SelectFastPathTest VALUES(?, ?, ?, ?, ?, ?)");
+        for (int id = 0; id < FAST_PATH_ROWS; id++) {
+            ps.setInt(1, id);
+            ps.setObject(2, getI(id));
+            ps.setObject(3, getL(id));
+            ps.setObject(4, getS(id));
+            ps.setObject(5, getD(id));
+            ps.setBigDecimal(6, new BigDecimal((id % 3) + ".5"));
+            ps.executeUpdate();
+        }
+        ps.close();
+    }
+
+    /**
+     * 分别用两种方式执行查询，{old}替换成空串时是新的方式，替换成COUNT(DISTINCT id)时是原来的方式
+     */
+    private List<String> compare(String sql) throws Exception {
+        List<String> rows = query(sql.replace("{old}", ""), false);
+        assertEquals(query(sql.replace("{old}", ", COUNT(DISTINCT id)"), true), rows);
+        return rows;
+    }
+
+    private List<String> query(String sql, boolean withoutLastColumn) throws Exception {
+        List<String> rows = new ArrayList<String>();
+        ResultSet rs = stmt.executeQuery(sql);
+        int columnCount = rs.getMetaData().getColumnCount();
+        if (withoutLastColumn)
+            columnCount--;
+        while (rs.next()) {
+            StringBuilder buff = new StringBuilder();
+            for (int i = 1; i <= columnCount; i++)
+                buff.append(rs.getString(i)).append('|');
+            rows.add(buff.toString());
+        }
+        rs.close();
+        return rows;
+    }
 }
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.jdbc.embedded;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.codefollower.lealone.constant.Constants;
+import com.codefollower.lealone.hbase.util.HBaseUtils;
+import com.codefollower.lealone.test.jdbc.TestBase;
+
+//分组个数比MAX_MEMORY_ROWS多时，分组的数据会写到临时文件中(只有持久化的数据库才会这样)，
+//结果必须跟全部在内存中分组时一样
+public class GroupBySpillTest extends TestBase {
+    protected static String url = "jdbc:lealone:embedded:regular:hbasedb";
+
+    private static final String TABLE = "GroupBySpillTest";
+    private static final int ROWS = 3000;
+    private static final int GROUPS = 700;
+    private static final int NULL_KEYS = 60; //最后这些行的k为NULL
+    private static final int MAX_MEMORY_ROWS = 40;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        System.setProperty("lealone.base.dir", HBaseUtils.getConfiguration().get("lealone.test.dir"));
+        conn = DriverManager.getConnection(url, "sa", "");
+        stmt = conn.createStatement();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        if (stmt != null)
+            stmt.close();
+        if (conn != null)
+            conn.close();
+    }
+
+    @Test
+    public void run() throws Exception {
+        init();
+        try {
+            groupBy();
+            withoutGroupBy();
+        } finally {
+            stmt.executeUpdate("SET MAX_MEMORY_ROWS " + Constants.DEFAULT_MAX_MEMORY_ROWS);
+            stmt.executeUpdate("DROP TABLE IF EXISTS " + TABLE);
+        }
+    }
+
+    //k为NULL的行也是一个分组；i的和超出int的范围，big的和超出long的范围
+    void init() throws Exception {
+        stmt.executeUpdate("DROP TABLE IF EXISTS " + TABLE);
+        stmt.executeUpdate("CREATE TABLE " + TABLE
+                + " (id int primary key, k int, k2 varchar, i int, big bigint, d double, s varchar)");
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO " + TABLE + " VALUES(?, ?, ?, ?, ?, ?, ?)");
+        for (int id = 0; id < ROWS; id++) {
+            ps.setInt(1, id);
+            if (id >= ROWS - NULL_KEYS)
+                ps.setNull(2, java.sql.Types.INTEGER);
+            else
+                ps.setInt(2, id % GROUPS);
+            ps.setString(3, id % 3 == 0 ? null : "k" + (id % 2));
+            ps.setInt(4, Integer.MAX_VALUE - id);
+            ps.setLong(5, Long.MAX_VALUE - id);
+            ps.setDouble(6, id / 3.0);
+            ps.setString(7, "s" + id);
+            ps.addBatch();
+        }
+        ps.executeBatch();
+        ps.close();
+    }
+
+    void groupBy() throws Exception {
+        sql = "SELECT k, COUNT(*), COUNT(k2), SUM(i), MIN(d), MAX(d), MIN(s), MAX(s) FROM " + TABLE
+                + " GROUP BY k ORDER BY k";
+        List<String> rows = compare();
+        //NULL排在最前面
+        assertEquals(GROUPS + 1, rows.size());
+        assertTrue(rows.get(0).startsWith("null|" + NULL_KEYS + "|"));
+
+        //跟在Java中算出来的结果比较
+        sql = "SELECT k, COUNT(*), SUM(i) FROM " + TABLE + " WHERE k IS NOT NULL GROUP BY k ORDER BY k";
+        rs = stmt.executeQuery(sql);
+        int groups = 0;
+        while (rs.next()) {
+            int k = rs.getInt(1);
+            long count = 0;
+            long sum = 0;
+            for (int id = 0; id < ROWS - NULL_KEYS; id++) {
+                if (id % GROUPS == k) {
+                    count++;
+                    sum += Integer.MAX_VALUE - id;
+                }
+            }
+            assertEquals(count, rs.getLong(2));
+            assertEquals(sum, rs.getLong(3));
+            groups++;
+        }
+        closeResultSet();
+        assertEquals(GROUPS, groups);
+
+        //多个分组字段，其中一个有NULL
+        sql = "SELECT k, k2, COUNT(*), SUM(i) FROM " + TABLE + " GROUP BY k, k2 ORDER BY k, k2";
+        compare();
+
+        //big的和超出long的范围，结果是DECIMAL
+        sql = "SELECT k, SUM(big), COUNT(*) FROM " + TABLE + " GROUP BY k ORDER BY k";
+        compare();
+        sql = "SELECT SUM(big) FROM " + TABLE + " WHERE k = 1";
+        rs = stmt.executeQuery(sql);
+        assertTrue(rs.next());
+        BigDecimal expected = BigDecimal.ZERO;
+        for (int id = 1; id < ROWS; id += GROUPS)
+            expected = expected.add(BigDecimal.valueOf(Long.MAX_VALUE - id));
+        assertEquals(expected, rs.getBigDecimal(1));
+        closeResultSet();
+    }
+
+    void withoutGroupBy() throws Exception {
+        sql = "SELECT COUNT(*), SUM(i), MIN(d), MAX(s) FROM " + TABLE;
+        compare();
+        sql = "SELECT COUNT(*), SUM(i) FROM " + TABLE + " WHERE id < 0";
+        List<String> rows = compare();
+        assertEquals(1, rows.size());
+        assertEquals("0|null|", rows.get(0));
+    }
+
+    /**
+     * 分别在MAX_MEMORY_ROWS很小和默认值时执行查询，两次的结果必须一样
+     */
+    private List<String> compare() throws Exception {
+        stmt.executeUpdate("SET MAX_MEMORY_ROWS " + MAX_MEMORY_ROWS);
+        List<String> spilled = query();
+        stmt.executeUpdate("SET MAX_MEMORY_ROWS " + Constants.DEFAULT_MAX_MEMORY_ROWS);
+        List<String> inMemory = query();
+        assertEquals(inMemory, spilled);
+        return spilled;
+    }
+
+    private List<String> query() throws Exception {
+        List<String> rows = new ArrayList<String>();
+        ResultSet rs = stmt.executeQuery(sql);
+        int columnCount = rs.getMetaData().getColumnCount();
+        while (rs.next()) {
+            StringBuilder buff = new StringBuilder();
+            for (int i = 1; i <= columnCount; i++)
+                buff.append(rs.getString(i)).append('|');
+            rows.add(buff.toString());
+        }
+        rs.close();
+        return rows;
+    }
+}
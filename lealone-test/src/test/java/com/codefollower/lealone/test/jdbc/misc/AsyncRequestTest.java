@@ -0,0 +1,216 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.jdbc.misc;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.codefollower.lealone.command.CommandRemote;
+import com.codefollower.lealone.constant.ErrorCode;
+import com.codefollower.lealone.engine.AsyncResult;
+import com.codefollower.lealone.engine.SessionRemote;
+import com.codefollower.lealone.jdbc.JdbcConnection;
+import com.codefollower.lealone.message.DbException;
+import com.codefollower.lealone.result.ResultInterface;
+import com.codefollower.lealone.test.jdbc.TestBase;
+import com.codefollower.lealone.value.Value;
+import com.codefollower.lealone.value.ValueInt;
+import com.codefollower.lealone.value.ValueString;
+
+//在同一个Session上连续发送多个异步请求，中间穿插JDBC的同步调用
+public class AsyncRequestTest extends TestBase {
+    private static final int ROWS = 10;
+
+    private SessionRemote session;
+
+    @Test
+    public void run() throws Exception {
+        createTableSQL("CREATE TABLE IF NOT EXISTS AsyncRequestTest (id int primary key, name varchar)");
+        stmt.executeUpdate("DELETE FROM AsyncRequestTest");
+        session = (SessionRemote) ((JdbcConnection) conn).getSession();
+        assertTrue(session.isAsyncSupported());
+
+        pipelinedUpdates();
+        pipelinedQueries();
+        errors();
+    }
+
+    private CommandRemote prepare(String sql) {
+        return (CommandRemote) session.prepareCommand(sql, Integer.MAX_VALUE);
+    }
+
+    private static void setParameters(CommandRemote c, Value... values) {
+        for (int i = 0; i < values.length; i++)
+            c.getParameters().get(i).setValue(values[i], false);
+    }
+
+    private static String queryName(AsyncResult<ResultInterface> r) {
+        ResultInterface result = r.get();
+        try {
+            return result.next() ? result.currentRow()[0].getString() : null;
+        } finally {
+            result.close();
+        }
+    }
+
+    void pipelinedUpdates() throws Exception {
+        CommandRemote insert = prepare("INSERT INTO AsyncRequestTest(id, name) VALUES(?, ?)");
+        List<AsyncResult<Integer>> results = new ArrayList<AsyncResult<Integer>>();
+        for (int i = 0; i < ROWS; i++) {
+            //参数在发送请求时就写出去了，所以同一个命令可以马上设置下一组参数
+            setParameters(insert, ValueInt.get(i), ValueString.get("name" + i));
+            results.add(insert.executeUpdateAsync());
+        }
+        //还没有读取任何响应
+        for (AsyncResult<Integer> r : results)
+            assertFalse(r.isDone());
+
+        //同步调用之前先读取前面所有异步请求的响应
+        sql = "SELECT count(*) FROM AsyncRequestTest";
+        assertEquals(ROWS, getIntValue(1, true));
+        for (AsyncResult<Integer> r : results) {
+            assertTrue(r.isDone());
+            assertEquals(1, r.get().intValue());
+        }
+        insert.close();
+    }
+
+    void pipelinedQueries() throws Exception {
+        CommandRemote select = prepare("SELECT name FROM AsyncRequestTest WHERE id = ?");
+        CommandRemote update = prepare("UPDATE AsyncRequestTest SET name = ? WHERE id = ?");
+
+        //服务器按发送的顺序执行，before看不到后面的更新，after能看到
+        setParameters(select, ValueInt.get(1));
+        AsyncResult<ResultInterface> before = select.executeQueryAsync(0, false);
+        setParameters(update, ValueString.get("updated1"), ValueInt.get(1));
+        AsyncResult<Integer> updated = update.executeUpdateAsync();
+        AsyncResult<ResultInterface> after = select.executeQueryAsync(0, false);
+
+        final List<String> handled = new ArrayList<String>();
+        after.setHandler(new AsyncResult.Handler<ResultInterface>() {
+            @Override
+            public void handle(ResultInterface result, DbException e) {
+                assertNull(e);
+                handled.add("after");
+            }
+        });
+
+        //中间穿插一个同步的更新
+        assertEquals(1, stmt.executeUpdate("UPDATE AsyncRequestTest SET name = 'sync2' WHERE id = 2"));
+        assertEquals(1, handled.size());
+
+        setParameters(select, ValueInt.get(2));
+        AsyncResult<ResultInterface> sync2 = select.executeQueryAsync(0, false);
+        setParameters(select, ValueInt.get(ROWS));
+        AsyncResult<ResultInterface> notFound = select.executeQueryAsync(0, false);
+
+        //先取后发的请求的结果，前面的响应会按顺序读出来
+        assertNull(queryName(notFound));
+        assertTrue(sync2.isDone());
+        assertEquals("sync2", queryName(sync2));
+        assertEquals("name1", queryName(before));
+        assertEquals(1, updated.get().intValue());
+        assertEquals("updated1", queryName(after));
+
+        //已经完成的请求马上调用handler
+        updated.setHandler(new AsyncResult.Handler<Integer>() {
+            @Override
+            public void handle(Integer result, DbException e) {
+                handled.add("updated " + result);
+            }
+        });
+        assertEquals(2, handled.size());
+        assertEquals("updated 1", handled.get(1));
+
+        select.close();
+        update.close();
+    }
+
+    void errors() throws Exception {
+        CommandRemote insert = prepare("INSERT INTO AsyncRequestTest(id, name) VALUES(?, ?)");
+        setParameters(insert, ValueInt.get(ROWS), ValueString.get("new"));
+        AsyncResult<Integer> ok1 = insert.executeUpdateAsync();
+        //主键重复
+        setParameters(insert, ValueInt.get(0), ValueString.get("duplicate"));
+        AsyncResult<Integer> duplicate = insert.executeUpdateAsync();
+        final DbException[] handled = new DbException[1];
+        duplicate.setHandler(new AsyncResult.Handler<Integer>() {
+            @Override
+            public void handle(Integer result, DbException e) {
+                assertNull(result);
+                handled[0] = e;
+            }
+        });
+        CommandRemote divide = prepare("SELECT 1 / ? FROM AsyncRequestTest WHERE id = 0");
+        setParameters(divide, ValueInt.get(0));
+        AsyncResult<ResultInterface> divisionByZero = divide.executeQueryAsync(0, false);
+        setParameters(insert, ValueInt.get(ROWS + 1), ValueString.get("new"));
+        AsyncResult<Integer> ok2 = insert.executeUpdateAsync();
+
+        //失败的请求不影响后面的请求
+        assertEquals(1, ok2.get().intValue());
+        assertEquals(1, ok1.get().intValue());
+        try {
+            duplicate.get();
+            fail();
+        } catch (DbException e) {
+            assertEquals(ErrorCode.DUPLICATE_KEY_1, e.getErrorCode());
+            assertNotNull(handled[0]);
+            assertEquals(ErrorCode.DUPLICATE_KEY_1, handled[0].getErrorCode());
+        }
+        try {
+            divisionByZero.get();
+            fail();
+        } catch (DbException e) {
+            assertEquals(ErrorCode.DIVISION_BY_ZERO_1, e.getErrorCode());
+        }
+
+        //同步调用失败之前也要先读取前面的异步请求的响应
+        setParameters(insert, ValueInt.get(ROWS + 2), ValueString.get("new"));
+        AsyncResult<Integer> ok3 = insert.executeUpdateAsync();
+        try {
+            stmt.executeUpdate("INSERT INTO AsyncRequestTest(id, name) VALUES(0, 'duplicate')");
+            fail();
+        } catch (SQLException e) {
+            assertEquals(ErrorCode.DUPLICATE_KEY_1, e.getErrorCode());
+        }
+        assertTrue(ok3.isDone());
+        assertEquals(1, ok3.get().intValue());
+
+        //读取响应之后连接还能正常使用
+        sql = "SELECT count(*) FROM AsyncRequestTest";
+        assertEquals(ROWS + 3, getIntValue(1, true));
+        sql = "SELECT name FROM AsyncRequestTest WHERE id = 0";
+        assertEquals("name0", getStringValue(1, true));
+
+        insert.close();
+        divide.close();
+    }
+}
@@ -20,9 +20,21 @@
 package com.codefollower.lealone.test.jdbc.misc;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
 import org.junit.Test;
 
+import com.codefollower.lealone.constant.SysProperties;
+import com.codefollower.lealone.engine.SessionRemote;
+import com.codefollower.lealone.jdbc.JdbcConnection;
+import com.codefollower.lealone.jdbcx.JdbcConnectionPool;
 import com.codefollower.lealone.test.jdbc.TestBase;
 
 public class PreparedStatementTest extends TestBase {
@@ -30,6 +42,9 @@ public class PreparedStatementTest extends TestBase {
     public void run() throws Exception {
         init();
         test();
+        statementCache();
+        statementCacheEviction();
+        pooledStatementCache();
     }
 
     void init() throws Exception {
@@ -64,4 +79,109 @@ public class PreparedStatementTest extends TestBase {
         assertEquals(2, getIntValue(1, true));
         ps.close();
     }
+
+    //关闭的PreparedStatement的命令会被缓存，再次准备同样的SQL时重用
+    void statementCache() throws Exception {
+        sql = "SELECT count(*) FROM PreparedStatementTest WHERE f2 >= ?";
+        for (int i = 0; i < 3; i++) {
+            PreparedStatement ps = conn.prepareStatement(sql);
+            //缓存的命令不能带着上一次的参数值
+            try {
+                ps.executeQuery();
+                fail();
+            } catch (SQLException e) {
+                //expected
+            }
+            ps.setInt(1, i == 0 ? 10 : 50);
+            rs = ps.executeQuery();
+            assertTrue(rs.next());
+            assertEquals(i == 0 ? 3 : 1, getIntValue(1, true));
+            ps.close();
+        }
+
+        //同一个SQL同时有两个打开的PreparedStatement时，它们不能共用一个命令
+        PreparedStatement ps1 = conn.prepareStatement(sql);
+        PreparedStatement ps2 = conn.prepareStatement(sql);
+        ps1.setInt(1, 10);
+        ps2.setInt(1, 50);
+        rs = ps1.executeQuery();
+        assertTrue(rs.next());
+        assertEquals(3, getIntValue(1, true));
+        rs = ps2.executeQuery();
+        assertTrue(rs.next());
+        assertEquals(1, getIntValue(1, true));
+        ps1.close();
+        ps2.close();
+
+        //更新语句也一样
+        sql = "UPDATE PreparedStatementTest SET f2 = ? WHERE _rowkey_ = ?";
+        for (int i = 0; i < 3; i++) {
+            PreparedStatement ps = conn.prepareStatement(sql);
+            ps.setInt(1, 30 + i);
+            ps.setString(2, "03");
+            assertEquals(1, ps.executeUpdate());
+            ps.close();
+        }
+        sql = "SELECT f2 FROM PreparedStatementTest WHERE _rowkey_ = '03'";
+        assertEquals(32, getIntValue(1, true));
+    }
+
+    //准备的SQL比缓存的个数多时，被淘汰的命令关闭后再准备也能正常执行
+    void statementCacheEviction() throws Exception {
+        int count = SysProperties.CLIENT_STATEMENT_CACHE_SIZE + 5;
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < count; i++) {
+                sql = "SELECT count(*) FROM PreparedStatementTest WHERE f2 >= ? AND " + i + " = " + i;
+                PreparedStatement ps = conn.prepareStatement(sql);
+                ps.setInt(1, 50);
+                rs = ps.executeQuery();
+                assertTrue(rs.next());
+                assertEquals(1, rs.getInt(1));
+                assertFalse(rs.next());
+                closeResultSet();
+                ps.close();
+            }
+        }
+    }
+
+    //连接池每次借出的是新的连接句柄，缓存的命令属于底层的Session，下次借出时还能重用
+    void pooledStatementCache() throws Exception {
+        sql = "SELECT count(*) FROM PreparedStatementTest WHERE f2 >= ?";
+        JdbcConnectionPool pool = JdbcConnectionPool.create(getURL(), "sa", "");
+        pool.setMaxConnections(1);
+        try {
+            Connection c = pool.getConnection();
+            SessionRemote session = (SessionRemote) ((JdbcConnection) c).getSession();
+            assertEquals(1, count(c, 50));
+            c.close();
+
+            c = pool.getConnection();
+            assertTrue(session == ((JdbcConnection) c).getSession());
+            //没有准备新的命令
+            int id = session.getCurrentId();
+            PreparedStatement ps = c.prepareStatement(sql);
+            assertEquals(id, session.getCurrentId());
+            ps.close();
+            assertEquals(3, count(c, 10));
+            c.close();
+
+            pool.dispose();
+            //关闭物理连接时缓存的命令也关闭了
+            assertTrue(session.isClosed());
+            assertTrue(session.getCachedCommand(sql) == null);
+        } finally {
+            pool.dispose();
+        }
+    }
+
+    private int count(Connection c, int f2) throws Exception {
+        PreparedStatement ps = c.prepareStatement(sql);
+        ps.setInt(1, f2);
+        ResultSet rs = ps.executeQuery();
+        assertTrue(rs.next());
+        int count = rs.getInt(1);
+        rs.close();
+        ps.close();
+        return count;
+    }
 }
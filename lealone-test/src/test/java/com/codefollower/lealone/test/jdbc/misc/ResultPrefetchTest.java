@@ -0,0 +1,124 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.jdbc.misc;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.sql.ResultSet;
+
+import org.junit.Test;
+
+import com.codefollower.lealone.command.CommandInterface;
+import com.codefollower.lealone.engine.SessionRemote;
+import com.codefollower.lealone.jdbc.JdbcConnection;
+import com.codefollower.lealone.result.ResultInterface;
+import com.codefollower.lealone.test.jdbc.TestBase;
+
+//每收到一批记录就预取下一批，在预取的响应还没读的时候reset或close结果集
+public class ResultPrefetchTest extends TestBase {
+    private static final int ROWS = 100;
+    private static final int FETCH_SIZE = 10;
+    private static final String SELECT = "SELECT id FROM ResultPrefetchTest ORDER BY id";
+
+    private SessionRemote session;
+
+    @Test
+    public void run() throws Exception {
+        createTableSQL("CREATE TABLE IF NOT EXISTS ResultPrefetchTest (id int primary key, name varchar)");
+        stmt.executeUpdate("DELETE FROM ResultPrefetchTest");
+        for (int i = 0; i < ROWS; i++)
+            stmt.executeUpdate("INSERT INTO ResultPrefetchTest(id, name) VALUES(" + i + ", 'name" + i + "')");
+        session = (SessionRemote) ((JdbcConnection) conn).getSession();
+        assertTrue(session.isAsyncSupported());
+
+        resetInFirstBatch();
+        resetInLaterBatch();
+        closeResult();
+        closeJdbcResultSet();
+    }
+
+    private ResultInterface query(CommandInterface select, int rows) {
+        ResultInterface result = select.executeQuery(0, false);
+        for (int i = 0; i < rows; i++) {
+            assertTrue(result.next());
+            assertEquals(i, result.currentRow()[0].getInt());
+        }
+        return result;
+    }
+
+    //从头读一遍，行的顺序和数量都不能乱
+    private static void assertAllRows(ResultInterface result) {
+        for (int i = 0; i < ROWS; i++) {
+            assertTrue(result.next());
+            assertEquals(i, result.currentRow()[0].getInt());
+        }
+        assertFalse(result.next());
+    }
+
+    //后面的命令要读到它自己的响应，而不是预取的那一批记录
+    private void assertNextCommand() throws Exception {
+        sql = "SELECT count(*) FROM ResultPrefetchTest";
+        assertEquals(ROWS, getIntValue(1, true));
+        assertEquals(1, stmt.executeUpdate("UPDATE ResultPrefetchTest SET name = 'updated' WHERE id = 0"));
+    }
+
+    void resetInFirstBatch() throws Exception {
+        CommandInterface select = session.prepareCommand(SELECT, FETCH_SIZE);
+        //第一批记录到了之后第二批的请求马上就发出去了
+        ResultInterface result = query(select, FETCH_SIZE / 2);
+        result.reset();
+        assertAllRows(result);
+        result.close();
+        select.close();
+        assertNextCommand();
+    }
+
+    void resetInLaterBatch() throws Exception {
+        CommandInterface select = session.prepareCommand(SELECT, FETCH_SIZE);
+        ResultInterface result = query(select, FETCH_SIZE * 2 + 5);
+        result.reset();
+        assertAllRows(result);
+        result.close();
+        select.close();
+        assertNextCommand();
+    }
+
+    void closeResult() throws Exception {
+        CommandInterface select = session.prepareCommand(SELECT, FETCH_SIZE);
+        ResultInterface result = query(select, FETCH_SIZE + 5);
+        result.close();
+        select.close();
+        assertNextCommand();
+    }
+
+    void closeJdbcResultSet() throws Exception {
+        stmt.setFetchSize(FETCH_SIZE);
+        ResultSet rs = stmt.executeQuery(SELECT);
+        for (int i = 0; i < FETCH_SIZE / 2; i++) {
+            assertTrue(rs.next());
+            assertEquals(i, rs.getInt(1));
+        }
+        rs.close();
+        stmt.setFetchSize(0);
+        assertNextCommand();
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.jdbcx;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.ConnectionPoolDataSource;
+import javax.sql.PooledConnection;
+import javax.sql.StatementEventListener;
+
+import org.junit.Test;
+
+import com.codefollower.lealone.jdbcx.JdbcConnectionPool;
+
+//不需要启动服务器，用假的ConnectionPoolDataSource测试连接池本身
+public class JdbcConnectionPoolTest {
+    private final List<FakePooledConnection> created = new CopyOnWriteArrayList<FakePooledConnection>();
+
+    @Test
+    public void reuse() throws Exception {
+        JdbcConnectionPool pool = JdbcConnectionPool.create(createDataSource());
+        Connection c1 = pool.getConnection();
+        Connection c2 = pool.getConnection();
+        assertEquals(2, pool.getActiveConnections());
+        c1.close();
+        c2.close();
+        assertEquals(0, pool.getActiveConnections());
+
+        //同一个线程优先拿到它最后还回去的连接
+        for (int i = 0; i < 10; i++)
+            pool.getConnection().close();
+        assertEquals(2, created.size());
+
+        pool.dispose();
+        for (FakePooledConnection pc : created)
+            assertTrue(pc.closed);
+    }
+
+    @Test
+    public void timeout() throws Exception {
+        JdbcConnectionPool pool = JdbcConnectionPool.create(createDataSource());
+        pool.setMaxConnections(1);
+        pool.setLoginTimeout(1);
+        Connection c = pool.getConnection();
+        try {
+            pool.getConnection();
+            fail();
+        } catch (SQLException e) {
+            assertEquals("08001", e.getSQLState());
+        }
+        c.close();
+        pool.getConnection().close();
+        assertEquals(1, created.size());
+        pool.dispose();
+    }
+
+    @Test
+    public void concurrentGetAndClose() throws Exception {
+        final int maxConnections = 5;
+        final int threadCount = 50;
+        final int loops = 2000;
+        final JdbcConnectionPool pool = JdbcConnectionPool.create(createDataSource());
+        pool.setMaxConnections(maxConnections);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < loops; j++) {
+                            Connection c = pool.getConnection();
+                            FakePooledConnection pc = (FakePooledConnection) c.unwrap(PooledConnection.class);
+                            //同一个物理连接不能同时给两个线程用
+                            if (!pc.inUse.compareAndSet(false, true))
+                                throw new AssertionError("connection is used by two threads");
+                            if (j % 7 == 0)
+                                Thread.yield();
+                            pc.inUse.set(false);
+                            c.close();
+                        }
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread t : threads)
+            t.join();
+        if (error.get() != null)
+            throw new AssertionError(error.get());
+
+        assertEquals(0, pool.getActiveConnections());
+        //空闲的连接都能被别的线程拿到，所以不需要新建多于maxConnections个连接
+        assertTrue("created " + created.size(), created.size() <= maxConnections);
+
+        //所有空闲的连接都还在栈里
+        Connection[] all = new Connection[maxConnections];
+        for (int i = 0; i < maxConnections; i++)
+            all[i] = pool.getConnection();
+        for (Connection c : all)
+            c.close();
+        assertTrue(created.size() <= maxConnections);
+
+        pool.dispose();
+        for (FakePooledConnection pc : created)
+            assertTrue(pc.closed);
+    }
+
+    @Test
+    public void dispose() throws Exception {
+        JdbcConnectionPool pool = JdbcConnectionPool.create(createDataSource());
+        Connection c1 = pool.getConnection();
+        Connection c2 = pool.getConnection();
+        c1.close();
+        pool.dispose();
+        assertTrue(created.get(0).closed);
+        assertFalse(created.get(1).closed);
+
+        //连接池关闭后还回来的连接也会被关闭
+        c2.close();
+        assertTrue(created.get(1).closed);
+        try {
+            pool.getConnection();
+            fail();
+        } catch (IllegalStateException e) {
+            //expected
+        }
+    }
+
+    private ConnectionPoolDataSource createDataSource() {
+        return (ConnectionPoolDataSource) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { ConnectionPoolDataSource.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("getPooledConnection")) {
+                            FakePooledConnection pc = new FakePooledConnection();
+                            created.add(pc);
+                            return pc;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private static class FakePooledConnection implements PooledConnection, InvocationHandler {
+        final List<ConnectionEventListener> listeners = new CopyOnWriteArrayList<ConnectionEventListener>();
+        final AtomicBoolean inUse = new AtomicBoolean();
+        volatile boolean closed;
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            if (closed)
+                throw new SQLException("closed");
+            return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { Connection.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("close")) {
+                ConnectionEvent event = new ConnectionEvent(this);
+                for (ConnectionEventListener listener : listeners)
+                    listener.connectionClosed(event);
+                return null;
+            } else if (name.equals("isValid")) {
+                return !closed;
+            } else if (name.equals("unwrap")) {
+                return this;
+            }
+            throw new UnsupportedOperationException(name);
+        }
+
+        @Override
+        public void close() throws SQLException {
+            closed = true;
+        }
+
+        @Override
+        public void addConnectionEventListener(ConnectionEventListener listener) {
+            listeners.add(listener);
+        }
+
+        @Override
+        public void removeConnectionEventListener(ConnectionEventListener listener) {
+            listeners.remove(listener);
+        }
+
+        @Override
+        public void addStatementEventListener(StatementEventListener listener) {
+        }
+
+        @Override
+        public void removeStatementEventListener(StatementEventListener listener) {
+        }
+    }
+}
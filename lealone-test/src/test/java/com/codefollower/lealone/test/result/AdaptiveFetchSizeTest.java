@@ -0,0 +1,85 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.result;
+
+import static junit.framework.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.codefollower.lealone.constant.SysProperties;
+import com.codefollower.lealone.result.AdaptiveFetchSize;
+
+//AdaptiveFetchSize的增长和上下限，不需要启动服务器
+public class AdaptiveFetchSizeTest {
+    private static final long WAIT = 1000L * 1000 * 1000; //读取方一直在等下一批
+
+    @Test
+    public void grow() {
+        AdaptiveFetchSize f = new AdaptiveFetchSize(10);
+        assertEquals(10, f.get());
+        f.received(10, 100, WAIT);
+        assertEquals(20, f.get());
+        f.received(20, 200, WAIT);
+        assertEquals(40, f.get());
+
+        //不用等的时候不变
+        f.received(40, 400, 0);
+        assertEquals(40, f.get());
+
+        //空的batch不影响
+        f.received(0, 0, WAIT);
+        assertEquals(40, f.get());
+    }
+
+    @Test
+    public void maxFetchSize() {
+        AdaptiveFetchSize f = new AdaptiveFetchSize(10);
+        for (int i = 0; i < 20; i++)
+            f.received(f.get(), f.get(), WAIT);
+        assertEquals(SysProperties.SERVER_RESULT_SET_MAX_FETCH_SIZE, f.get());
+    }
+
+    @Test
+    public void maxFetchBytes() {
+        int rowBytes = 1024;
+        int limit = SysProperties.SERVER_RESULT_SET_MAX_FETCH_BYTES / rowBytes;
+        AdaptiveFetchSize f = new AdaptiveFetchSize(10);
+        for (int i = 0; i < 20; i++)
+            f.received(f.get(), (long) f.get() * rowBytes, WAIT);
+        assertEquals(Math.min(limit, SysProperties.SERVER_RESULT_SET_MAX_FETCH_SIZE), f.get());
+
+        //行变大了就马上缩小，但是不会小于请求的fetch size
+        f.received(f.get(), (long) f.get() * SysProperties.SERVER_RESULT_SET_MAX_FETCH_BYTES, 0);
+        assertEquals(10, f.get());
+    }
+
+    @Test
+    public void set() {
+        AdaptiveFetchSize f = new AdaptiveFetchSize(10);
+        f.received(10, 100, WAIT);
+        f.set(5);
+        assertEquals(5, f.get());
+        //比上限还大的请求不会被缩小
+        int large = SysProperties.SERVER_RESULT_SET_MAX_FETCH_SIZE * 2;
+        f.set(large);
+        f.received(large, large, WAIT);
+        assertEquals(large, f.get());
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.server;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.codefollower.lealone.constant.ErrorCode;
+import com.codefollower.lealone.hbase.util.HBaseUtils;
+import com.codefollower.lealone.tools.Server;
+
+//用-tcpNio启动一个TcpServer，所有请求都经过NioTcpListener和TcpFrameDecoder
+public class NioTcpServerTest {
+    private static Server server;
+    private static String url;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        System.setProperty("lealone.base.dir", HBaseUtils.getConfiguration().get("lealone.test.dir"));
+        //端口为0时使用任意空闲端口，worker线程数和队列长度用默认值
+        server = Server.createTcpServer("-tcpPort", "0", "-tcpNio", "-tcpDaemon").start();
+        url = "jdbc:lealone:tcp://localhost:" + server.getPort() + "/NioTcpServerTest";
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        if (server != null)
+            server.stop();
+    }
+
+    private static Connection getConnection() throws SQLException {
+        return DriverManager.getConnection(url, "sa", "");
+    }
+
+    @Test
+    public void connectQueryBatchClose() throws Exception {
+        Connection conn = getConnection();
+        Statement stmt = conn.createStatement();
+        stmt.executeUpdate("DROP TABLE IF EXISTS NioTcpServerTest");
+        stmt.executeUpdate("CREATE TABLE NioTcpServerTest (id int primary key, name varchar)");
+
+        //一个请求的数据比读缓冲区(4K)大
+        StringBuilder buff = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+            buff.append("name");
+        String longName = buff.toString();
+
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO NioTcpServerTest(id, name) VALUES(?, ?)");
+        for (int i = 0; i < 1000; i++) {
+            ps.setInt(1, i);
+            ps.setString(2, i == 500 ? longName : "name" + i);
+            ps.addBatch();
+        }
+        int[] counts = ps.executeBatch();
+        assertEquals(1000, counts.length);
+        for (int c : counts)
+            assertEquals(1, c);
+        ps.close();
+
+        //fetchSize比记录数小，要多次RESULT_FETCH_ROWS
+        stmt.setFetchSize(10);
+        ResultSet rs = stmt.executeQuery("SELECT id, name FROM NioTcpServerTest ORDER BY id");
+        int count = 0;
+        while (rs.next()) {
+            assertEquals(count, rs.getInt(1));
+            assertEquals(count == 500 ? longName : "name" + count, rs.getString(2));
+            count++;
+        }
+        rs.close();
+        assertEquals(1000, count);
+
+        ps = conn.prepareStatement("SELECT name FROM NioTcpServerTest WHERE id = ?");
+        ps.setInt(1, 500);
+        rs = ps.executeQuery();
+        assertTrue(rs.next());
+        assertEquals(longName, rs.getString(1));
+        assertFalse(rs.next());
+        rs.close();
+        ps.close();
+
+        stmt.close();
+        conn.close();
+
+        //关闭之后可以再连接
+        conn = getConnection();
+        rs = conn.createStatement().executeQuery("SELECT count(*) FROM NioTcpServerTest");
+        assertTrue(rs.next());
+        assertEquals(1000, rs.getInt(1));
+        rs.close();
+        conn.close();
+    }
+
+    @Test
+    public void manyConnections() throws Exception {
+        int threads = 20;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < threads; i++) {
+            final int id = i;
+            futures.add(pool.submit(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    int sum = 0;
+                    Connection conn = getConnection();
+                    try {
+                        PreparedStatement ps = conn.prepareStatement("SELECT ? + X FROM SYSTEM_RANGE(1, 10)");
+                        for (int j = 0; j < 20; j++) {
+                            ps.setInt(1, id);
+                            ResultSet rs = ps.executeQuery();
+                            while (rs.next())
+                                sum += rs.getInt(1);
+                            rs.close();
+                        }
+                    } finally {
+                        conn.close();
+                    }
+                    return sum;
+                }
+            }));
+        }
+        for (int i = 0; i < threads; i++)
+            assertEquals(20 * (10 * i + 55), futures.get(i).get(30, TimeUnit.SECONDS).intValue());
+        pool.shutdown();
+    }
+
+    //一个请求在等另一个连接的请求时占着一个worker，
+    //worker线程数有限制时如果所有worker都在等，另一个连接的请求就没有worker来执行
+    @Test
+    public void waitForAnotherConnection() throws Exception {
+        Connection conn1 = getConnection();
+        Connection conn2 = getConnection();
+        try {
+            Statement stmt1 = conn1.createStatement();
+            stmt1.executeUpdate("DROP TABLE IF EXISTS NioTcpServerLockTest");
+            stmt1.executeUpdate("CREATE TABLE NioTcpServerLockTest (id int primary key, v int)");
+            stmt1.executeUpdate("INSERT INTO NioTcpServerLockTest VALUES(1, 0)");
+
+            //conn1锁住表，conn2的更新要等conn1提交
+            conn1.setAutoCommit(false);
+            stmt1.executeUpdate("UPDATE NioTcpServerLockTest SET v = 1");
+
+            final Statement stmt2 = conn2.createStatement();
+            stmt2.executeUpdate("SET LOCK_TIMEOUT 30000");
+            ExecutorService pool = Executors.newSingleThreadExecutor();
+            Future<Integer> waiting = pool.submit(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    return stmt2.executeUpdate("UPDATE NioTcpServerLockTest SET v = v + 10");
+                }
+            });
+            Thread.sleep(200);
+            assertFalse(waiting.isDone());
+            conn1.commit();
+            assertEquals(1, waiting.get(10, TimeUnit.SECONDS).intValue());
+            pool.shutdown();
+
+            ResultSet rs = stmt1.executeQuery("SELECT v FROM NioTcpServerLockTest");
+            assertTrue(rs.next());
+            assertEquals(11, rs.getInt(1));
+            rs.close();
+            conn1.setAutoCommit(true);
+            stmt1.executeUpdate("DROP TABLE NioTcpServerLockTest");
+        } finally {
+            conn1.close();
+            conn2.close();
+        }
+    }
+
+    //函数中再连接同一个服务器上的另一个数据库，执行函数的worker要等另一个worker，
+    //连接同一个数据库会等待数据库的锁，跟用哪种服务器无关
+    @Test
+    public void reentrantCall() throws Exception {
+        Connection conn = getConnection();
+        try {
+            Statement stmt = conn.createStatement();
+            stmt.executeUpdate("CREATE ALIAS IF NOT EXISTS NIO_CALL FOR \""
+                    + NioTcpServerTest.class.getName() + ".call\"");
+            ResultSet rs = stmt.executeQuery("SELECT NIO_CALL(X) FROM SYSTEM_RANGE(1, 3)");
+            for (int i = 1; i <= 3; i++) {
+                assertTrue(rs.next());
+                assertEquals(i * 2, rs.getInt(1));
+            }
+            assertFalse(rs.next());
+            rs.close();
+        } finally {
+            conn.close();
+        }
+    }
+
+    //只有一个worker，队列长度为1，worker和队列都被占着的时候其他请求马上返回错误，连接还能接着用
+    @Test
+    public void busyWorkers() throws Exception {
+        Server busy = Server.createTcpServer("-tcpPort", "0", "-tcpNio", "-tcpDaemon", "-tcpNioWorkers", "1",
+                "-tcpNioQueue", "1").start();
+        String busyURL = "jdbc:lealone:tcp://localhost:" + busy.getPort() + "/NioTcpServerTest";
+        Connection conn1 = DriverManager.getConnection(busyURL, "sa", "");
+        Connection conn2 = DriverManager.getConnection(busyURL, "sa", "");
+        Connection conn3 = DriverManager.getConnection(busyURL, "sa", "");
+        Connection conn4 = DriverManager.getConnection(busyURL, "sa", "");
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Statement stmt1 = conn1.createStatement();
+            stmt1.executeUpdate("DROP TABLE IF EXISTS NioTcpServerBusyTest");
+            stmt1.executeUpdate("CREATE TABLE NioTcpServerBusyTest (id int primary key, v int)");
+            stmt1.executeUpdate("INSERT INTO NioTcpServerBusyTest VALUES(1, 0)");
+            conn1.setAutoCommit(false);
+            stmt1.executeUpdate("UPDATE NioTcpServerBusyTest SET v = 1");
+
+            //conn2等锁的时候占着唯一的worker，直到锁超时，conn3的请求在队列中等着
+            final Statement stmt2 = conn2.createStatement();
+            stmt2.executeUpdate("SET LOCK_TIMEOUT 2000");
+            final Statement stmt3 = conn3.createStatement();
+            Statement stmt4 = conn4.createStatement();
+            Future<Integer> waiting = pool.submit(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    return stmt2.executeUpdate("UPDATE NioTcpServerBusyTest SET v = v + 10");
+                }
+            });
+            Thread.sleep(200);
+            Future<Integer> queued = pool.submit(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    return stmt3.executeUpdate("SET LOCK_TIMEOUT 1000");
+                }
+            });
+            Thread.sleep(200);
+            assertFalse(waiting.isDone());
+            assertFalse(queued.isDone());
+
+            try {
+                stmt4.executeQuery("SELECT 1");
+                fail();
+            } catch (SQLException e) {
+                assertEquals(ErrorCode.GENERAL_ERROR_1, e.getErrorCode());
+            }
+            try {
+                DriverManager.getConnection(busyURL, "sa", "");
+                fail();
+            } catch (SQLException e) {
+                assertEquals(ErrorCode.GENERAL_ERROR_1, e.getErrorCode());
+            }
+
+            try {
+                waiting.get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertEquals(ErrorCode.LOCK_TIMEOUT_1, ((SQLException) e.getCause()).getErrorCode());
+            }
+            assertEquals(0, queued.get(10, TimeUnit.SECONDS).intValue());
+
+            ResultSet rs = stmt4.executeQuery("SELECT 1");
+            assertTrue(rs.next());
+            assertEquals(1, rs.getInt(1));
+            rs.close();
+            conn1.commit();
+            conn1.setAutoCommit(true);
+            stmt1.executeUpdate("DROP TABLE NioTcpServerBusyTest");
+        } finally {
+            pool.shutdown();
+            conn1.close();
+            conn2.close();
+            conn3.close();
+            conn4.close();
+            busy.stop();
+        }
+    }
+
+    /**
+     * 在服务器端执行，通过TCP连接同一个服务器
+     */
+    public static int call(int x) throws SQLException {
+        Connection conn = DriverManager.getConnection(url + "2", "sa", "");
+        try {
+            ResultSet rs = conn.createStatement().executeQuery("SELECT " + x + " * 2");
+            rs.next();
+            return rs.getInt(1);
+        } finally {
+            conn.close();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2011 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.codefollower.lealone.test.value;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import com.codefollower.lealone.constant.Constants;
+import com.codefollower.lealone.value.Transfer;
+import com.codefollower.lealone.value.Value;
+import com.codefollower.lealone.value.ValueArray;
+import com.codefollower.lealone.value.ValueBoolean;
+import com.codefollower.lealone.value.ValueByte;
+import com.codefollower.lealone.value.ValueBytes;
+import com.codefollower.lealone.value.ValueDate;
+import com.codefollower.lealone.value.ValueDecimal;
+import com.codefollower.lealone.value.ValueDouble;
+import com.codefollower.lealone.value.ValueFloat;
+import com.codefollower.lealone.value.ValueInt;
+import com.codefollower.lealone.value.ValueLong;
+import com.codefollower.lealone.value.ValueNull;
+import com.codefollower.lealone.value.ValueShort;
+import com.codefollower.lealone.value.ValueString;
+import com.codefollower.lealone.value.ValueStringFixed;
+import com.codefollower.lealone.value.ValueStringIgnoreCase;
+import com.codefollower.lealone.value.ValueTime;
+import com.codefollower.lealone.value.ValueTimestamp;
+import com.codefollower.lealone.value.ValueUuid;
+
+//Transfer.writeRows和readRows的往返测试，不需要启动服务器
+public class TransferRowsTest {
+    private static final long NANOS = 123456789L; //不是整毫秒
+
+    @Test
+    public void encodeAndDecode() throws Exception {
+        ArrayList<Value[]> rows = new ArrayList<Value[]>();
+        for (int i = 0; i < 100; i++)
+            rows.add(new Value[] { ValueInt.get(i), ValueString.get("s" + (i % 3)) });
+        assertRoundTrip(rows, 2);
+
+        //空的batch
+        assertRoundTrip(new ArrayList<Value[]>(), 2);
+    }
+
+    @Test
+    public void allTypes() throws Exception {
+        Value[] values = { ValueBoolean.get(true), ValueByte.get((byte) -3), ValueShort.get((short) 300),
+                ValueInt.get(Integer.MIN_VALUE), ValueLong.get(Long.MAX_VALUE), ValueFloat.get(1.5f),
+                ValueDouble.get(-0.25), ValueDecimal.get(new BigDecimal("12345678901234567890.123")),
+                ValueString.get("abc中文"), ValueStringFixed.get("fixed"),
+                ValueStringIgnoreCase.get("Ignore"), ValueBytes.get(new byte[] { 1, 2, 3 }),
+                ValueUuid.get(1234L, 5678L), ValueDate.fromDateValue(dateValue(2013, 4, 5)),
+                ValueTime.fromNanos(13 * 3600 * 1000000000L + NANOS),
+                ValueTimestamp.fromDateValueAndNanos(dateValue(1969, 12, 31), 23 * 3600 * 1000000000L + NANOS),
+                ValueArray.get(new Value[] { ValueInt.get(1), ValueString.get("x"), ValueNull.INSTANCE }) };
+        for (Value v : values) {
+            ArrayList<Value[]> rows = new ArrayList<Value[]>();
+            for (int i = 0; i < 10; i++)
+                rows.add(new Value[] { i % 3 == 1 ? ValueNull.INSTANCE : v, ValueInt.get(i) });
+            assertRoundTrip(rows, 2);
+
+            //只有一行
+            rows.clear();
+            rows.add(new Value[] { v });
+            assertRoundTrip(rows, 1);
+        }
+    }
+
+    @Test
+    public void dateTime() throws Exception {
+        ArrayList<Value[]> rows = new ArrayList<Value[]>();
+        for (int i = 0; i < 50; i++) {
+            long nanos = i * 3600 * 1000000000L / 3 + NANOS + i;
+            rows.add(new Value[] { ValueDate.fromDateValue(dateValue(1900 + i * 5, 1 + i % 12, 1 + i % 28)), //
+                    ValueTime.fromNanos(nanos), //
+                    ValueTimestamp.fromDateValueAndNanos(dateValue(2000 - i, 2, 29 - i % 2), nanos), //
+                    ValueNull.INSTANCE });
+        }
+        rows.get(7)[0] = ValueNull.INSTANCE;
+        rows.get(8)[1] = ValueNull.INSTANCE;
+        rows.get(9)[2] = ValueNull.INSTANCE;
+        assertRoundTrip(rows, 4);
+    }
+
+    @Test
+    public void valueByValue() throws Exception {
+        //同一列中既有TIME又有其他类型的值
+        ArrayList<Value[]> rows = new ArrayList<Value[]>();
+        rows.add(new Value[] { ValueTime.fromNanos(NANOS) });
+        rows.add(new Value[] { ValueInt.get(1) });
+        rows.add(new Value[] { ValueNull.INSTANCE });
+        assertRoundTrip(rows, 1);
+
+        //数组中的日期时间不能用Data的格式
+        rows.clear();
+        rows.add(new Value[] { ValueArray.get(new Value[] { ValueTime.fromNanos(NANOS),
+                ValueTimestamp.fromDateValueAndNanos(dateValue(2013, 1, 1), NANOS) }) });
+        rows.add(new Value[] { ValueArray.get(new Value[] { ValueArray.get(new Value[] { ValueDate
+                .fromDateValue(dateValue(1, 1, 1)) }) }) });
+        assertRoundTrip(rows, 1);
+    }
+
+    @Test
+    public void compressed() throws Exception {
+        ArrayList<Value[]> rows = new ArrayList<Value[]>();
+        for (int i = 0; i < 1000; i++)
+            rows.add(new Value[] { ValueLong.get(i), ValueString.get("name" + i),
+                    ValueTimestamp.fromDateValueAndNanos(dateValue(2013, 1, 1), NANOS * (i % 10)) });
+        assertRoundTrip(rows, 3);
+    }
+
+    private static long dateValue(int year, int month, int day) {
+        return ((long) year << 9) | (month << 5) | day;
+    }
+
+    private static void assertRoundTrip(ArrayList<Value[]> rows, int columnCount) throws Exception {
+        for (boolean compress : new boolean[] { false, true }) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Transfer transfer = new Transfer(null);
+            transfer.setVersion(Constants.TCP_PROTOCOL_VERSION_15);
+            transfer.init(new ByteArrayInputStream(new byte[0]), out);
+            transfer.writeRows(rows, columnCount, compress);
+            transfer.flush();
+
+            transfer = new Transfer(null);
+            transfer.setVersion(Constants.TCP_PROTOCOL_VERSION_15);
+            ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+            transfer.init(in, new ByteArrayOutputStream());
+            ArrayList<Value[]> result = new ArrayList<Value[]>();
+            assertEquals(rows.size(), transfer.readRows(result, columnCount));
+            assertEquals(0, in.available());
+            assertEquals(rows.size(), result.size());
+            for (int r = 0; r < rows.size(); r++) {
+                for (int i = 0; i < columnCount; i++) {
+                    Value expected = rows.get(r)[i];
+                    Value actual = result.get(r)[i];
+                    assertEquals(expected.getType(), actual.getType());
+                    assertEquals(expected.getTraceSQL(), actual.getTraceSQL());
+                    assertEquals(expected, actual);
+                }
+            }
+        }
+    }
+}